@@ -19,41 +19,274 @@ package org.xenei.compressedgraph;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Stream;
 
+import org.xenei.compressedgraph.core.BindingCursor;
 import org.xenei.compressedgraph.core.BitConstants;
 import org.xenei.compressedgraph.core.BitCube;
-import org.xenei.compressedgraph.core.BitCube.Idx;
+import org.xenei.compressedgraph.core.Cube;
+import org.xenei.compressedgraph.core.DirectoryCube;
+import org.xenei.compressedgraph.core.MemoryStats;
+import org.xenei.compressedgraph.core.TrieJoin;
+import org.xenei.compressedgraph.core.TripleCursor;
 
+import com.hp.hpl.jena.graph.Capabilities;
+import com.hp.hpl.jena.graph.GraphEvents;
+import com.hp.hpl.jena.graph.GraphStatisticsHandler;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
 import com.hp.hpl.jena.graph.TripleMatch;
+import com.hp.hpl.jena.graph.impl.AllCapabilities;
 import com.hp.hpl.jena.graph.impl.GraphBase;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
-import com.hp.hpl.jena.util.iterator.Map1;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
 
 /**
  * Abstract compressed graph.
  * 
  * The idea here is that nodes are converted into integers and the integers are
- * used to represent the nodes in the triple store. The big problem seemed to be
+ * used to represent the nodes in the triple store. Node ids are longs, the
+ * cubes hold ids past the int range in a directory of int cubes, see
+ * DirectoryCube. The big problem seemed to be
  * the mapping between integers and nodes. Though there are also issues with the
  * size of the sparse cube as more triples are added.
  * 
  * Several storage strategies are provided.
  * 
+ * Triples are always stored in a cube in OPS order. Additional cubes in other
+ * orders may be maintained so that a find with any combination of bound
+ * nodes is answered by a prefix lookup; each additional order costs roughly
+ * the memory of the primary cube.
+ * 
+ * A graph that is loaded once and then only queried may be frozen. The cubes
+ * are then replaced by compact read only copies and adds and deletes are
+ * denied.
+ * 
  */
 public abstract class AbstractCompressedGraph extends GraphBase implements
 		Serializable {
-	private BitCube data;
+	private static final int SNAPSHOT_MAGIC = 0x43475246; // CGRF
+	// version 1 held int ids, it is read as well
+	private static final int SNAPSHOT_VERSION = 2;
+	private static final int SNAPSHOT_FROZEN = 1;
+	// variable orders tried by join, all orders of up to 7 variables
+	private static final int MAX_ORDER_ATTEMPTS = 5040;
+	// the id of a node that is not in the node map, never a join variable
+	private static final long NOT_FOUND = Long.MIN_VALUE;
+
+	private DirectoryCube data;
+	private EnumMap<CubeOrder, DirectoryCube> permutations;
 	private INodeMap map;
+	private volatile boolean frozen;
 
 	protected AbstractCompressedGraph(INodeMap map) {
 		this(BitConstants.DEFAULT_PAGE_SIZE, map);
 	}
 
 	protected AbstractCompressedGraph(int pageSize, INodeMap map) {
-		data = new BitCube(pageSize);
+		this(pageSize, map, EnumSet.allOf(CubeOrder.class));
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the cubes.
+	 * @param map
+	 *            the node map.
+	 * @param orders
+	 *            the cube orders to maintain. OPS is always maintained.
+	 */
+	protected AbstractCompressedGraph(int pageSize, INodeMap map,
+			Set<CubeOrder> orders) {
+		data = new DirectoryCube(pageSize);
+		permutations = new EnumMap<CubeOrder, DirectoryCube>(CubeOrder.class);
+		permutations.put(CubeOrder.OPS, data);
+		for (CubeOrder order : orders) {
+			if (!permutations.containsKey(order)) {
+				permutations.put(order, new DirectoryCube(pageSize));
+			}
+		}
 		this.map = map;
+		this.frozen = false;
+	}
+
+	/**
+	 * Replace the cubes with compact read only copies. After this call adds
+	 * and deletes throw AddDeniedException and DeleteDeniedException. Adds and
+	 * deletes must not run while the graph is being frozen.
+	 */
+	public synchronized void freeze() {
+		if (frozen) {
+			return;
+		}
+		EnumMap<CubeOrder, DirectoryCube> frozenCubes = new EnumMap<CubeOrder, DirectoryCube>(
+				CubeOrder.class);
+		for (Map.Entry<CubeOrder, DirectoryCube> e : permutations.entrySet()) {
+			frozenCubes.put(e.getKey(), e.getValue().freeze());
+		}
+		permutations = frozenCubes;
+		data = permutations.get(CubeOrder.OPS);
+		frozen = true;
+	}
+
+	/**
+	 * Return true if the graph has been frozen.
+	 */
+	public boolean isFrozen() {
+		return frozen;
+	}
+
+	/**
+	 * Get the cube orders maintained by this graph.
+	 */
+	public Set<CubeOrder> getCubeOrders() {
+		return EnumSet.copyOf(permutations.keySet());
+	}
+
+	/**
+	 * Get the memory used by the cubes of every cube order.
+	 */
+	public MemoryStats getCubeMemoryStats() {
+		MemoryStats retval = MemoryStats.EMPTY;
+		for (Cube cube : permutations.values()) {
+			retval = retval.plus(cube.getMemoryStats());
+		}
+		return retval;
+	}
+
+	/**
+	 * Get the memory used by the node map.
+	 */
+	public MemoryStats getNodeMemoryStats() {
+		return map.getMemoryStats();
+	}
+
+	/**
+	 * Get the bytes used by the cubes and the node map for each triple, 0 if
+	 * the graph is empty.
+	 */
+	public double getBytesPerTriple() {
+		long triples = data.getSize();
+		if (triples == 0) {
+			return 0;
+		}
+		return (double) getCubeMemoryStats().plus(getNodeMemoryStats())
+				.getBytes() / triples;
+	}
+
+	/**
+	 * Compact the cubes after many triples have been deleted, see
+	 * BitCube.compact(). A frozen graph is already compact.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	public long compact() {
+		long released = 0;
+		for (DirectoryCube cube : permutations.values()) {
+			released += cube.compact();
+		}
+		return released;
+	}
+
+	/**
+	 * Get a task that compacts the cubes in the background a few matrices
+	 * at a time, see Compactor. Schedule it with a fixed delay. The task does
+	 * nothing once the graph is frozen.
+	 * 
+	 * @param matricesPerRun
+	 *            the number of matrices of each cube to compact in each run.
+	 * @return the task.
+	 */
+	public Runnable compactor(int matricesPerRun) {
+		final List<Runnable> compactors = new ArrayList<Runnable>();
+		for (DirectoryCube cube : permutations.values()) {
+			compactors.add(cube.compactor(matricesPerRun));
+		}
+		return new Runnable() {
+			@Override
+			public void run() {
+				for (Runnable compactor : compactors) {
+					if (frozen) {
+						return;
+					}
+					compactor.run();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Give the nodes new ids so that the cubes are dense and scans touch few
+	 * pages, see IdOrder. Frequent predicates and objects get the smallest
+	 * ids and subjects with the same predicates get neighbouring ids. The
+	 * nodes are added to the target map in the new order, the cubes are
+	 * rebuilt with the new ids and the target map replaces the node map,
+	 * which is closed. Nodes that are no longer in a triple are dropped.
+	 * 
+	 * This is an offline operation, usually run after a bulkLoad(). Nothing
+	 * else may use the graph while it is being renumbered. The triples are
+	 * not changed so graph listeners are not notified.
+	 * 
+	 * @param target
+	 *            an empty node map.
+	 * @throws IOException
+	 *             if a node can not be read or written.
+	 */
+	protected synchronized void renumber(INodeMap target) throws IOException {
+		checkOpen();
+		if (frozen) {
+			throw new AddDeniedException("Graph is frozen");
+		}
+		if (target.count() != 0) {
+			throw new IllegalArgumentException("The node map must be empty");
+		}
+		int[] order = IdOrder.order(data, map);
+		int[] ids = new int[(int) map.count()];
+		for (int i = 0; i < order.length; i++) {
+			Node n = map.get(order[i]).getNode();
+			long idx = target.get(n).getIdx();
+			if (idx != i) {
+				throw new IllegalStateException(String.format(
+						"Node %s was renumbered as %s but added as %s", n, i,
+						idx));
+			}
+			ids[order[i]] = i;
+		}
+
+		IdTriples triples = new IdTriples((int) Math.min(data.getSize(),
+				Integer.MAX_VALUE));
+		TripleCursor cursor = data.cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD);
+		while (cursor.next()) {
+			// OPS order: x is the subject and z the object
+			triples.add(ids[(int) cursor.getX()], ids[(int) cursor.getY()],
+					ids[(int) cursor.getZ()]);
+		}
+		for (Cube cube : permutations.values()) {
+			cube.clear(EnumeratedNode.WILD, EnumeratedNode.WILD,
+					EnumeratedNode.WILD);
+		}
+		load(triples);
+		INodeMap old = map;
+		map = target;
+		old.close();
 	}
 
 	@Override
@@ -62,20 +295,65 @@ public abstract class AbstractCompressedGraph extends GraphBase implements
 		map.close();
 	}
 
+	/**
+	 * Get the id of a node without adding it to the node map, so that finds
+	 * for unknown nodes do not grow the map.
+	 * 
+	 * @return the id, WILD for null or Node.ANY, or NOT_FOUND if the node is
+	 *         not in the map.
+	 */
+	private long lookup(Node n) throws IOException {
+		SerializableNode sn = map.lookup(n);
+		return sn == null ? NOT_FOUND : sn.getIdx();
+	}
+
 	@Override
 	protected ExtendedIterator<Triple> graphBaseFind(TripleMatch t) {
 		try {
-			int s = map.get(t.getMatchSubject()).getIdx();
-			int p = map.get(t.getMatchPredicate()).getIdx();
-			int o = map.get(t.getMatchObject()).getIdx();
-			return data.find(s, p, o).mapWith(new Map1<Idx, Triple>() {
+			long s = lookup(t.getMatchSubject());
+			long p = lookup(t.getMatchPredicate());
+			long o = lookup(t.getMatchObject());
+			if (s == NOT_FOUND || p == NOT_FOUND || o == NOT_FOUND) {
+				return NiceIterator.emptyIterator();
+			}
+			CubeOrder order = bestOrder(s, p, o);
+			Cube cube = permutations.get(order);
+			return new TripleIterator(order, cube.cursor(order.getX(s, p, o),
+					order.getY(s, p, o), order.getZ(s, p, o)));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
 
+	/**
+	 * Find the triples that match as a parallel stream. The cube of the
+	 * matching order is split on page boundaries and read by the common
+	 * fork/join pool, nodes are looked up by the worker threads.
+	 * 
+	 * @param t
+	 *            the triple to match.
+	 * @return a parallel stream of the matching triples.
+	 */
+	public Stream<Triple> parallelFind(TripleMatch t) {
+		checkOpen();
+		try {
+			long s = lookup(t.getMatchSubject());
+			long p = lookup(t.getMatchPredicate());
+			long o = lookup(t.getMatchObject());
+			if (s == NOT_FOUND || p == NOT_FOUND || o == NOT_FOUND) {
+				return Collections.<Triple> emptyList().stream();
+			}
+			final CubeOrder order = bestOrder(s, p, o);
+			Cube cube = permutations.get(order);
+			Stream<BitCube.Idx> ids = cube.stream(order.getX(s, p, o),
+					order.getY(s, p, o), order.getZ(s, p, o));
+			return ids.parallel().map(new Function<BitCube.Idx, Triple>() {
 				@Override
-				public Triple map1(Idx idx) {
+				public Triple apply(BitCube.Idx idx) {
 					try {
-						Node s = map.get(idx.getX()).getNode();
-						Node p = map.get(idx.getY()).getNode();
-						Node o = map.get(idx.getZ()).getNode();
+						Node s = map.get(order.getSubject(idx)).getNode();
+						Node p = map.get(order.getPredicate(idx)).getNode();
+						Node o = map.get(order.getObject(idx)).getNode();
 						return new Triple(s, p, o);
 					} catch (IOException e) {
 						throw new RuntimeException(e);
@@ -87,30 +365,679 @@ public abstract class AbstractCompressedGraph extends GraphBase implements
 		}
 	}
 
+	/**
+	 * Get the maintained cube order with the longest bound prefix for the ids.
+	 */
+	private CubeOrder bestOrder(long s, long p, long o) {
+		CubeOrder order = CubeOrder.OPS;
+		int best = order.prefixLength(s, p, o);
+		for (CubeOrder candidate : permutations.keySet()) {
+			int len = candidate.prefixLength(s, p, o);
+			if (len > best) {
+				order = candidate;
+				best = len;
+			}
+		}
+		return order;
+	}
+
+	/**
+	 * Count the triples that match without iterating them. Node.ANY or null
+	 * matches any node. The count is read from the cube counters of the cube
+	 * order with the longest bound prefix, so it is only a counter lookup when
+	 * the matching cube order is maintained.
+	 * 
+	 * @return the number of matching triples.
+	 */
+	public long count(Node s, Node p, Node o) {
+		try {
+			long si = lookup(s);
+			long pi = lookup(p);
+			long oi = lookup(o);
+			if (si == NOT_FOUND || pi == NOT_FOUND || oi == NOT_FOUND) {
+				return 0;
+			}
+			CubeOrder order = bestOrder(si, pi, oi);
+			return permutations.get(order).count(order.getX(si, pi, oi),
+					order.getY(si, pi, oi), order.getZ(si, pi, oi));
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	@Override
+	protected GraphStatisticsHandler createStatisticsHandler() {
+		return new GraphStatisticsHandler() {
+			@Override
+			public long getStatistic(Node s, Node p, Node o) {
+				return count(s, p, o);
+			}
+		};
+	}
+
+	/**
+	 * Find the solutions of a basic graph pattern. Variable nodes in the
+	 * patterns are the join variables, Node.ANY matches any node without
+	 * being reported. The patterns are joined on node ids by a TrieJoin over
+	 * the maintained cube orders, nodes are only looked up for the reported
+	 * solutions.
+	 * 
+	 * @param patterns
+	 *            the triple patterns.
+	 * @return an iterator of solutions, each a map of variable to node.
+	 * @throws IllegalArgumentException
+	 *             if the maintained cube orders can not bind the variables in
+	 *             a consistent order.
+	 */
+	public ExtendedIterator<Map<Node, Node>> join(List<Triple> patterns) {
+		List<Node> variables = new ArrayList<Node>();
+		long[][] terms = new long[patterns.size()][];
+		boolean missing = false;
+		try {
+			for (int i = 0; i < terms.length; i++) {
+				Triple t = patterns.get(i);
+				terms[i] = new long[] { term(t.getSubject(), variables),
+						term(t.getPredicate(), variables),
+						term(t.getObject(), variables) };
+				for (long term : terms[i]) {
+					missing |= term == NOT_FOUND;
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		if (missing) {
+			// a node that is not in the graph matches nothing
+			return NiceIterator.emptyIterator();
+		}
+		CubeOrder[] orders = chooseOrders(terms, variables.size());
+		TrieJoin join = new TrieJoin();
+		for (int i = 0; i < terms.length; i++) {
+			long[] t = terms[i];
+			CubeOrder order = orders[i];
+			join.add(permutations.get(order), order.getX(t[0], t[1], t[2]),
+					order.getY(t[0], t[1], t[2]), order.getZ(t[0], t[1], t[2]));
+		}
+		return new SolutionIterator(join.cursor(), variables);
+	}
+
+	/**
+	 * Get the join term for a node, NOT_FOUND if it is not in the node map.
+	 */
+	private long term(Node node, List<Node> variables) throws IOException {
+		if (node == null || node == Node.ANY) {
+			variables.add(null);
+			return TrieJoin.variable(variables.size() - 1);
+		}
+		if (node.isVariable()) {
+			int v = variables.indexOf(node);
+			if (v < 0) {
+				variables.add(node);
+				v = variables.size() - 1;
+			}
+			return TrieJoin.variable(v);
+		}
+		return lookup(node);
+	}
+
+	/**
+	 * Choose a maintained cube order for each pattern so that every pattern
+	 * binds its variables in one global order. Variable orders are tried
+	 * starting with the variables that occur in the most patterns, for each
+	 * pattern the order with the most leading values is chosen.
+	 */
+	private CubeOrder[] chooseOrders(long[][] terms, int variableCount) {
+		final int[] uses = new int[variableCount];
+		for (long[] t : terms) {
+			for (long term : t) {
+				if (term < 0) {
+					uses[(int) -(term + 1)]++;
+				}
+			}
+		}
+		Integer[] base = new Integer[variableCount];
+		for (int v = 0; v < variableCount; v++) {
+			base[v] = v;
+		}
+		Arrays.sort(base, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return uses[a] != uses[b] ? uses[b] - uses[a] : a - b;
+			}
+		});
+		int[] perm = new int[variableCount];
+		for (int i = 0; i < variableCount; i++) {
+			perm[i] = i;
+		}
+		int[] rank = new int[variableCount];
+		CubeOrder[] orders = new CubeOrder[terms.length];
+		for (int attempt = 0; attempt < MAX_ORDER_ATTEMPTS; attempt++) {
+			for (int i = 0; i < variableCount; i++) {
+				rank[base[perm[i]]] = i;
+			}
+			boolean fits = true;
+			for (int i = 0; i < terms.length && fits; i++) {
+				orders[i] = fittingOrder(terms[i], rank);
+				fits = orders[i] != null;
+			}
+			if (fits) {
+				return orders;
+			}
+			if (!nextPermutation(perm)) {
+				break;
+			}
+		}
+		throw new IllegalArgumentException(
+				"The cube orders can not bind the variables in a consistent order");
+	}
+
+	/**
+	 * Get the maintained order that binds the variables of the pattern in rank
+	 * order and has the most leading values.
+	 * 
+	 * @return the order or null if there is none.
+	 */
+	private CubeOrder fittingOrder(long[] t, int[] rank) {
+		CubeOrder retval = null;
+		int best = -1;
+		for (CubeOrder order : permutations.keySet()) {
+			long[] trie = { order.getZ(t[0], t[1], t[2]),
+					order.getY(t[0], t[1], t[2]), order.getX(t[0], t[1], t[2]) };
+			int last = -1;
+			int leading = 0;
+			boolean fits = true;
+			for (int i = 0; i < trie.length && fits; i++) {
+				if (trie[i] >= 0) {
+					if (leading == i) {
+						leading++;
+					}
+				} else {
+					int r = rank[(int) -(trie[i] + 1)];
+					fits = r >= last;
+					last = r;
+				}
+			}
+			if (fits && leading > best) {
+				retval = order;
+				best = leading;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Rearrange to the next lexicographic permutation.
+	 * 
+	 * @return false if the values were the last permutation.
+	 */
+	private static boolean nextPermutation(int[] values) {
+		int i = values.length - 2;
+		while (i >= 0 && values[i] >= values[i + 1]) {
+			i--;
+		}
+		if (i < 0) {
+			return false;
+		}
+		int j = values.length - 1;
+		while (values[j] <= values[i]) {
+			j--;
+		}
+		int tmp = values[i];
+		values[i] = values[j];
+		values[j] = tmp;
+		for (int a = i + 1, b = values.length - 1; a < b; a++, b--) {
+			tmp = values[a];
+			values[a] = values[b];
+			values[b] = tmp;
+		}
+		return true;
+	}
+
+	/**
+	 * Converts the solutions of a join to maps of variable to node.
+	 */
+	private class SolutionIterator extends NiceIterator<Map<Node, Node>> {
+		private final BindingCursor cursor;
+		private final List<Node> variables;
+		private boolean ready;
+
+		SolutionIterator(BindingCursor cursor, List<Node> variables) {
+			this.cursor = cursor;
+			this.variables = variables;
+			this.ready = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!ready) {
+				ready = cursor.next();
+			}
+			return ready;
+		}
+
+		@Override
+		public Map<Node, Node> next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			Map<Node, Node> retval = new HashMap<Node, Node>();
+			try {
+				for (int v = 0; v < variables.size(); v++) {
+					if (variables.get(v) != null) {
+						retval.put(variables.get(v), map.get(cursor.get(v))
+								.getNode());
+					}
+				}
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+			return retval;
+		}
+	}
+
+	/**
+	 * Converts the positions of a cube cursor to triples.
+	 */
+	private class TripleIterator extends NiceIterator<Triple> {
+		private final CubeOrder order;
+		private final TripleCursor cursor;
+		private boolean ready;
+
+		TripleIterator(CubeOrder order, TripleCursor cursor) {
+			this.order = order;
+			this.cursor = cursor;
+			this.ready = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!ready) {
+				ready = cursor.next();
+			}
+			return ready;
+		}
+
+		@Override
+		public Triple next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			try {
+				Node s = map.get(order.getSubject(cursor)).getNode();
+				Node p = map.get(order.getPredicate(cursor)).getNode();
+				Node o = map.get(order.getObject(cursor)).getNode();
+				return new Triple(s, p, o);
+			} catch (IOException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
 	@Override
 	public void performAdd(Triple t) {
+		if (frozen) {
+			throw new AddDeniedException("Graph is frozen", t);
+		}
 		try {
-			int s = map.get(t.getSubject()).getIdx();
-			int p = map.get(t.getPredicate()).getIdx();
-			int o = map.get(t.getObject()).getIdx();
-			data.set(s, p, o);
+			long s = map.get(t.getSubject()).getIdx();
+			long p = map.get(t.getPredicate()).getIdx();
+			long o = map.get(t.getObject()).getIdx();
+			for (Map.Entry<CubeOrder, DirectoryCube> e : permutations.entrySet()) {
+				CubeOrder order = e.getKey();
+				e.getValue().set(order.getX(s, p, o), order.getY(s, p, o),
+						order.getZ(s, p, o));
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
 	}
 
+	@Override
+	public Capabilities getCapabilities() {
+		if (capabilities == null) {
+			capabilities = new FreezableCapabilities();
+		}
+		return capabilities;
+	}
+
+	/**
+	 * Capabilities that deny adds and deletes once the graph is frozen.
+	 */
+	private class FreezableCapabilities extends AllCapabilities {
+		@Override
+		public boolean addAllowed(boolean every) {
+			return !frozen;
+		}
+
+		@Override
+		public boolean deleteAllowed(boolean every) {
+			return !frozen;
+		}
+	}
+
+	/**
+	 * Load triples into an empty graph. The nodes are converted to ids, the id
+	 * triples are sorted and each cube is built in order. This is much faster
+	 * than adding the triples one at a time. Graph listeners are not notified
+	 * of the triples.
+	 * 
+	 * If the graph is not empty the triples are added one at a time.
+	 * 
+	 * @param triples
+	 *            the triples to load.
+	 */
+	public void bulkLoad(Iterator<Triple> triples) {
+		checkOpen();
+		if (frozen) {
+			throw new AddDeniedException("Graph is frozen");
+		}
+		if (!data.isEmpty()) {
+			while (triples.hasNext()) {
+				add(triples.next());
+			}
+			return;
+		}
+		IdTriples ids = new IdTriples(1024);
+		try {
+			while (triples.hasNext()) {
+				Triple t = triples.next();
+				ids.add(map.get(t.getSubject()).getIdx(),
+						map.get(t.getPredicate()).getIdx(),
+						map.get(t.getObject()).getIdx());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+		load(ids);
+	}
+
+	/**
+	 * Load id triples into every cube.
+	 */
+	private void load(IdTriples ids) {
+		long[] xs = new long[ids.count];
+		long[] ys = new long[ids.count];
+		long[] zs = new long[ids.count];
+		for (Map.Entry<CubeOrder, DirectoryCube> e : permutations.entrySet()) {
+			CubeOrder order = e.getKey();
+			for (int i = 0; i < ids.count; i++) {
+				xs[i] = order.getX(ids.s[i], ids.p[i], ids.o[i]);
+				ys[i] = order.getY(ids.s[i], ids.p[i], ids.o[i]);
+				zs[i] = order.getZ(ids.s[i], ids.p[i], ids.o[i]);
+			}
+			e.getValue().load(xs, ys, zs, ids.count);
+		}
+	}
+
+	/**
+	 * Subject, predicate and object ids collected for a load.
+	 */
+	private static class IdTriples {
+		private long[] s;
+		private long[] p;
+		private long[] o;
+		private int count;
+
+		IdTriples(int capacity) {
+			capacity = Math.max(16, capacity);
+			s = new long[capacity];
+			p = new long[capacity];
+			o = new long[capacity];
+			count = 0;
+		}
+
+		void add(long subject, long predicate, long object) {
+			if (count == s.length) {
+				int capacity = count + (count >> 1);
+				s = Arrays.copyOf(s, capacity);
+				p = Arrays.copyOf(p, capacity);
+				o = Arrays.copyOf(o, capacity);
+			}
+			s[count] = subject;
+			p[count] = predicate;
+			o[count] = object;
+			count++;
+		}
+	}
+
+	/**
+	 * Write the graph to a snapshot file.
+	 * 
+	 * The file starts with a header (magic number, format version and flags)
+	 * followed by the node dictionary, the encoded nodes in id order, and the
+	 * triples. The triples are written in OPS order, grouped by object and
+	 * then by predicate, with every id stored as a varint delta from the
+	 * previous id in its group. Ids and the node count are varints of up to
+	 * 64 bits. Each group ends with a zero. The file ends
+	 * with the magic number again so that a truncated file is detected.
+	 * 
+	 * Only the OPS cube is written, the other cube orders are rebuilt on
+	 * load.
+	 * 
+	 * @param path
+	 *            the file to write.
+	 * @throws IOException
+	 *             on error
+	 */
+	public void save(Path path) throws IOException {
+		checkOpen();
+		SnapshotOutput out = new SnapshotOutput(path);
+		try {
+			out.writeInt(SNAPSHOT_MAGIC);
+			out.writeInt(SNAPSHOT_VERSION);
+			out.writeInt(frozen ? SNAPSHOT_FROZEN : 0);
+
+			long nodes = map.count();
+			out.writeVarlong(nodes);
+			for (long i = 0; i < nodes; i++) {
+				out.writeBytes(map.get(i).getBuffer());
+			}
+
+			// capacity hint for the loader
+			out.writeVarint((int) Math.min(data.getSize(), Integer.MAX_VALUE));
+			TripleCursor cursor = data.cursor(EnumeratedNode.WILD,
+					EnumeratedNode.WILD, EnumeratedNode.WILD);
+			long[] row = new long[16];
+			int len = 0;
+			long curZ = -1;
+			long curY = -1;
+			while (cursor.next()) {
+				long z = cursor.getZ();
+				long y = cursor.getY();
+				if (z != curZ || y != curY) {
+					if (len > 0) {
+						writeRow(out, row, len);
+						len = 0;
+					}
+					if (z != curZ) {
+						if (curZ >= 0) {
+							out.writeVarint(0);
+						}
+						out.writeVarlong(z - curZ);
+						curZ = z;
+						curY = -1;
+					}
+					out.writeVarlong(y - curY);
+					curY = y;
+				}
+				if (len == row.length) {
+					row = Arrays.copyOf(row, len * 2);
+				}
+				row[len++] = cursor.getX();
+			}
+			if (len > 0) {
+				writeRow(out, row, len);
+			}
+			if (curZ >= 0) {
+				out.writeVarint(0);
+			}
+			out.writeVarint(0);
+			out.writeInt(SNAPSHOT_MAGIC);
+		} finally {
+			out.close();
+		}
+	}
+
+	private static void writeRow(SnapshotOutput out, long[] row, int len)
+			throws IOException {
+		out.writeVarint(len);
+		long last = -1;
+		for (int i = 0; i < len; i++) {
+			out.writeVarlong(row[i] - last - 1);
+			last = row[i];
+		}
+	}
+
+	/**
+	 * Read a snapshot written by save() into this graph. The graph and its
+	 * node map must be empty. The graph keeps its own cube orders, and is
+	 * frozen if the saved graph was frozen.
+	 * 
+	 * @param path
+	 *            the file to read.
+	 * @throws IOException
+	 *             if the file is not a snapshot or can not be read.
+	 */
+	public void load(Path path) throws IOException {
+		checkOpen();
+		if (frozen) {
+			throw new AddDeniedException("Graph is frozen");
+		}
+		if (!data.isEmpty() || map.count() != 0) {
+			throw new IllegalStateException(
+					"A snapshot can only be loaded into an empty graph");
+		}
+		SnapshotInput in = new SnapshotInput(path);
+		int flags;
+		IdTriples ids;
+		try {
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(path + " is not a graph snapshot");
+			}
+			int version = in.readInt();
+			if (version != SNAPSHOT_VERSION && version != 1) {
+				throw new IOException(String.format(
+						"Unsupported snapshot version %s", version));
+			}
+			flags = in.readInt();
+
+			long nodes = in.readVarlong();
+			for (long i = 0; i < nodes; i++) {
+				SerializableNode sn = new SerializableNode(in.readBytes());
+				long idx = map.get(sn.getNode()).getIdx();
+				if (idx != sn.getIdx()) {
+					throw new IOException(String.format(
+							"Node %s was saved as %s but loaded as %s",
+							sn.getNode(), sn.getIdx(), idx));
+				}
+			}
+
+			ids = new IdTriples(in.readVarint());
+			long z = -1;
+			for (long dz = in.readVarlong(); dz != 0; dz = in.readVarlong()) {
+				z += dz;
+				long y = -1;
+				for (long dy = in.readVarlong(); dy != 0; dy = in
+						.readVarlong()) {
+					y += dy;
+					long x = -1;
+					for (int n = in.readVarint(); n > 0; n--) {
+						x += in.readVarlong() + 1;
+						// OPS order: x is the subject and z the object
+						ids.add(x, y, z);
+					}
+				}
+			}
+			if (in.readInt() != SNAPSHOT_MAGIC) {
+				throw new IOException(path + " is corrupt");
+			}
+		} finally {
+			in.close();
+		}
+		load(ids);
+		if ((flags & SNAPSHOT_FROZEN) != 0) {
+			freeze();
+		}
+	}
+
 	@Override
 	protected int graphBaseSize() {
-		return data.getSize();
+		return (int) Math.min(data.getSize(), Integer.MAX_VALUE);
 	}
 
 	@Override
 	public void performDelete(Triple t) {
+		if (frozen) {
+			throw new DeleteDeniedException("Graph is frozen", t);
+		}
+		try {
+			long s = lookup(t.getSubject());
+			long p = lookup(t.getPredicate());
+			long o = lookup(t.getObject());
+			if (s == NOT_FOUND || p == NOT_FOUND || o == NOT_FOUND) {
+				return;
+			}
+			for (Map.Entry<CubeOrder, DirectoryCube> e : permutations.entrySet()) {
+				CubeOrder order = e.getKey();
+				e.getValue().clear(order.getX(s, p, o), order.getY(s, p, o),
+						order.getZ(s, p, o));
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Remove the triples that match. Node.ANY or null matches any node. Each
+	 * cube drops the matching matrices, rows and pages whole rather than
+	 * deleting the triples one at a time. If graph listeners are registered
+	 * the triples are deleted one at a time so that each delete is notified.
+	 */
+	@Override
+	public void remove(Node s, Node p, Node o) {
+		checkOpen();
+		if (frozen) {
+			throw new DeleteDeniedException("Graph is frozen");
+		}
+		if (getEventManager().listening()) {
+			super.remove(s, p, o);
+			return;
+		}
+		clearCubes(s, p, o);
+		getEventManager().notifyEvent(this, GraphEvents.remove(s, p, o));
+	}
+
+	/**
+	 * Remove every triple. The cubes are cleared whole.
+	 */
+	@Override
+	public void clear() {
+		checkOpen();
+		if (frozen) {
+			throw new DeleteDeniedException("Graph is frozen");
+		}
+		clearCubes(Node.ANY, Node.ANY, Node.ANY);
+		getEventManager().notifyEvent(this, GraphEvents.removeAll);
+	}
+
+	/**
+	 * Clear the triples that match from every cube.
+	 */
+	private void clearCubes(Node s, Node p, Node o) {
 		try {
-			int s = map.get(t.getSubject()).getIdx();
-			int p = map.get(t.getPredicate()).getIdx();
-			int o = map.get(t.getObject()).getIdx();
-			data.clear(s, p, o);
+			long si = lookup(s);
+			long pi = lookup(p);
+			long oi = lookup(o);
+			if (si == NOT_FOUND || pi == NOT_FOUND || oi == NOT_FOUND) {
+				return;
+			}
+			for (Map.Entry<CubeOrder, DirectoryCube> e : permutations.entrySet()) {
+				CubeOrder order = e.getKey();
+				e.getValue().clear(order.getX(si, pi, oi),
+						order.getY(si, pi, oi), order.getZ(si, pi, oi));
+			}
 		} catch (IOException e) {
 			throw new RuntimeException(e);
 		}
@@ -118,13 +1045,17 @@ public abstract class AbstractCompressedGraph extends GraphBase implements
 
 	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
 		out.writeObject(map);
-		out.writeObject(data);
+		out.writeBoolean(frozen);
+		out.writeObject(permutations);
 	}
 
+	@SuppressWarnings("unchecked")
 	private void readObject(java.io.ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
 		map = (INodeMap) in.readObject();
-		data = (BitCube) in.readObject();
+		frozen = in.readBoolean();
+		permutations = (EnumMap<CubeOrder, DirectoryCube>) in.readObject();
+		data = permutations.get(CubeOrder.OPS);
 	}
 
 }
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import org.xenei.compressedgraph.core.BitCube;
+import org.xenei.compressedgraph.core.TripleCursor;
+
+/**
+ * The order in which the subject, predicate and object of a triple are
+ * stored on the axes of a Cube.
+ * 
+ * A cube is fastest when the bound positions of a find are its leading axes:
+ * z first, then y, then x. A bound z selects a single matrix, a bound y a
+ * single row of that matrix. OPS is the primary order and is always
+ * maintained, the other orders are maintained on request so that every find
+ * pattern can be answered by a prefix lookup.
+ * 
+ */
+public enum CubeOrder {
+	/**
+	 * z = object, y = predicate, x = subject.
+	 */
+	OPS(Pos.S, Pos.P, Pos.O),
+	/**
+	 * z = subject, y = predicate, x = object.
+	 */
+	SPO(Pos.O, Pos.P, Pos.S),
+	/**
+	 * z = predicate, y = object, x = subject.
+	 */
+	POS(Pos.S, Pos.O, Pos.P),
+	/**
+	 * z = object, y = subject, x = predicate.
+	 */
+	OSP(Pos.P, Pos.S, Pos.O);
+
+	/**
+	 * Positions within a subject, predicate, object triple.
+	 */
+	private static class Pos {
+		static final int S = 0;
+		static final int P = 1;
+		static final int O = 2;
+	}
+
+	private final int x;
+	private final int y;
+	private final int z;
+
+	private CubeOrder(int x, int y, int z) {
+		this.x = x;
+		this.y = y;
+		this.z = z;
+	}
+
+	private static long select(int pos, long s, long p, long o) {
+		switch (pos) {
+		case Pos.S:
+			return s;
+		case Pos.P:
+			return p;
+		default:
+			return o;
+		}
+	}
+
+	private long position(int pos, long x, long y, long z) {
+		if (this.x == pos) {
+			return x;
+		}
+		if (this.y == pos) {
+			return y;
+		}
+		return z;
+	}
+
+	/**
+	 * Get the x axis value for a subject, predicate and object.
+	 */
+	public long getX(long s, long p, long o) {
+		return select(x, s, p, o);
+	}
+
+	/**
+	 * Get the y axis value for a subject, predicate and object.
+	 */
+	public long getY(long s, long p, long o) {
+		return select(y, s, p, o);
+	}
+
+	/**
+	 * Get the z axis value for a subject, predicate and object.
+	 */
+	public long getZ(long s, long p, long o) {
+		return select(z, s, p, o);
+	}
+
+	/**
+	 * Get the subject at the current position of a cursor on a cube in this
+	 * order.
+	 */
+	public long getSubject(TripleCursor cursor) {
+		return position(Pos.S, cursor.getX(), cursor.getY(), cursor.getZ());
+	}
+
+	/**
+	 * Get the subject of a position on a cube in this order.
+	 */
+	public long getSubject(BitCube.Idx idx) {
+		return position(Pos.S, idx.getX(), idx.getY(), idx.getZ());
+	}
+
+	/**
+	 * Get the predicate at the current position of a cursor on a cube in this
+	 * order.
+	 */
+	public long getPredicate(TripleCursor cursor) {
+		return position(Pos.P, cursor.getX(), cursor.getY(), cursor.getZ());
+	}
+
+	/**
+	 * Get the predicate of a position on a cube in this order.
+	 */
+	public long getPredicate(BitCube.Idx idx) {
+		return position(Pos.P, idx.getX(), idx.getY(), idx.getZ());
+	}
+
+	/**
+	 * Get the object at the current position of a cursor on a cube in this
+	 * order.
+	 */
+	public long getObject(TripleCursor cursor) {
+		return position(Pos.O, cursor.getX(), cursor.getY(), cursor.getZ());
+	}
+
+	/**
+	 * Get the object of a position on a cube in this order.
+	 */
+	public long getObject(BitCube.Idx idx) {
+		return position(Pos.O, idx.getX(), idx.getY(), idx.getZ());
+	}
+
+	/**
+	 * Count the leading axes (z, then y, then x) that are bound. A value is
+	 * bound if it is not negative.
+	 * 
+	 * @return the number of leading bound axes, 0 to 3.
+	 */
+	public int prefixLength(long s, long p, long o) {
+		if (getZ(s, p, o) < 0) {
+			return 0;
+		}
+		if (getY(s, p, o) < 0) {
+			return 1;
+		}
+		if (getX(s, p, o) < 0) {
+			return 2;
+		}
+		return 3;
+	}
+}
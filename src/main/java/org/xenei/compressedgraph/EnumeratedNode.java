@@ -8,7 +8,7 @@ public interface EnumeratedNode {
 
 	public static final int WILD = -1;
 
-	public int getIdx();
+	public long getIdx();
 
 	public byte getType();
 
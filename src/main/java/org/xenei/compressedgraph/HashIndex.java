@@ -0,0 +1,184 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import java.nio.ByteBuffer;
+
+/**
+ * An open addressing hash table from 64 bit node hashes to non negative
+ * values, such as the positions of node records, stored in direct buffers so
+ * that the heap used does not grow with the number of entries.
+ * 
+ * Nodes with the same hash are all stored, the caller reads each candidate
+ * value to find the node it is looking for:
+ * 
+ * <pre>
+ * for (long s = index.first(h); s != -1; s = index.next(h, s)) {
+ * 	long value = index.value(s);
+ * }
+ * </pre>
+ * 
+ * The index is not thread safe, the node maps synchronize access to it.
+ */
+public class HashIndex {
+	private static final int INITIAL_CAPACITY = 1024;
+	// a slot is the hash and the value plus one, so that 0 is empty
+	private static final int SLOT_BYTES = 16;
+	// 1M slots, 16MB per buffer
+	private static final int SEGMENT_SHIFT = 20;
+	private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+	// grow when 3/4 full
+	private static final int LOAD_NUMERATOR = 3;
+	private static final int LOAD_DENOMINATOR = 4;
+
+	private ByteBuffer[] segments;
+	private long capacity;
+	private long mask;
+	private long size;
+
+	public HashIndex() {
+		allocate(INITIAL_CAPACITY);
+	}
+
+	// allocate an empty table, capacity is a power of 2
+	private void allocate(long capacity) {
+		this.capacity = capacity;
+		this.mask = capacity - 1;
+		int segmentSlots = (int) Math.min(capacity, 1L << SEGMENT_SHIFT);
+		segments = new ByteBuffer[(int) (capacity / segmentSlots)];
+		for (int i = 0; i < segments.length; i++) {
+			segments[i] = ByteBuffer.allocateDirect(segmentSlots * SLOT_BYTES);
+		}
+		size = 0;
+	}
+
+	private ByteBuffer segment(long slot) {
+		return segments[(int) (slot >>> SEGMENT_SHIFT)];
+	}
+
+	private static int offset(long slot) {
+		return (int) (slot & SEGMENT_MASK) * SLOT_BYTES;
+	}
+
+	private long start(long hash) {
+		return (hash ^ (hash >>> 32)) & mask;
+	}
+
+	// the value plus one, 0 if the slot is empty
+	private long stored(long slot) {
+		return segment(slot).getLong(offset(slot) + 8);
+	}
+
+	private long hashAt(long slot) {
+		return segment(slot).getLong(offset(slot));
+	}
+
+	/**
+	 * Add a value for a hash. Values already added for the hash are kept.
+	 * 
+	 * @param value
+	 *            the value, must not be negative.
+	 */
+	public void put(long hash, long value) {
+		if (value < 0) {
+			throw new IllegalArgumentException("value must not be negative");
+		}
+		if ((size + 1) * LOAD_DENOMINATOR > capacity * LOAD_NUMERATOR) {
+			grow();
+		}
+		insert(hash, value + 1);
+	}
+
+	private void insert(long hash, long stored) {
+		long slot = start(hash);
+		while (stored(slot) != 0) {
+			slot = (slot + 1) & mask;
+		}
+		ByteBuffer seg = segment(slot);
+		int off = offset(slot);
+		seg.putLong(off, hash);
+		seg.putLong(off + 8, stored);
+		size++;
+	}
+
+	private void grow() {
+		ByteBuffer[] old = segments;
+		long oldCapacity = capacity;
+		allocate(capacity * 2);
+		for (long slot = 0; slot < oldCapacity; slot++) {
+			ByteBuffer seg = old[(int) (slot >>> SEGMENT_SHIFT)];
+			int off = offset(slot);
+			long stored = seg.getLong(off + 8);
+			if (stored != 0) {
+				insert(seg.getLong(off), stored);
+			}
+		}
+	}
+
+	/**
+	 * Get the first slot with a hash.
+	 * 
+	 * @return the slot or -1 if there are none.
+	 */
+	public long first(long hash) {
+		return find(hash, start(hash));
+	}
+
+	/**
+	 * Get the next slot with a hash.
+	 * 
+	 * @param slot
+	 *            the slot returned by first() or next().
+	 * @return the slot or -1 if there are no more.
+	 */
+	public long next(long hash, long slot) {
+		return find(hash, (slot + 1) & mask);
+	}
+
+	// probe from slot to the first empty slot
+	private long find(long hash, long slot) {
+		while (stored(slot) != 0) {
+			if (hashAt(slot) == hash) {
+				return slot;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return -1;
+	}
+
+	/**
+	 * Get the value in a slot.
+	 */
+	public long value(long slot) {
+		return stored(slot) - 1;
+	}
+
+	/**
+	 * Get the number of values.
+	 */
+	public long size() {
+		return size;
+	}
+
+	/**
+	 * Get the bytes of the direct buffers.
+	 */
+	public long sizeInBytes() {
+		return capacity * SLOT_BYTES;
+	}
+}
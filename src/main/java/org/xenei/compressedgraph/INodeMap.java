@@ -19,6 +19,8 @@ package org.xenei.compressedgraph;
 
 import java.io.IOException;
 import java.io.Serializable;
+import org.xenei.compressedgraph.core.MemoryStats;
+
 import com.hp.hpl.jena.graph.Node;
 
 /**
@@ -29,10 +31,30 @@ public interface INodeMap extends Serializable {
 
 	public SerializableNode get(Node n) throws IOException;
 
-	public SerializableNode get(int idx) throws IOException;
+	/**
+	 * Get the node without adding it to the map.
+	 * 
+	 * @return the node, SerializableNode.ANY for null or Node.ANY, or null if
+	 *         the node is not in the map.
+	 */
+	public SerializableNode lookup(Node n) throws IOException;
+
+	/**
+	 * Get the node with an id.
+	 */
+	public SerializableNode get(long idx) throws IOException;
 
 	public void close();
 
-	public int count();
+	/**
+	 * Get the number of nodes in the map.
+	 */
+	public long count();
+
+	/**
+	 * Get the memory used by the map. The used count is the number of nodes
+	 * and the bytes are the dictionary bytes.
+	 */
+	public MemoryStats getMemoryStats();
 
 }
@@ -0,0 +1,209 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.xenei.compressedgraph.core.Cube;
+import org.xenei.compressedgraph.core.TripleCursor;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * Chooses new node ids so that the cubes are dense and scans touch few
+ * pages. Ids are handed out in this order:
+ * <ol>
+ * <li>predicates, most frequent first</li>
+ * <li>objects of more than one triple, most frequent first</li>
+ * <li>the remaining subjects, grouped by their set of predicates and
+ * their common objects, the largest group first, then by namespace</li>
+ * <li>the remaining objects in their current id order</li>
+ * </ol>
+ * Nodes that are not in a triple are not given an id.
+ */
+final class IdOrder {
+	// an object is common if it is in more than 1/COMMON_OBJECT of the triples
+	private static final int COMMON_OBJECT = 1000;
+
+	private IdOrder() {
+	}
+
+	/**
+	 * Get the current ids in new id order.
+	 * 
+	 * @param ops
+	 *            the cube in OPS order.
+	 * @param map
+	 *            the node map of the cube.
+	 * @return the current id of each new id.
+	 * @throws IOException
+	 *             if a node can not be read.
+	 * @throws IllegalStateException
+	 *             if the map holds more nodes than fit in an int.
+	 */
+	static int[] order(Cube ops, INodeMap map) throws IOException {
+		if (map.count() > Integer.MAX_VALUE) {
+			throw new IllegalStateException(String.format(
+					"%s nodes are too many to renumber", map.count()));
+		}
+		int nodes = (int) map.count();
+		int[] predicates = new int[nodes];
+		int[] objects = new int[nodes];
+		long[] pairs = new long[16];
+		int pairCount = 0;
+		// OPS order: x is the subject and z the object
+		TripleCursor cursor = ops.cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD);
+		while (cursor.next()) {
+			predicates[(int) cursor.getY()]++;
+			objects[(int) cursor.getZ()]++;
+			if (pairCount == pairs.length) {
+				pairs = Arrays.copyOf(pairs, pairCount * 2);
+			}
+			pairs[pairCount++] = (cursor.getX() << 32) | cursor.getY();
+		}
+		long[] types = types(ops, objects, pairCount, nodes);
+
+		int[] retval = new int[nodes];
+		boolean[] done = new boolean[nodes];
+		int next = byFrequency(predicates, 1, done, retval, 0);
+		next = byFrequency(objects, 2, done, retval, next);
+		next = subjects(pairs, pairCount, types, map, done, retval, next);
+		for (int i = 0; i < nodes; i++) {
+			if (!done[i] && objects[i] > 0) {
+				done[i] = true;
+				retval[next++] = i;
+			}
+		}
+		return Arrays.copyOf(retval, next);
+	}
+
+	/**
+	 * Get a key for each subject from the predicates and objects of its
+	 * triples with a common object, such as an rdf:type, so that subjects of
+	 * the same type are grouped.
+	 */
+	private static long[] types(Cube ops, int[] objects, long triples,
+			int nodes) {
+		long[] retval = new long[nodes];
+		TripleCursor cursor = ops.cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD);
+		while (cursor.next()) {
+			int o = (int) cursor.getZ();
+			if (objects[o] * COMMON_OBJECT >= triples) {
+				long pair = (cursor.getY() << 32) | o;
+				// the sum does not depend on the triple order
+				retval[(int) cursor.getX()] += pair * 0x9E3779B97F4A7C15L;
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Add the ids that are not done and occur at least min times to the
+	 * order, most frequent first.
+	 * 
+	 * @return the next position in the order.
+	 */
+	private static int byFrequency(int[] counts, int min, boolean[] done,
+			int[] order, int next) {
+		long[] keys = new long[counts.length];
+		int n = 0;
+		for (int i = 0; i < counts.length; i++) {
+			if (!done[i] && counts[i] >= min) {
+				// descending count then ascending id
+				keys[n++] = ((long) (Integer.MAX_VALUE - counts[i]) << 32) | i;
+			}
+		}
+		Arrays.sort(keys, 0, n);
+		for (int i = 0; i < n; i++) {
+			int id = (int) keys[i];
+			done[id] = true;
+			order[next++] = id;
+		}
+		return next;
+	}
+
+	/**
+	 * Add the subjects that are not done to the order, grouped by their set of
+	 * predicates and then by namespace.
+	 * 
+	 * @return the next position in the order.
+	 */
+	private static int subjects(long[] pairs, int pairCount, long[] types,
+			INodeMap map, boolean[] done, int[] order, int next)
+			throws IOException {
+		Arrays.sort(pairs, 0, pairCount);
+		final Map<Long, Integer> groupSizes = new HashMap<Long, Integer>();
+		final long[] groups = new long[done.length];
+		int subjectCount = 0;
+		int[] subjects = new int[done.length];
+		for (int i = 0; i < pairCount;) {
+			int s = (int) (pairs[i] >>> 32);
+			long group = types[s];
+			int last = -1;
+			for (; i < pairCount && (int) (pairs[i] >>> 32) == s; i++) {
+				int p = (int) pairs[i];
+				if (p != last) {
+					group = (group * 31) + p;
+					last = p;
+				}
+			}
+			if (!done[s]) {
+				groups[s] = group;
+				subjects[subjectCount++] = s;
+				Integer size = groupSizes.get(group);
+				groupSizes.put(group, size == null ? 1 : size + 1);
+			}
+		}
+
+		final Map<Integer, String> namespaces = new HashMap<Integer, String>();
+		Integer[] sorted = new Integer[subjectCount];
+		for (int i = 0; i < subjectCount; i++) {
+			sorted[i] = subjects[i];
+			Node n = map.get(subjects[i]).getNode();
+			namespaces.put(subjects[i], n.isURI() ? n.getNameSpace() : "");
+		}
+		Arrays.sort(sorted, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				long ga = groups[a];
+				long gb = groups[b];
+				if (ga != gb) {
+					int sa = groupSizes.get(ga);
+					int sb = groupSizes.get(gb);
+					if (sa != sb) {
+						return sa > sb ? -1 : 1;
+					}
+					return ga < gb ? -1 : 1;
+				}
+				int retval = namespaces.get(a).compareTo(namespaces.get(b));
+				return retval != 0 ? retval : a.compareTo(b);
+			}
+		});
+		for (Integer s : sorted) {
+			done[s] = true;
+			order[next++] = s;
+		}
+		return next;
+	}
+}
@@ -0,0 +1,176 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import java.util.Arrays;
+
+import org.xenei.compressedgraph.core.MemoryStats;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * A Bloom filter of the nodes in a node map, used to answer lookups for nodes
+ * that are not in the map without reading the map. A node that was added is
+ * always reported as possibly present, a node that was not added is reported
+ * as possibly present about 1% of the time.
+ * 
+ * The filter grows as nodes are added: when a segment is full a new segment
+ * twice the size and with a lower false positive rate is started, so the
+ * total false positive rate stays at about 2%.
+ * 
+ * The filter is not thread safe, the node map synchronizes access to it.
+ */
+public class NodeBloomFilter {
+	private static final int INITIAL_CAPACITY = 1024;
+	// 10 bits and 7 hashes per node is a false positive rate of 0.8%
+	private static final int BITS_PER_NODE = 10;
+	private static final int HASHES = 7;
+
+	private Segment[] segments;
+	private Segment current;
+
+	public NodeBloomFilter() {
+		current = new Segment(INITIAL_CAPACITY, BITS_PER_NODE, HASHES);
+		segments = new Segment[] { current };
+	}
+
+	/**
+	 * Add a node to the filter.
+	 */
+	public void add(Node n) {
+		if (current.count == current.capacity) {
+			int i = segments.length;
+			// each segment has a bit per node more than the last, which
+			// reduces the false positive rate by about 40%
+			int bits = BITS_PER_NODE + i;
+			current = new Segment(current.capacity * 2, bits,
+					(int) Math.round(bits * Math.log(2)));
+			segments = Arrays.copyOf(segments, i + 1);
+			segments[i] = current;
+		}
+		current.add(hash(n));
+	}
+
+	/**
+	 * Return false if the node was not added to the filter.
+	 */
+	public boolean mightContain(Node n) {
+		long h = hash(n);
+		for (Segment s : segments) {
+			if (s.mightContain(h)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Get the heap bytes of the filter.
+	 */
+	public long sizeInBytes() {
+		long retval = MemoryStats.OBJECT_BYTES + MemoryStats.ARRAY_BYTES
+				+ ((long) segments.length * MemoryStats.REFERENCE_BYTES);
+		for (Segment s : segments) {
+			retval += MemoryStats.OBJECT_BYTES + MemoryStats.ARRAY_BYTES
+					+ ((long) s.bits.length * 8);
+		}
+		return retval;
+	}
+
+	/**
+	 * Get a 64 bit hash of the parts of the node that define its equality.
+	 * Node.hashCode() is only 32 bits and poorly mixed, this hash is a well
+	 * mixed 64 bit key for the Bloom filter and for the node maps' HashIndex.
+	 */
+	public static long hash(Node n) {
+		long h;
+		if (n.isURI()) {
+			h = hash(1, n.getURI());
+		} else if (n.isBlank()) {
+			h = hash(2, n.getBlankNodeId().getLabelString());
+		} else if (n.isLiteral()) {
+			h = hash(3, n.getLiteralLexicalForm());
+			h = hash(h, n.getLiteralLanguage());
+			h = hash(h, n.getLiteralDatatypeURI());
+		} else if (n.isVariable()) {
+			h = hash(4, n.getName());
+		} else {
+			h = hash(5, n.toString());
+		}
+		// murmur3 finalizer
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return h;
+	}
+
+	// FNV-1a over the characters
+	private static long hash(long h, String s) {
+		h = (h ^ 0xcbf29ce484222325L) * 0x100000001b3L;
+		if (s != null) {
+			for (int i = 0; i < s.length(); i++) {
+				h = (h ^ s.charAt(i)) * 0x100000001b3L;
+			}
+		}
+		return h;
+	}
+
+	/**
+	 * A fixed size Bloom filter. The bit positions are derived from the two
+	 * halves of the hash.
+	 */
+	private static class Segment {
+		private final long[] bits;
+		private final long size;
+		private final int hashes;
+		private final int capacity;
+		private int count;
+
+		Segment(int capacity, int bitsPerNode, int hashes) {
+			this.capacity = capacity;
+			this.hashes = hashes;
+			bits = new long[(int) (((long) capacity * bitsPerNode + 63) / 64)];
+			size = (long) bits.length * 64;
+			count = 0;
+		}
+
+		void add(long h) {
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				long bit = ((h1 + ((long) i * h2)) & Long.MAX_VALUE) % size;
+				bits[(int) (bit >>> 6)] |= 1L << bit;
+			}
+			count++;
+		}
+
+		boolean mightContain(long h) {
+			int h1 = (int) h;
+			int h2 = (int) (h >>> 32);
+			for (int i = 0; i < hashes; i++) {
+				long bit = ((h1 + ((long) i * h2)) & Long.MAX_VALUE) % size;
+				if ((bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
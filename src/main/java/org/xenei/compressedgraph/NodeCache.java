@@ -0,0 +1,196 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+
+import com.hp.hpl.jena.graph.Node;
+
+/**
+ * A size bounded cache of nodes found by id or by node.
+ * 
+ * The cache uses the 2Q policy so that reading every node once, as a full
+ * graph export does, does not flush the nodes that are used repeatedly. New
+ * nodes enter a FIFO queue of a quarter of the capacity. Nodes that are
+ * evicted from it are remembered by id, and if one of them is put again it
+ * enters the main LRU queue. Only nodes that are used more than once reach
+ * the main queue.
+ */
+public class NodeCache {
+	public static final int DEFAULT_CAPACITY = 1000;
+
+	private final int capacity;
+	private final int inCapacity;
+	private final int ghostCapacity;
+	// nodes seen once, in insertion order
+	private final LinkedHashMap<Long, Entry> in;
+	// nodes seen more than once, in access order
+	private final LinkedHashMap<Long, Entry> main;
+	// ids recently evicted from the in queue
+	private final LinkedHashSet<Long> ghosts;
+	private final Map<Node, Long> ids;
+	private long hits;
+	private long misses;
+
+	public NodeCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param capacity
+	 *            the maximum number of nodes in the cache.
+	 */
+	public NodeCache(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalArgumentException("Capacity must be at least 1");
+		}
+		this.capacity = capacity;
+		this.inCapacity = Math.max(1, capacity / 4);
+		this.ghostCapacity = Math.max(1, capacity / 2);
+		in = new LinkedHashMap<Long, Entry>();
+		main = new LinkedHashMap<Long, Entry>(16, .75F, true);
+		ghosts = new LinkedHashSet<Long>();
+		ids = new HashMap<Node, Long>();
+	}
+
+	/**
+	 * Get a node by id.
+	 * 
+	 * @return the node or null if it is not cached.
+	 */
+	public synchronized SerializableNode get(long idx) {
+		SerializableNode retval = find(idx);
+		if (retval == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return retval;
+	}
+
+	/**
+	 * Get a node by node.
+	 * 
+	 * @return the node or null if it is not cached.
+	 */
+	public synchronized SerializableNode get(Node n) {
+		Long idx = ids.get(n);
+		SerializableNode retval = idx == null ? null : find(idx);
+		if (retval == null) {
+			misses++;
+		} else {
+			hits++;
+		}
+		return retval;
+	}
+
+	private SerializableNode find(long idx) {
+		// the main queue get moves the node to the end
+		Entry retval = main.get(idx);
+		if (retval == null) {
+			retval = in.get(idx);
+		}
+		return retval == null ? null : retval.cn;
+	}
+
+	/**
+	 * Add a node that was read or created to the cache.
+	 */
+	public synchronized void put(SerializableNode cn) throws IOException {
+		Long idx = cn.getIdx();
+		if (find(idx) != null) {
+			return;
+		}
+		Entry e = new Entry(cn);
+		ids.put(e.node, idx);
+		if (ghosts.remove(idx)) {
+			main.put(idx, e);
+		} else {
+			in.put(idx, e);
+		}
+		while (in.size() + main.size() > capacity) {
+			if (in.size() > inCapacity || main.isEmpty()) {
+				Long evicted = evict(in);
+				ghosts.add(evicted);
+				if (ghosts.size() > ghostCapacity) {
+					Iterator<Long> iter = ghosts.iterator();
+					iter.next();
+					iter.remove();
+				}
+			} else {
+				evict(main);
+			}
+		}
+	}
+
+	// remove the first node of a queue
+	private Long evict(LinkedHashMap<Long, Entry> queue) {
+		Iterator<Map.Entry<Long, Entry>> iter = queue.entrySet()
+				.iterator();
+		Map.Entry<Long, Entry> e = iter.next();
+		iter.remove();
+		ids.remove(e.getValue().node);
+		return e.getKey();
+	}
+
+	/**
+	 * Get the maximum number of nodes in the cache.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the number of nodes in the cache.
+	 */
+	public synchronized int size() {
+		return in.size() + main.size();
+	}
+
+	/**
+	 * Get the number of gets that found a node.
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Get the number of gets that did not find a node.
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	// the node is kept so that an evicted node is not decoded
+	private static class Entry {
+		private final SerializableNode cn;
+		private final Node node;
+
+		Entry(SerializableNode cn) throws IOException {
+			this.cn = cn;
+			this.node = cn.getNode();
+		}
+	}
+}
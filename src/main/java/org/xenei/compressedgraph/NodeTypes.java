@@ -9,4 +9,5 @@ public interface NodeTypes {
 
 	//
 	static final byte _COMPRESSED = 0x10; // compressed literal
+	static final byte _LONG_IDX = 0x20; // the id does not fit in an int
 }
@@ -52,6 +52,10 @@ import com.hp.hpl.jena.rdf.model.AnonId;
  * 
  * I serializable so that it can be written to a stream if necessary.
  * 
+ * The id is stored as an int after the hash code. An id that does not fit in
+ * an int is flagged in the type and its high 4 bytes follow the type, so
+ * nodes with int ids are no larger than they were before ids were longs.
+ * 
  */
 public class SerializableNode extends StoredNode implements NodeTypes,
 		Serializable, EnumeratedNode {
@@ -117,16 +121,38 @@ public class SerializableNode extends StoredNode implements NodeTypes,
 	}
 
 	@Override
-	public int getIdx() {
-		return getByteBuffer().getInt(IDX_OFFSET);
+	public long getIdx() {
+		int low = getByteBuffer().getInt(IDX_OFFSET);
+		if ((getRawType() & _LONG_IDX) == 0) {
+			return low;
+		}
+		return ((long) getByteBuffer().getInt(DATA_OFFSET) << 32)
+				| (low & 0xFFFFFFFFL);
 	}
 
-	public void setIdx(int idx) {
+	public void setIdx(long idx) {
 		if (getIdx() != EnumeratedNode.WILD) {
 			throw new IllegalStateException(
 					"CompressedNode id must be WILD to be set");
 		}
-		getByteBuffer().putInt(IDX_OFFSET, idx);
+		if (idx <= Integer.MAX_VALUE) {
+			getByteBuffer().putInt(IDX_OFFSET, (int) idx);
+			return;
+		}
+		byte[] old = value;
+		value = new byte[old.length + 4];
+		System.arraycopy(old, 0, value, 0, DATA_OFFSET);
+		System.arraycopy(old, DATA_OFFSET, value, DATA_OFFSET + 4, old.length
+				- DATA_OFFSET);
+		buffer = null;
+		getByteBuffer().putInt(IDX_OFFSET, (int) idx)
+				.put(TYPE_OFFSET, (byte) (old[TYPE_OFFSET] | _LONG_IDX))
+				.putInt(DATA_OFFSET, (int) (idx >>> 32));
+	}
+
+	// the offset of the node data, after the high bytes of a long id
+	private int getDataOffset() {
+		return (getRawType() & _LONG_IDX) == 0 ? DATA_OFFSET : DATA_OFFSET + 4;
 	}
 
 	private ByteBuffer getByteBuffer() {
@@ -175,7 +201,7 @@ public class SerializableNode extends StoredNode implements NodeTypes,
 		int size = getSize();
 		byte[] retval = new byte[size];
 		if (size > 0) {
-			getByteBuffer().position(DATA_OFFSET);
+			getByteBuffer().position(getDataOffset());
 			getByteBuffer().get(retval);
 		
 			if ((getType() & _COMPRESSED) == _COMPRESSED)
@@ -199,7 +225,7 @@ public class SerializableNode extends StoredNode implements NodeTypes,
 	}
 
 	public int getSize() {
-		return value.length - DATA_OFFSET;
+		return value.length - getDataOffset();
 	}
 
 	public boolean isLiteral() {
@@ -208,25 +234,28 @@ public class SerializableNode extends StoredNode implements NodeTypes,
 
 	@Override
 	public byte getType() {
-		getByteBuffer().position(TYPE_OFFSET);
-		return getByteBuffer().get();
+		return (byte) (getRawType() & ~_LONG_IDX);
+	}
+
+	// the type with the long id flag
+	private byte getRawType() {
+		return getByteBuffer().get(TYPE_OFFSET);
 	}
 
 	/**
-	 * Get the index as a byte
+	 * Get the index of an encoded node as bytes
 	 * 
-	 * @param rawData
-	 * @return
+	 * @param src
+	 *            the encoded node.
+	 * @return the index as the 8 bytes of a long.
 	 */
 	public static byte[] getRawIdx(byte[] src) {
-		byte[] retval = new byte[4];
-		System.arraycopy(src, IDX_OFFSET, retval, 0, 4);
-		return retval;
+		return getRawIdx(new SerializableNode(src).getIdx());
 	}
 
-	public static byte[] getRawIdx(int i) {
-		byte[] retval = new byte[4];
-		ByteBuffer.wrap(retval).order(ByteOrder.BIG_ENDIAN).putInt(i);
+	public static byte[] getRawIdx(long i) {
+		byte[] retval = new byte[8];
+		ByteBuffer.wrap(retval).order(ByteOrder.BIG_ENDIAN).putLong(i);
 		return retval;
 	}
 
@@ -243,8 +272,8 @@ public class SerializableNode extends StoredNode implements NodeTypes,
 			if (hashCode() == cn.hashCode() && getType() == cn.getType()
 					&& getSize() == cn.getSize()) {
 				if (getSize() > 0) {
-					cn.getByteBuffer().position(DATA_OFFSET);
-					getByteBuffer().position(DATA_OFFSET);
+					cn.getByteBuffer().position(cn.getDataOffset());
+					getByteBuffer().position(getDataOffset());
 					int i = getByteBuffer().compareTo(cn.getByteBuffer());
 					if (i == 0) {
 						return true;
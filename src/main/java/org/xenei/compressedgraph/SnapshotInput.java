@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads a graph snapshot written by SnapshotOutput from a file channel
+ * through a large buffer.
+ */
+class SnapshotInput implements Closeable {
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+
+	SnapshotInput(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.READ);
+		buffer = ByteBuffer.allocateDirect(SnapshotOutput.BUFFER_SIZE);
+		buffer.flip();
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			buffer.compact();
+			while (buffer.position() < bytes) {
+				if (channel.read(buffer) < 0) {
+					throw new EOFException("Snapshot is truncated");
+				}
+			}
+			buffer.flip();
+		}
+	}
+
+	int readInt() throws IOException {
+		ensure(4);
+		return buffer.getInt();
+	}
+
+	int readVarint() throws IOException {
+		int value = 0;
+		for (int shift = 0; shift < 35; shift += 7) {
+			ensure(1);
+			byte b = buffer.get();
+			value |= (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint in snapshot");
+	}
+
+	/**
+	 * Read a varint of up to 64 bits. A non negative int written as a varint
+	 * is read as the same value.
+	 */
+	long readVarlong() throws IOException {
+		long value = 0;
+		for (int shift = 0; shift < 70; shift += 7) {
+			ensure(1);
+			byte b = buffer.get();
+			value |= (long) (b & 0x7F) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varlong in snapshot");
+	}
+
+	byte[] readBytes() throws IOException {
+		byte[] bytes = new byte[readVarint()];
+		int pos = 0;
+		while (pos < bytes.length) {
+			ensure(1);
+			int len = Math.min(buffer.remaining(), bytes.length - pos);
+			buffer.get(bytes, pos, len);
+			pos += len;
+		}
+		return bytes;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+	}
+}
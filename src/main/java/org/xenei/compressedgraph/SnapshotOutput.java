@@ -0,0 +1,104 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Writes a graph snapshot to a file channel through a large buffer.
+ * 
+ * Integers are written big endian. Unsigned varints use 7 bits per byte with
+ * the high bit set on every byte except the last.
+ */
+class SnapshotOutput implements Closeable {
+	static final int BUFFER_SIZE = 1 << 20;
+
+	private final FileChannel channel;
+	private final ByteBuffer buffer;
+
+	SnapshotOutput(Path path) throws IOException {
+		channel = FileChannel.open(path, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+		buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+	}
+
+	private void ensure(int bytes) throws IOException {
+		if (buffer.remaining() < bytes) {
+			flush();
+		}
+	}
+
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+
+	void writeInt(int value) throws IOException {
+		ensure(4);
+		buffer.putInt(value);
+	}
+
+	void writeVarint(int value) throws IOException {
+		ensure(5);
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	void writeVarlong(long value) throws IOException {
+		ensure(10);
+		while ((value & ~0x7FL) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	void writeBytes(byte[] bytes) throws IOException {
+		writeVarint(bytes.length);
+		int pos = 0;
+		while (pos < bytes.length) {
+			if (!buffer.hasRemaining()) {
+				flush();
+			}
+			int len = Math.min(buffer.remaining(), bytes.length - pos);
+			buffer.put(bytes, pos, len);
+			pos += len;
+		}
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			flush();
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -63,7 +63,7 @@ public abstract class StoredNode implements NodeTypes, EnumeratedNode {
 			}
 
 			@Override
-			public int getIdx() {
+			public long getIdx() {
 				return -1;
 			}
 
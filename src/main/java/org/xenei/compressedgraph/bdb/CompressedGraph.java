@@ -18,7 +18,10 @@
 package org.xenei.compressedgraph.bdb;
 
 import java.io.IOException;
+import java.util.Set;
+
 import org.xenei.compressedgraph.AbstractCompressedGraph;
+import org.xenei.compressedgraph.CubeOrder;
 import com.sleepycat.je.DatabaseException;
 
 /**
@@ -36,4 +39,26 @@ public class CompressedGraph extends AbstractCompressedGraph {
 			IllegalArgumentException, IOException {
 		super(pageSize, new NodeMap());
 	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the cubes.
+	 * @param orders
+	 *            the cube orders to maintain. Pass only CubeOrder.OPS to keep
+	 *            a single cube.
+	 */
+	public CompressedGraph(int pageSize, Set<CubeOrder> orders)
+			throws DatabaseException, IllegalArgumentException, IOException {
+		super(pageSize, new NodeMap(), orders);
+	}
+
+	/**
+	 * Give the nodes new ids that keep the cubes dense, see
+	 * AbstractCompressedGraph.renumber(INodeMap).
+	 */
+	public void renumber() throws DatabaseException, IOException {
+		renumber(new NodeMap());
+	}
 }
@@ -28,10 +28,12 @@ import com.sleepycat.je.Environment;
 import com.sleepycat.je.EnvironmentConfig;
 import com.sleepycat.je.EnvironmentLockedException;
 import com.sleepycat.je.EnvironmentNotFoundException;
+import com.sleepycat.je.EnvironmentStats;
 import com.sleepycat.je.LockMode;
 import com.sleepycat.je.OperationStatus;
 import com.sleepycat.je.SecondaryConfig;
 import com.sleepycat.je.SecondaryDatabase;
+import com.sleepycat.je.StatsConfig;
 import com.sleepycat.je.VersionMismatchException;
 
 import java.io.File;
@@ -39,8 +41,10 @@ import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.nio.file.Files;
 
+import org.xenei.compressedgraph.NodeBloomFilter;
 import org.xenei.compressedgraph.SerializableNode;
 import org.xenei.compressedgraph.INodeMap;
+import org.xenei.compressedgraph.core.MemoryStats;
 import com.hp.hpl.jena.graph.Node;
 
 /**
@@ -51,6 +55,8 @@ public class NodeMap implements INodeMap, Serializable {
 	private Environment myDbEnvironment = null;
 	private Database myDatabase = null;
 	private SecondaryDatabase myIdxIndex;
+	// the nodes in the database, so that most new nodes are not searched for
+	private transient NodeBloomFilter filter;
 
 	public NodeMap() throws EnvironmentNotFoundException,
 			EnvironmentLockedException, VersionMismatchException,
@@ -61,6 +67,7 @@ public class NodeMap implements INodeMap, Serializable {
 		envConfig.setAllowCreate(true);
 		File f = Files.createTempDirectory("cgdb").toFile();
 		myDbEnvironment = new Environment(f, envConfig);
+		filter = new NodeBloomFilter();
 
 		// Open the database. Create it if it does not already exist.
 		DatabaseConfig dbConfig = new DatabaseConfig();
@@ -127,14 +134,14 @@ public class NodeMap implements INodeMap, Serializable {
 		SerializableNode wild = new SerializableNode(n);
 		DatabaseEntry key = new DatabaseEntry(getKey(wild));
 		DatabaseEntry data = new DatabaseEntry();
-		OperationStatus result = myDatabase.get(null, key, data,
-				LockMode.DEFAULT);
+		OperationStatus result = filter.mightContain(n) ? myDatabase.get(
+				null, key, data, LockMode.DEFAULT) : OperationStatus.NOTFOUND;
 		if (result == OperationStatus.NOTFOUND) {
-			long l = myDatabase.count();
-			wild.setIdx((int) l);
+			wild.setIdx(myDatabase.count());
 
 			data.setData(wild.getBuffer());
 			myDatabase.put(null, key, data);
+			filter.add(n);
 			return wild;
 		} else {
 			return new SerializableNode(data.getData());
@@ -142,7 +149,25 @@ public class NodeMap implements INodeMap, Serializable {
 	}
 
 	@Override
-	public SerializableNode get(int idx) {
+	public synchronized SerializableNode lookup(Node n) throws IOException {
+		if (n == null || n == Node.ANY) {
+			return SerializableNode.ANY;
+		}
+		if (!filter.mightContain(n)) {
+			return null;
+		}
+		DatabaseEntry key = new DatabaseEntry(getKey(new SerializableNode(n)));
+		DatabaseEntry data = new DatabaseEntry();
+		OperationStatus result = myDatabase.get(null, key, data,
+				LockMode.DEFAULT);
+		if (result == OperationStatus.NOTFOUND) {
+			return null;
+		}
+		return new SerializableNode(data.getData());
+	}
+
+	@Override
+	public SerializableNode get(long idx) {
 		DatabaseEntry key = new DatabaseEntry(SerializableNode.getRawIdx(idx));
 		DatabaseEntry data = new DatabaseEntry();
 		OperationStatus result = myIdxIndex.get(null, key, data,
@@ -159,7 +184,7 @@ public class NodeMap implements INodeMap, Serializable {
 		DatabaseEntry foundKey = new DatabaseEntry();
 		DatabaseEntry foundData = new DatabaseEntry();
 		try {
-			out.write((int) myDatabase.count());
+			out.writeLong(myDatabase.count());
 			cursor = myDatabase.openCursor(null, null);
 			while (cursor.getNext(foundKey, foundData, LockMode.DEFAULT) == OperationStatus.SUCCESS) {
 				out.writeObject(new SerializableNode(foundData.getData()));
@@ -177,9 +202,11 @@ public class NodeMap implements INodeMap, Serializable {
 			ClassNotFoundException {
 		DatabaseEntry key = new DatabaseEntry();
 		DatabaseEntry data = new DatabaseEntry();
-		int count = in.readInt();
-		for (int i = 0; i < count; i++) {
+		filter = new NodeBloomFilter();
+		long count = in.readLong();
+		for (long i = 0; i < count; i++) {
 			SerializableNode cn = (SerializableNode) in.readObject();
+			filter.add(cn.getNode());
 			key.setData(getKey(cn));
 			data.setData(cn.getBuffer());
 			if (myDatabase.put(null, key, data) != OperationStatus.SUCCESS) {
@@ -189,7 +216,26 @@ public class NodeMap implements INodeMap, Serializable {
 	}
 
 	@Override
-	public int count() {
-		return (int) myDatabase.count();
+	public long count() {
+		return myDatabase.count();
+	}
+
+	/**
+	 * Get the memory used by the map. The heap bytes are the environment
+	 * cache and the off heap bytes are the log files. The database keeps
+	 * these counts, they are read without walking the database.
+	 */
+	@Override
+	public MemoryStats getMemoryStats() {
+		StatsConfig config = new StatsConfig();
+		config.setFast(true);
+		try {
+			EnvironmentStats stats = myDbEnvironment.getStats(config);
+			long nodes = myDatabase.count();
+			return new MemoryStats(0, nodes, nodes,
+					stats.getCacheTotalBytes(), stats.getTotalLogSize());
+		} catch (DatabaseException dbe) {
+			throw new RuntimeException(dbe);
+		}
 	}
 }
@@ -0,0 +1,153 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.Arrays;
+
+/**
+ * A container that stores the set positions as a sorted array of unsigned
+ * shorts. Used while the page is sparse.
+ */
+class ArrayContainer extends Container {
+	private static final int INITIAL_CAPACITY = 2;
+
+	private short[] values;
+	private int cardinality;
+
+	ArrayContainer(int pageSize) {
+		this(pageSize, INITIAL_CAPACITY);
+	}
+
+	private ArrayContainer(int pageSize, int capacity) {
+		super(pageSize);
+		values = new short[Math.max(1, capacity)];
+		cardinality = 0;
+	}
+
+	static ArrayContainer copyOf(Container c) {
+		ArrayContainer retval = new ArrayContainer(c.pageSize, c.cardinality());
+		for (int i = c.nextSetBit(0); i >= 0; i = c.nextSetBit(i + 1)) {
+			retval.values[retval.cardinality++] = (short) i;
+		}
+		return retval;
+	}
+
+	@Override
+	Container copy() {
+		return copyOf(this);
+	}
+
+	@Override
+	boolean isTrimmed() {
+		return values.length == Math.max(1, cardinality);
+	}
+
+	/**
+	 * Binary search the values.
+	 * 
+	 * @return the position of i or (-(insertion point) - 1) if not found.
+	 */
+	private int find(int i) {
+		int low = 0;
+		int high = cardinality - 1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			int v = toUnsigned(values[mid]);
+			if (v < i) {
+				low = mid + 1;
+			} else if (v > i) {
+				high = mid - 1;
+			} else {
+				return mid;
+			}
+		}
+		return -(low + 1);
+	}
+
+	@Override
+	public boolean get(int i) {
+		return find(i) >= 0;
+	}
+
+	@Override
+	public Container add(int i) {
+		int pos = find(i);
+		if (pos >= 0) {
+			return this;
+		}
+		if (cardinality >= arrayLimit()) {
+			return BitmapContainer.copyOf(this).add(i).optimize();
+		}
+		pos = -(pos + 1);
+		if (cardinality == values.length) {
+			values = Arrays.copyOf(values,
+					Math.min(arrayLimit(), cardinality * 2));
+		}
+		System.arraycopy(values, pos, values, pos + 1, cardinality - pos);
+		values[pos] = (short) i;
+		cardinality++;
+		return this;
+	}
+
+	@Override
+	public Container remove(int i) {
+		int pos = find(i);
+		if (pos >= 0) {
+			cardinality--;
+			System.arraycopy(values, pos + 1, values, pos, cardinality - pos);
+		}
+		return this;
+	}
+
+	@Override
+	public int cardinality() {
+		return cardinality;
+	}
+
+	@Override
+	public int nextSetBit(int from) {
+		int pos = find(from);
+		if (pos < 0) {
+			pos = -(pos + 1);
+		}
+		return pos < cardinality ? toUnsigned(values[pos]) : -1;
+	}
+
+	@Override
+	public long getWord(int w) {
+		int base = w << 6;
+		int pos = find(base);
+		if (pos < 0) {
+			pos = -(pos + 1);
+		}
+		long word = 0;
+		for (; pos < cardinality; pos++) {
+			int v = toUnsigned(values[pos]);
+			if (v >= base + 64) {
+				break;
+			}
+			word |= 1L << v;
+		}
+		return word;
+	}
+
+	@Override
+	public int sizeInBytes() {
+		return 32 + (values.length * 2);
+	}
+}
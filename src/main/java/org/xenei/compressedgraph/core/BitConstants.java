@@ -23,4 +23,5 @@ package org.xenei.compressedgraph.core;
  */
 public interface BitConstants {
 	public static final int DEFAULT_PAGE_SIZE = 4096;
+	public static final int DEFAULT_CONCURRENCY_LEVEL = 16;
 }
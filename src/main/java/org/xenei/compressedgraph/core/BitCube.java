@@ -17,155 +17,917 @@
  */
 package org.xenei.compressedgraph.core;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
-import com.hp.hpl.jena.util.iterator.Map1;
 import com.hp.hpl.jena.util.iterator.NiceIterator;
-import com.hp.hpl.jena.util.iterator.WrappedIterator;
 
 /**
  * A sparse cube (3-axis matrix)
  * 
+ * Writers are serialized per z-row by a set of striped locks so that writers
+ * to different z values proceed in parallel. The number of stripes is set by
+ * the concurrency level; a concurrency level of 1 serializes all writers.
+ * Readers do not take the stripe locks.
+ * 
+ * A snapshot is a read only view of the cube as it was when the snapshot was
+ * taken. Taking a snapshot copies only the directory of the matrices: pages,
+ * rows and matrices are then copied on write, the first time a writer changes
+ * one that is shared with a snapshot. Replaced versions are reclaimed once no
+ * snapshot refers to them.
+ * 
+ * Positions are limited to the int range, see position(). DirectoryCube
+ * holds larger positions in a directory of BitCubes.
+ * 
  */
-public class BitCube implements BitConstants, Serializable {
+public class BitCube implements Cube, BitConstants, Serializable {
+	// the source of snapshot versions, shared by every cube so that versions
+	// from different cubes that share a store are ordered
+	private static final AtomicInteger VERSIONS = new AtomicInteger(0);
 
-	private SparseArray<BitMatrix> depth;
-	private final ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
+	// replaced when a snapshot is taken
+	private volatile SparseArray<BitMatrix> depth;
+	private final ReentrantReadWriteLock[] stripes;
 	private final int pageSize;
-	private int size;
+	private final AtomicLong size;
+	private transient PageStore store;
+	// written while every stripe is locked
+	private transient int version;
+	// the open snapshots of the cube, shared with the snapshots
+	private transient AtomicInteger openSnapshots;
 
 	public BitCube() {
 		this(DEFAULT_PAGE_SIZE);
 	}
 
 	public BitCube(int pageSize) {
+		this(pageSize, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the sparse arrays.
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrent writers. Rounded up to a
+	 *            power of 2 to give the number of lock stripes.
+	 */
+	public BitCube(int pageSize, int concurrencyLevel) {
+		this(pageSize, concurrencyLevel, PageStore.heap());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the sparse arrays.
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrent writers. Rounded up to a
+	 *            power of 2 to give the number of lock stripes.
+	 * @param store
+	 *            the store that holds the row bits of every matrix.
+	 */
+	public BitCube(int pageSize, int concurrencyLevel, PageStore store) {
+		if (concurrencyLevel < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Concurrency level (%s) must be at least 1",
+					concurrencyLevel));
+		}
 		this.pageSize = pageSize;
 		depth = new SparseArray<BitMatrix>(pageSize);
-		size = 0;
+		int stripeCount = 1;
+		while (stripeCount < concurrencyLevel) {
+			stripeCount <<= 1;
+		}
+		stripes = new ReentrantReadWriteLock[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new ReentrantReadWriteLock();
+		}
+		size = new AtomicLong(0);
+		this.store = store;
+		this.openSnapshots = new AtomicInteger(0);
+	}
+
+	/**
+	 * Constructor for a snapshot.
+	 */
+	private BitCube(BitCube cube) {
+		this.pageSize = cube.pageSize;
+		this.depth = cube.depth;
+		this.stripes = new ReentrantReadWriteLock[] { new ReentrantReadWriteLock() };
+		this.size = new AtomicLong(cube.size.get());
+		this.store = cube.store;
+		this.version = cube.version;
+		this.openSnapshots = cube.openSnapshots;
+	}
+
+	/**
+	 * Convert a position of the Cube interface to the int used by the
+	 * matrices. A negative position is a wildcard and is returned as -1.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the position is greater than Integer.MAX_VALUE.
+	 */
+	static int position(long p) {
+		if (p > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(String.format(
+					"Index (%s) must be less than or equal to %s", p,
+					Integer.MAX_VALUE));
+		}
+		return p < 0 ? -1 : (int) p;
+	}
+
+	private WriteLock writeLock(int z) {
+		return stripes[z & (stripes.length - 1)].writeLock();
+	}
+
+	/**
+	 * Take a snapshot of the cube. Writers are blocked while the directory of
+	 * the matrices is copied, the snapshot is then read without locks while
+	 * writers continue. Snapshots of a cube that keeps pages outside of the
+	 * heap should be closed so that the replaced pages can be reclaimed.
+	 * 
+	 * @return the snapshot.
+	 */
+	public Snapshot snapshot() {
+		for (ReentrantReadWriteLock stripe : stripes) {
+			stripe.writeLock().lock();
+		}
+		try {
+			Snapshot retval = new Snapshot(this);
+			store.open(version);
+			openSnapshots.incrementAndGet();
+			version = VERSIONS.incrementAndGet();
+			depth = depth.copy(version);
+			return retval;
+		} finally {
+			for (ReentrantReadWriteLock stripe : stripes) {
+				stripe.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Get the matrix for z, copying a matrix that is shared with a snapshot.
+	 * Must be called with the stripe of z locked.
+	 */
+	private BitMatrix ownMatrix(int z, BitMatrix bm) {
+		if (bm.getVersion() == version) {
+			return bm;
+		}
+		BitMatrix retval = bm.copy(version);
+		depth.put(z, retval);
+		return retval;
 	}
 
-	public void set(int x, int y, int z) {
-		if (x < 0 || y < 0 || x < 0) {
+	@Override
+	public void set(long x, long y, long z) {
+		if (x < 0 || y < 0 || z < 0) {
 			throw new IllegalArgumentException(String.format(
 					"Indexes (%s,%s,%s) must be greater than or equals to 0",
 					x, y, z));
 		}
-		WriteLock wl = LOCK_FACTORY.writeLock();
+		set(position(x), position(y), position(z));
+	}
+
+	private void set(int x, int y, int z) {
+		WriteLock wl = writeLock(z);
 		wl.lock();
 		try {
 			BitMatrix bm = depth.get(z);
 			if (bm == null) {
-				bm = new BitMatrix(pageSize);
+				bm = new BitMatrix(pageSize, store, version);
+				depth.put(z, bm);
+			} else if (bm.has(x, y)) {
+				return;
+			} else {
+				bm = ownMatrix(z, bm);
+			}
+			if (bm.set(x, y)) {
+				size.incrementAndGet();
 			}
-			bm.set(x, y);
-			depth.put(z, bm);
-			size++;
 		} finally {
 			wl.unlock();
 		}
 	}
 
-	public void clear(int x, int y, int z) {
-		if (x < 0 || y < 0 || x < 0) {
+	/**
+	 * Clear the positions that match. A negative x, y or z is a wildcard.
+	 * Matrices and rows that match with wildcards are dropped whole rather
+	 * than cleared a position at a time. A bound z locks the stripe of z, a
+	 * wildcard z blocks every writer while the matrices are cleared.
+	 */
+	@Override
+	public void clear(long x, long y, long z) {
+		clear(position(x), position(y), position(z));
+	}
+
+	private void clear(int x, int y, int z) {
+		if (z >= 0) {
+			WriteLock wl = writeLock(z);
+			wl.lock();
+			try {
+				clearMatrix(x, y, z, depth.get(z));
+			} finally {
+				wl.unlock();
+			}
+			return;
+		}
+		for (ReentrantReadWriteLock stripe : stripes) {
+			stripe.writeLock().lock();
+		}
+		try {
+			SparseArray<BitMatrix>.Cursor cursor = depth.cursor();
+			while (cursor.next()) {
+				clearMatrix(x, y, cursor.getIndex(), cursor.getValue());
+			}
+		} finally {
+			for (ReentrantReadWriteLock stripe : stripes) {
+				stripe.writeLock().unlock();
+			}
+		}
+	}
+
+	/**
+	 * Clear the positions that match in the matrix for z. Must be called with
+	 * the stripe of z locked.
+	 */
+	private void clearMatrix(int x, int y, int z, BitMatrix bm) {
+		if (bm == null || bm.count(x, y) == 0) {
+			return;
+		}
+		long before = bm.getSize();
+		bm = ownMatrix(z, bm);
+		bm.clear(x, y);
+		if (bm.isEmpty()) {
+			depth.remove(z);
+		}
+		size.addAndGet(bm.getSize() - before);
+	}
+
+	/**
+	 * Load positions into an empty cube. The positions are sorted into z, y, x
+	 * order and the matrices, rows and pages are then built in order, without
+	 * searching for them and without taking a lock per position. Writers are
+	 * blocked for the duration of the load.
+	 */
+	@Override
+	public void load(long[] xs, long[] ys, long[] zs, int count) {
+		for (int i = 0; i < count; i++) {
+			if (xs[i] < 0 || ys[i] < 0 || zs[i] < 0) {
+				throw new IllegalArgumentException(String.format(
+						"Indexes (%s,%s,%s) must be greater than or equals to 0",
+						xs[i], ys[i], zs[i]));
+			}
+			position(xs[i]);
+			position(ys[i]);
+			position(zs[i]);
+		}
+		TripleSort.sort(xs, ys, zs, count);
+		for (ReentrantReadWriteLock stripe : stripes) {
+			stripe.writeLock().lock();
+		}
+		try {
+			if (!depth.isEmpty()) {
+				throw new IllegalStateException("BitCube is not empty");
+			}
+			BitMatrix bm = null;
+			SparseBitArray row = null;
+			int lastZ = -1;
+			int lastY = -1;
+			int lastX = -1;
+			int loaded = 0;
+			int matrixLoaded = 0;
+			for (int i = 0; i < count; i++) {
+				int z = (int) zs[i];
+				int y = (int) ys[i];
+				int x = (int) xs[i];
+				if (z != lastZ) {
+					if (bm != null) {
+						bm.appended(matrixLoaded);
+						depth.put(lastZ, bm);
+					}
+					matrixLoaded = 0;
+					bm = new BitMatrix(pageSize, store, version);
+					lastZ = z;
+					lastY = -1;
+				}
+				if (y != lastY) {
+					row = new SparseBitArray(pageSize, store, version);
+					bm.appendRow(y, row);
+					lastY = y;
+					lastX = -1;
+				}
+				if (x != lastX) {
+					row.append(x);
+					lastX = x;
+					loaded++;
+					matrixLoaded++;
+				}
+			}
+			if (bm != null) {
+				bm.appended(matrixLoaded);
+				depth.put(lastZ, bm);
+			}
+			size.addAndGet(loaded);
+		} finally {
+			for (ReentrantReadWriteLock stripe : stripes) {
+				stripe.writeLock().unlock();
+			}
+		}
+	}
+
+	@Override
+	public boolean has(long x, long y, long z) {
+		if (x < 0 || y < 0 || z < 0) {
 			throw new IllegalArgumentException(String.format(
 					"Indexes (%s,%s,%s) must be greater than or equals to 0",
 					x, y, z));
 		}
-		WriteLock wl = LOCK_FACTORY.writeLock();
+		BitMatrix bm = depth.get(position(z));
+		return bm == null ? false : bm.has(position(x), position(y));
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return depth.isEmpty();
+	}
+
+	@Override
+	public long getSize() {
+		return size.get();
+	}
+
+	/**
+	 * Count the set positions that match. A negative x, y or z is a wildcard.
+	 * A bound z is answered by the counters of a single matrix, see
+	 * BitMatrix.count(); otherwise every matrix is counted.
+	 * 
+	 * @param x
+	 *            the x position or a negative value for any.
+	 * @param y
+	 *            the y position or a negative value for any.
+	 * @param z
+	 *            the z position or a negative value for any.
+	 * @return the number of matching positions.
+	 */
+	@Override
+	public long count(long x, long y, long z) {
+		return count(position(x), position(y), position(z));
+	}
+
+	private long count(int x, int y, int z) {
+		if (z >= 0) {
+			BitMatrix bm = depth.get(z);
+			return bm == null ? 0 : bm.count(x, y);
+		}
+		if (x < 0 && y < 0) {
+			return size.get();
+		}
+		long count = 0;
+		SparseArray<BitMatrix>.Cursor cursor = depth.cursor();
+		while (cursor.next()) {
+			count += cursor.getValue().count(x, y);
+		}
+		return count;
+	}
+
+	/**
+	 * Get the memory used by the cube. Each matrix keeps its own counts so
+	 * only the matrices are visited. Pages shared with a snapshot are counted
+	 * by both.
+	 */
+	@Override
+	public MemoryStats getMemoryStats() {
+		SparseArray<BitMatrix> matrices = depth;
+		MemoryStats retval = MemoryStats.EMPTY.plusHeap(MemoryStats.OBJECT_BYTES
+				+ matrices.getMemoryStats().getHeapBytes());
+		SparseArray<BitMatrix>.Cursor cursor = matrices.cursor();
+		while (cursor.next()) {
+			retval = retval.plus(cursor.getValue().getMemoryStats());
+		}
+		return retval;
+	}
+
+	/**
+	 * Compact every matrix and the matrix directory so that a cube that has
+	 * had many positions cleared uses the memory it would use if it had been
+	 * loaded with the positions that remain. Writers to a matrix wait while
+	 * it is compacted, readers do not. See Compactor to compact in the
+	 * background a few matrices at a time.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	public long compact() {
+		long released = 0;
+		int z = nextMatrix(0);
+		while (z >= 0) {
+			released += compactMatrix(z);
+			z = z == Integer.MAX_VALUE ? -1 : nextMatrix(z + 1);
+		}
+		return released + compactDirectory();
+	}
+
+	/**
+	 * Get the first z greater than or equal to z that has a matrix.
+	 * 
+	 * @return the z or -1 if there is none.
+	 */
+	int nextMatrix(int z) {
+		return depth.nextIndex(z);
+	}
+
+	/**
+	 * Compact the matrix for z. While a snapshot is open the matrices, rows
+	 * and pages it shares are left alone. Once every snapshot is closed they
+	 * are taken over by the cube and compacted.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	long compactMatrix(int z) {
+		WriteLock wl = writeLock(z);
 		wl.lock();
 		try {
 			BitMatrix bm = depth.get(z);
-			if (bm != null) {
-				bm.clear(x, y);
-				if (bm.isEmpty()) {
-					bm = null;
+			if (bm == null) {
+				return 0;
+			}
+			// snapshot() is blocked by the stripe lock so the count can only
+			// fall while the matrix is compacted
+			boolean shared = openSnapshots.get() != 0;
+			if (bm.getVersion() != version) {
+				if (shared) {
+					return 0;
 				}
+				bm = ownMatrix(z, bm);
 			}
-			depth.put(z, bm);
-			size--;
+			return bm.compact(!shared);
 		} finally {
 			wl.unlock();
 		}
 	}
 
-	public boolean has(int x, int y, int z) {
-		if (x < 0 || y < 0 || x < 0) {
+	/**
+	 * Compact the matrix directory.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	long compactDirectory() {
+		return depth.compact();
+	}
+
+	/**
+	 * Get a cursor over the x positions that are set for every (y, z) pair.
+	 * For the OPS cube this is the set of subjects that have every one of a
+	 * set of predicate and object values. The rows are intersected a word at a
+	 * time as the cursor advances.
+	 * 
+	 * @param ys
+	 *            the y positions.
+	 * @param zs
+	 *            the z positions, one for each y position.
+	 * @return the cursor.
+	 */
+	public IndexCursor andRows(int[] ys, int[] zs) {
+		if (ys.length != zs.length || ys.length == 0) {
 			throw new IllegalArgumentException(String.format(
-					"Indexes (%s,%s,%s) must be greater than or equals to 0",
-					x, y, z));
+					"Position counts (%s,%s) must match and not be 0",
+					ys.length, zs.length));
 		}
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			BitMatrix bm = depth.get(z);
-			return bm == null ? false : bm.has(x, y);
-		} finally {
-			rl.unlock();
+		SparseBitArray[] rows = new SparseBitArray[ys.length];
+		for (int i = 0; i < ys.length; i++) {
+			BitMatrix bm = depth.get(zs[i]);
+			rows[i] = bm == null ? null : bm.getRow(ys[i]);
+			if (rows[i] == null) {
+				return new SparseBitArray.BitCursor(null);
+			}
 		}
+		return new SparseBitArray.AndCursor(rows);
 	}
 
-	public boolean isEmpty() {
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			return depth.isEmpty();
-		} finally {
-			rl.unlock();
+	/**
+	 * Get a cursor over the set positions. A negative x, y or z is a wildcard.
+	 * Positions are returned in z, y, x order.
+	 * 
+	 * @param x
+	 *            the x position or a negative value for any.
+	 * @param y
+	 *            the y position or a negative value for any.
+	 * @param z
+	 *            the z position or a negative value for any.
+	 * @return the cursor
+	 */
+	@Override
+	public TripleCursor cursor(long x, long y, long z) {
+		return new CubeCursor(position(x), position(y), position(z));
+	}
+
+	@Override
+	public ExtendedIterator<Idx> find(long x, long y, long z) {
+		return new IdxIterator(cursor(x, y, z));
+	}
+
+	/**
+	 * Get a spliterator over the set positions. A negative x, y or z is a
+	 * wildcard. The spliterator splits on z page boundaries and, once a
+	 * single matrix is left, on y page boundaries of its rows.
+	 */
+	public Spliterator<Idx> spliterator(long x, long y, long z) {
+		return spliterator(position(x), position(y), position(z));
+	}
+
+	private Spliterator<Idx> spliterator(int x, int y, int z) {
+		return z < 0 ? new Split(x, y, z, 0, Integer.MAX_VALUE, 0,
+				Integer.MAX_VALUE) : new Split(x, y, z, z, z, 0,
+				Integer.MAX_VALUE);
+	}
+
+	@Override
+	public Stream<Idx> stream(long x, long y, long z) {
+		return StreamSupport.stream(spliterator(x, y, z), false);
+	}
+
+	/**
+	 * The spliterator implementation. Covers the matrices from zFirst to
+	 * zLast and, when y is a wildcard, the rows from yFirst to yLast.
+	 */
+	private class Split extends CubeSpliterator {
+		private final int x;
+		private final int y;
+		private final int z;
+		private int zFirst;
+		private int zLast;
+		private int yFirst;
+		private int yLast;
+
+		Split(int x, int y, int z, int zFirst, int zLast, int yFirst,
+				int yLast) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.zFirst = zFirst;
+			this.zLast = zLast;
+			this.yFirst = yFirst;
+			this.yLast = yLast;
+		}
+
+		@Override
+		protected TripleCursor createCursor() {
+			return new CubeCursor(x, y, z, zFirst, zLast, yFirst, yLast);
+		}
+
+		@Override
+		protected CubeSpliterator split() {
+			int first = depth.nextIndex(zFirst);
+			int last = first < 0 ? -1 : depth.previousIndex(zLast);
+			if (first < 0 || last < first) {
+				return null;
+			}
+			if (first < last) {
+				int mid = splitPoint(first, last, pageSize);
+				Split retval = new Split(x, y, z, first, mid - 1, yFirst,
+						yLast);
+				zFirst = mid;
+				return retval;
+			}
+			// a single matrix, split its rows
+			BitMatrix bm = depth.get(first);
+			if (y >= 0 || bm == null) {
+				return null;
+			}
+			int yf = bm.nextRow(yFirst);
+			int yl = yf < 0 ? -1 : bm.previousRow(yLast);
+			if (yf < 0 || yl <= yf) {
+				return null;
+			}
+			int mid = splitPoint(yf, yl, pageSize);
+			Split retval = new Split(x, y, first, first, first, yf, mid - 1);
+			zFirst = first;
+			zLast = first;
+			yFirst = mid;
+			return retval;
+		}
+
+		@Override
+		protected long count() {
+			boolean allRows = yFirst == 0 && yLast == Integer.MAX_VALUE;
+			if (allRows
+					&& (z >= 0 || (zFirst == 0 && zLast == Integer.MAX_VALUE))) {
+				return BitCube.this.count(x, y, z);
+			}
+			long count = 0;
+			SparseArray<BitMatrix>.Cursor cursor = depth.cursor();
+			cursor.seek(zFirst);
+			while (cursor.next() && cursor.getIndex() <= zLast) {
+				BitMatrix bm = cursor.getValue();
+				count += allRows || y >= 0 ? bm.count(x, y) : bm.count(x,
+						yFirst, yLast);
+			}
+			return count;
 		}
 	}
 
-	public int getSize() {
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			return size;
-		} finally {
-			rl.unlock();
+	@Override
+	public TrieIterator trieIterator() {
+		return new CubeTrie();
+	}
+
+	/**
+	 * The trie iterator implementation. Each level is a cursor over the
+	 * sparse array of that level, seeks re-locate the cursor by page so they
+	 * cost a directory search rather than a walk.
+	 */
+	private class CubeTrie implements TrieIterator {
+		private int level = -1;
+		private SparseArray<BitMatrix>.Cursor zCursor;
+		private SparseArray<SparseBitArray>.Cursor yCursor;
+		private final SparseBitArray.BitCursor xCursor = new SparseBitArray.BitCursor(
+				null);
+		private final boolean[] atEnd = new boolean[3];
+		private final int[] keys = new int[3];
+
+		@Override
+		public void open() {
+			level++;
+			switch (level) {
+			case 0:
+				zCursor = depth.cursor();
+				break;
+			case 1:
+				yCursor = zCursor.getValue().rowCursor();
+				break;
+			case 2:
+				xCursor.reset(yCursor.getValue());
+				break;
+			default:
+				level--;
+				throw new IllegalStateException("Trie has 3 levels");
+			}
+			next();
+		}
+
+		@Override
+		public void up() {
+			level--;
+		}
+
+		@Override
+		public void next() {
+			IndexCursor cursor = level == 0 ? zCursor : level == 1 ? yCursor
+					: xCursor;
+			atEnd[level] = !cursor.next();
+			if (!atEnd[level]) {
+				keys[level] = cursor.getIndex();
+			}
+		}
+
+		@Override
+		public void seek(long key) {
+			if (key > Integer.MAX_VALUE) {
+				atEnd[level] = true;
+				return;
+			}
+			if (level == 0) {
+				zCursor.seek((int) key);
+			} else if (level == 1) {
+				yCursor.seek((int) key);
+			} else {
+				xCursor.seek((int) key);
+			}
+			next();
+		}
+
+		@Override
+		public boolean atEnd() {
+			return atEnd[level];
+		}
+
+		@Override
+		public long key() {
+			return keys[level];
 		}
 	}
 
-	public ExtendedIterator<Idx> find(final int x, final int y, final int z) {
-		if (isEmpty()) {
-			return NiceIterator.emptyIterator();
+	/**
+	 * The cube cursor implementation. Reuses a single matrix cursor for every
+	 * z.
+	 */
+	private class CubeCursor implements TripleCursor {
+		private final int x;
+		private final int y;
+		private final int z;
+		private final int zLast;
+		private final int yFirst;
+		private final int yLast;
+		private final SparseArray<BitMatrix>.Cursor depthCursor;
+		private final BitMatrix.RowCursor matrixCursor = new BitMatrix.RowCursor();
+		private boolean active;
+		private boolean matricesDone;
+		private int curZ;
+
+		CubeCursor(int x, int y, int z) {
+			this(x, y, z, 0, Integer.MAX_VALUE, 0, Integer.MAX_VALUE);
 		}
-		if (z < 0) { // z is wild
-			return WrappedIterator
-					.createIteratorIterator(new Iterator<Iterator<Idx>>() {
-						Iterator<Integer> zItr = depth.indexIterator();
 
-						@Override
-						public boolean hasNext() {
-							return zItr.hasNext();
-						}
+		/**
+		 * Constructor. When z is a wildcard only the matrices from zFirst to
+		 * zLast inclusive are returned, when y is a wildcard only the rows
+		 * from yFirst to yLast.
+		 */
+		CubeCursor(int x, int y, int z, int zFirst, int zLast, int yFirst,
+				int yLast) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.zLast = zLast;
+			this.yFirst = yFirst;
+			this.yLast = yLast;
+			this.depthCursor = z < 0 ? depth.cursor() : null;
+			if (depthCursor != null && zFirst > 0) {
+				depthCursor.seek(zFirst);
+			}
+			this.active = false;
+			this.matricesDone = false;
+		}
 
-						@Override
-						public Iterator<Idx> next() {
-							int z = zItr.next();
-							return WrappedIterator.create(
-									depth.get(z).find(x, y)).mapWith(
-									new Mapper(z));
-						}
+		private BitMatrix nextMatrix() {
+			if (matricesDone) {
+				return null;
+			}
+			if (z < 0) {
+				if (depthCursor.next() && depthCursor.getIndex() <= zLast) {
+					curZ = depthCursor.getIndex();
+					return depthCursor.getValue();
+				}
+			} else {
+				matricesDone = true;
+				curZ = z;
+				return depth.get(z);
+			}
+			matricesDone = true;
+			return null;
+		}
 
-						@Override
-						public void remove() {
-							throw new UnsupportedOperationException();
+		@Override
+		public boolean next() {
+			while (true) {
+				if (active && matrixCursor.next()) {
+					return true;
+				}
+				BitMatrix bm = nextMatrix();
+				if (bm == null) {
+					active = false;
+					return false;
+				}
+				matrixCursor.reset(bm, x, y, yFirst, yLast);
+				active = true;
+			}
+		}
 
-						}
-					});
-		} else { // z is fixed
-			BitMatrix bm = depth.get(z);
-			if (bm == null) {
-				return NiceIterator.emptyIterator();
+		@Override
+		public long getX() {
+			return matrixCursor.getX();
+		}
+
+		@Override
+		public long getY() {
+			return matrixCursor.getY();
+		}
+
+		@Override
+		public long getZ() {
+			return curZ;
+		}
+	}
+
+	/**
+	 * An iterator of Idx over a cube cursor.
+	 */
+	static class IdxIterator extends NiceIterator<Idx> {
+		private final TripleCursor cursor;
+		private boolean ready;
+
+		IdxIterator(TripleCursor cursor) {
+			this.cursor = cursor;
+			this.ready = false;
+		}
+
+		@Override
+		public boolean hasNext() {
+			if (!ready) {
+				ready = cursor.next();
 			}
-			return depth.get(z).find(x, y).mapWith(new Mapper(z));
+			return ready;
+		}
+
+		@Override
+		public Idx next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			return new Idx(cursor.getX(), cursor.getY(), cursor.getZ());
 		}
 	}
 
+	/**
+	 * A read only view of a cube as it was when the snapshot was taken. The
+	 * pages of the view are never written so reads do not block and are not
+	 * blocked by writers to the cube.
+	 */
+	public static class Snapshot extends BitCube implements Closeable {
+		private final AtomicBoolean closed = new AtomicBoolean(false);
+
+		private Snapshot(BitCube cube) {
+			super(cube);
+		}
+
+		/**
+		 * @throws UnsupportedOperationException
+		 *             always.
+		 */
+		@Override
+		public void set(long x, long y, long z) {
+			throw new UnsupportedOperationException(
+					"BitCube.Snapshot is read only");
+		}
+
+		/**
+		 * @throws UnsupportedOperationException
+		 *             always.
+		 */
+		@Override
+		public void clear(long x, long y, long z) {
+			throw new UnsupportedOperationException(
+					"BitCube.Snapshot is read only");
+		}
+
+		/**
+		 * @throws UnsupportedOperationException
+		 *             always.
+		 */
+		@Override
+		public void load(long[] xs, long[] ys, long[] zs, int count) {
+			throw new UnsupportedOperationException(
+					"BitCube.Snapshot is read only");
+		}
+
+		@Override
+		long compactMatrix(int z) {
+			throw new UnsupportedOperationException(
+					"BitCube.Snapshot is read only");
+		}
+
+		@Override
+		long compactDirectory() {
+			throw new UnsupportedOperationException(
+					"BitCube.Snapshot is read only");
+		}
+
+		/**
+		 * Get another snapshot of the same view. Each one must be closed.
+		 */
+		@Override
+		public Snapshot snapshot() {
+			BitCube cube = this;
+			cube.store.open(cube.version);
+			cube.openSnapshots.incrementAndGet();
+			return new Snapshot(this);
+		}
+
+		/**
+		 * Release the snapshot. Pages replaced in the cube since the snapshot
+		 * was taken may be reclaimed once every older snapshot is closed.
+		 */
+		@Override
+		public void close() {
+			if (closed.compareAndSet(false, true)) {
+				BitCube cube = this;
+				cube.store.release(cube.version);
+				cube.openSnapshots.decrementAndGet();
+			}
+		}
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		store = PageStore.heap();
+		openSnapshots = new AtomicInteger(0);
+	}
+
 	// private void writeObject(java.io.ObjectOutputStream out)
 	// throws IOException {
 	// out.writeInt( pageSize );
@@ -181,29 +943,25 @@ public class BitCube implements BitConstants, Serializable {
 	// }
 	//
 	public static class Idx implements Comparable<Idx> {
-		private int x;
-		private int y;
-		private int z;
+		private long x;
+		private long y;
+		private long z;
 
-		public Idx(int x, int y, int z) {
+		public Idx(long x, long y, long z) {
 			this.x = x;
 			this.y = y;
 			this.z = z;
 		}
 
-		Idx(BitMatrix.Idx mIdx, int z) {
-			this(mIdx.getX(), mIdx.getY(), z);
-		}
-
-		public int getX() {
+		public long getX() {
 			return x;
 		}
 
-		public int getY() {
+		public long getY() {
 			return y;
 		}
 
-		public int getZ() {
+		public long getZ() {
 			return z;
 		}
 
@@ -243,7 +1001,7 @@ public class BitCube implements BitConstants, Serializable {
 		@Override
 		public int hashCode() {
 			long l = x + y + z;
-			return (int) l & 0xFFFFFFFF;
+			return (int) (l ^ (l >>> 32));
 		}
 
 		@Override
@@ -251,18 +1009,4 @@ public class BitCube implements BitConstants, Serializable {
 			return String.format("BitCube.Idx[%s,%s,%s]", x, y, z);
 		}
 	}
-
-	private static class Mapper implements Map1<BitMatrix.Idx, Idx> {
-		int z;
-
-		public Mapper(int z) {
-			this.z = z;
-		}
-
-		@Override
-		public Idx map1(BitMatrix.Idx o) {
-			return new Idx(o, z);
-		}
-
-	}
 }
@@ -17,38 +17,134 @@
  */
 package org.xenei.compressedgraph.core;
 
+import java.io.IOException;
 import java.io.Serializable;
-import java.util.Iterator;
+import java.util.NoSuchElementException;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
 
-import org.apache.jena.atlas.iterator.SingletonIterator;
-
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
-import com.hp.hpl.jena.util.iterator.Map1;
 import com.hp.hpl.jena.util.iterator.NiceIterator;
-import com.hp.hpl.jena.util.iterator.WrappedIterator;
 
 /**
  * A sparse matrix (2D axis)
  * 
+ * Writers are serialized by the matrix lock so that rows are created and
+ * removed consistently. Readers do not take the matrix lock.
+ * 
+ * A matrix copied for a snapshot shares its rows with the copy. The copy
+ * copies a row before it first writes to it, see copy().
+ * 
  */
 public class BitMatrix implements BitConstants, Serializable {
 	private int pageSize;
-	private transient final ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
+	// not final, it is recreated when the matrix is deserialized
+	private transient ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
 	private SparseArray<SparseBitArray> rows;
+	private transient PageStore store;
+	// written under the matrix lock
+	private volatile long size;
+	// rows of an older version are shared with a snapshot
+	private transient int version;
+	// the memory of the rows, written under the matrix lock
+	private transient volatile long rowPages;
+	private transient volatile long rowHeapBytes;
+	private transient volatile long rowOffHeapBytes;
 
 	public BitMatrix() {
 		this(DEFAULT_PAGE_SIZE);
 	}
 
 	public BitMatrix(int pageSize) {
+		this(pageSize, PageStore.heap());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the sparse arrays.
+	 * @param store
+	 *            the store that holds the row bits.
+	 */
+	public BitMatrix(int pageSize, PageStore store) {
+		this(pageSize, store, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the sparse arrays.
+	 * @param store
+	 *            the store that holds the row bits.
+	 * @param version
+	 *            the version of the matrix.
+	 */
+	BitMatrix(int pageSize, PageStore store, int version) {
 		this.pageSize = pageSize;
-		rows = new SparseArray<SparseBitArray>(pageSize);
+		this.store = store;
+		this.version = version;
+		rows = new SparseArray<SparseBitArray>(pageSize, version);
+	}
+
+	/**
+	 * Create a copy of the matrix with a new version. The copy shares the
+	 * rows of this matrix and copies each one the first time it is written,
+	 * so this matrix is not changed by writes to the copy. Writers must be
+	 * blocked while the copy is made.
+	 * 
+	 * @param version
+	 *            the version of the copy.
+	 * @return the copy.
+	 */
+	BitMatrix copy(int version) {
+		BitMatrix retval = new BitMatrix(pageSize, store, version);
+		retval.rows = rows.copy(version);
+		retval.size = size;
+		retval.rowPages = rowPages;
+		retval.rowHeapBytes = rowHeapBytes;
+		retval.rowOffHeapBytes = rowOffHeapBytes;
+		return retval;
+	}
+
+	/**
+	 * Get the version of the matrix.
+	 */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Get a row of this version, copying a row that is shared with a
+	 * snapshot.
+	 */
+	private SparseBitArray ownRow(int y, SparseBitArray row) {
+		if (row.getVersion() == version) {
+			return row;
+		}
+		SparseBitArray retval = row.copy(version);
+		rows.put(y, retval);
+		return retval;
+	}
+
+	/**
+	 * Add the memory of a row that joins the matrix, or with a negative sign
+	 * remove the memory of a row that leaves it. Rows that change must be
+	 * removed before they are changed.
+	 */
+	private void account(SparseBitArray row, int sign) {
+		rowPages += sign * row.getPageCount();
+		rowHeapBytes += sign * row.getHeapBytes();
+		rowOffHeapBytes += sign * row.getOffHeapBytes();
 	}
 
-	public void set(int x, int y) {
+	/**
+	 * Set a position.
+	 * 
+	 * @return true if the position was not already set.
+	 */
+	public boolean set(int x, int y) {
 		if (x < 0 || y < 0) {
 			throw new IllegalArgumentException(
 					String.format(
@@ -61,36 +157,158 @@ public class BitMatrix implements BitConstants, Serializable {
 		try {
 			SparseBitArray bs = rows.get(y);
 			if (bs == null) {
-				bs = new SparseBitArray(pageSize);
+				bs = new SparseBitArray(pageSize, store, version);
+				rows.put(y, bs);
+			} else if (bs.get(x)) {
+				return false;
+			} else {
+				bs = ownRow(y, bs);
+				account(bs, -1);
 			}
 			bs.set(x);
-			rows.put(y, bs);
+			account(bs, 1);
+			size++;
+			return true;
 		} finally {
 			wl.unlock();
 		}
 	}
 
-	public void clear(int x, int y) {
-		if (x < 0 || y < 0) {
-			throw new IllegalArgumentException(
-					String.format(
-							"Indexes (%s,%s) must be greater than or equals to 0",
-							x, y));
-		}
+	/**
+	 * Clear the positions that match. A negative x or y is a wildcard. Rows
+	 * that match with a wildcard x are dropped whole rather than cleared a
+	 * position at a time.
+	 * 
+	 * @return true if a position was cleared.
+	 */
+	public boolean clear(int x, int y) {
 		WriteLock wl = LOCK_FACTORY.writeLock();
 		wl.lock();
 		try {
-			SparseBitArray bs = rows.get(y);
-			if (bs != null) {
-				bs.clear(x);
-				if (bs.isEmpty()) {
-					bs = null;
+			if (y >= 0) {
+				return clearRow(x, y, rows.get(y));
+			}
+			boolean retval = false;
+			SparseArray<SparseBitArray>.Cursor cursor = rows.cursor();
+			while (cursor.next()) {
+				retval |= clearRow(x, cursor.getIndex(), cursor.getValue());
+			}
+			return retval;
+		} finally {
+			wl.unlock();
+		}
+	}
+
+	/**
+	 * Clear x, or every position if x is negative, in the row for y. Must be
+	 * called with the matrix lock held.
+	 * 
+	 * @return true if a position was cleared.
+	 */
+	private boolean clearRow(int x, int y, SparseBitArray row) {
+		if (row == null || (x >= 0 && !row.get(x))) {
+			return false;
+		}
+		row = ownRow(y, row);
+		account(row, -1);
+		if (x < 0) {
+			size -= row.cardinality();
+			row.clear();
+		} else {
+			row.clear(x);
+			size--;
+		}
+		if (row.isEmpty()) {
+			rows.remove(y);
+		} else {
+			account(row, 1);
+		}
+		return true;
+	}
+
+	/**
+	 * Add a row with a y greater than every row already present. Used while
+	 * the matrix is not yet visible to other threads.
+	 */
+	void appendRow(int y, SparseBitArray row) {
+		rows.append(y, row);
+	}
+
+	/**
+	 * Add the bits appended to the rows of a matrix that is being built to
+	 * its size and count the memory of the rows.
+	 */
+	void appended(int count) {
+		size += count;
+		recount();
+	}
+
+	/**
+	 * Count the memory of every row.
+	 */
+	private void recount() {
+		rowPages = 0;
+		rowHeapBytes = 0;
+		rowOffHeapBytes = 0;
+		SparseArray<SparseBitArray>.Cursor cursor = rows.cursor();
+		while (cursor.next()) {
+			account(cursor.getValue(), 1);
+		}
+	}
+
+	/**
+	 * Compact the rows and the row directory, see SparseBitArray.compact().
+	 * Rows shared with a snapshot are left alone. Writers to the matrix wait
+	 * while a row is compacted, readers do not.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	public long compact() {
+		return compact(false);
+	}
+
+	/**
+	 * Compact the rows and the row directory.
+	 * 
+	 * @param adopt
+	 *            true if no snapshot is open, so that rows and pages of older
+	 *            versions are no longer shared and may be taken over.
+	 * @return the estimated number of heap bytes released.
+	 */
+	long compact(boolean adopt) {
+		long released = 0;
+		WriteLock wl = LOCK_FACTORY.writeLock();
+		SparseArray<SparseBitArray>.Cursor cursor = rows.cursor();
+		while (cursor.next()) {
+			wl.lock();
+			try {
+				SparseBitArray row = rows.get(cursor.getIndex());
+				if (row != null && (adopt || row.getVersion() == version)) {
+					row = ownRow(cursor.getIndex(), row);
+					account(row, -1);
+					released += row.compact(adopt);
+					account(row, 1);
 				}
+			} finally {
+				wl.unlock();
 			}
-			rows.put(y, bs);
+		}
+		wl.lock();
+		try {
+			released += rows.compact();
 		} finally {
 			wl.unlock();
 		}
+		return released;
+	}
+
+	/**
+	 * Get the memory used by the matrix. The pages are the pages of the rows.
+	 */
+	public MemoryStats getMemoryStats() {
+		return new MemoryStats(rowPages, size, rowPages * pageSize,
+				MemoryStats.OBJECT_BYTES + rows.getMemoryStats().getHeapBytes()
+						+ rowHeapBytes, rowOffHeapBytes);
 	}
 
 	public boolean has(int x, int y) {
@@ -100,103 +318,271 @@ public class BitMatrix implements BitConstants, Serializable {
 							"Indexes (%s,%s) must be greater than or equals to 0",
 							x, y));
 		}
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			SparseBitArray bs = rows.get(y);
-			return bs == null ? false : bs.get(x);
-		} finally {
-			rl.unlock();
+		SparseBitArray bs = rows.get(y);
+		return bs == null ? false : bs.get(x);
+	}
+
+	/**
+	 * Get the row for y, null if no position in the row is set.
+	 */
+	SparseBitArray getRow(int y) {
+		return rows.get(y);
+	}
+
+	/**
+	 * Get the first y greater than or equal to y that has a row.
+	 * 
+	 * @return the y or -1 if there is none.
+	 */
+	int nextRow(int y) {
+		return rows.nextIndex(y);
+	}
+
+	/**
+	 * Get the last y less than or equal to y that has a row.
+	 * 
+	 * @return the y or -1 if there is none.
+	 */
+	int previousRow(int y) {
+		return rows.previousIndex(y);
+	}
+
+	/**
+	 * Count the set positions in the rows from yFirst to yLast inclusive. A
+	 * negative x is a wildcard.
+	 */
+	long count(int x, int yFirst, int yLast) {
+		long count = 0;
+		SparseArray<SparseBitArray>.Cursor cursor = rows.cursor();
+		cursor.seek(yFirst);
+		while (cursor.next() && cursor.getIndex() <= yLast) {
+			SparseBitArray row = cursor.getValue();
+			count += x < 0 ? row.cardinality() : (row.get(x) ? 1 : 0);
+		}
+		return count;
+	}
+
+	/**
+	 * Get a cursor over the rows in y order.
+	 */
+	SparseArray<SparseBitArray>.Cursor rowCursor() {
+		return rows.cursor();
+	}
+
+	/**
+	 * Get a cursor over the x positions that are set in every one of the rows.
+	 * The rows are intersected a word at a time as the cursor advances.
+	 * 
+	 * @param ys
+	 *            the rows to intersect.
+	 * @return the cursor.
+	 */
+	public IndexCursor andRows(int... ys) {
+		SparseBitArray[] arrays = new SparseBitArray[ys.length];
+		for (int i = 0; i < ys.length; i++) {
+			arrays[i] = rows.get(ys[i]);
+			if (arrays[i] == null) {
+				return new SparseBitArray.BitCursor(null);
+			}
 		}
+		return new SparseBitArray.AndCursor(arrays);
 	}
 
 	public boolean isEmpty() {
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			return rows.isEmpty();
-		} finally {
-			rl.unlock();
+		return rows.isEmpty();
+	}
+
+	/**
+	 * Get the number of set positions.
+	 */
+	public long getSize() {
+		return size;
+	}
+
+	/**
+	 * Count the set positions that match. A negative x or y is a wildcard.
+	 * Counts with a bound y or no bound position are read from the row and
+	 * matrix counters, a count with only x bound checks x in every row.
+	 * 
+	 * @param x
+	 *            the x position or a negative value for any.
+	 * @param y
+	 *            the y position or a negative value for any.
+	 * @return the number of matching positions.
+	 */
+	public long count(int x, int y) {
+		if (y >= 0) {
+			SparseBitArray bs = rows.get(y);
+			if (bs == null) {
+				return 0;
+			}
+			return x < 0 ? bs.cardinality() : (bs.get(x) ? 1 : 0);
+		}
+		if (x < 0) {
+			return size;
+		}
+		long count = 0;
+		SparseArray<SparseBitArray>.Cursor cursor = rows.cursor();
+		while (cursor.next()) {
+			if (cursor.getValue().get(x)) {
+				count++;
+			}
 		}
+		return count;
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		LOCK_FACTORY = new ReentrantReadWriteLock();
+		store = PageStore.heap();
+		recount();
+	}
+
+	/**
+	 * Get a cursor over the set positions. A negative x or y is a wildcard.
+	 * Rows are returned in y order and positions within a row in x order.
+	 * 
+	 * @param x
+	 *            the x position or a negative value for any.
+	 * @param y
+	 *            the y position or a negative value for any.
+	 * @return the cursor
+	 */
+	public MatrixCursor cursor(int x, int y) {
+		RowCursor cursor = new RowCursor();
+		cursor.reset(this, x, y);
+		return cursor;
 	}
 
 	public ExtendedIterator<Idx> find(final int x, final int y) {
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			if (isEmpty()) {
-				return NiceIterator.emptyIterator();
+		return new IdxIterator(cursor(x, y));
+	}
+
+	/**
+	 * The matrix cursor implementation. Reuses a single bit cursor for every
+	 * row and may itself be reset to walk another matrix.
+	 */
+	static class RowCursor implements MatrixCursor {
+		private BitMatrix matrix;
+		private int x;
+		private int y;
+		private SparseArray<SparseBitArray>.Cursor rowCursor;
+		private final SparseBitArray.BitCursor bits = new SparseBitArray.BitCursor(
+				null);
+		private SparseBitArray row;
+		private boolean rowsDone;
+		private int yLast;
+		private int curX;
+		private int curY;
+
+		void reset(BitMatrix matrix, int x, int y) {
+			reset(matrix, x, y, 0, Integer.MAX_VALUE);
+		}
+
+		/**
+		 * Reset the cursor. When y is a wildcard only the rows from yFirst to
+		 * yLast inclusive are returned.
+		 */
+		void reset(BitMatrix matrix, int x, int y, int yFirst, int yLast) {
+			this.matrix = matrix;
+			this.x = x;
+			this.y = y;
+			this.rowCursor = (matrix != null && y < 0) ? matrix.rows.cursor()
+					: null;
+			if (rowCursor != null && yFirst > 0) {
+				rowCursor.seek(yFirst);
+			}
+			this.yLast = yLast;
+			this.row = null;
+			this.rowsDone = matrix == null;
+		}
+
+		private boolean nextRow() {
+			if (rowsDone) {
+				return false;
 			}
-			if (y < 0) { // y is wild
-				return WrappedIterator
-						.createIteratorIterator(new Iterator<Iterator<Idx>>() {
-							Iterator<Integer> yItr = rows.indexIterator();
-
-							@Override
-							public boolean hasNext() {
-								return yItr.hasNext();
-							}
-
-							@Override
-							public Iterator<Idx> next() {
-								int y = yItr.next();
-								SparseBitArray bs = rows.get(y);
-								if (bs == null) {
-									return NiceIterator.emptyIterator();
-								}
-								return getXIterator(x, y, bs);
-							}
-
-							@Override
-							public void remove() {
-								throw new UnsupportedOperationException();
-
-							}
-						});
+			if (y < 0) {
+				if (rowCursor.next() && rowCursor.getIndex() <= yLast) {
+					curY = rowCursor.getIndex();
+					row = rowCursor.getValue();
+					return true;
+				}
 			} else {
-				SparseBitArray bs = rows.get(y);
-				if (bs == null) {
-					return NiceIterator.emptyIterator();
+				curY = y;
+				row = matrix.rows.get(y);
+				if (row != null) {
+					rowsDone = true;
+					return true;
 				}
-				return getXIterator(x, y, bs);
 			}
-		} finally {
-			rl.unlock();
+			rowsDone = true;
+			return false;
 		}
-	}
 
-	private ExtendedIterator<Idx> getXIterator(final int x, final int y,
-			SparseBitArray bs) {
-		if (y < 0) {
-			throw new IllegalArgumentException(String.format(
-					"y (%s) may not be less than 0", y));
-		}
-		if (x < 0) // x is wild
-		{
-			return WrappedIterator.create(bs.iterator()).mapWith(new Mapper(y));
-		} else {
-			if (bs.get(x)) {
-				return WrappedIterator.create(SingletonIterator.create(new Idx(
-						x, y)));
-			} else {
-				return NiceIterator.emptyIterator();
+		@Override
+		public boolean next() {
+			while (true) {
+				if (row != null && x < 0 && bits.next()) {
+					curX = bits.getIndex();
+					return true;
+				}
+				row = null;
+				if (!nextRow()) {
+					return false;
+				}
+				if (x < 0) {
+					bits.reset(row);
+				} else {
+					SparseBitArray r = row;
+					row = null;
+					if (r.get(x)) {
+						curX = x;
+						return true;
+					}
+				}
 			}
 		}
-	}
 
-	private static class Mapper implements Map1<Integer, Idx> {
+		@Override
+		public int getX() {
+			return curX;
+		}
 
-		private int y;
+		@Override
+		public int getY() {
+			return curY;
+		}
+	}
 
-		public Mapper(int y) {
-			this.y = y;
+	/**
+	 * An iterator of Idx over a matrix cursor.
+	 */
+	private static class IdxIterator extends NiceIterator<Idx> {
+		private final MatrixCursor cursor;
+		private boolean ready;
+
+		IdxIterator(MatrixCursor cursor) {
+			this.cursor = cursor;
+			this.ready = false;
 		}
 
 		@Override
-		public Idx map1(Integer o) {
-			return new Idx(o, y);
+		public boolean hasNext() {
+			if (!ready) {
+				ready = cursor.next();
+			}
+			return ready;
 		}
 
+		@Override
+		public Idx next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			ready = false;
+			return new Idx(cursor.getX(), cursor.getY());
+		}
 	}
 
 	public static class Idx implements Comparable<Idx> {
@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+/**
+ * A container that stores one bit per position. Used when the page is dense.
+ */
+class BitmapContainer extends Container {
+	private final long[] words;
+	private int cardinality;
+
+	BitmapContainer(int pageSize) {
+		super(pageSize);
+		words = new long[(pageSize + 63) >>> 6];
+		cardinality = 0;
+	}
+
+	/**
+	 * Create a container that uses the words.
+	 */
+	BitmapContainer(int pageSize, long[] words) {
+		super(pageSize);
+		this.words = words;
+		for (long word : words) {
+			cardinality += Long.bitCount(word);
+		}
+	}
+
+	static BitmapContainer copyOf(Container c) {
+		BitmapContainer retval = new BitmapContainer(c.pageSize);
+		for (int i = c.nextSetBit(0); i >= 0; i = c.nextSetBit(i + 1)) {
+			retval.words[i >>> 6] |= 1L << i;
+		}
+		retval.cardinality = c.cardinality();
+		return retval;
+	}
+
+	@Override
+	Container copy() {
+		return new BitmapContainer(pageSize, words.clone());
+	}
+
+	@Override
+	public boolean get(int i) {
+		return (words[i >>> 6] & (1L << i)) != 0;
+	}
+
+	@Override
+	public Container add(int i) {
+		long mask = 1L << i;
+		if ((words[i >>> 6] & mask) == 0) {
+			words[i >>> 6] |= mask;
+			cardinality++;
+			if (cardinality == pageSize) {
+				return optimize();
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public Container remove(int i) {
+		long mask = 1L << i;
+		if ((words[i >>> 6] & mask) != 0) {
+			words[i >>> 6] &= ~mask;
+			cardinality--;
+			if (cardinality <= arrayLimit()) {
+				return ArrayContainer.copyOf(this);
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public int cardinality() {
+		return cardinality;
+	}
+
+	@Override
+	public int nextSetBit(int from) {
+		if (from >= pageSize) {
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++w == words.length) {
+				return -1;
+			}
+			word = words[w];
+		}
+	}
+
+	@Override
+	public long getWord(int w) {
+		return w < words.length ? words[w] : 0;
+	}
+
+	@Override
+	public int sizeInBytes() {
+		return 32 + (words.length * 8);
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.ObjectStreamException;
+
+/**
+ * A bitmap container whose words are kept in a slot of a BufferPageStore.
+ * Only the handle and the cardinality are kept on the heap.
+ * 
+ * When the page becomes sparse or clustered the bits are copied into a heap
+ * container and the slot is returned to the store. Serialization writes a
+ * heap bitmap container in place of this one.
+ */
+class BufferContainer extends Container {
+	private final transient BufferPageStore store;
+	private final transient BufferPageStore.Slot slot;
+	// cleared when the slot is returned so that a cursor holding this page
+	// does not read a slot that has been reused.
+	private transient volatile boolean live;
+	private int cardinality;
+
+	private BufferContainer(BufferPageStore store, int pageSize) {
+		super(pageSize);
+		this.store = store;
+		this.slot = store.allocate((pageSize + 63) >>> 6);
+		this.live = true;
+		this.cardinality = 0;
+	}
+
+	static BufferContainer copyOf(BufferPageStore store, Container c) {
+		BufferContainer retval = new BufferContainer(store, c.pageSize);
+		long word = 0;
+		int w = 0;
+		for (int i = c.nextSetBit(0); i >= 0; i = c.nextSetBit(i + 1)) {
+			if ((i >>> 6) != w) {
+				retval.slot.setWord(w, word);
+				w = i >>> 6;
+				word = 0;
+			}
+			word |= 1L << i;
+		}
+		retval.slot.setWord(w, word);
+		retval.cardinality = c.cardinality();
+		return retval;
+	}
+
+	/**
+	 * Copy the bits to another container and return the slot to the store.
+	 */
+	private Container moveTo(Container c) {
+		release();
+		return c;
+	}
+
+	/**
+	 * Return the slot to the store.
+	 */
+	void release() {
+		live = false;
+		store.free(slot);
+	}
+
+	@Override
+	public boolean get(int i) {
+		return (slot.getWord(i >>> 6) & (1L << i)) != 0;
+	}
+
+	@Override
+	public Container add(int i) {
+		long word = slot.getWord(i >>> 6);
+		long mask = 1L << i;
+		if ((word & mask) == 0) {
+			slot.setWord(i >>> 6, word | mask);
+			cardinality++;
+			if (cardinality == pageSize) {
+				return optimize();
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public Container remove(int i) {
+		long word = slot.getWord(i >>> 6);
+		long mask = 1L << i;
+		if ((word & mask) != 0) {
+			slot.setWord(i >>> 6, word & ~mask);
+			cardinality--;
+			if (cardinality <= arrayLimit()) {
+				return moveTo(ArrayContainer.copyOf(this));
+			}
+		}
+		return this;
+	}
+
+	@Override
+	public int cardinality() {
+		return cardinality;
+	}
+
+	@Override
+	public int nextSetBit(int from) {
+		if (from >= pageSize || !live) {
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = slot.getWord(w) & (-1L << from);
+		while (true) {
+			if (word != 0) {
+				// the slot may have been reused while it was read
+				return live ? (w << 6) + Long.numberOfTrailingZeros(word) : -1;
+			}
+			if (++w == slot.words) {
+				return -1;
+			}
+			word = slot.getWord(w);
+		}
+	}
+
+	@Override
+	public long getWord(int w) {
+		if (w >= slot.words) {
+			return 0;
+		}
+		long word = slot.getWord(w);
+		// the slot may have been reused while it was read
+		return live ? word : 0;
+	}
+
+	@Override
+	public int sizeInBytes() {
+		return 32;
+	}
+
+	@Override
+	int offHeapBytes() {
+		return ((pageSize + 63) >>> 6) * 8;
+	}
+
+	@Override
+	public Container optimize() {
+		int runs = countRuns();
+		if (runs <= runLimit() && runs * 2 < cardinality) {
+			return moveTo(RunContainer.copyOf(this, runs));
+		}
+		if (cardinality <= arrayLimit()) {
+			return moveTo(ArrayContainer.copyOf(this));
+		}
+		return this;
+	}
+
+	private Object writeReplace() throws ObjectStreamException {
+		return BitmapContainer.copyOf(this);
+	}
+}
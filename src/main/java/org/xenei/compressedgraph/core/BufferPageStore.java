@@ -0,0 +1,235 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A page store that keeps dense pages in slots of large ByteBuffers (slabs).
+ * 
+ * Slots are grouped in pools by size so that arrays with different page sizes
+ * may share a store. Freed slots are reused before a new slab is allocated.
+ * 
+ * Pages replaced or dropped while a snapshot is open are retired rather than
+ * freed; their slots are freed once every snapshot that is older than the
+ * replacement has been released.
+ */
+abstract class BufferPageStore extends PageStore {
+	private final int slabSize;
+	private final Map<Integer, Pool> pools;
+	private long offHeapBytes;
+	// open snapshot versions and the number of snapshots of each
+	private final TreeMap<Integer, Integer> snapshots;
+	// retired pages in the order they were retired
+	private final Deque<Retired> retired;
+
+	protected BufferPageStore(int slabSize) {
+		this.slabSize = slabSize;
+		this.pools = new HashMap<Integer, Pool>();
+		this.offHeapBytes = 0;
+		this.snapshots = new TreeMap<Integer, Integer>();
+		this.retired = new ArrayDeque<Retired>();
+	}
+
+	/**
+	 * Allocate a new slab.
+	 * 
+	 * @param bytes
+	 *            the size of the slab.
+	 * @return the slab.
+	 * @throws IOException
+	 *             on error
+	 */
+	protected abstract ByteBuffer newSlab(int bytes) throws IOException;
+
+	@Override
+	Container place(Container page) {
+		if (page instanceof BitmapContainer) {
+			return BufferContainer.copyOf(this, page);
+		}
+		return page;
+	}
+
+	@Override
+	synchronized void open(int version) {
+		Integer count = snapshots.get(version);
+		snapshots.put(version, count == null ? 1 : count + 1);
+	}
+
+	@Override
+	synchronized void release(int version) {
+		Integer count = snapshots.get(version);
+		if (count == null) {
+			return;
+		}
+		if (count == 1) {
+			snapshots.remove(version);
+		} else {
+			snapshots.put(version, count - 1);
+		}
+		while (!retired.isEmpty() && !isShared(retired.peekFirst().version)) {
+			retired.removeFirst().page.release();
+		}
+	}
+
+	@Override
+	synchronized void retire(Container page, int version) {
+		if (page instanceof BufferContainer) {
+			if (isShared(version)) {
+				retired.addLast(new Retired((BufferContainer) page, version));
+			} else {
+				((BufferContainer) page).release();
+			}
+		}
+	}
+
+	/**
+	 * Check if a snapshot older than the version is open.
+	 */
+	private boolean isShared(int version) {
+		return !snapshots.isEmpty() && snapshots.firstKey() < version;
+	}
+
+	/**
+	 * The number of retired pages waiting for snapshots to be released.
+	 */
+	synchronized int getRetiredCount() {
+		return retired.size();
+	}
+
+	@Override
+	public synchronized long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+
+	/**
+	 * Allocate a slot.
+	 * 
+	 * @param words
+	 *            the number of longs in the slot.
+	 * @return the slot.
+	 */
+	synchronized Slot allocate(int words) {
+		Pool pool = pools.get(words);
+		if (pool == null) {
+			pool = new Pool(words);
+			pools.put(words, pool);
+		}
+		try {
+			return pool.allocate();
+		} catch (IOException e) {
+			throw new IllegalStateException("Unable to allocate page", e);
+		}
+	}
+
+	/**
+	 * Return a slot to its pool.
+	 */
+	synchronized void free(Slot slot) {
+		pools.get(slot.words).free(slot);
+	}
+
+	/**
+	 * A page replaced or dropped by an array of the version.
+	 */
+	private static class Retired {
+		final BufferContainer page;
+		final int version;
+
+		Retired(BufferContainer page, int version) {
+			this.page = page;
+			this.version = version;
+		}
+	}
+
+	/**
+	 * A location in a slab.
+	 */
+	static class Slot {
+		final ByteBuffer buffer;
+		final int base;
+		final int words;
+
+		Slot(ByteBuffer buffer, int base, int words) {
+			this.buffer = buffer;
+			this.base = base;
+			this.words = words;
+		}
+
+		long getWord(int w) {
+			return buffer.getLong(base + (w << 3));
+		}
+
+		void setWord(int w, long value) {
+			buffer.putLong(base + (w << 3), value);
+		}
+
+		void clear() {
+			for (int w = 0; w < words; w++) {
+				setWord(w, 0);
+			}
+		}
+	}
+
+	/**
+	 * The slabs and free slots of one slot size.
+	 */
+	private class Pool {
+		private final int words;
+		private final int slotsPerSlab;
+		private final List<ByteBuffer> slabs;
+		private final List<Slot> free;
+		private int next;
+
+		Pool(int words) {
+			this.words = words;
+			this.slotsPerSlab = Math.max(1, slabSize / (words * 8));
+			this.slabs = new ArrayList<ByteBuffer>();
+			this.free = new ArrayList<Slot>();
+			this.next = slotsPerSlab;
+		}
+
+		Slot allocate() throws IOException {
+			if (!free.isEmpty()) {
+				Slot slot = free.remove(free.size() - 1);
+				slot.clear();
+				return slot;
+			}
+			if (next == slotsPerSlab) {
+				int bytes = slotsPerSlab * words * 8;
+				slabs.add(newSlab(bytes));
+				offHeapBytes += bytes;
+				next = 0;
+			}
+			return new Slot(slabs.get(slabs.size() - 1), (next++) * words * 8,
+					words);
+		}
+
+		void free(Slot slot) {
+			free.add(slot);
+		}
+	}
+}
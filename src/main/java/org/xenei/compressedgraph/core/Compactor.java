@@ -0,0 +1,79 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compacts a cube a few matrices at a time so that compaction can run in the
+ * background, for example from a ScheduledExecutorService. Each run compacts
+ * the next matrices in z order and starts again from the first matrix once
+ * the last one has been compacted. Readers are never blocked and writers only
+ * wait for the matrix being compacted, see BitCube.compact().
+ * 
+ */
+public class Compactor implements Runnable {
+	private final BitCube cube;
+	private final int matricesPerRun;
+	private final AtomicLong released;
+	private int nextZ;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cube
+	 *            the cube to compact.
+	 * @param matricesPerRun
+	 *            the number of matrices to compact in each run.
+	 */
+	public Compactor(BitCube cube, int matricesPerRun) {
+		if (cube instanceof BitCube.Snapshot) {
+			throw new IllegalArgumentException(
+					"BitCube.Snapshot is read only");
+		}
+		if (matricesPerRun < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Matrices per run (%s) must be at least 1", matricesPerRun));
+		}
+		this.cube = cube;
+		this.matricesPerRun = matricesPerRun;
+		this.released = new AtomicLong(0);
+		this.nextZ = 0;
+	}
+
+	@Override
+	public synchronized void run() {
+		for (int i = 0; i < matricesPerRun; i++) {
+			int z = cube.nextMatrix(nextZ);
+			if (z < 0) {
+				released.addAndGet(cube.compactDirectory());
+				nextZ = 0;
+				return;
+			}
+			released.addAndGet(cube.compactMatrix(z));
+			nextZ = z == Integer.MAX_VALUE ? 0 : z + 1;
+		}
+	}
+
+	/**
+	 * Get the estimated number of heap bytes released by every run so far.
+	 */
+	public long getReleasedBytes() {
+		return released.get();
+	}
+}
@@ -0,0 +1,347 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.Serializable;
+
+/**
+ * The bits of a single SparseBitArray page.
+ *
+ * Positions are relative to the start of the page and must be less than the
+ * page size. A page size may not exceed 65536 so that positions fit in an
+ * unsigned short.
+ *
+ * Mutators return the container that holds the result. That may be this
+ * container or a new container of a different type when the cardinality or
+ * shape of the bits makes another representation smaller:
+ * <ul>
+ * <li>ArrayContainer - a sorted list of positions, used for sparse pages.</li>
+ * <li>BitmapContainer - one bit per position, used for dense pages.</li>
+ * <li>RunContainer - a list of runs of set positions, used for clustered pages.
+ * </li>
+ * </ul>
+ */
+abstract class Container implements Serializable {
+	/**
+	 * The largest supported page size.
+	 */
+	static final int MAX_PAGE_SIZE = 1 << 16;
+
+	protected final int pageSize;
+	// the version of the array the container belongs to, see SparseBitArray
+	transient int version;
+
+	protected Container(int pageSize) {
+		this.pageSize = pageSize;
+	}
+
+	/**
+	 * Create an empty container for a page.
+	 *
+	 * @param pageSize
+	 *            the page size.
+	 * @return an empty container.
+	 */
+	static Container create(int pageSize) {
+		return new ArrayContainer(pageSize);
+	}
+
+	/**
+	 * Verify that a page size can be stored in containers.
+	 *
+	 * @param pageSize
+	 *            the page size.
+	 */
+	static void checkPageSize(int pageSize) {
+		if (pageSize < 1 || pageSize > MAX_PAGE_SIZE) {
+			throw new IllegalArgumentException(String.format(
+					"Page size (%s) must be between 1 and %s", pageSize,
+					MAX_PAGE_SIZE));
+		}
+	}
+
+	/**
+	 * The largest cardinality an array container holds before a bitmap is
+	 * smaller.
+	 */
+	protected final int arrayLimit() {
+		return Math.max(1, pageSize / 16);
+	}
+
+	/**
+	 * The largest number of runs a run container holds before a bitmap is
+	 * smaller.
+	 */
+	protected final int runLimit() {
+		return Math.max(1, pageSize / 32);
+	}
+
+	public abstract boolean get(int i);
+
+	public abstract Container add(int i);
+
+	public abstract Container remove(int i);
+
+	public abstract int cardinality();
+
+	public boolean isEmpty() {
+		return cardinality() == 0;
+	}
+
+	/**
+	 * Get the first set position at or after from.
+	 *
+	 * @param from
+	 *            the position to start from.
+	 * @return the position or -1 if there is none.
+	 */
+	public abstract int nextSetBit(int from);
+
+	/**
+	 * Get the 64 positions starting at w * 64 as a word. Bit n of the word is
+	 * position (w * 64) + n.
+	 *
+	 * @param w
+	 *            the word index.
+	 * @return the word.
+	 */
+	public long getWord(int w) {
+		int base = w << 6;
+		long word = 0;
+		int i = nextSetBit(base);
+		while (i >= 0 && i < base + 64) {
+			word |= 1L << i;
+			i = nextSetBit(i + 1);
+		}
+		return word;
+	}
+
+	/**
+	 * The approximate number of bytes used to store the bits.
+	 */
+	public abstract int sizeInBytes();
+
+	/**
+	 * The number of bytes used to store the bits outside of the heap.
+	 */
+	int offHeapBytes() {
+		return 0;
+	}
+
+	/**
+	 * Count the runs of consecutive set positions.
+	 */
+	protected int countRuns() {
+		int runs = 0;
+		int last = -2;
+		for (int i = nextSetBit(0); i >= 0; i = nextSetBit(i + 1)) {
+			if (i != last + 1) {
+				runs++;
+			}
+			last = i;
+		}
+		return runs;
+	}
+
+	/**
+	 * Copy the bits to a new heap container. Used to change a page that is
+	 * shared with a snapshot without changing the snapshot.
+	 */
+	Container copy() {
+		return BitmapContainer.copyOf(this);
+	}
+
+	/**
+	 * Return the smallest container that holds the same bits.
+	 */
+	public Container optimize() {
+		int card = cardinality();
+		int runs = countRuns();
+		if (runs <= runLimit() && runs * 2 < card) {
+			return this instanceof RunContainer ? this : RunContainer.copyOf(
+					this, runs);
+		}
+		if (card <= arrayLimit()) {
+			return this instanceof ArrayContainer ? this : ArrayContainer
+					.copyOf(this);
+		}
+		return this instanceof BitmapContainer ? this : BitmapContainer
+				.copyOf(this);
+	}
+
+	/**
+	 * Check if the arrays of the container are no larger than its bits need.
+	 */
+	boolean isTrimmed() {
+		return true;
+	}
+
+	/**
+	 * Get the smallest container that holds the same bits with its arrays
+	 * trimmed. Unlike optimize() this container is never changed or released,
+	 * so readers that hold it are not affected.
+	 * 
+	 * @return this container if it is already compact, otherwise a new heap
+	 *         container.
+	 */
+	Container compact() {
+		int card = cardinality();
+		int runs = countRuns();
+		if (runs <= runLimit() && runs * 2 < card) {
+			return this instanceof RunContainer && isTrimmed() ? this
+					: RunContainer.copyOf(this, runs);
+		}
+		if (card <= arrayLimit()) {
+			return this instanceof ArrayContainer && isTrimmed() ? this
+					: ArrayContainer.copyOf(this);
+		}
+		return this instanceof ArrayContainer || this instanceof RunContainer ? BitmapContainer
+				.copyOf(this) : this;
+	}
+
+	/**
+	 * Get the index of the next word at or after w that has a set position.
+	 *
+	 * @return the word index or -1 if there is none.
+	 */
+	private static int nextWord(Container c, int w) {
+		int i = c.nextSetBit(w << 6);
+		return i < 0 ? -1 : i >>> 6;
+	}
+
+	/**
+	 * Get the index of the next word at or after w that has a set position in
+	 * both containers. The containers leapfrog each other so words that are
+	 * empty in either container are skipped.
+	 *
+	 * @return the word index or -1 if there is none.
+	 */
+	static int nextCommonWord(Container a, Container b, int w) {
+		while (true) {
+			int wa = nextWord(a, w);
+			if (wa < 0) {
+				return -1;
+			}
+			int wb = nextWord(b, wa);
+			if (wb < 0) {
+				return -1;
+			}
+			if (wa == wb) {
+				return wa;
+			}
+			w = wb;
+		}
+	}
+
+	/**
+	 * Create the smallest container for a set of words.
+	 *
+	 * @return the container or null if no position is set.
+	 */
+	private static Container fromWords(int pageSize, long[] words) {
+		BitmapContainer retval = new BitmapContainer(pageSize, words);
+		return retval.isEmpty() ? null : retval.optimize();
+	}
+
+	private static long[] newWords(int pageSize) {
+		return new long[(pageSize + 63) >>> 6];
+	}
+
+	/**
+	 * The positions set in both containers.
+	 *
+	 * @return a new container or null if no position is set.
+	 */
+	static Container and(Container a, Container b) {
+		long[] words = newWords(a.pageSize);
+		for (int w = nextCommonWord(a, b, 0); w >= 0; w = nextCommonWord(a,
+				b, w + 1)) {
+			words[w] = a.getWord(w) & b.getWord(w);
+		}
+		return fromWords(a.pageSize, words);
+	}
+
+	/**
+	 * The positions set in either container. Either container may be null.
+	 *
+	 * @return a new container or null if no position is set.
+	 */
+	static Container or(Container a, Container b) {
+		int pageSize = a == null ? b.pageSize : a.pageSize;
+		long[] words = newWords(pageSize);
+		int wa = a == null ? -1 : nextWord(a, 0);
+		int wb = b == null ? -1 : nextWord(b, 0);
+		while (wa >= 0 || wb >= 0) {
+			if (wb < 0 || (wa >= 0 && wa < wb)) {
+				words[wa] = a.getWord(wa);
+				wa = nextWord(a, wa + 1);
+			} else if (wa < 0 || wb < wa) {
+				words[wb] = b.getWord(wb);
+				wb = nextWord(b, wb + 1);
+			} else {
+				words[wa] = a.getWord(wa) | b.getWord(wb);
+				wa = nextWord(a, wa + 1);
+				wb = nextWord(b, wb + 1);
+			}
+		}
+		return fromWords(pageSize, words);
+	}
+
+	/**
+	 * The positions set in a but not in b. b may be null.
+	 *
+	 * @return a new container or null if no position is set.
+	 */
+	static Container andNot(Container a, Container b) {
+		long[] words = newWords(a.pageSize);
+		for (int w = nextWord(a, 0); w >= 0; w = nextWord(a, w + 1)) {
+			words[w] = b == null ? a.getWord(w) : a.getWord(w)
+					& ~b.getWord(w);
+		}
+		return fromWords(a.pageSize, words);
+	}
+
+	/**
+	 * Count the positions set in both containers.
+	 */
+	static int andCardinality(Container a, Container b) {
+		int count = 0;
+		for (int w = nextCommonWord(a, b, 0); w >= 0; w = nextCommonWord(a,
+				b, w + 1)) {
+			count += Long.bitCount(a.getWord(w) & b.getWord(w));
+		}
+		return count;
+	}
+
+	/**
+	 * Check if any position is set in both containers.
+	 */
+	static boolean intersects(Container a, Container b) {
+		for (int w = nextCommonWord(a, b, 0); w >= 0; w = nextCommonWord(a,
+				b, w + 1)) {
+			if ((a.getWord(w) & b.getWord(w)) != 0) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	protected static int toUnsigned(short s) {
+		return s & 0xFFFF;
+	}
+}
@@ -0,0 +1,105 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.stream.Stream;
+
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A sparse cube of bits (3-axis matrix).
+ * 
+ * Negative positions are wildcards in cursor and find. Positions are
+ * returned in z, y, x order.
+ * 
+ * Positions are longs so that a cube can hold 64 bit node ids. BitCube and
+ * FrozenBitCube only hold positions in the int range, DirectoryCube holds
+ * the full range in a directory of them.
+ * 
+ */
+public interface Cube {
+
+	/**
+	 * Set a position.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if the cube is read only.
+	 */
+	public void set(long x, long y, long z);
+
+	/**
+	 * Clear the positions that match. A negative x, y or z is a wildcard.
+	 * 
+	 * @throws UnsupportedOperationException
+	 *             if the cube is read only.
+	 */
+	public void clear(long x, long y, long z);
+
+	/**
+	 * Load positions into an empty cube. The arrays may be sorted in place
+	 * and duplicate positions are ignored.
+	 * 
+	 * @param xs
+	 *            the x positions.
+	 * @param ys
+	 *            the y positions.
+	 * @param zs
+	 *            the z positions.
+	 * @param count
+	 *            the number of positions in the arrays.
+	 * @throws IllegalStateException
+	 *             if the cube is not empty.
+	 * @throws UnsupportedOperationException
+	 *             if the cube is read only.
+	 */
+	public void load(long[] xs, long[] ys, long[] zs, int count);
+
+	public boolean has(long x, long y, long z);
+
+	public boolean isEmpty();
+
+	public long getSize();
+
+	/**
+	 * Count the set positions that match. A negative x, y or z is a wildcard.
+	 * 
+	 * @return the number of matching positions.
+	 */
+	public long count(long x, long y, long z);
+
+	public TripleCursor cursor(long x, long y, long z);
+
+	/**
+	 * Get the memory used by the cube.
+	 */
+	public MemoryStats getMemoryStats();
+
+	public ExtendedIterator<BitCube.Idx> find(long x, long y, long z);
+
+	/**
+	 * Get a stream of the set positions. A negative x, y or z is a wildcard.
+	 * The stream is sequential, call parallel() on it to read it with the
+	 * common fork/join pool.
+	 */
+	public Stream<BitCube.Idx> stream(long x, long y, long z);
+
+	/**
+	 * Get an iterator over the cube as a z, y, x trie.
+	 */
+	public TrieIterator trieIterator();
+}
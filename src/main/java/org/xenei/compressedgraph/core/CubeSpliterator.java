@@ -0,0 +1,121 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * The base of the cube spliterators. A spliterator covers a range of the
+ * cube and splits the range in two until the first position is read, after
+ * that it no longer splits.
+ * 
+ * The size estimate is the number of matching positions in the range when
+ * it is first requested. It is exact unless the cube is modified but the
+ * spliterator does not report SIZED as the cube may be modified while it is
+ * read.
+ * 
+ */
+abstract class CubeSpliterator implements Spliterator<BitCube.Idx> {
+	private TripleCursor cursor;
+	private long estimate = -1;
+
+	/**
+	 * Create a cursor over the range.
+	 */
+	protected abstract TripleCursor createCursor();
+
+	/**
+	 * Split the range. The first part of the range is returned and this
+	 * spliterator keeps the rest.
+	 * 
+	 * @return the spliterator for the first part or null if the range can
+	 *         not be split.
+	 */
+	protected abstract CubeSpliterator split();
+
+	/**
+	 * Count the matching positions in the range.
+	 */
+	protected abstract long count();
+
+	@Override
+	public boolean tryAdvance(Consumer<? super BitCube.Idx> action) {
+		if (cursor == null) {
+			cursor = createCursor();
+		}
+		if (cursor.next()) {
+			action.accept(new BitCube.Idx(cursor.getX(), cursor.getY(), cursor
+					.getZ()));
+			return true;
+		}
+		return false;
+	}
+
+	@Override
+	public void forEachRemaining(Consumer<? super BitCube.Idx> action) {
+		if (cursor == null) {
+			cursor = createCursor();
+		}
+		while (cursor.next()) {
+			action.accept(new BitCube.Idx(cursor.getX(), cursor.getY(), cursor
+					.getZ()));
+		}
+	}
+
+	@Override
+	public Spliterator<BitCube.Idx> trySplit() {
+		if (cursor != null) {
+			return null;
+		}
+		CubeSpliterator retval = split();
+		if (retval != null) {
+			estimate = -1;
+		}
+		return retval;
+	}
+
+	@Override
+	public long estimateSize() {
+		if (estimate < 0) {
+			estimate = count();
+		}
+		return estimate;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | DISTINCT | NONNULL;
+	}
+
+	/**
+	 * Choose where to split the indexes from first to last inclusive,
+	 * first < last. A page boundary is used when the indexes are on
+	 * different pages, otherwise the middle.
+	 * 
+	 * @return the first index of the second part.
+	 */
+	static int splitPoint(int first, int last, int pageSize) {
+		long firstPage = first / pageSize;
+		long lastPage = last / pageSize;
+		if (firstPage != lastPage) {
+			return (int) (((firstPage + lastPage + 1) / 2) * pageSize);
+		}
+		return first + ((last - first + 1) / 2);
+	}
+}
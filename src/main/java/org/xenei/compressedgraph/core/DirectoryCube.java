@@ -0,0 +1,770 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * A cube of long positions held in a directory of int cubes.
+ * 
+ * Each position is split into a 31 bit low word and a high word. The low
+ * words address a BitCube and the high words of the three axes select the
+ * BitCube from a directory. Positions whose high words are all 0 are held by
+ * the base cube. While the directory holds only the base cube every call is
+ * passed straight to it, so a cube that never leaves the int range costs no
+ * more per position than a BitCube.
+ * 
+ * The cubes that share a high z word may hold positions that interleave in
+ * z, y, x order. Cursors over them are merged so that positions are
+ * returned in z, y, x order, and trie iterators over them are joined into
+ * one trie.
+ * 
+ */
+public class DirectoryCube implements Cube, BitConstants, Serializable {
+	private static final int LOW_BITS = 31;
+	private static final long LOW_MASK = (1L << LOW_BITS) - 1;
+	private static final High BASE = new High(0, 0, 0);
+	// a skip list node and its key
+	private static final int ENTRY_BYTES = (2 * MemoryStats.OBJECT_BYTES)
+			+ (3 * MemoryStats.REFERENCE_BYTES) + 24;
+
+	private final int pageSize;
+	private final int concurrencyLevel;
+	private transient PageStore store;
+	private final Cube base;
+	// every cube including the base, keyed by the high words
+	private final ConcurrentSkipListMap<High, Cube> cubes;
+	// false once a cube other than the base is added
+	private volatile boolean baseOnly;
+	private final boolean readOnly;
+
+	public DirectoryCube() {
+		this(DEFAULT_PAGE_SIZE);
+	}
+
+	public DirectoryCube(int pageSize) {
+		this(pageSize, DEFAULT_CONCURRENCY_LEVEL, PageStore.heap());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the sparse arrays.
+	 * @param concurrencyLevel
+	 *            the estimated number of concurrent writers to each cube.
+	 * @param store
+	 *            the store that holds the row bits of every cube.
+	 */
+	public DirectoryCube(int pageSize, int concurrencyLevel, PageStore store) {
+		this.pageSize = pageSize;
+		this.concurrencyLevel = concurrencyLevel;
+		this.store = store;
+		base = new BitCube(pageSize, concurrencyLevel, store);
+		cubes = new ConcurrentSkipListMap<High, Cube>();
+		cubes.put(BASE, base);
+		baseOnly = true;
+		readOnly = false;
+	}
+
+	/**
+	 * Constructor for a frozen copy.
+	 */
+	private DirectoryCube(DirectoryCube cube) {
+		this.pageSize = cube.pageSize;
+		this.concurrencyLevel = cube.concurrencyLevel;
+		this.store = cube.store;
+		cubes = new ConcurrentSkipListMap<High, Cube>();
+		for (Map.Entry<High, Cube> e : cube.cubes.entrySet()) {
+			cubes.put(e.getKey(), new FrozenBitCube(e.getValue()));
+		}
+		base = cubes.get(BASE);
+		baseOnly = cube.baseOnly;
+		readOnly = true;
+	}
+
+	/**
+	 * Get a read only copy of the cube in which every cube of the directory
+	 * is a FrozenBitCube. The cube should not be modified while it is copied.
+	 */
+	public DirectoryCube freeze() {
+		return new DirectoryCube(this);
+	}
+
+	private void checkWritable() {
+		if (readOnly) {
+			throw new UnsupportedOperationException("DirectoryCube is read only");
+		}
+	}
+
+	private static void checkPosition(long x, long y, long z) {
+		if (x < 0 || y < 0 || z < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Indexes (%s,%s,%s) must be greater than or equals to 0",
+					x, y, z));
+		}
+	}
+
+	// true if each position is a wildcard or fits in the low word
+	private static boolean isLow(long x, long y, long z) {
+		return x <= LOW_MASK && y <= LOW_MASK && z <= LOW_MASK;
+	}
+
+	private static long low(long p) {
+		return p < 0 ? -1 : p & LOW_MASK;
+	}
+
+	private static long high(long p) {
+		return p >>> LOW_BITS;
+	}
+
+	@Override
+	public void set(long x, long y, long z) {
+		checkWritable();
+		checkPosition(x, y, z);
+		if (isLow(x, y, z)) {
+			base.set(x, y, z);
+			return;
+		}
+		High high = new High(high(x), high(y), high(z));
+		Cube cube = cubes.get(high);
+		if (cube == null) {
+			cube = new BitCube(pageSize, concurrencyLevel, store);
+			Cube other = cubes.putIfAbsent(high, cube);
+			if (other == null) {
+				baseOnly = false;
+			} else {
+				cube = other;
+			}
+		}
+		cube.set(low(x), low(y), low(z));
+	}
+
+	/**
+	 * Clear the positions that match. A negative x, y or z is a wildcard.
+	 * Emptied cubes stay in the directory.
+	 */
+	@Override
+	public void clear(long x, long y, long z) {
+		checkWritable();
+		if (baseOnly && isLow(x, y, z)) {
+			base.clear(x, y, z);
+			return;
+		}
+		for (Map.Entry<High, Cube> e : candidates(z)) {
+			if (e.getKey().matches(x, y, z)) {
+				e.getValue().clear(low(x), low(y), low(z));
+			}
+		}
+	}
+
+	/**
+	 * Load positions into an empty cube. Positions in the int range are loaded
+	 * into the base cube directly, otherwise the positions are split by their
+	 * high words and each cube is loaded with its own.
+	 */
+	@Override
+	public void load(long[] xs, long[] ys, long[] zs, int count) {
+		checkWritable();
+		if (!isEmpty()) {
+			throw new IllegalStateException("DirectoryCube is not empty");
+		}
+		boolean low = true;
+		for (int i = 0; i < count; i++) {
+			checkPosition(xs[i], ys[i], zs[i]);
+			low &= isLow(xs[i], ys[i], zs[i]);
+		}
+		if (low) {
+			base.load(xs, ys, zs, count);
+			return;
+		}
+		Map<High, Positions> split = new HashMap<High, Positions>();
+		for (int i = 0; i < count; i++) {
+			High high = new High(high(xs[i]), high(ys[i]), high(zs[i]));
+			Positions positions = split.get(high);
+			if (positions == null) {
+				positions = new Positions();
+				split.put(high, positions);
+			}
+			positions.add(low(xs[i]), low(ys[i]), low(zs[i]));
+		}
+		for (Map.Entry<High, Positions> e : split.entrySet()) {
+			Cube cube = cubes.get(e.getKey());
+			if (cube == null) {
+				cube = new BitCube(pageSize, concurrencyLevel, store);
+				cubes.put(e.getKey(), cube);
+				baseOnly = false;
+			}
+			Positions positions = e.getValue();
+			cube.load(positions.xs, positions.ys, positions.zs,
+					positions.count);
+		}
+	}
+
+	@Override
+	public boolean has(long x, long y, long z) {
+		checkPosition(x, y, z);
+		Cube cube = isLow(x, y, z) ? base : cubes.get(new High(high(x),
+				high(y), high(z)));
+		return cube != null && cube.has(low(x), low(y), low(z));
+	}
+
+	@Override
+	public boolean isEmpty() {
+		if (baseOnly) {
+			return base.isEmpty();
+		}
+		for (Cube cube : cubes.values()) {
+			if (!cube.isEmpty()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public long getSize() {
+		if (baseOnly) {
+			return base.getSize();
+		}
+		long size = 0;
+		for (Cube cube : cubes.values()) {
+			size += cube.getSize();
+		}
+		return size;
+	}
+
+	@Override
+	public long count(long x, long y, long z) {
+		if (baseOnly && isLow(x, y, z)) {
+			return base.count(x, y, z);
+		}
+		long count = 0;
+		for (Map.Entry<High, Cube> e : candidates(z)) {
+			if (e.getKey().matches(x, y, z)) {
+				count += e.getValue().count(low(x), low(y), low(z));
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Get the memory used by the cube: the memory of each cube and of the
+	 * directory entries.
+	 */
+	@Override
+	public MemoryStats getMemoryStats() {
+		MemoryStats retval = MemoryStats.EMPTY
+				.plusHeap(2 * MemoryStats.OBJECT_BYTES);
+		for (Cube cube : cubes.values()) {
+			retval = retval.plusHeap(ENTRY_BYTES).plus(cube.getMemoryStats());
+		}
+		return retval;
+	}
+
+	/**
+	 * Compact every cube, see BitCube.compact().
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	public long compact() {
+		long released = 0;
+		for (Cube cube : cubes.values()) {
+			if (cube instanceof BitCube) {
+				released += ((BitCube) cube).compact();
+			}
+		}
+		return released;
+	}
+
+	/**
+	 * Get a task that compacts the cubes a few matrices at a time, see
+	 * Compactor. Cubes added to the directory after the task is created are
+	 * compacted as well.
+	 * 
+	 * @param matricesPerRun
+	 *            the number of matrices of each cube to compact in each run.
+	 * @return the task.
+	 */
+	public Runnable compactor(final int matricesPerRun) {
+		if (matricesPerRun < 1) {
+			throw new IllegalArgumentException(String.format(
+					"Matrices per run (%s) must be at least 1", matricesPerRun));
+		}
+		return new Runnable() {
+			private final Map<High, Compactor> compactors = new HashMap<High, Compactor>();
+
+			@Override
+			public synchronized void run() {
+				for (Map.Entry<High, Cube> e : cubes.entrySet()) {
+					if (!(e.getValue() instanceof BitCube)) {
+						continue;
+					}
+					Compactor compactor = compactors.get(e.getKey());
+					if (compactor == null) {
+						compactor = new Compactor((BitCube) e.getValue(),
+								matricesPerRun);
+						compactors.put(e.getKey(), compactor);
+					}
+					compactor.run();
+				}
+			}
+		};
+	}
+
+	/**
+	 * Get the directory entries that may hold a z position. A negative z is a
+	 * wildcard.
+	 */
+	private Collection<Map.Entry<High, Cube>> candidates(long z) {
+		if (z < 0) {
+			return cubes.entrySet();
+		}
+		long hz = high(z);
+		return cubes.subMap(new High(0, 0, hz), true, new High(0, 0, hz + 1),
+				false).entrySet();
+	}
+
+	/**
+	 * Get the cubes that may hold a match, grouped by high z word.
+	 */
+	private List<Group> groups(long x, long y, long z) {
+		List<Group> retval = new ArrayList<Group>();
+		Group group = null;
+		for (Map.Entry<High, Cube> e : candidates(z)) {
+			if (e.getKey().matches(x, y, z)) {
+				if (group == null || group.z != e.getKey().z) {
+					group = new Group(e.getKey().z);
+					retval.add(group);
+				}
+				group.highs.add(e.getKey());
+				group.cubes.add(e.getValue());
+			}
+		}
+		return retval;
+	}
+
+	/**
+	 * Get a cursor over the set positions. A negative x, y or z is a wildcard.
+	 * Positions are returned in z, y, x order.
+	 */
+	@Override
+	public TripleCursor cursor(long x, long y, long z) {
+		if (baseOnly && isLow(x, y, z)) {
+			return base.cursor(x, y, z);
+		}
+		List<Group> groups = groups(x, y, z);
+		return new MergeCursor(x, y, z, groups, 0, groups.size());
+	}
+
+	@Override
+	public ExtendedIterator<BitCube.Idx> find(long x, long y, long z) {
+		return new BitCube.IdxIterator(cursor(x, y, z));
+	}
+
+	/**
+	 * Get a stream of the set positions. A negative x, y or z is a wildcard.
+	 * The stream splits as the base cube does while it is the only cube,
+	 * otherwise between the groups of cubes that share a high z word.
+	 */
+	@Override
+	public Stream<BitCube.Idx> stream(long x, long y, long z) {
+		if (baseOnly && isLow(x, y, z)) {
+			return base.stream(x, y, z);
+		}
+		List<Group> groups = groups(x, y, z);
+		return StreamSupport.stream(new Split(x, y, z, groups, 0,
+				groups.size()), false);
+	}
+
+	@Override
+	public TrieIterator trieIterator() {
+		if (baseOnly) {
+			return base.trieIterator();
+		}
+		return new DirectoryTrie(new ArrayList<Map.Entry<High, Cube>>(
+				cubes.entrySet()));
+	}
+
+	private void readObject(java.io.ObjectInputStream in) throws IOException,
+			ClassNotFoundException {
+		in.defaultReadObject();
+		store = PageStore.heap();
+	}
+
+	/**
+	 * The high words of a cube, ordered by z, y, x.
+	 */
+	private static class High implements Comparable<High>, Serializable {
+		private final long x;
+		private final long y;
+		private final long z;
+
+		High(long x, long y, long z) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+		}
+
+		/**
+		 * Get a high word in trie order: z, y, x.
+		 */
+		long get(int level) {
+			return level == 0 ? z : level == 1 ? y : x;
+		}
+
+		// true if the cube may hold a position that matches the pattern
+		boolean matches(long px, long py, long pz) {
+			return (px < 0 || high(px) == x) && (py < 0 || high(py) == y)
+					&& (pz < 0 || high(pz) == z);
+		}
+
+		@Override
+		public int compareTo(High that) {
+			if (z != that.z) {
+				return z < that.z ? -1 : 1;
+			}
+			if (y != that.y) {
+				return y < that.y ? -1 : 1;
+			}
+			if (x != that.x) {
+				return x < that.x ? -1 : 1;
+			}
+			return 0;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			return o instanceof High && compareTo((High) o) == 0;
+		}
+
+		@Override
+		public int hashCode() {
+			return (int) ((z * 31 + y) * 31 + x);
+		}
+	}
+
+	/**
+	 * The cubes that share a high z word.
+	 */
+	private static class Group {
+		private final long z;
+		private final List<High> highs = new ArrayList<High>();
+		private final List<Cube> cubes = new ArrayList<Cube>();
+
+		Group(long z) {
+			this.z = z;
+		}
+	}
+
+	/**
+	 * Positions collected for the load of one cube.
+	 */
+	private static class Positions {
+		private long[] xs = new long[16];
+		private long[] ys = new long[16];
+		private long[] zs = new long[16];
+		private int count;
+
+		void add(long x, long y, long z) {
+			if (count == xs.length) {
+				int capacity = count + (count >> 1);
+				xs = Arrays.copyOf(xs, capacity);
+				ys = Arrays.copyOf(ys, capacity);
+				zs = Arrays.copyOf(zs, capacity);
+			}
+			xs[count] = x;
+			ys[count] = y;
+			zs[count] = z;
+			count++;
+		}
+	}
+
+	/**
+	 * A cursor over the groups from first to last - 1. The cursors of the
+	 * cubes of a group are merged, the group with the smallest position
+	 * supplies the next one.
+	 */
+	private static class MergeCursor implements TripleCursor {
+		private final long x;
+		private final long y;
+		private final long z;
+		private final List<Group> groups;
+		private final int last;
+		private int next;
+		private Group group;
+		private TripleCursor[] cursors;
+		private boolean[] ready;
+		// the cursor at the current position, -1 if there is none
+		private int current;
+
+		MergeCursor(long x, long y, long z, List<Group> groups, int first,
+				int last) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.groups = groups;
+			this.next = first;
+			this.last = last;
+			this.current = -1;
+		}
+
+		private long get(int i, int level, long low) {
+			return (group.highs.get(i).get(level) << LOW_BITS) | low;
+		}
+
+		// compare the positions of two cursors of the group in z, y, x order
+		private int compare(int a, int b) {
+			long va = cursors[a].getZ();
+			long vb = cursors[b].getZ();
+			if (va == vb) {
+				va = get(a, 1, cursors[a].getY());
+				vb = get(b, 1, cursors[b].getY());
+				if (va == vb) {
+					va = get(a, 2, cursors[a].getX());
+					vb = get(b, 2, cursors[b].getX());
+				}
+			}
+			return va < vb ? -1 : va > vb ? 1 : 0;
+		}
+
+		@Override
+		public boolean next() {
+			while (true) {
+				if (cursors != null) {
+					if (current >= 0) {
+						ready[current] = cursors[current].next();
+					}
+					current = -1;
+					for (int i = 0; i < cursors.length; i++) {
+						if (ready[i] && (current < 0 || compare(i, current) < 0)) {
+							current = i;
+						}
+					}
+					if (current >= 0) {
+						return true;
+					}
+				}
+				if (next >= last) {
+					cursors = null;
+					return false;
+				}
+				group = groups.get(next++);
+				cursors = new TripleCursor[group.cubes.size()];
+				ready = new boolean[cursors.length];
+				for (int i = 0; i < cursors.length; i++) {
+					cursors[i] = group.cubes.get(i).cursor(low(x), low(y),
+							low(z));
+					ready[i] = cursors[i].next();
+				}
+			}
+		}
+
+		@Override
+		public long getX() {
+			return get(current, 2, cursors[current].getX());
+		}
+
+		@Override
+		public long getY() {
+			return get(current, 1, cursors[current].getY());
+		}
+
+		@Override
+		public long getZ() {
+			return get(current, 0, cursors[current].getZ());
+		}
+	}
+
+	/**
+	 * The spliterator implementation. Covers the groups from first to last -
+	 * 1 and splits between groups.
+	 */
+	private static class Split extends CubeSpliterator {
+		private final long x;
+		private final long y;
+		private final long z;
+		private final List<Group> groups;
+		private int first;
+		private final int last;
+
+		Split(long x, long y, long z, List<Group> groups, int first, int last) {
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.groups = groups;
+			this.first = first;
+			this.last = last;
+		}
+
+		@Override
+		protected TripleCursor createCursor() {
+			return new MergeCursor(x, y, z, groups, first, last);
+		}
+
+		@Override
+		protected CubeSpliterator split() {
+			if (last - first < 2) {
+				return null;
+			}
+			int mid = (first + last) >>> 1;
+			Split retval = new Split(x, y, z, groups, first, mid);
+			first = mid;
+			return retval;
+		}
+
+		@Override
+		protected long count() {
+			long count = 0;
+			for (int i = first; i < last; i++) {
+				for (Cube cube : groups.get(i).cubes) {
+					count += cube.count(low(x), low(y), low(z));
+				}
+			}
+			return count;
+		}
+	}
+
+	/**
+	 * The trie iterator implementation. The tries of the cubes are opened
+	 * together and the keys of each are offset by its high words. On each
+	 * level the key is the smallest key of the tries that are open on the
+	 * level, and open() only opens the tries that are at that key.
+	 */
+	private static class DirectoryTrie implements TrieIterator {
+		private final High[] highs;
+		private final TrieIterator[] tries;
+		// the tries that are open on each level
+		private final boolean[][] open;
+		// the open tries that a seek has moved past their last key
+		private final boolean[][] passed;
+		private final boolean[] atEnd = new boolean[3];
+		private final long[] keys = new long[3];
+		private int level = -1;
+
+		DirectoryTrie(List<Map.Entry<High, Cube>> entries) {
+			highs = new High[entries.size()];
+			tries = new TrieIterator[entries.size()];
+			for (int i = 0; i < highs.length; i++) {
+				highs[i] = entries.get(i).getKey();
+				tries[i] = entries.get(i).getValue().trieIterator();
+			}
+			open = new boolean[3][tries.length];
+			passed = new boolean[3][tries.length];
+		}
+
+		// true if trie i is open on the level and not exhausted
+		private boolean live(int i) {
+			return open[level][i] && !passed[level][i] && !tries[i].atEnd();
+		}
+
+		private long key(int i) {
+			return (highs[i].get(level) << LOW_BITS) | tries[i].key();
+		}
+
+		private void choose() {
+			atEnd[level] = true;
+			for (int i = 0; i < tries.length; i++) {
+				if (live(i)) {
+					long k = key(i);
+					if (atEnd[level] || k < keys[level]) {
+						keys[level] = k;
+						atEnd[level] = false;
+					}
+				}
+			}
+		}
+
+		@Override
+		public void open() {
+			if (level >= 2) {
+				throw new IllegalStateException("Trie has 3 levels");
+			}
+			for (int i = 0; i < tries.length; i++) {
+				boolean under = level < 0 || (live(i) && key(i) == keys[level]);
+				open[level + 1][i] = under;
+				passed[level + 1][i] = false;
+				if (under) {
+					tries[i].open();
+				}
+			}
+			level++;
+			choose();
+		}
+
+		@Override
+		public void up() {
+			for (int i = 0; i < tries.length; i++) {
+				if (open[level][i]) {
+					tries[i].up();
+				}
+			}
+			level--;
+		}
+
+		@Override
+		public void next() {
+			long k = keys[level];
+			for (int i = 0; i < tries.length; i++) {
+				if (live(i) && key(i) == k) {
+					tries[i].next();
+				}
+			}
+			choose();
+		}
+
+		@Override
+		public void seek(long key) {
+			long h = high(key);
+			for (int i = 0; i < tries.length; i++) {
+				if (!live(i) || key(i) >= key) {
+					continue;
+				}
+				if (highs[i].get(level) == h) {
+					tries[i].seek(key & LOW_MASK);
+				} else {
+					// every key of the trie is less than the key
+					passed[level][i] = true;
+				}
+			}
+			choose();
+		}
+
+		@Override
+		public boolean atEnd() {
+			return atEnd[level];
+		}
+
+		@Override
+		public long key() {
+			return keys[level];
+		}
+	}
+}
@@ -0,0 +1,580 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.Spliterator;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+import com.hp.hpl.jena.util.iterator.ExtendedIterator;
+
+/**
+ * An immutable cube built from a populated BitCube.
+ * 
+ * The positions are stored as three levels of sorted int arrays with offset
+ * tables (compressed sparse rows): the distinct z values, the y values of
+ * each z and the x values of each (z, y) row. There are no per-page objects
+ * and no locks, reads are lock free and a position costs little more than
+ * the 4 bytes of its x value.
+ * 
+ * As with BitCube positions are limited to the int range. DirectoryCube
+ * freezes each of its cubes separately.
+ * 
+ */
+public class FrozenBitCube implements Cube, Serializable {
+	/**
+	 * The distinct z values.
+	 */
+	private final int[] zs;
+	/**
+	 * The y values of zs[i] are ys[zStart[i]] to ys[zStart[i+1]-1].
+	 */
+	private final int[] zStart;
+	/**
+	 * The y values of every z.
+	 */
+	private final int[] ys;
+	/**
+	 * The x values of row ys[i] are xs[yStart[i]] to xs[yStart[i+1]-1].
+	 */
+	private final int[] yStart;
+	/**
+	 * The x values of every row.
+	 */
+	private final int[] xs;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cube
+	 *            the cube to copy. The cube should not be modified while it is
+	 *            copied.
+	 * @throws IllegalArgumentException
+	 *             if the cube has a position outside of the int range.
+	 */
+	public FrozenBitCube(Cube cube) {
+		IntList zList = new IntList();
+		IntList zStartList = new IntList();
+		IntList yList = new IntList();
+		IntList yStartList = new IntList();
+		IntList xList = new IntList();
+
+		TripleCursor cursor = cube.cursor(-1, -1, -1);
+		int lastZ = -1;
+		int lastY = -1;
+		while (cursor.next()) {
+			int z = BitCube.position(cursor.getZ());
+			int y = BitCube.position(cursor.getY());
+			if (z != lastZ) {
+				zList.add(z);
+				zStartList.add(yList.size());
+				lastZ = z;
+				lastY = -1;
+			}
+			if (y != lastY) {
+				yList.add(y);
+				yStartList.add(xList.size());
+				lastY = y;
+			}
+			xList.add(BitCube.position(cursor.getX()));
+		}
+		zStartList.add(yList.size());
+		yStartList.add(xList.size());
+
+		zs = zList.toArray();
+		zStart = zStartList.toArray();
+		ys = yList.toArray();
+		yStart = yStartList.toArray();
+		xs = xList.toArray();
+	}
+
+	/**
+	 * @throws UnsupportedOperationException
+	 *             always.
+	 */
+	@Override
+	public void set(long x, long y, long z) {
+		throw new UnsupportedOperationException("FrozenBitCube is read only");
+	}
+
+	/**
+	 * @throws UnsupportedOperationException
+	 *             always.
+	 */
+	@Override
+	public void clear(long x, long y, long z) {
+		throw new UnsupportedOperationException("FrozenBitCube is read only");
+	}
+
+	/**
+	 * @throws UnsupportedOperationException
+	 *             always.
+	 */
+	@Override
+	public void load(long[] xs, long[] ys, long[] zs, int count) {
+		throw new UnsupportedOperationException("FrozenBitCube is read only");
+	}
+
+	@Override
+	public boolean has(long x, long y, long z) {
+		if (x < 0 || y < 0 || z < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Indexes (%s,%s,%s) must be greater than or equals to 0",
+					x, y, z));
+		}
+		return has(BitCube.position(x), BitCube.position(y),
+				BitCube.position(z));
+	}
+
+	private boolean has(int x, int y, int z) {
+		int zi = Arrays.binarySearch(zs, z);
+		if (zi < 0) {
+			return false;
+		}
+		int yi = Arrays.binarySearch(ys, zStart[zi], zStart[zi + 1], y);
+		if (yi < 0) {
+			return false;
+		}
+		return Arrays.binarySearch(xs, yStart[yi], yStart[yi + 1], x) >= 0;
+	}
+
+	@Override
+	public boolean isEmpty() {
+		return xs.length == 0;
+	}
+
+	/**
+	 * Get the memory used by the cube. The cube has no pages.
+	 */
+	@Override
+	public MemoryStats getMemoryStats() {
+		long ints = (long) zs.length + zStart.length + ys.length
+				+ yStart.length + xs.length;
+		return new MemoryStats(0, xs.length, xs.length, MemoryStats.OBJECT_BYTES
+				+ (5 * MemoryStats.ARRAY_BYTES) + (ints * 4), 0);
+	}
+
+	@Override
+	public long getSize() {
+		return xs.length;
+	}
+
+	/**
+	 * Count the set positions that match. A negative x, y or z is a wildcard.
+	 * A bound z and y is answered from the offset tables, otherwise the
+	 * matching rows are counted.
+	 */
+	@Override
+	public long count(long x, long y, long z) {
+		return count(BitCube.position(x), BitCube.position(y),
+				BitCube.position(z));
+	}
+
+	private long count(int x, int y, int z) {
+		if (x < 0 && y < 0 && z < 0) {
+			return xs.length;
+		}
+		int zFrom = 0;
+		int zTo = zs.length;
+		if (z >= 0) {
+			zFrom = Arrays.binarySearch(zs, z);
+			if (zFrom < 0) {
+				return 0;
+			}
+			zTo = zFrom + 1;
+			if (x < 0 && y < 0) {
+				return yStart[zStart[zTo]] - yStart[zStart[zFrom]];
+			}
+		}
+		long count = 0;
+		for (int zi = zFrom; zi < zTo; zi++) {
+			int yFrom = zStart[zi];
+			int yTo = zStart[zi + 1];
+			if (y >= 0) {
+				yFrom = Arrays.binarySearch(ys, yFrom, yTo, y);
+				if (yFrom < 0) {
+					continue;
+				}
+				yTo = yFrom + 1;
+			}
+			if (x < 0) {
+				count += yStart[yTo] - yStart[yFrom];
+			} else {
+				for (int yi = yFrom; yi < yTo; yi++) {
+					if (Arrays.binarySearch(xs, yStart[yi], yStart[yi + 1],
+							x) >= 0) {
+						count++;
+					}
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * The approximate number of bytes used to store the positions.
+	 */
+	public long sizeInBytes() {
+		return 4L * (zs.length + zStart.length + ys.length + yStart.length
+				+ xs.length);
+	}
+
+	@Override
+	public TripleCursor cursor(long x, long y, long z) {
+		return new FrozenCursor(BitCube.position(x), BitCube.position(y),
+				BitCube.position(z));
+	}
+
+	@Override
+	public ExtendedIterator<BitCube.Idx> find(long x, long y, long z) {
+		return new BitCube.IdxIterator(cursor(x, y, z));
+	}
+
+	/**
+	 * Get a spliterator over the set positions. A negative x, y or z is a
+	 * wildcard. The spliterator splits the z values in half and, once a
+	 * single z is left, its y values.
+	 */
+	public Spliterator<BitCube.Idx> spliterator(long x, long y, long z) {
+		return spliterator(BitCube.position(x), BitCube.position(y),
+				BitCube.position(z));
+	}
+
+	private Spliterator<BitCube.Idx> spliterator(int x, int y, int z) {
+		if (z < 0) {
+			return new Split(x, y, 0, zs.length, 0, ys.length);
+		}
+		int i = Arrays.binarySearch(zs, z);
+		return i < 0 ? new Split(x, y, 0, 0, 0, ys.length) : new Split(x, y,
+				i, i + 1, 0, ys.length);
+	}
+
+	@Override
+	public Stream<BitCube.Idx> stream(long x, long y, long z) {
+		return StreamSupport.stream(spliterator(x, y, z), false);
+	}
+
+	/**
+	 * The spliterator implementation. Covers the z values at positions zLo
+	 * to zHi - 1 and, when y is a wildcard, the y values at positions yLo to
+	 * yHi - 1.
+	 */
+	private class Split extends CubeSpliterator {
+		private final int x;
+		private final int y;
+		private int zLo;
+		private int zHi;
+		private int yLo;
+		private int yHi;
+
+		Split(int x, int y, int zLo, int zHi, int yLo, int yHi) {
+			this.x = x;
+			this.y = y;
+			this.zLo = zLo;
+			this.zHi = zHi;
+			this.yLo = yLo;
+			this.yHi = yHi;
+		}
+
+		@Override
+		protected TripleCursor createCursor() {
+			return new FrozenCursor(x, y, zLo, zHi, yLo, yHi);
+		}
+
+		@Override
+		protected CubeSpliterator split() {
+			if (zHi - zLo > 1) {
+				int mid = (zLo + zHi) >>> 1;
+				Split retval = new Split(x, y, zLo, mid, yLo, yHi);
+				zLo = mid;
+				return retval;
+			}
+			if (zHi - zLo == 1 && y < 0) {
+				int lo = Math.max(zStart[zLo], yLo);
+				int hi = Math.min(zStart[zHi], yHi);
+				if (hi - lo > 1) {
+					int mid = (lo + hi) >>> 1;
+					Split retval = new Split(x, y, zLo, zHi, lo, mid);
+					yLo = mid;
+					yHi = hi;
+					return retval;
+				}
+			}
+			return null;
+		}
+
+		@Override
+		protected long count() {
+			if (zHi <= zLo) {
+				return 0;
+			}
+			if (x < 0 && y < 0) {
+				int lo = Math.max(zStart[zLo], yLo);
+				int hi = Math.min(zStart[zHi], yHi);
+				return hi <= lo ? 0 : yStart[hi] - yStart[lo];
+			}
+			long count = 0;
+			for (int zi = zLo; zi < zHi; zi++) {
+				if (y >= 0) {
+					count += FrozenBitCube.this.count(x, y, zs[zi]);
+				} else {
+					int hi = Math.min(zStart[zi + 1], yHi);
+					for (int yi = Math.max(zStart[zi], yLo); yi < hi; yi++) {
+						if (Arrays.binarySearch(xs, yStart[yi],
+								yStart[yi + 1], x) >= 0) {
+							count++;
+						}
+					}
+				}
+			}
+			return count;
+		}
+	}
+
+	@Override
+	public TrieIterator trieIterator() {
+		return new FrozenTrie();
+	}
+
+	/**
+	 * Find the first position in a sorted range that holds a value greater
+	 * than or equal to the key. Gallops from the start of the range so that
+	 * short seeks are cheap.
+	 * 
+	 * @return the position or end if there is none.
+	 */
+	private static int ceiling(int[] values, int start, int end, int key) {
+		int bound = 1;
+		while (start + bound < end && values[start + bound] < key) {
+			bound <<= 1;
+		}
+		int low = start + (bound >> 1);
+		int high = Math.min(start + bound, end);
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (values[mid] < key) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * The trie iterator implementation. Each level is a range of one of the
+	 * arrays.
+	 */
+	private class FrozenTrie implements TrieIterator {
+		private int level = -1;
+		private final int[] pos = new int[3];
+		private final int[] end = new int[3];
+
+		private int[] values() {
+			return level == 0 ? zs : level == 1 ? ys : xs;
+		}
+
+		@Override
+		public void open() {
+			switch (level + 1) {
+			case 0:
+				pos[0] = 0;
+				end[0] = zs.length;
+				break;
+			case 1:
+				pos[1] = zStart[pos[0]];
+				end[1] = zStart[pos[0] + 1];
+				break;
+			case 2:
+				pos[2] = yStart[pos[1]];
+				end[2] = yStart[pos[1] + 1];
+				break;
+			default:
+				throw new IllegalStateException("Trie has 3 levels");
+			}
+			level++;
+		}
+
+		@Override
+		public void up() {
+			level--;
+		}
+
+		@Override
+		public void next() {
+			pos[level]++;
+		}
+
+		@Override
+		public void seek(long key) {
+			pos[level] = key > Integer.MAX_VALUE ? end[level] : ceiling(
+					values(), pos[level], end[level], (int) key);
+		}
+
+		@Override
+		public boolean atEnd() {
+			return pos[level] >= end[level];
+		}
+
+		@Override
+		public long key() {
+			return values()[pos[level]];
+		}
+	}
+
+	/**
+	 * A cursor over the arrays. Bound axes are located by binary search,
+	 * wild axes are walked in order.
+	 */
+	private class FrozenCursor implements TripleCursor {
+		private final int x;
+		private final int y;
+		private int zi;
+		private int zEnd;
+		private int yLo;
+		private int yHi;
+		private int yi;
+		private int yEnd;
+		private int xi;
+		private int xEnd;
+
+		FrozenCursor(int x, int y, int z) {
+			this.x = x;
+			this.y = y;
+			if (z < 0) {
+				zi = -1;
+				zEnd = zs.length;
+			} else {
+				int i = Arrays.binarySearch(zs, z);
+				zi = i < 0 ? zs.length : i - 1;
+				zEnd = i < 0 ? zs.length : i + 1;
+			}
+			yLo = 0;
+			yHi = ys.length;
+			yi = 0;
+			yEnd = 0;
+			xi = 0;
+			xEnd = 0;
+		}
+
+		/**
+		 * Constructor for the z values at positions zLo to zHi - 1 and, when
+		 * y is a wildcard, the y values at positions yLo to yHi - 1.
+		 */
+		FrozenCursor(int x, int y, int zLo, int zHi, int yLo, int yHi) {
+			this.x = x;
+			this.y = y;
+			this.zi = zLo - 1;
+			this.zEnd = zHi;
+			this.yLo = yLo;
+			this.yHi = yHi;
+			yi = 0;
+			yEnd = 0;
+			xi = 0;
+			xEnd = 0;
+		}
+
+		/**
+		 * Move to the next row that may hold a match.
+		 */
+		private boolean nextRow() {
+			while (true) {
+				if (yi + 1 < yEnd) {
+					yi++;
+					return true;
+				}
+				if (++zi >= zEnd) {
+					zi = zEnd;
+					return false;
+				}
+				if (y < 0) {
+					yi = Math.max(zStart[zi], yLo) - 1;
+					yEnd = Math.min(zStart[zi + 1], yHi);
+				} else {
+					int i = Arrays.binarySearch(ys, zStart[zi],
+							zStart[zi + 1], y);
+					yi = i < 0 ? 0 : i - 1;
+					yEnd = i < 0 ? 0 : i + 1;
+				}
+			}
+		}
+
+		@Override
+		public boolean next() {
+			while (true) {
+				if (xi + 1 < xEnd) {
+					xi++;
+					return true;
+				}
+				if (!nextRow()) {
+					xEnd = 0;
+					return false;
+				}
+				if (x < 0) {
+					xi = yStart[yi] - 1;
+					xEnd = yStart[yi + 1];
+				} else {
+					int i = Arrays.binarySearch(xs, yStart[yi],
+							yStart[yi + 1], x);
+					xi = i < 0 ? 0 : i - 1;
+					xEnd = i < 0 ? 0 : i + 1;
+				}
+			}
+		}
+
+		@Override
+		public long getX() {
+			return xs[xi];
+		}
+
+		@Override
+		public long getY() {
+			return ys[yi];
+		}
+
+		@Override
+		public long getZ() {
+			return zs[zi];
+		}
+	}
+
+	/**
+	 * A growable list of ints used while building the arrays.
+	 */
+	private static class IntList {
+		private int[] data = new int[16];
+		private int size = 0;
+
+		void add(int value) {
+			if (size == data.length) {
+				data = Arrays.copyOf(data, size + (size >> 1));
+			}
+			data[size++] = value;
+		}
+
+		int size() {
+			return size;
+		}
+
+		int[] toArray() {
+			return Arrays.copyOf(data, size);
+		}
+	}
+}
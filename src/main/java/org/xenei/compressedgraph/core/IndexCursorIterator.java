@@ -0,0 +1,53 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.NoSuchElementException;
+
+import com.hp.hpl.jena.util.iterator.NiceIterator;
+
+/**
+ * An iterator over the indexes of an IndexCursor.
+ * 
+ */
+class IndexCursorIterator extends NiceIterator<Integer> {
+	private final IndexCursor cursor;
+	private boolean ready;
+
+	IndexCursorIterator(IndexCursor cursor) {
+		this.cursor = cursor;
+		this.ready = false;
+	}
+
+	@Override
+	public boolean hasNext() {
+		if (!ready) {
+			ready = cursor.next();
+		}
+		return ready;
+	}
+
+	@Override
+	public Integer next() {
+		if (!hasNext()) {
+			throw new NoSuchElementException();
+		}
+		ready = false;
+		return cursor.getIndex();
+	}
+}
@@ -0,0 +1,57 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * A page store that keeps dense pages in a memory mapped file. Each slab is
+ * a separately mapped region at the end of the file.
+ */
+class MappedPageStore extends BufferPageStore {
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private long length;
+
+	MappedPageStore(File file, int slabSize) throws IOException {
+		super(slabSize);
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.length = 0;
+	}
+
+	@Override
+	protected ByteBuffer newSlab(int bytes) throws IOException {
+		ByteBuffer slab = channel.map(FileChannel.MapMode.READ_WRITE, length,
+				bytes).order(ByteOrder.nativeOrder());
+		length += bytes;
+		return slab;
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+}
@@ -0,0 +1,141 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+/**
+ * The memory used by a structure.
+ * 
+ * The counts are kept up to date as the structure is written, so reading the
+ * stats does not scan the structure. Heap bytes are estimates for a 64 bit
+ * JVM with compressed references.
+ * 
+ */
+public class MemoryStats {
+	/**
+	 * The estimated size of an object header.
+	 */
+	public static final int OBJECT_BYTES = 16;
+	/**
+	 * The estimated size of an array header.
+	 */
+	public static final int ARRAY_BYTES = 16;
+	/**
+	 * The estimated size of a reference.
+	 */
+	public static final int REFERENCE_BYTES = 4;
+	/**
+	 * The estimated size of a hash map entry and its table slot.
+	 */
+	public static final int HASH_ENTRY_BYTES = OBJECT_BYTES
+			+ (4 * REFERENCE_BYTES) + 4;
+
+	/**
+	 * Stats for an empty structure.
+	 */
+	public static final MemoryStats EMPTY = new MemoryStats(0, 0, 0, 0, 0);
+
+	private final long pageCount;
+	private final long used;
+	private final long capacity;
+	private final long heapBytes;
+	private final long offHeapBytes;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageCount
+	 *            the number of pages.
+	 * @param used
+	 *            the number of values, bits or nodes stored.
+	 * @param capacity
+	 *            the number of values, bits or nodes the pages can hold.
+	 * @param heapBytes
+	 *            the bytes retained on the heap.
+	 * @param offHeapBytes
+	 *            the bytes held outside of the heap, in direct or mapped
+	 *            buffers or in files.
+	 */
+	public MemoryStats(long pageCount, long used, long capacity,
+			long heapBytes, long offHeapBytes) {
+		this.pageCount = pageCount;
+		this.used = used;
+		this.capacity = capacity;
+		this.heapBytes = heapBytes;
+		this.offHeapBytes = offHeapBytes;
+	}
+
+	/**
+	 * Get the stats of this and another structure combined.
+	 */
+	public MemoryStats plus(MemoryStats other) {
+		return new MemoryStats(pageCount + other.pageCount,
+				used + other.used, capacity + other.capacity, heapBytes
+						+ other.heapBytes, offHeapBytes + other.offHeapBytes);
+	}
+
+	/**
+	 * Get the stats with the heap bytes increased.
+	 */
+	MemoryStats plusHeap(long bytes) {
+		return new MemoryStats(pageCount, used, capacity, heapBytes + bytes,
+				offHeapBytes);
+	}
+
+	public long getPageCount() {
+		return pageCount;
+	}
+
+	public long getUsed() {
+		return used;
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Get the fraction of the page capacity that is used, 0 if there are no
+	 * pages.
+	 */
+	public double getFillRatio() {
+		return capacity == 0 ? 0 : (double) used / capacity;
+	}
+
+	public long getHeapBytes() {
+		return heapBytes;
+	}
+
+	public long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+
+	/**
+	 * Get the heap and off heap bytes.
+	 */
+	public long getBytes() {
+		return heapBytes + offHeapBytes;
+	}
+
+	@Override
+	public String toString() {
+		return String.format(
+				"pages=%s used=%s capacity=%s fill=%.3f heap=%s offHeap=%s",
+				pageCount, used, capacity, getFillRatio(), heapBytes,
+				offHeapBytes);
+	}
+}
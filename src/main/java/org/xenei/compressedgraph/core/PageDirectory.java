@@ -0,0 +1,207 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.Arrays;
+
+/**
+ * A directory of pages sorted by page offset.
+ *
+ * Pages are located by a binary search of the offsets so that resolving an
+ * index to its page costs O(log pages) rather than a walk of the page list.
+ * Appending a page after the last page (the common case when loading) does not
+ * search at all.
+ *
+ * The directory is not thread safe, the owning array is responsible for
+ * locking.
+ *
+ * @param <P>
+ *            The page type.
+ */
+class PageDirectory<P> {
+	private static final int INITIAL_CAPACITY = 1;
+
+	private int[] offsets;
+	private Object[] pages;
+	private int size;
+
+	PageDirectory() {
+		offsets = new int[INITIAL_CAPACITY];
+		pages = new Object[INITIAL_CAPACITY];
+		size = 0;
+	}
+
+	/**
+	 * Create a copy of the directory that shares the pages.
+	 */
+	PageDirectory<P> copy() {
+		PageDirectory<P> retval = new PageDirectory<P>();
+		retval.offsets = Arrays.copyOf(offsets, Math.max(size,
+				INITIAL_CAPACITY));
+		retval.pages = Arrays.copyOf(pages, Math.max(size, INITIAL_CAPACITY));
+		retval.size = size;
+		return retval;
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Shrink the arrays to the number of pages. The arrays are replaced, not
+	 * changed, so a reader that holds the old arrays is not affected.
+	 * 
+	 * @return true if the arrays were shrunk.
+	 */
+	boolean trim() {
+		int capacity = Math.max(size, INITIAL_CAPACITY);
+		if (offsets.length == capacity) {
+			return false;
+		}
+		offsets = Arrays.copyOf(offsets, capacity);
+		pages = Arrays.copyOf(pages, capacity);
+		return true;
+	}
+
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * The approximate number of bytes used by the directory, not including
+	 * the pages.
+	 */
+	public long sizeInBytes() {
+		return MemoryStats.OBJECT_BYTES + (2 * MemoryStats.ARRAY_BYTES)
+				+ ((long) offsets.length * (4 + MemoryStats.REFERENCE_BYTES));
+	}
+
+	/**
+	 * Find the position of the offset in the directory.
+	 *
+	 * @param offset
+	 *            the page offset to find.
+	 * @return the position of the offset or (-(insertion point) - 1) if it is
+	 *         not present.
+	 */
+	public int indexOf(int offset) {
+		if (size == 0) {
+			return -1;
+		}
+		int lastOffset = offsets[size - 1];
+		if (offset == lastOffset) {
+			return size - 1;
+		}
+		if (offset > lastOffset) {
+			return -(size + 1);
+		}
+		return Arrays.binarySearch(offsets, 0, size, offset);
+	}
+
+	/**
+	 * Get the position of the first page with an offset greater than or equal
+	 * to the offset.
+	 *
+	 * @param offset
+	 *            the page offset to start from.
+	 * @return the position, or size() if there is no such page.
+	 */
+	public int ceilingIndex(int offset) {
+		int i = indexOf(offset);
+		return i >= 0 ? i : -(i + 1);
+	}
+
+	@SuppressWarnings("unchecked")
+	public P get(int offset) {
+		int i = indexOf(offset);
+		return i < 0 ? null : (P) pages[i];
+	}
+
+	public int offsetAt(int position) {
+		return offsets[position];
+	}
+
+	@SuppressWarnings("unchecked")
+	public P pageAt(int position) {
+		return (P) pages[position];
+	}
+
+	/**
+	 * Replace the page at a position.
+	 *
+	 * @param position
+	 *            the position of the page.
+	 * @param page
+	 *            the new page.
+	 */
+	public void setPageAt(int position, P page) {
+		pages[position] = page;
+	}
+
+	/**
+	 * Add a page to the directory. The offset must not already be present.
+	 *
+	 * @param offset
+	 *            the page offset.
+	 * @param page
+	 *            the page.
+	 */
+	public void add(int offset, P page) {
+		int i = indexOf(offset);
+		if (i >= 0) {
+			throw new IllegalStateException(String.format(
+					"Page %s already exists", offset));
+		}
+		i = -(i + 1);
+		if (size == offsets.length) {
+			int capacity = size + (size >> 1) + 1;
+			offsets = Arrays.copyOf(offsets, capacity);
+			pages = Arrays.copyOf(pages, capacity);
+		}
+		if (i < size) {
+			System.arraycopy(offsets, i, offsets, i + 1, size - i);
+			System.arraycopy(pages, i, pages, i + 1, size - i);
+		}
+		offsets[i] = offset;
+		pages[i] = page;
+		size++;
+	}
+
+	/**
+	 * Remove the page with the offset.
+	 *
+	 * @param offset
+	 *            the page offset.
+	 * @return the page that was removed or null if there was none.
+	 */
+	@SuppressWarnings("unchecked")
+	public P remove(int offset) {
+		int i = indexOf(offset);
+		if (i < 0) {
+			return null;
+		}
+		P retval = (P) pages[i];
+		size--;
+		if (i < size) {
+			System.arraycopy(offsets, i + 1, offsets, i, size - i);
+			System.arraycopy(pages, i + 1, pages, i, size - i);
+		}
+		pages[size] = null;
+		return retval;
+	}
+}
@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Where the bits of SparseBitArray pages are kept.
+ * 
+ * The heap store keeps every page on the Java heap. The direct and mapped
+ * stores keep the bitmaps of dense pages outside of the heap, in direct
+ * ByteBuffers or in a memory mapped file, so that only a small handle per
+ * page remains on the heap. Sparse and clustered pages are smaller than a
+ * bitmap and stay on the heap.
+ * 
+ * A store may be shared by all the arrays of a BitMatrix or BitCube. Pages
+ * written to a serialization stream are always read back onto the heap.
+ * 
+ */
+public abstract class PageStore {
+	/**
+	 * The default number of bytes allocated at a time by the off heap stores.
+	 */
+	public static final int DEFAULT_SLAB_SIZE = 1 << 22;
+
+	private static final PageStore HEAP = new PageStore() {
+		@Override
+		Container place(Container page) {
+			return page;
+		}
+	};
+
+	/**
+	 * Get the store that keeps every page on the heap.
+	 */
+	public static PageStore heap() {
+		return HEAP;
+	}
+
+	/**
+	 * Create a store that keeps dense pages in direct ByteBuffers. Direct
+	 * memory is limited by the -XX:MaxDirectMemorySize JVM option.
+	 */
+	public static PageStore direct() {
+		return new DirectPageStore(DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Create a store that keeps dense pages in a memory mapped file. The file
+	 * is scratch space: it is created or truncated and its contents are only
+	 * meaningful while the store is open.
+	 * 
+	 * @param file
+	 *            the file to map.
+	 * @throws IOException
+	 *             on error
+	 */
+	public static PageStore mapped(File file) throws IOException {
+		return new MappedPageStore(file, DEFAULT_SLAB_SIZE);
+	}
+
+	/**
+	 * Move a page into this store if it belongs here.
+	 * 
+	 * @param page
+	 *            the page.
+	 * @return the page to keep in the directory.
+	 */
+	abstract Container place(Container page);
+
+	/**
+	 * Record that a snapshot of the given version is open. Pages retired while
+	 * it is open are kept until it is released.
+	 */
+	void open(int version) {
+		// heap pages are reclaimed by the garbage collector
+	}
+
+	/**
+	 * Record that a snapshot of the given version has been closed.
+	 */
+	void release(int version) {
+		// heap pages are reclaimed by the garbage collector
+	}
+
+	/**
+	 * Return a page that was replaced by a copy in, or dropped from, an array
+	 * of the given version. Snapshots of older versions may still read the page, so it is
+	 * only reclaimed once they are released.
+	 */
+	void retire(Container page, int version) {
+		// heap pages are reclaimed by the garbage collector
+	}
+
+	/**
+	 * The number of bytes reserved outside of the heap.
+	 */
+	public long getOffHeapBytes() {
+		return 0;
+	}
+
+	/**
+	 * Release the resources of the store. Arrays that use the store must not
+	 * be used after it is closed.
+	 * 
+	 * @throws IOException
+	 *             on error
+	 */
+	public void close() throws IOException {
+		// nothing to release
+	}
+}
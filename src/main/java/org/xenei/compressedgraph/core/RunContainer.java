@@ -0,0 +1,214 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.Arrays;
+
+/**
+ * A container that stores runs of consecutive set positions as pairs of
+ * unsigned short start and end (inclusive) positions. Used when set positions
+ * are clustered.
+ */
+class RunContainer extends Container {
+	// start and end of each run: runs[2r] = start, runs[2r+1] = end
+	private short[] runs;
+	private int runCount;
+	private int cardinality;
+
+	private RunContainer(int pageSize, int capacity) {
+		super(pageSize);
+		runs = new short[Math.max(1, capacity) * 2];
+		runCount = 0;
+		cardinality = 0;
+	}
+
+	static RunContainer copyOf(Container c, int runCount) {
+		RunContainer retval = new RunContainer(c.pageSize, runCount);
+		int last = -2;
+		for (int i = c.nextSetBit(0); i >= 0; i = c.nextSetBit(i + 1)) {
+			if (i == last + 1) {
+				retval.runs[(retval.runCount * 2) - 1] = (short) i;
+			} else {
+				retval.runs[retval.runCount * 2] = (short) i;
+				retval.runs[(retval.runCount * 2) + 1] = (short) i;
+				retval.runCount++;
+			}
+			last = i;
+		}
+		retval.cardinality = c.cardinality();
+		return retval;
+	}
+
+	private int start(int r) {
+		return toUnsigned(runs[r * 2]);
+	}
+
+	private int end(int r) {
+		return toUnsigned(runs[(r * 2) + 1]);
+	}
+
+	/**
+	 * Find the last run that starts at or before i.
+	 * 
+	 * @return the run index or -1 if i is before the first run.
+	 */
+	private int runIndex(int i) {
+		int low = 0;
+		int high = runCount - 1;
+		int retval = -1;
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (start(mid) <= i) {
+				retval = mid;
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+		return retval;
+	}
+
+	private void insertRun(int r, int start, int end) {
+		if ((runCount * 2) == runs.length) {
+			runs = Arrays.copyOf(runs, runs.length * 2);
+		}
+		System.arraycopy(runs, r * 2, runs, (r + 1) * 2, (runCount - r) * 2);
+		runs[r * 2] = (short) start;
+		runs[(r * 2) + 1] = (short) end;
+		runCount++;
+	}
+
+	private void deleteRun(int r) {
+		runCount--;
+		System.arraycopy(runs, (r + 1) * 2, runs, r * 2, (runCount - r) * 2);
+	}
+
+	/**
+	 * Convert to a non-run container once there are too many runs.
+	 */
+	private Container checkRuns() {
+		if (runCount > runLimit()) {
+			return cardinality <= arrayLimit() ? ArrayContainer.copyOf(this)
+					: BitmapContainer.copyOf(this);
+		}
+		return this;
+	}
+
+	@Override
+	Container copy() {
+		return copyOf(this, runCount);
+	}
+
+	@Override
+	boolean isTrimmed() {
+		return runs.length == Math.max(1, runCount) * 2;
+	}
+
+	@Override
+	public boolean get(int i) {
+		int r = runIndex(i);
+		return r >= 0 && i <= end(r);
+	}
+
+	@Override
+	public Container add(int i) {
+		int r = runIndex(i);
+		if (r >= 0 && i <= end(r)) {
+			return this;
+		}
+		cardinality++;
+		boolean extendPrev = r >= 0 && end(r) + 1 == i;
+		boolean extendNext = r + 1 < runCount && start(r + 1) == i + 1;
+		if (extendPrev && extendNext) {
+			runs[(r * 2) + 1] = runs[((r + 1) * 2) + 1];
+			deleteRun(r + 1);
+		} else if (extendPrev) {
+			runs[(r * 2) + 1] = (short) i;
+		} else if (extendNext) {
+			runs[(r + 1) * 2] = (short) i;
+		} else {
+			insertRun(r + 1, i, i);
+			return checkRuns();
+		}
+		return this;
+	}
+
+	@Override
+	public Container remove(int i) {
+		int r = runIndex(i);
+		if (r < 0 || i > end(r)) {
+			return this;
+		}
+		cardinality--;
+		int start = start(r);
+		int end = end(r);
+		if (start == end) {
+			deleteRun(r);
+		} else if (i == start) {
+			runs[r * 2] = (short) (i + 1);
+		} else if (i == end) {
+			runs[(r * 2) + 1] = (short) (i - 1);
+		} else {
+			runs[(r * 2) + 1] = (short) (i - 1);
+			insertRun(r + 1, i + 1, end);
+			return checkRuns();
+		}
+		return this;
+	}
+
+	@Override
+	public int cardinality() {
+		return cardinality;
+	}
+
+	@Override
+	public int nextSetBit(int from) {
+		int r = runIndex(from);
+		if (r >= 0 && from <= end(r)) {
+			return from;
+		}
+		return r + 1 < runCount ? start(r + 1) : -1;
+	}
+
+	@Override
+	public long getWord(int w) {
+		int base = w << 6;
+		int last = base + 63;
+		int r = runIndex(base);
+		if (r < 0 || end(r) < base) {
+			r++;
+		}
+		long word = 0;
+		for (; r < runCount && start(r) <= last; r++) {
+			int from = Math.max(start(r), base) - base;
+			int to = Math.min(end(r), last) - base;
+			word |= (-1L << from) & (-1L >>> (63 - to));
+		}
+		return word;
+	}
+
+	@Override
+	protected int countRuns() {
+		return runCount;
+	}
+
+	@Override
+	public int sizeInBytes() {
+		return 32 + (runs.length * 2);
+	}
+}
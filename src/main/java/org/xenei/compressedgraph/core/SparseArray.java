@@ -20,41 +20,102 @@ package org.xenei.compressedgraph.core;
 import java.io.IOException;
 import java.io.Serializable;
 import java.util.Arrays;
-import java.util.Iterator;
 import java.util.NoSuchElementException;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
-import com.hp.hpl.jena.util.iterator.Filter;
-import com.hp.hpl.jena.util.iterator.Map1;
-import com.hp.hpl.jena.util.iterator.WrappedIterator;
+import com.hp.hpl.jena.util.iterator.NiceIterator;
 
 /**
  * A sparse array of objects
  * 
+ * Writes are serialized by a lock. Reads are optimistic: they do not block
+ * and are only retried under the read lock if a write happened while they
+ * were in progress.
+ * 
+ * Pages are copied on write once the array has been copied for a snapshot,
+ * see copy().
+ * 
+ * Pages with few values are stored sparse, see Page.
+ * 
  * @param <T>
  *            The objects to store
  */
 public class SparseArray<T> implements Serializable {
-	private Page first;
-	private Page last;
+	// a page switches to dense above 1/DENSE_FRACTION of its positions
+	private static final int DENSE_FRACTION = 4;
+	// and back to sparse below 1/SPARSE_FRACTION of them
+	private static final int SPARSE_FRACTION = 16;
+	// sparse positions are stored as chars
+	private static final int MAX_SPARSE_PAGE_SIZE = Character.MAX_VALUE + 1;
+	private static final Entries NO_ENTRIES = new Entries(new char[0],
+			new Object[0], 0);
+
+	private transient PageDirectory<Page> directory;
 	private int pageSize;
-	private final ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
+	private transient StampedLock lock;
+	// pages of an older version are shared with a snapshot
+	private transient int version;
+	// the number of values, written under the write lock
+	private transient volatile int count;
 
 	public SparseArray() {
 		this(4096);
 	}
 
 	public SparseArray(int pageSize) {
+		this(pageSize, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the number of values in a page.
+	 * @param version
+	 *            the version of the array.
+	 */
+	SparseArray(int pageSize, int version) {
 		this.pageSize = pageSize;
-		first = null;
-		last = null;
+		this.version = version;
+		directory = new PageDirectory<Page>();
+		lock = new StampedLock();
 	}
 
+	/**
+	 * Create a copy of the array with a new version. The copy shares the
+	 * pages of this array and copies each one the first time it is written,
+	 * so this array is not changed by writes to the copy.
+	 * 
+	 * @param version
+	 *            the version of the copy.
+	 * @return the copy.
+	 */
+	SparseArray<T> copy(int version) {
+		SparseArray<T> retval = new SparseArray<T>(pageSize, version);
+		long stamp = lock.readLock();
+		try {
+			retval.directory = directory.copy();
+			retval.count = count;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return retval;
+	}
+
+
 	public boolean isEmpty() {
-		return first == null;
+		long stamp = lock.tryOptimisticRead();
+		boolean retval = directory.isEmpty();
+		if (lock.validate(stamp)) {
+			return retval;
+		}
+		stamp = lock.readLock();
+		try {
+			return directory.isEmpty();
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 
 	public T remove(int idx) {
@@ -62,332 +123,683 @@ public class SparseArray<T> implements Serializable {
 	}
 
 	public T put(int idx, T value) {
-		Page page = locatePage(idx);
-		if (value == null) {
-			if (page == null || !page.contains(idx)) {
-				return null;
-			}
-		}
-		WriteLock wl = LOCK_FACTORY.writeLock();
-		wl.lock();
+		int offset = idx / pageSize;
+		long stamp = lock.writeLock();
 		try {
-			if (page == null || !page.contains(idx)) {
-				page = createPage(idx, page);
+			int position = directory.indexOf(offset);
+			Page page;
+			if (position < 0) {
+				if (value == null) {
+					return null;
+				}
+				page = new Page(offset);
+				directory.add(offset, page);
+			} else {
+				page = directory.pageAt(position);
+				if (page.version != version) {
+					page = new Page(page);
+					directory.setPageAt(position, page);
+				}
 			}
 
 			T retval = page.set(idx, value);
+			if (retval == null && value != null) {
+				count++;
+			} else if (retval != null && value == null) {
+				count--;
+			}
 			if (page.isEmpty()) {
-				removePage(page);
+				directory.remove(offset);
 			}
 			return retval;
 		} finally {
-			wl.unlock();
+			lock.unlockWrite(stamp);
 		}
 	}
 
+	/**
+	 * Put a value at an index that is greater than every index already in use.
+	 * Used to build an array that is not yet visible to other threads, so it
+	 * does not lock and does not search the directory.
+	 */
+	void append(int idx, T value) {
+		int offset = idx / pageSize;
+		int last = directory.size() - 1;
+		Page page;
+		if (last >= 0 && directory.offsetAt(last) == offset) {
+			page = directory.pageAt(last);
+		} else {
+			page = new Page(offset);
+			directory.add(offset, page);
+		}
+		page.append(idx, value);
+		count++;
+	}
+
+	/**
+	 * Get the number of values in the array.
+	 */
+	public int size() {
+		return count;
+	}
+
+	/**
+	 * Shrink the page directory to the number of pages and store each page
+	 * in its smallest encoding. Empty pages are removed as they empty.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	public long compact() {
+		long stamp = lock.writeLock();
+		try {
+			long before = directory.sizeInBytes();
+			directory.trim();
+			long released = before - directory.sizeInBytes();
+			for (int i = 0; i < directory.size(); i++) {
+				released += directory.pageAt(i).compact();
+			}
+			return released;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Get the memory used by the array. The values are not included.
+	 */
+	public MemoryStats getMemoryStats() {
+		long stamp = lock.readLock();
+		try {
+			long pages = directory.size();
+			long heapBytes = MemoryStats.OBJECT_BYTES
+					+ directory.sizeInBytes();
+			for (int i = 0; i < pages; i++) {
+				heapBytes += directory.pageAt(i).heapBytes();
+			}
+			return new MemoryStats(pages, count, pages * pageSize, heapBytes,
+					0);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	@SuppressWarnings("unchecked")
 	public T get(int idx) {
-		Page pg = locatePage(idx);
-		if (pg != null && pg.contains(idx)) {
-			return pg.get(idx);
+		int offset = idx / pageSize;
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Page pg = directory.get(offset);
+				Object retval = pg == null ? null : pg.valueAt(idx
+						% pageSize);
+				if (lock.validate(stamp)) {
+					return (T) retval;
+				}
+			} catch (RuntimeException e) {
+				// the directory changed under us, retry with the read lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			Page pg = directory.get(offset);
+			return pg == null ? null : pg.get(idx);
+		} finally {
+			lock.unlockRead(stamp);
 		}
-		return null;
 	}
 
 	public boolean has(int idx) {
-		Page pg = locatePage(idx);
-		return (pg != null && pg.contains(idx));
+		return get(idx) != null;
 	}
 
-	public ExtendedIterator<T> iterator() {
-		return WrappedIterator.createIteratorIterator(pageIterator().mapWith(
-				new Map1<Page, Iterator<T>>() {
-
-					@Override
-					public Iterator<T> map1(Page o) {
-						return o.iterator();
-					}
-				}));
+	/**
+	 * Get a cursor over the indexes and values in index order.
+	 */
+	public Cursor cursor() {
+		return new Cursor();
 	}
 
-	public ExtendedIterator<Integer> indexIterator() {
-		return WrappedIterator.createIteratorIterator(pageIterator().mapWith(
-				new Map1<Page, Iterator<Integer>>() {
+	public ExtendedIterator<T> iterator() {
+		final Cursor cursor = cursor();
+		return new NiceIterator<T>() {
+			private boolean ready = false;
 
-					@Override
-					public Iterator<Integer> map1(Page o) {
-						return o.indexIterator();
-					}
-				}));
+			@Override
+			public boolean hasNext() {
+				if (!ready) {
+					ready = cursor.next();
+				}
+				return ready;
+			}
+
+			@Override
+			public T next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				ready = false;
+				return cursor.getValue();
+			}
+		};
 	}
 
-	private int getPageCount() {
-		int i = 0;
-		Page p = first;
-		while (p != null) {
-			i++;
-			p = p.next;
-		}
-		return i;
+	public ExtendedIterator<Integer> indexIterator() {
+		return new IndexCursorIterator(cursor());
 	}
 
 	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-		out.write(pageSize);
-		Page p = first;
-		out.writeInt(getPageCount());
-
-		while (p != null) {
-			out.writeObject(p);
-			p = p.next;
+		long stamp = lock.readLock();
+		try {
+			out.writeInt(pageSize);
+			out.writeInt(directory.size());
+			for (int i = 0; i < directory.size(); i++) {
+				out.writeObject(directory.pageAt(i));
+			}
+		} finally {
+			lock.unlockRead(stamp);
 		}
 	}
 
 	private void readObject(java.io.ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
 		pageSize = in.readInt();
+		directory = new PageDirectory<Page>();
+		lock = new StampedLock();
 		int pageCount = in.readInt();
 		for (int i = 0; i < pageCount; i++) {
-
 			Page p = (Page) in.readObject();
-			if (first == null) {
-				first = p;
-				last = p;
-			} else {
-				last.next = p;
-				p.prev = last;
-				last = p;
-			}
+			directory.add(p.offset, p);
+			count += p.used;
 		}
 	}
 
 	/**
-	 * Return the page that the index is on or the parent of the page Will
-	 * return null if the parent is before the start.
+	 * Get the first index greater than or equal to idx that has a value.
 	 * 
-	 * @param idx
-	 * @return
+	 * @return the index or -1 if there is none.
 	 */
-	private Page locatePage(int idx) {
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
+	int nextIndex(int idx) {
+		int off = idx / pageSize;
+		long stamp = lock.readLock();
 		try {
-			int offset = idx / pageSize;
-			if (first == null) {
-				return null;
-			}
-			Page curr = first;
-			while (curr.offset < offset) {
-				if (curr.next == null) {
-					return curr;
+			for (int i = directory.ceilingIndex(off); i < directory.size(); i++) {
+				Page page = directory.pageAt(i);
+				int start = page.offset == off ? idx % pageSize : 0;
+				int pos = page.next(start);
+				if (pos >= 0) {
+					return (page.offset * pageSize) + pos;
 				}
-				curr = curr.next;
 			}
-			if (curr.offset == offset) {
-				return curr;
-			}
-			return curr.prev;
+			return -1;
 		} finally {
-			rl.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
-	private Page createPage(int idx, Page prev) {
-		WriteLock wl = LOCK_FACTORY.writeLock();
-		wl.lock();
+	/**
+	 * Get the last index less than or equal to idx that has a value.
+	 * 
+	 * @return the index or -1 if there is none.
+	 */
+	int previousIndex(int idx) {
+		int off = idx / pageSize;
+		long stamp = lock.readLock();
 		try {
-			int offset = idx / pageSize;
-			if (prev == null) {
-				// inserting at first
-				first = new Page(offset, null, first);
-				if (last == null) {
-					last = first;
+			int i = directory.indexOf(off);
+			if (i < 0) {
+				i = -(i + 1) - 1;
+			}
+			for (; i >= 0; i--) {
+				Page page = directory.pageAt(i);
+				int start = page.offset == off ? idx % pageSize : pageSize - 1;
+				int pos = page.previous(start);
+				if (pos >= 0) {
+					return (page.offset * pageSize) + pos;
 				}
-				return first;
 			}
-
-			return new Page(offset, prev, prev.next);
+			return -1;
 		} finally {
-			wl.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
-	private void removePage(Page page) {
-		WriteLock wl = LOCK_FACTORY.writeLock();
-		wl.lock();
+	/**
+	 * Locate the first page with an offset greater than or equal to the
+	 * offset.
+	 * 
+	 * @return the page or null if there is none.
+	 */
+	private Page ceilingPage(int offset) {
+		long stamp = lock.readLock();
 		try {
-			if (page.prev != null) {
-				page.prev.next = page.next;
-			}
-			if (page.next != null) {
-				page.next.prev = page.prev;
-			}
-			if (first == page) {
-				first = page.next;
-			}
-			if (last == page) {
-				last = page.prev;
-			}
+			int i = directory.ceilingIndex(offset);
+			return i < directory.size() ? directory.pageAt(i) : null;
 		} finally {
-			wl.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
-	private ExtendedIterator<Page> pageIterator() {
-		return WrappedIterator.create(new Iterator<Page>() {
-			Page current = first;
+	/**
+	 * A cursor over the indexes and values in index order. Pages are
+	 * re-located by offset as each one is exhausted so pages created or
+	 * removed during iteration do not invalidate the cursor.
+	 */
+	public class Cursor implements IndexCursor {
+		private Page page;
+		private int offset;
+		private int pos;
+		private int index;
+		private T value;
+		private boolean done;
+
+		private Cursor() {
+			page = null;
+			offset = -1;
+			done = false;
+		}
 
-			@Override
-			public boolean hasNext() {
-				return current != null;
+		@Override
+		@SuppressWarnings("unchecked")
+		public boolean next() {
+			while (!done) {
+				if (page != null) {
+					int i = pos + 1;
+					while (i < pageSize && (i = page.next(i)) >= 0) {
+						// the value may have been removed since next()
+						Object o = page.valueAt(i);
+						if (o != null) {
+							pos = i;
+							index = (offset * pageSize) + i;
+							value = (T) o;
+							return true;
+						}
+						i++;
+					}
+				}
+				page = ceilingPage(offset + 1);
+				if (page == null) {
+					done = true;
+					value = null;
+				} else {
+					offset = page.offset;
+					pos = -1;
+				}
 			}
+			return false;
+		}
 
-			@Override
-			public Page next() {
-				Page retval = current;
-				current = current.next;
-				return retval;
+		/**
+		 * Position the cursor so that the next call to next() returns the
+		 * first index greater than or equal to idx.
+		 */
+		public void seek(int idx) {
+			int off = idx / pageSize;
+			page = ceilingPage(off);
+			if (page == null) {
+				done = true;
+				value = null;
+			} else {
+				done = false;
+				offset = page.offset;
+				pos = offset == off ? (idx % pageSize) - 1 : -1;
 			}
+		}
 
-			@Override
-			public void remove() {
-				throw new UnsupportedOperationException();
-			}
-		});
+		@Override
+		public int getIndex() {
+			return index;
+		}
+
+		public T getValue() {
+			return value;
+		}
 	}
 
+	/**
+	 * A page of values. Pages are only written while holding the write lock
+	 * of the owning array.
+	 * 
+	 * A page with few values is sparse: the positions in use are kept in
+	 * order with their values and found by binary search. Once more than
+	 * 1/DENSE_FRACTION of the positions are used the page switches to an
+	 * array indexed by position, and it switches back when fewer than
+	 * 1/SPARSE_FRACTION are used. Inserting or removing a sparse position
+	 * replaces the entries rather than shifting them in place, so readers
+	 * without the lock see either the old or the new entries.
+	 */
 	public class Page implements Serializable {
 		private int offset;
-		private Object[] data;
-		private transient Page next;
-		private transient Page prev;
-		private transient final ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
-
-		private Page(int offset, Page prev, Page next) {
+		// the values by position while dense, otherwise null
+		private volatile Object[] data;
+		// the values in position order while sparse, otherwise null
+		private volatile Entries entries;
+		private int used;
+		private transient int version;
+
+		private Page(int offset) {
 			this.offset = offset;
-			this.prev = prev;
-			this.next = next;
-			data = new Object[pageSize];
-			if (prev != null) {
-				prev.next = this;
+			if (pageSize > MAX_SPARSE_PAGE_SIZE) {
+				data = new Object[pageSize];
+			} else {
+				entries = NO_ENTRIES;
 			}
-			if (next != null) {
-				next.prev = this;
+			used = 0;
+			version = SparseArray.this.version;
+		}
+
+		/**
+		 * Copy a page that is shared with a snapshot.
+		 */
+		private Page(Page page) {
+			this.offset = page.offset;
+			Object[] d = page.data;
+			if (d != null) {
+				data = d.clone();
+			} else {
+				entries = page.entries.copy();
 			}
+			used = page.used;
+			version = SparseArray.this.version;
 		}
 
 		public boolean isEmpty() {
-			ReadLock rl = LOCK_FACTORY.readLock();
-			rl.lock();
-			try {
-				for (int i = 0; i < pageSize; i++) {
-					if (data[i] != null) {
-						return false;
-					}
-				}
-				return true;
-			} finally {
-				rl.unlock();
-			}
+			return used == 0;
 		}
 
 		public boolean contains(int idx) {
 			return offset == idx / pageSize;
 		}
 
+		private int denseLimit() {
+			return pageSize > MAX_SPARSE_PAGE_SIZE ? 0 : pageSize
+					/ DENSE_FRACTION;
+		}
+
+		private int sparseLimit() {
+			return pageSize > MAX_SPARSE_PAGE_SIZE ? 0 : pageSize
+					/ SPARSE_FRACTION;
+		}
+
+		@SuppressWarnings("unchecked")
 		private T set(int idx, T value) {
-			WriteLock wl = LOCK_FACTORY.writeLock();
-			wl.lock();
-			try {
-				int i = idx % pageSize;
-				T retval = (T) data[i];
-				data[i] = value;
-				return retval;
-			} finally {
-				wl.unlock();
+			int pos = idx % pageSize;
+			Object retval;
+			Object[] d = data;
+			if (d != null) {
+				retval = d[pos];
+				d[pos] = value;
+				if (retval == null && value != null) {
+					used++;
+				} else if (retval != null && value == null) {
+					used--;
+					if (used < sparseLimit()) {
+						toSparse();
+					}
+				}
+			} else {
+				Entries e = entries;
+				int i = e.find(pos);
+				if (i >= 0) {
+					retval = e.values[i];
+					if (value != null) {
+						e.values[i] = value;
+					} else {
+						entries = e.remove(i);
+						used--;
+					}
+				} else {
+					retval = null;
+					if (value != null) {
+						if (used >= denseLimit()) {
+							toDense();
+							data[pos] = value;
+						} else {
+							entries = e.insert(-(i + 1), pos, value);
+						}
+						used++;
+					}
+				}
 			}
-
+			return (T) retval;
 		}
 
-		private T get(int idx) {
-			ReadLock rl = LOCK_FACTORY.readLock();
-			rl.lock();
-			try {
-				int i = idx % pageSize;
-				return (T) data[i];
-			} finally {
-				rl.unlock();
+		/**
+		 * Set a value at a position after every position in use. Only used on
+		 * pages that are not yet visible to other threads, so sparse entries
+		 * are grown in place.
+		 */
+		private void append(int idx, T value) {
+			int pos = idx % pageSize;
+			if (data == null && used >= denseLimit()) {
+				toDense();
 			}
+			if (data != null) {
+				data[pos] = value;
+			} else {
+				entries = entries.append(pos, value);
+			}
+			used++;
 		}
 
-		public ExtendedIterator<T> iterator() {
-			return WrappedIterator.create(Arrays.asList(data).iterator())
-					.filterKeep(new Filter<Object>() {
-						@Override
-						public boolean accept(Object o) {
-							return o != null;
-						}
-					}).mapWith(new Map1<Object, T>() {
+		@SuppressWarnings("unchecked")
+		private T get(int idx) {
+			return (T) valueAt(idx % pageSize);
+		}
 
-						@Override
-						public T map1(Object o) {
-							return (T) o;
-						}
-					});
+		/**
+		 * Get the value at a position in the page. Safe to call without the
+		 * lock.
+		 */
+		private Object valueAt(int pos) {
+			Object[] d = data;
+			if (d == null) {
+				Entries e = entries;
+				if (e != null) {
+					return e.get(pos);
+				}
+				// switched to dense since data was read
+				d = data;
+			}
+			return d[pos];
 		}
 
-		public ExtendedIterator<Integer> indexIterator() {
-			return WrappedIterator.create(new IdxIterator());
+		/**
+		 * Get the first position greater than or equal to pos that has a
+		 * value. Safe to call without the lock.
+		 * 
+		 * @return the position or -1 if there is none.
+		 */
+		private int next(int pos) {
+			Object[] d = data;
+			if (d == null) {
+				Entries e = entries;
+				if (e != null) {
+					int i = e.ceiling(pos);
+					return i < e.size ? e.positions[i] : -1;
+				}
+				d = data;
+			}
+			for (int i = pos; i < d.length; i++) {
+				if (d[i] != null) {
+					return i;
+				}
+			}
+			return -1;
 		}
 
-		private class IdxIterator implements Iterator<Integer> {
-			private int next;
-			private boolean used;
-			private boolean done;
+		/**
+		 * Get the last position less than or equal to pos that has a value.
+		 * Safe to call without the lock.
+		 * 
+		 * @return the position or -1 if there is none.
+		 */
+		private int previous(int pos) {
+			Object[] d = data;
+			if (d == null) {
+				Entries e = entries;
+				if (e != null) {
+					int i = e.find(pos);
+					i = i >= 0 ? i : -(i + 1) - 1;
+					return i >= 0 ? e.positions[i] : -1;
+				}
+				d = data;
+			}
+			for (int i = pos; i >= 0; i--) {
+				if (d[i] != null) {
+					return i;
+				}
+			}
+			return -1;
+		}
 
-			IdxIterator() {
-				done = false;
-				used = false;
-				next = -1;
-				findNext();
+		private void toDense() {
+			Entries e = entries;
+			Object[] d = new Object[pageSize];
+			for (int i = 0; i < e.size; i++) {
+				d[e.positions[i]] = e.values[i];
 			}
+			// publish data before clearing entries, see valueAt()
+			data = d;
+			entries = null;
+		}
 
-			private void findNext() {
-				if (!done) {
-					for (int i = next + 1; i < pageSize; i++) {
-						if (data[i] != null) {
-							next = i;
-							used = false;
-							return;
-						}
-					}
+		private void toSparse() {
+			Object[] d = data;
+			char[] positions = new char[used];
+			Object[] values = new Object[used];
+			int n = 0;
+			for (int i = 0; i < d.length && n < used; i++) {
+				if (d[i] != null) {
+					positions[n] = (char) i;
+					values[n++] = d[i];
 				}
-				done = true;
 			}
+			// publish entries before clearing data, see valueAt()
+			entries = new Entries(positions, values, n);
+			data = null;
+		}
 
-			@Override
-			public boolean hasNext() {
-				if (used) {
-					findNext();
+		/**
+		 * Store the page in its smallest encoding.
+		 * 
+		 * @return the estimated number of heap bytes released.
+		 */
+		private long compact() {
+			long before = heapBytes();
+			if (data == null) {
+				if (entries.size < entries.positions.length) {
+					entries = entries.copy();
 				}
-				return !done;
+			} else if (used < denseLimit()) {
+				toSparse();
 			}
+			return before - heapBytes();
+		}
 
-			@Override
-			public Integer next() {
-				if (used) {
-					findNext();
-				}
-				if (done) {
-					throw new NoSuchElementException();
-				}
-				used = true;
-				return next + (offset * pageSize);
+		/**
+		 * Get the estimated heap bytes of the page, not including the values.
+		 */
+		private long heapBytes() {
+			Object[] d = data;
+			if (d != null) {
+				return MemoryStats.OBJECT_BYTES + MemoryStats.ARRAY_BYTES
+						+ ((long) d.length * MemoryStats.REFERENCE_BYTES);
 			}
+			Entries e = entries;
+			return (2 * MemoryStats.OBJECT_BYTES) + (2 * MemoryStats.ARRAY_BYTES)
+					+ ((long) e.positions.length * (2 + MemoryStats.REFERENCE_BYTES));
+		}
+	}
 
-			@Override
-			public void remove() {
-				throw new UnsupportedOperationException();
+	/**
+	 * The values of a sparse page in position order. The positions are only
+	 * changed by append(), which is used while the page is not visible to
+	 * other threads; every other change creates new entries.
+	 */
+	private static class Entries implements Serializable {
+		private final char[] positions;
+		private final Object[] values;
+		private int size;
+
+		private Entries(char[] positions, Object[] values, int size) {
+			this.positions = positions;
+			this.values = values;
+			this.size = size;
+		}
+
+		/**
+		 * Binary search for a position.
+		 * 
+		 * @return the entry index, or (-(insertion point) - 1) if not found.
+		 */
+		private int find(int pos) {
+			int low = 0;
+			int high = size - 1;
+			while (low <= high) {
+				int mid = (low + high) >>> 1;
+				int p = positions[mid];
+				if (p < pos) {
+					low = mid + 1;
+				} else if (p > pos) {
+					high = mid - 1;
+				} else {
+					return mid;
+				}
 			}
+			return -(low + 1);
+		}
+
+		/**
+		 * Get the index of the first entry with a position greater than or
+		 * equal to pos.
+		 */
+		private int ceiling(int pos) {
+			int i = find(pos);
+			return i >= 0 ? i : -(i + 1);
+		}
+
+		private Object get(int pos) {
+			int i = find(pos);
+			return i >= 0 ? values[i] : null;
+		}
+
+		private Entries copy() {
+			return new Entries(Arrays.copyOf(positions, size), Arrays.copyOf(
+					values, size), size);
+		}
+
+		private Entries insert(int i, int pos, Object value) {
+			char[] p = new char[size + 1];
+			Object[] v = new Object[size + 1];
+			System.arraycopy(positions, 0, p, 0, i);
+			System.arraycopy(values, 0, v, 0, i);
+			p[i] = (char) pos;
+			v[i] = value;
+			System.arraycopy(positions, i, p, i + 1, size - i);
+			System.arraycopy(values, i, v, i + 1, size - i);
+			return new Entries(p, v, size + 1);
+		}
 
+		private Entries remove(int i) {
+			char[] p = new char[size - 1];
+			Object[] v = new Object[size - 1];
+			System.arraycopy(positions, 0, p, 0, i);
+			System.arraycopy(values, 0, v, 0, i);
+			System.arraycopy(positions, i + 1, p, i, size - i - 1);
+			System.arraycopy(values, i + 1, v, i, size - i - 1);
+			return new Entries(p, v, size - 1);
+		}
+
+		private Entries append(int pos, Object value) {
+			Entries e = this;
+			if (size == positions.length) {
+				int capacity = Math.max(4, size * 2);
+				e = new Entries(Arrays.copyOf(positions, capacity),
+						Arrays.copyOf(values, capacity), size);
+			}
+			e.positions[e.size] = (char) pos;
+			e.values[e.size++] = value;
+			return e;
 		}
 	}
 
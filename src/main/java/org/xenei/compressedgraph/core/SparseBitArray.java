@@ -19,38 +19,179 @@ package org.xenei.compressedgraph.core;
 
 import java.io.IOException;
 import java.io.Serializable;
-import java.util.BitSet;
-import java.util.Iterator;
-import java.util.concurrent.locks.ReentrantReadWriteLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.ReadLock;
-import java.util.concurrent.locks.ReentrantReadWriteLock.WriteLock;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.StampedLock;
 
 import com.hp.hpl.jena.util.iterator.ExtendedIterator;
-import com.hp.hpl.jena.util.iterator.Map1;
-import com.hp.hpl.jena.util.iterator.WrappedIterator;
 
 /**
  * A sparse array of bits.
  * 
+ * Each page holds its bits in a container that is chosen by the number and
+ * layout of the bits on the page: a sorted array of positions for sparse
+ * pages, a bitmap for dense pages and a list of runs for clustered pages. The
+ * container is switched as bits are set and cleared. The page bits may be
+ * kept outside of the heap by a PageStore.
+ * 
+ * Writes are serialized by a lock. Reads are optimistic: they do not block
+ * and are only retried under the read lock if a write happened while they
+ * were in progress.
+ * 
+ * Once the array has been copied for a snapshot its pages are shared with the
+ * copy; each shared page is copied the first time the copy writes to it. See
+ * copy().
+ * 
  */
 public class SparseBitArray implements BitConstants, Serializable {
-	private Page first;
-	private Page last;
+	// page merge modes
+	private static final int INTERSECT = 0;
+	private static final int LEFT = 1;
+	private static final int UNION = 2;
+
+	// used to order the locks of arrays with the same identity hash code
+	private static final Object TIE_LOCK = new Object();
+
+	// the array, its lock and its directory
+	private static final int ARRAY_OVERHEAD = (3 * MemoryStats.OBJECT_BYTES)
+			+ (2 * MemoryStats.ARRAY_BYTES);
+	// a directory entry
+	private static final int ENTRY_BYTES = 4 + MemoryStats.REFERENCE_BYTES;
+	// compaction attempts under the read lock before compacting under the
+	// write lock
+	private static final int COMPACT_ATTEMPTS = 3;
+
+	private transient PageDirectory<Container> directory;
 	private int pageSize;
-	private final ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
+	private transient StampedLock lock;
+	// reads that fell back to the read lock
+	private transient AtomicLong lockedReads;
+	private transient PageStore store;
+	// written under the write lock
+	private transient volatile int cardinality;
+	// pages of an older version are shared with a snapshot
+	private transient int version;
+	// the bytes held by the pages, written under the write lock
+	private transient volatile long heapBytes;
+	private transient volatile long offHeapBytes;
 
 	public SparseBitArray() {
 		this(DEFAULT_PAGE_SIZE);
 	}
 
 	public SparseBitArray(int pageSize) {
+		this(pageSize, PageStore.heap());
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the number of bits in a page.
+	 * @param store
+	 *            the store that holds the page bits.
+	 */
+	public SparseBitArray(int pageSize, PageStore store) {
+		this(pageSize, store, 0);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the number of bits in a page.
+	 * @param store
+	 *            the store that holds the page bits.
+	 * @param version
+	 *            the version of the array.
+	 */
+	SparseBitArray(int pageSize, PageStore store, int version) {
+		Container.checkPageSize(pageSize);
 		this.pageSize = pageSize;
-		first = null;
-		last = null;
+		this.store = store;
+		this.version = version;
+		directory = new PageDirectory<Container>();
+		lock = new StampedLock();
+		lockedReads = new AtomicLong(0);
+	}
+
+	/**
+	 * Create a copy of the array with a new version. The copy shares the
+	 * pages of this array and copies each one the first time it is written,
+	 * so this array is not changed by writes to the copy.
+	 * 
+	 * @param version
+	 *            the version of the copy.
+	 * @return the copy.
+	 */
+	SparseBitArray copy(int version) {
+		SparseBitArray retval = new SparseBitArray(pageSize, store, version);
+		long stamp = lock.readLock();
+		try {
+			retval.directory = directory.copy();
+			retval.cardinality = cardinality;
+			retval.heapBytes = heapBytes;
+			retval.offHeapBytes = offHeapBytes;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+		return retval;
+	}
+
+	/**
+	 * Get the version of the array.
+	 */
+	int getVersion() {
+		return version;
+	}
+
+	/**
+	 * Place a page in the store and mark it as written by this version.
+	 */
+	private Container own(Container page) {
+		Container retval = store.place(page);
+		retval.version = version;
+		return retval;
+	}
+
+	/**
+	 * Add the bytes of a page that joins the array, or with a negative sign
+	 * remove the bytes of a page that leaves it. Pages that change in place
+	 * must be removed before they are changed.
+	 */
+	private void account(Container page, int sign) {
+		heapBytes += sign * page.sizeInBytes();
+		offHeapBytes += sign * page.offHeapBytes();
+	}
+
+	/**
+	 * Take the read lock for a read that could not be completed optimistically.
+	 */
+	private long readLockAfterRetry() {
+		lockedReads.incrementAndGet();
+		return lock.readLock();
+	}
+
+	/**
+	 * Get the number of reads that could not be completed optimistically and
+	 * took the read lock. Reads of an array that is not being written never
+	 * take the lock.
+	 */
+	long getLockedReads() {
+		return lockedReads.get();
 	}
 
 	public boolean isEmpty() {
-		return first == null;
+		long stamp = lock.tryOptimisticRead();
+		boolean retval = directory.isEmpty();
+		if (lock.validate(stamp)) {
+			return retval;
+		}
+		stamp = readLockAfterRetry();
+		try {
+			return directory.isEmpty();
+		} finally {
+			lock.unlockRead(stamp);
+		}
 	}
 
 	public boolean clear(int idx) {
@@ -62,268 +203,813 @@ public class SparseBitArray implements BitConstants, Serializable {
 	}
 
 	public boolean set(int idx, boolean value) {
-		Page page = locatePage(idx);
-		if (!value) {
-			if (page == null || !page.contains(idx)) {
-				return false;
-			}
-		}
-		WriteLock wl = LOCK_FACTORY.writeLock();
-		wl.lock();
+		int offset = idx / this.pageSize;
+		int pageIdx = idx % this.pageSize;
+		long stamp = lock.writeLock();
 		try {
-			if (page == null || !page.contains(idx)) {
-				page = createPage(idx, page);
+			int position = directory.indexOf(offset);
+			if (position < 0) {
+				if (value) {
+					Container page = own(Container.create(pageSize).add(pageIdx));
+					directory.add(offset, page);
+					account(page, 1);
+					cardinality++;
+				}
+				return false;
 			}
-
-			boolean retval = page.set(idx, value);
-			if (page.isEmpty()) {
-				removePage(page);
+			Container page = directory.pageAt(position);
+			boolean retval = page.get(pageIdx);
+			if (retval != value) {
+				account(page, -1);
+				if (page.version != version) {
+					Container shared = page;
+					page = shared.copy();
+					store.retire(shared, version);
+				}
+				page = value ? page.add(pageIdx) : page.remove(pageIdx);
+				cardinality += value ? 1 : -1;
+				if (page.isEmpty()) {
+					directory.remove(offset);
+				} else {
+					page = own(page);
+					directory.setPageAt(position, page);
+					account(page, 1);
+				}
 			}
 			return retval;
 		} finally {
-			wl.unlock();
+			lock.unlockWrite(stamp);
 		}
 	}
 
-	public boolean get(int idx) {
-		Page pg = locatePage(idx);
-		if (pg != null && pg.contains(idx)) {
-			return pg.get(idx);
+	/**
+	 * Clear every bit. The pages are dropped whole rather than cleared a bit
+	 * at a time.
+	 */
+	public void clear() {
+		long stamp = lock.writeLock();
+		try {
+			for (int i = 0; i < directory.size(); i++) {
+				store.retire(directory.pageAt(i), version);
+			}
+			directory = new PageDirectory<Container>();
+			cardinality = 0;
+			heapBytes = 0;
+			offHeapBytes = 0;
+		} finally {
+			lock.unlockWrite(stamp);
 		}
-		return false;
 	}
 
-	public ExtendedIterator<Integer> iterator() {
-		return WrappedIterator.createIteratorIterator(pageIterator().mapWith(
-				new Map1<Page, Iterator<Integer>>() {
-
-					@Override
-					public Iterator<Integer> map1(Page o) {
-						return o.indexIterator();
-					}
-				}));
+	/**
+	 * Replace each page with the smallest container for its bits and shrink
+	 * the directory. The new pages are built under the read lock, which
+	 * blocks writers but not readers, and the lock is then converted to the
+	 * write lock to swap them in, so readers wait for the swap but not for
+	 * the compaction. Pages shared with a snapshot are left alone, they are
+	 * copied when they are written.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	public long compact() {
+		return compact(false);
 	}
 
 	/**
-	 * Return the page that the index is on or the parent of the page Will
-	 * return null if the parent is before the start.
+	 * Compact the pages.
 	 * 
-	 * @param idx
-	 * @return
+	 * @param adopt
+	 *            true if no snapshot is open, so that pages of older versions
+	 *            are no longer shared and may be taken over.
+	 * @return the estimated number of heap bytes released.
 	 */
-	private Page locatePage(int idx) {
-		ReadLock rl = LOCK_FACTORY.readLock();
-		rl.lock();
-		try {
-			int offset = idx / this.pageSize;
-			if (first == null) {
-				return null;
-			}
-			Page curr = null;
-			if (offset >= last.offset) {
-				// may be on last page
-				curr = last;
-			} else {
-				// not on last page
-				curr = first;
+	long compact(boolean adopt) {
+		for (int attempt = 0; attempt < COMPACT_ATTEMPTS; attempt++) {
+			long stamp = lock.readLock();
+			Container[] compacted;
+			try {
+				compacted = compactPages(adopt);
+			} catch (RuntimeException e) {
+				lock.unlockRead(stamp);
+				throw e;
 			}
-			while (curr.offset < offset) {
-				if (curr.next == null) {
-					return curr;
-				}
-				curr = curr.next;
+			long writeStamp = lock.tryConvertToWriteLock(stamp);
+			if (writeStamp == 0) {
+				// another reader holds the lock, try again
+				lock.unlockRead(stamp);
+				continue;
 			}
-			if (curr.offset == offset) {
-				return curr;
+			try {
+				return swapPages(compacted);
+			} finally {
+				lock.unlockWrite(writeStamp);
 			}
-			return curr.prev;
+		}
+		long stamp = lock.writeLock();
+		try {
+			return swapPages(compactPages(adopt));
 		} finally {
-			rl.unlock();
+			lock.unlockWrite(stamp);
 		}
 	}
 
-	private Page createPage(int idx, Page prev) {
-		WriteLock wl = LOCK_FACTORY.writeLock();
-		wl.lock();
-		try {
-			int offset = idx / this.pageSize;
-			if (prev == null) {
-				// inserting at first
-				first = new Page(offset, null, first);
-				if (last == null) {
-					last = first;
-				}
-				return first;
+	/**
+	 * Build the compact pages.
+	 * 
+	 * @return the new page for each directory position, null where the page
+	 *         does not change and the page itself where an adopted page is
+	 *         already compact.
+	 */
+	private Container[] compactPages(boolean adopt) {
+		Container[] retval = new Container[directory.size()];
+		for (int i = 0; i < retval.length; i++) {
+			Container page = directory.pageAt(i);
+			if (page.version == version) {
+				Container compact = page.compact();
+				retval[i] = compact == page ? null : compact;
+			} else if (adopt) {
+				retval[i] = page.compact();
 			}
+		}
+		return retval;
+	}
 
-			Page retval = new Page(offset, prev, prev.next);
-			if (retval.next == null) {
-				last = retval;
+	/**
+	 * Swap in the compact pages. Must be called with the write lock held and
+	 * no change since the pages were built.
+	 * 
+	 * @return the estimated number of heap bytes released.
+	 */
+	private long swapPages(Container[] compacted) {
+		long before = getHeapBytes();
+		for (int i = 0; i < compacted.length; i++) {
+			if (compacted[i] == directory.pageAt(i)) {
+				compacted[i].version = version;
+			} else if (compacted[i] != null) {
+				Container old = directory.pageAt(i);
+				account(old, -1);
+				Container page = own(compacted[i]);
+				directory.setPageAt(i, page);
+				account(page, 1);
+				store.retire(old, version);
 			}
-			return retval;
+		}
+		directory.trim();
+		return before - getHeapBytes();
+	}
+
+	/**
+	 * Set a bit that is greater than every bit already set. Used to build an
+	 * array that is not yet visible to other threads, so it does not lock and
+	 * does not search the directory.
+	 */
+	void append(int idx) {
+		int offset = idx / this.pageSize;
+		int pageIdx = idx % this.pageSize;
+		int last = directory.size() - 1;
+		Container page;
+		if (last >= 0 && directory.offsetAt(last) == offset) {
+			page = directory.pageAt(last);
+			account(page, -1);
+			page = own(page.add(pageIdx));
+			directory.setPageAt(last, page);
+		} else {
+			page = own(Container.create(pageSize).add(pageIdx));
+			directory.add(offset, page);
+		}
+		account(page, 1);
+		cardinality++;
+	}
+
+	public boolean get(int idx) {
+		int offset = idx / this.pageSize;
+		int pageIdx = idx % this.pageSize;
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				Container page = directory.get(offset);
+				boolean retval = page != null && page.get(pageIdx);
+				if (lock.validate(stamp)) {
+					return retval;
+				}
+			} catch (RuntimeException e) {
+				// the page changed under us, retry with the read lock
+			}
+		}
+		stamp = readLockAfterRetry();
+		try {
+			Container page = directory.get(offset);
+			return page != null && page.get(pageIdx);
 		} finally {
-			wl.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
-	private void removePage(Page page) {
-		WriteLock wl = LOCK_FACTORY.writeLock();
-		wl.lock();
+	/**
+	 * Get the number of set bits.
+	 */
+	public int cardinality() {
+		return cardinality;
+	}
+
+	/**
+	 * Get the number of pages.
+	 */
+	int getPageCount() {
+		return directory.size();
+	}
+
+	/**
+	 * Get the estimated heap bytes of the array and its pages.
+	 */
+	long getHeapBytes() {
+		return ARRAY_OVERHEAD + ((long) directory.size() * ENTRY_BYTES)
+				+ heapBytes;
+	}
+
+	/**
+	 * Get the bytes of the pages that are held outside of the heap.
+	 */
+	long getOffHeapBytes() {
+		return offHeapBytes;
+	}
+
+	/**
+	 * Get the memory used by the array.
+	 */
+	public MemoryStats getMemoryStats() {
+		long stamp = lock.readLock();
 		try {
-			if (page.prev != null) {
-				page.prev.next = page.next;
-			}
-			if (page.next != null) {
-				page.next.prev = page.prev;
-			}
-			if (first == page) {
-				first = page.next;
-			}
-			if (last == page) {
-				last = page.prev;
-			}
+			long pages = directory.size();
+			return new MemoryStats(pages, cardinality, pages * pageSize,
+					getHeapBytes(), offHeapBytes);
 		} finally {
-			wl.unlock();
+			lock.unlockRead(stamp);
 		}
 	}
 
-	private ExtendedIterator<Page> pageIterator() {
-		return WrappedIterator.create(new Iterator<Page>() {
-			Page current = first;
+	/**
+	 * The bits set in both this array and the other array.
+	 * 
+	 * @return a new array.
+	 */
+	public SparseBitArray and(SparseBitArray other) {
+		final SparseBitArray result = new SparseBitArray(pageSize, store);
+		merge(other, INTERSECT, new PageVisitor() {
+			@Override
+			boolean visit(int offset, Container a, Container b) {
+				result.appendPage(offset, Container.and(a, b));
+				return true;
+			}
+		});
+		return result;
+	}
+
+	/**
+	 * The bits set in either this array or the other array.
+	 * 
+	 * @return a new array.
+	 */
+	public SparseBitArray or(SparseBitArray other) {
+		final SparseBitArray result = new SparseBitArray(pageSize, store);
+		merge(other, UNION, new PageVisitor() {
+			@Override
+			boolean visit(int offset, Container a, Container b) {
+				result.appendPage(offset, Container.or(a, b));
+				return true;
+			}
+		});
+		return result;
+	}
 
+	/**
+	 * The bits set in this array that are not set in the other array.
+	 * 
+	 * @return a new array.
+	 */
+	public SparseBitArray andNot(SparseBitArray other) {
+		final SparseBitArray result = new SparseBitArray(pageSize, store);
+		merge(other, LEFT, new PageVisitor() {
 			@Override
-			public boolean hasNext() {
-				return current != null;
+			boolean visit(int offset, Container a, Container b) {
+				result.appendPage(offset, Container.andNot(a, b));
+				return true;
 			}
+		});
+		return result;
+	}
 
+	/**
+	 * Check if any bit is set in both this array and the other array.
+	 */
+	public boolean intersects(SparseBitArray other) {
+		final boolean[] retval = new boolean[1];
+		merge(other, INTERSECT, new PageVisitor() {
 			@Override
-			public Page next() {
-				Page retval = current;
-				current = current.next;
-				return retval;
+			boolean visit(int offset, Container a, Container b) {
+				retval[0] = Container.intersects(a, b);
+				return !retval[0];
 			}
+		});
+		return retval[0];
+	}
 
+	/**
+	 * Count the bits set in both this array and the other array without
+	 * creating the intersection.
+	 */
+	public int cardinalityOfAnd(SparseBitArray other) {
+		final int[] retval = new int[1];
+		merge(other, INTERSECT, new PageVisitor() {
 			@Override
-			public void remove() {
-				throw new UnsupportedOperationException();
+			boolean visit(int offset, Container a, Container b) {
+				retval[0] += Container.andCardinality(a, b);
+				return true;
 			}
 		});
+		return retval[0];
+	}
+
+	/**
+	 * Get a cursor over the bits set in this array and in every other array.
+	 * The intersection is computed a word at a time as the cursor advances,
+	 * it is not materialized.
+	 * 
+	 * @param others
+	 *            the arrays to intersect with.
+	 * @return the cursor.
+	 */
+	public IndexCursor andCursor(SparseBitArray... others) {
+		SparseBitArray[] arrays = new SparseBitArray[others.length + 1];
+		arrays[0] = this;
+		System.arraycopy(others, 0, arrays, 1, others.length);
+		return new AndCursor(arrays);
+	}
+
+	public ExtendedIterator<Integer> andIterator(SparseBitArray... others) {
+		return new IndexCursorIterator(andCursor(others));
 	}
 
-	private int getPageCount() {
+	/**
+	 * Add a page with an offset greater than every page in an array that is
+	 * not yet visible to other threads.
+	 */
+	private void appendPage(int offset, Container page) {
+		if (page != null) {
+			page = own(page);
+			directory.add(offset, page);
+			account(page, 1);
+			cardinality += page.cardinality();
+		}
+	}
+
+	/**
+	 * Visits the pages of two arrays that have the same offset.
+	 */
+	private static abstract class PageVisitor {
+		/**
+		 * Visit a page.
+		 * 
+		 * @param offset
+		 *            the page offset.
+		 * @param a
+		 *            the page of this array, null if there is none.
+		 * @param b
+		 *            the page of the other array, null if there is none.
+		 * @return false to stop the merge.
+		 */
+		abstract boolean visit(int offset, Container a, Container b);
+	}
+
+	/**
+	 * Visit the pages of this and the other array in offset order with both
+	 * arrays read locked. The locks are taken in identity hash order so that
+	 * merges of the same arrays from different threads do not deadlock.
+	 * 
+	 * @param mode
+	 *            INTERSECT visits offsets present in both arrays, LEFT the
+	 *            offsets present in this array and UNION the offsets present in
+	 *            either.
+	 */
+	private void merge(SparseBitArray other, int mode, PageVisitor visitor) {
+		if (other.pageSize != pageSize) {
+			throw new IllegalArgumentException(String.format(
+					"Page sizes (%s,%s) must match", pageSize, other.pageSize));
+		}
+		if (other == this) {
+			long stamp = lock.readLock();
+			try {
+				walk(this, mode, visitor);
+			} finally {
+				lock.unlockRead(stamp);
+			}
+			return;
+		}
+		int h1 = System.identityHashCode(this);
+		int h2 = System.identityHashCode(other);
+		if (h1 == h2) {
+			synchronized (TIE_LOCK) {
+				lockedWalk(this, other, other, mode, visitor);
+			}
+		} else {
+			lockedWalk(h1 < h2 ? this : other, h1 < h2 ? other : this, other,
+					mode, visitor);
+		}
+	}
+
+	private void lockedWalk(SparseBitArray first, SparseBitArray second,
+			SparseBitArray other, int mode, PageVisitor visitor) {
+		long firstStamp = first.lock.readLock();
+		try {
+			long secondStamp = second.lock.readLock();
+			try {
+				walk(other, mode, visitor);
+			} finally {
+				second.lock.unlockRead(secondStamp);
+			}
+		} finally {
+			first.lock.unlockRead(firstStamp);
+		}
+	}
+
+	/**
+	 * Walk the directories. Pages missing from one array are skipped by a
+	 * search of the other directory rather than a step at a time.
+	 */
+	private void walk(SparseBitArray other, int mode, PageVisitor visitor) {
+		PageDirectory<Container> a = directory;
+		PageDirectory<Container> b = other.directory;
 		int i = 0;
-		Page p = first;
-		while (p != null) {
-			i++;
-			p = p.next;
+		int j = 0;
+		while (i < a.size() || (mode == UNION && j < b.size())) {
+			if (j == b.size()) {
+				if (mode == INTERSECT) {
+					return;
+				}
+				if (!visitor.visit(a.offsetAt(i), a.pageAt(i), null)) {
+					return;
+				}
+				i++;
+			} else if (i == a.size()) {
+				if (!visitor.visit(b.offsetAt(j), null, b.pageAt(j))) {
+					return;
+				}
+				j++;
+			} else {
+				int oa = a.offsetAt(i);
+				int ob = b.offsetAt(j);
+				if (oa == ob) {
+					if (!visitor.visit(oa, a.pageAt(i), b.pageAt(j))) {
+						return;
+					}
+					i++;
+					j++;
+				} else if (oa < ob) {
+					if (mode == INTERSECT) {
+						i = a.ceilingIndex(ob);
+					} else {
+						if (!visitor.visit(oa, a.pageAt(i), null)) {
+							return;
+						}
+						i++;
+					}
+				} else {
+					if (mode == UNION) {
+						if (!visitor.visit(ob, null, b.pageAt(j))) {
+							return;
+						}
+						j++;
+					} else {
+						j = b.ceilingIndex(oa);
+					}
+				}
+			}
 		}
-		return i;
 	}
 
-	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
-		out.write(pageSize);
-		Page p = first;
-		out.writeInt(getPageCount());
+	/**
+	 * Get a cursor over the set bits in index order.
+	 */
+	public IndexCursor cursor() {
+		return new BitCursor(this);
+	}
+
+	public ExtendedIterator<Integer> iterator() {
+		return new IndexCursorIterator(cursor());
+	}
 
-		while (p != null) {
-			out.writeObject(p);
-			p = p.next;
+	private void writeObject(java.io.ObjectOutputStream out) throws IOException {
+		long stamp = lock.readLock();
+		try {
+			out.writeInt(pageSize);
+			out.writeInt(directory.size());
+			for (int i = 0; i < directory.size(); i++) {
+				out.writeInt(directory.offsetAt(i));
+				out.writeObject(directory.pageAt(i));
+			}
+		} finally {
+			lock.unlockRead(stamp);
 		}
 	}
 
 	private void readObject(java.io.ObjectInputStream in) throws IOException,
 			ClassNotFoundException {
 		pageSize = in.readInt();
+		directory = new PageDirectory<Container>();
+		lock = new StampedLock();
+		lockedReads = new AtomicLong(0);
+		store = PageStore.heap();
 		int pageCount = in.readInt();
 		for (int i = 0; i < pageCount; i++) {
-
-			Page p = (Page) in.readObject();
-			if (first == null) {
-				first = p;
-				last = p;
-			} else {
-				last.next = p;
-				p.prev = last;
-				last = p;
-			}
+			int offset = in.readInt();
+			Container page = (Container) in.readObject();
+			directory.add(offset, page);
+			account(page, 1);
+			cardinality += page.cardinality();
 		}
 	}
 
-	private class Page implements Serializable {
-		private int offset;
-		private BitSet data;
-		private transient Page next;
-		private transient Page prev;
-		private transient final ReentrantReadWriteLock LOCK_FACTORY = new ReentrantReadWriteLock();
-
-		private Page(int offset, Page prev, Page next) {
-			this.offset = offset;
-			this.prev = prev;
-			this.next = next;
-			data = new BitSet(pageSize);
-			if (prev != null) {
-				prev.next = this;
+	/**
+	 * A page located by a cursor and the stamp it was located under. The
+	 * directory and the page are read without locking, as get() does, and
+	 * read again under the read lock if the array was written since, because
+	 * writers may change the directory and the page in place.
+	 */
+	private static class PageRef {
+		int offset = -1;
+		// null if there is no page
+		Container page;
+		long stamp;
+
+		/**
+		 * Locate the first page at or after an offset.
+		 * 
+		 * @return false if there is none.
+		 */
+		boolean locate(SparseBitArray array, int off) {
+			long stamp = array.lock.tryOptimisticRead();
+			if (stamp != 0) {
+				try {
+					boolean retval = find(array, off);
+					if (array.lock.validate(stamp)) {
+						this.stamp = stamp;
+						return retval;
+					}
+				} catch (RuntimeException e) {
+					// the directory changed under us, retry with the read lock
+				}
 			}
-			if (next != null) {
-				next.prev = this;
+			stamp = array.readLockAfterRetry();
+			try {
+				return find(array, off);
+			} finally {
+				this.stamp = array.lock.tryConvertToOptimisticRead(stamp);
 			}
 		}
 
-		public boolean contains(int idx) {
-			return offset == idx / pageSize;
+		private boolean find(SparseBitArray array, int off) {
+			PageDirectory<Container> directory = array.directory;
+			int i = directory.ceilingIndex(off);
+			if (i < directory.size()) {
+				offset = directory.offsetAt(i);
+				page = directory.pageAt(i);
+				return true;
+			}
+			page = null;
+			return false;
 		}
 
-		public boolean isEmpty() {
-			ReadLock rl = LOCK_FACTORY.readLock();
-			rl.lock();
+		/**
+		 * Get the next set bit of the page.
+		 * 
+		 * @return the bit or -1 if there is none or the page was removed.
+		 */
+		int nextSetBit(SparseBitArray array, int bit) {
+			if (page != null) {
+				try {
+					int retval = page.nextSetBit(bit);
+					if (array.lock.validate(stamp)) {
+						return retval;
+					}
+				} catch (RuntimeException e) {
+					// the page changed under us, retry with the read lock
+				}
+			}
+			long stamp = array.readLockAfterRetry();
 			try {
-				return data.isEmpty();
+				page = array.directory.get(offset);
+				return page == null ? -1 : page.nextSetBit(bit);
 			} finally {
-				rl.unlock();
+				this.stamp = array.lock.tryConvertToOptimisticRead(stamp);
 			}
 		}
 
-		private synchronized boolean set(int idx, boolean value) {
-			WriteLock wl = LOCK_FACTORY.writeLock();
-			wl.lock();
-			try {
-				int pageIdx = idx % pageSize;
-				boolean retval = data.get(pageIdx);
-				if (value) {
-					data.set(pageIdx);
-				} else {
-					data.clear(pageIdx);
+		/**
+		 * Get a word of the page.
+		 * 
+		 * @return the word or 0 if the page was removed.
+		 */
+		long getWord(SparseBitArray array, int w) {
+			if (page != null) {
+				try {
+					long retval = page.getWord(w);
+					if (array.lock.validate(stamp)) {
+						return retval;
+					}
+				} catch (RuntimeException e) {
+					// the page changed under us, retry with the read lock
 				}
-				return retval;
+			}
+			long stamp = array.readLockAfterRetry();
+			try {
+				page = array.directory.get(offset);
+				return page == null ? 0 : page.getWord(w);
 			} finally {
-				wl.unlock();
+				this.stamp = array.lock.tryConvertToOptimisticRead(stamp);
 			}
 		}
+	}
 
-		private boolean get(int idx) {
-			ReadLock rl = LOCK_FACTORY.readLock();
-			rl.lock();
-			try {
-				int pageIdx = idx % pageSize;
-				return data.get(pageIdx);
-			} finally {
-				rl.unlock();
+	/**
+	 * A cursor over the set bits in index order. Pages are re-located by
+	 * offset as each one is exhausted so pages created or removed during
+	 * iteration do not invalidate the cursor. A cursor may be reset to walk
+	 * another array so that scans over many rows reuse one cursor.
+	 */
+	static class BitCursor implements IndexCursor {
+		private SparseBitArray array;
+		private final PageRef ref = new PageRef();
+		private int pos;
+		private int index;
+
+		BitCursor(SparseBitArray array) {
+			reset(array);
+		}
+
+		void reset(SparseBitArray array) {
+			this.array = array;
+			ref.page = null;
+			ref.offset = -1;
+		}
+
+		private boolean nextPage() {
+			if (array == null) {
+				return false;
+			}
+			if (ref.locate(array, ref.offset + 1)) {
+				pos = -1;
+				return true;
 			}
+			array = null;
+			return false;
 		}
 
-		public ExtendedIterator<Integer> indexIterator() {
-			return WrappedIterator.create(new PageIterator());
+		/**
+		 * Position the cursor so that the next call to next() returns the
+		 * first set bit greater than or equal to idx. An exhausted cursor
+		 * remains exhausted.
+		 */
+		void seek(int idx) {
+			if (array == null) {
+				return;
+			}
+			int off = idx / array.pageSize;
+			if (ref.locate(array, off)) {
+				pos = ref.offset == off ? (idx % array.pageSize) - 1 : -1;
+				return;
+			}
+			array = null;
 		}
 
-		private class PageIterator extends BitSetIterator {
-			PageIterator() {
-				super(data);
+		@Override
+		public boolean next() {
+			do {
+				if (ref.page != null) {
+					pos = ref.nextSetBit(array, pos + 1);
+					if (pos >= 0) {
+						index = (ref.offset * array.pageSize) + pos;
+						return true;
+					}
+				}
+			} while (nextPage());
+			return false;
+		}
+
+		@Override
+		public int getIndex() {
+			return index;
+		}
+	}
+
+	/**
+	 * A cursor over the bits set in all of a set of arrays. The arrays
+	 * leapfrog each other: first to the next page offset present in every
+	 * array, then within the pages to the next word that has bits in every
+	 * page. The words are then combined and the bits of the result returned.
+	 * As with BitCursor pages are re-located by offset so that writes during
+	 * iteration do not invalidate the cursor.
+	 */
+	static class AndCursor implements IndexCursor {
+		private final SparseBitArray[] arrays;
+		private final PageRef[] refs;
+		private final int pageSize;
+		private int offset;
+		private boolean pageActive;
+		private int w;
+		private long word;
+		private int index;
+		private boolean done;
+
+		AndCursor(SparseBitArray[] arrays) {
+			if (arrays.length == 0) {
+				throw new IllegalArgumentException(
+						"At least one array is required");
+			}
+			this.arrays = arrays;
+			this.refs = new PageRef[arrays.length];
+			this.pageSize = arrays[0].pageSize;
+			for (int k = 0; k < arrays.length; k++) {
+				if (arrays[k].pageSize != pageSize) {
+					throw new IllegalArgumentException(String.format(
+							"Page sizes (%s,%s) must match", pageSize,
+							arrays[k].pageSize));
+				}
+				refs[k] = new PageRef();
 			}
+			this.offset = -1;
+		}
 
-			@Override
-			public Integer next() {
-				return getNext() + (offset * pageSize);
+		private boolean nextPage() {
+			if (done) {
+				return false;
+			}
+			int target = offset + 1;
+			int agreed = 0;
+			int k = 0;
+			while (agreed < arrays.length) {
+				if (!refs[k].locate(arrays[k], target)) {
+					done = true;
+					return false;
+				}
+				if (refs[k].offset == target) {
+					agreed++;
+				} else {
+					target = refs[k].offset;
+					agreed = 1;
+				}
+				k = (k + 1) % arrays.length;
+			}
+			offset = target;
+			w = -1;
+			return true;
+		}
+
+		private boolean nextWord() {
+			int target = w + 1;
+			int agreed = 0;
+			int k = 0;
+			while (agreed < refs.length) {
+				int i = refs[k].nextSetBit(arrays[k], target << 6);
+				if (i < 0) {
+					return false;
+				}
+				if ((i >>> 6) == target) {
+					agreed++;
+				} else {
+					target = i >>> 6;
+					agreed = 1;
+				}
+				k = (k + 1) % refs.length;
+			}
+			w = target;
+			word = -1L;
+			for (int i = 0; i < refs.length && word != 0; i++) {
+				word &= refs[i].getWord(arrays[i], w);
 			}
+			return true;
+		}
+
+		@Override
+		public boolean next() {
+			while (true) {
+				if (word != 0) {
+					index = (offset * pageSize) + (w << 6)
+							+ Long.numberOfTrailingZeros(word);
+					word &= word - 1;
+					return true;
+				}
+				if (!pageActive || !nextWord()) {
+					pageActive = nextPage();
+					if (!pageActive) {
+						return false;
+					}
+				}
+			}
+		}
+
+		@Override
+		public int getIndex() {
+			return index;
 		}
 	}
 
@@ -0,0 +1,60 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+/**
+ * An iterator over a cube as a trie. The first level holds the z values, the
+ * second the y values of the current z and the third the x values of the
+ * current (z, y) row. Keys on each level are returned in ascending order.
+ * 
+ * The iterator starts above the first level, open() moves down to the first
+ * key of the next level and up() returns to the key it was opened from.
+ * 
+ */
+public interface TrieIterator {
+	/**
+	 * Move down to the first key under the current key.
+	 */
+	public void open();
+
+	/**
+	 * Move up to the key the current level was opened from.
+	 */
+	public void up();
+
+	/**
+	 * Move to the next key on the current level.
+	 */
+	public void next();
+
+	/**
+	 * Move to the first key on the current level that is greater than or
+	 * equal to the key. The key must not be less than the current key.
+	 */
+	public void seek(long key);
+
+	/**
+	 * True if there are no more keys on the current level.
+	 */
+	public boolean atEnd();
+
+	/**
+	 * The current key. Only valid if atEnd() is false.
+	 */
+	public long key();
+}
@@ -0,0 +1,442 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A multi-way join of patterns over cubes evaluated by leapfrog triejoin.
+ * 
+ * Each pattern is a (x, y, z) position where every term is either a value or
+ * a variable. The variables are bound one at a time in a global order. For
+ * each variable the trie iterators of every pattern that contains it
+ * leapfrog each other: each in turn seeks to the largest key seen so far
+ * until they all agree. Values that are missing from any one pattern are
+ * skipped by a seek rather than enumerated, so the work is bounded by the
+ * size of the result rather than by the intermediate results of a pairwise
+ * join. Cyclic patterns such as triangles and star patterns do not build
+ * intermediate results at all.
+ * 
+ * A cube is a z, y, x trie, so the variables of a pattern are bound in z, y,
+ * x order. The global order must agree with the order of every pattern. The
+ * caller should pick, for each pattern, a cube order that puts its values
+ * first and its variables in a consistent order. Values that follow a
+ * variable in the trie, and variables that are repeated in a pattern, are
+ * checked as soon as the preceding variable is bound.
+ * 
+ */
+public class TrieJoin {
+	private final List<Atom> atoms = new ArrayList<Atom>();
+	private int variableCount;
+
+	/**
+	 * Get the term for a variable.
+	 * 
+	 * @param v
+	 *            the variable number, 0 or greater.
+	 * @return the term, -(v + 1).
+	 */
+	public static long variable(int v) {
+		if (v < 0) {
+			throw new IllegalArgumentException(String.format(
+					"Variable (%s) must be greater than or equals to 0", v));
+		}
+		return -(v + 1);
+	}
+
+	private static boolean isVariable(long term) {
+		return term < 0;
+	}
+
+	private static int variableOf(long term) {
+		return (int) -(term + 1);
+	}
+
+	/**
+	 * Add a pattern. Each term is a value or a term created by variable().
+	 * 
+	 * @param cube
+	 *            the cube to match.
+	 * @return this join.
+	 */
+	public TrieJoin add(Cube cube, long x, long y, long z) {
+		Atom atom = new Atom(cube, new long[] { z, y, x });
+		for (long term : atom.terms) {
+			if (isVariable(term)) {
+				variableCount = Math.max(variableCount, variableOf(term) + 1);
+			}
+		}
+		atoms.add(atom);
+		return this;
+	}
+
+	/**
+	 * The number of variables. Variables are numbered from 0.
+	 */
+	public int getVariableCount() {
+		return variableCount;
+	}
+
+	/**
+	 * Get the order in which the variables are bound. Among the variables
+	 * that may be bound next the one that occurs in the most patterns is
+	 * chosen so that the most constrained variables are bound first.
+	 * 
+	 * @return the variables in binding order.
+	 * @throws IllegalArgumentException
+	 *             if a variable is not used or the patterns require
+	 *             conflicting orders.
+	 */
+	public int[] getVariableOrder() {
+		int[] uses = new int[variableCount];
+		boolean[][] before = new boolean[variableCount][variableCount];
+		for (Atom atom : atoms) {
+			int last = -1;
+			boolean[] seen = new boolean[variableCount];
+			for (long term : atom.terms) {
+				if (isVariable(term) && !seen[variableOf(term)]) {
+					int v = variableOf(term);
+					seen[v] = true;
+					uses[v]++;
+					if (last >= 0) {
+						before[last][v] = true;
+					}
+					last = v;
+				}
+			}
+		}
+		int[] order = new int[variableCount];
+		boolean[] placed = new boolean[variableCount];
+		for (int i = 0; i < variableCount; i++) {
+			int best = -1;
+			for (int v = 0; v < variableCount; v++) {
+				if (placed[v] || uses[v] == 0) {
+					continue;
+				}
+				boolean ready = true;
+				for (int u = 0; u < variableCount && ready; u++) {
+					ready = placed[u] || !before[u][v];
+				}
+				if (ready && (best < 0 || uses[v] > uses[best])) {
+					best = v;
+				}
+			}
+			if (best < 0) {
+				for (int v = 0; v < variableCount; v++) {
+					if (uses[v] == 0) {
+						throw new IllegalArgumentException(String.format(
+								"Variable %s is not used", v));
+					}
+				}
+				throw new IllegalArgumentException(
+						"The patterns do not have a consistent variable order");
+			}
+			order[i] = best;
+			placed[best] = true;
+		}
+		return order;
+	}
+
+	/**
+	 * Get a cursor over the solutions. Each call returns a new cursor that
+	 * evaluates the join lazily as it advances.
+	 */
+	public BindingCursor cursor() {
+		return new JoinCursor(getVariableOrder());
+	}
+
+	/**
+	 * A pattern.
+	 */
+	private static class Atom {
+		final Cube cube;
+		// in trie order: z, y, x
+		final long[] terms;
+
+		Atom(Cube cube, long[] terms) {
+			this.cube = cube;
+			this.terms = terms;
+		}
+	}
+
+	/**
+	 * A trie iterator on a pattern and the number of trie levels it has
+	 * opened.
+	 */
+	private static class Probe {
+		final long[] terms;
+		final TrieIterator trie;
+		int depth;
+
+		Probe(Atom atom) {
+			this.terms = atom.terms;
+			this.trie = atom.cube.trieIterator();
+			this.depth = 0;
+		}
+
+		void upTo(int mark) {
+			while (depth > mark) {
+				trie.up();
+				depth--;
+			}
+		}
+	}
+
+	/**
+	 * The probes that bind one variable and the leapfrog state.
+	 */
+	private static class Level {
+		final int variable;
+		final Probe[] probes;
+		// the probe positions sorted by key when the level is opened
+		final int[] ring;
+		// probe depth before the level was opened and after it was bound
+		final int[] openMark;
+		final int[] bindMark;
+		int p;
+		boolean atEnd;
+		long key;
+
+		Level(int variable, Probe[] probes) {
+			this.variable = variable;
+			this.probes = probes;
+			this.ring = new int[probes.length];
+			this.openMark = new int[probes.length];
+			this.bindMark = new int[probes.length];
+		}
+
+		private TrieIterator trie(int i) {
+			return probes[ring[i]].trie;
+		}
+
+		void open() {
+			atEnd = false;
+			for (int i = 0; i < probes.length; i++) {
+				Probe probe = probes[i];
+				openMark[i] = probe.depth;
+				probe.trie.open();
+				probe.depth++;
+				atEnd |= probe.trie.atEnd();
+				ring[i] = i;
+			}
+			if (atEnd) {
+				return;
+			}
+			// insertion sort by key, there are few probes
+			for (int i = 1; i < ring.length; i++) {
+				int r = ring[i];
+				long k = probes[r].trie.key();
+				int j = i - 1;
+				while (j >= 0 && trie(j).key() > k) {
+					ring[j + 1] = ring[j];
+					j--;
+				}
+				ring[j + 1] = r;
+			}
+			p = 0;
+			search();
+		}
+
+		void close() {
+			for (int i = 0; i < probes.length; i++) {
+				probes[i].upTo(openMark[i]);
+			}
+		}
+
+		private void search() {
+			long max = trie((p + ring.length - 1) % ring.length).key();
+			while (true) {
+				TrieIterator trie = trie(p);
+				long k = trie.key();
+				if (k == max) {
+					key = k;
+					return;
+				}
+				trie.seek(max);
+				if (trie.atEnd()) {
+					atEnd = true;
+					return;
+				}
+				max = trie.key();
+				p = (p + 1) % ring.length;
+			}
+		}
+
+		void advance() {
+			TrieIterator trie = trie(p);
+			trie.next();
+			if (trie.atEnd()) {
+				atEnd = true;
+				return;
+			}
+			p = (p + 1) % ring.length;
+			search();
+		}
+	}
+
+	/**
+	 * The cursor implementation. The levels are a stack that is walked
+	 * depth first, one solution at a time.
+	 */
+	private class JoinCursor implements BindingCursor {
+		private final Probe[] probes;
+		private final Level[] levels;
+		private final long[] binding;
+		private final boolean[] bound;
+		private int depth;
+		private boolean started;
+		private boolean done;
+
+		JoinCursor(int[] order) {
+			probes = new Probe[atoms.size()];
+			for (int i = 0; i < probes.length; i++) {
+				probes[i] = new Probe(atoms.get(i));
+			}
+			levels = new Level[order.length];
+			for (int i = 0; i < order.length; i++) {
+				List<Probe> list = new ArrayList<Probe>();
+				for (Probe probe : probes) {
+					for (long term : probe.terms) {
+						if (isVariable(term) && variableOf(term) == order[i]) {
+							list.add(probe);
+							break;
+						}
+					}
+				}
+				levels[i] = new Level(order[i],
+						list.toArray(new Probe[list.size()]));
+			}
+			binding = new long[variableCount];
+			Arrays.fill(binding, -1);
+			bound = new boolean[variableCount];
+		}
+
+		/**
+		 * Open the trie levels of a probe that are values or bound
+		 * variables.
+		 * 
+		 * @return false if a value is not present.
+		 */
+		private boolean descend(Probe probe) {
+			while (probe.depth < probe.terms.length) {
+				long term = probe.terms[probe.depth];
+				long value;
+				if (!isVariable(term)) {
+					value = term;
+				} else if (bound[variableOf(term)]) {
+					value = binding[variableOf(term)];
+				} else {
+					return true;
+				}
+				probe.trie.open();
+				probe.depth++;
+				probe.trie.seek(value);
+				if (probe.trie.atEnd() || probe.trie.key() != value) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		/**
+		 * Bind the variable of a level to its current key.
+		 * 
+		 * @return false if a probe does not match the binding.
+		 */
+		private boolean bind(Level level) {
+			binding[level.variable] = level.key;
+			bound[level.variable] = true;
+			for (int i = 0; i < level.probes.length; i++) {
+				level.bindMark[i] = level.probes[i].depth;
+				if (!descend(level.probes[i])) {
+					for (int j = 0; j <= i; j++) {
+						level.probes[j].upTo(level.bindMark[j]);
+					}
+					bound[level.variable] = false;
+					return false;
+				}
+			}
+			return true;
+		}
+
+		private void unbind(Level level) {
+			for (int i = 0; i < level.probes.length; i++) {
+				level.probes[i].upTo(level.bindMark[i]);
+			}
+			bound[level.variable] = false;
+		}
+
+		private boolean start() {
+			for (Probe probe : probes) {
+				if (!descend(probe)) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		@Override
+		public boolean next() {
+			if (done) {
+				return false;
+			}
+			if (!started) {
+				started = true;
+				boolean matched = start();
+				if (!matched || levels.length == 0) {
+					done = true;
+					// with no variables there is one empty solution if every
+					// pattern matched
+					return matched;
+				}
+				depth = 0;
+				levels[0].open();
+			} else {
+				unbind(levels[depth]);
+				levels[depth].advance();
+			}
+			while (true) {
+				Level level = levels[depth];
+				if (level.atEnd) {
+					level.close();
+					if (depth == 0) {
+						done = true;
+						return false;
+					}
+					depth--;
+					unbind(levels[depth]);
+					levels[depth].advance();
+				} else if (!bind(level)) {
+					level.advance();
+				} else if (depth == levels.length - 1) {
+					return true;
+				} else {
+					depth++;
+					levels[depth].open();
+				}
+			}
+		}
+
+		@Override
+		public long get(int variable) {
+			return binding[variable];
+		}
+	}
+}
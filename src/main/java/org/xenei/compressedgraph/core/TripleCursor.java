@@ -0,0 +1,42 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+/**
+ * A cursor over the set positions of a Cube.
+ * 
+ * Unlike an iterator a cursor does not allocate an object for each result.
+ * Call next() to move to the next position and then read it with getX(),
+ * getY() and getZ(). When the cube holds a graph x is the subject, y the
+ * predicate and z the object.
+ * 
+ */
+public interface TripleCursor {
+	/**
+	 * Move to the next position.
+	 * 
+	 * @return true if there is a position, false if the cursor is exhausted.
+	 */
+	public boolean next();
+
+	public long getX();
+
+	public long getY();
+
+	public long getZ();
+}
@@ -0,0 +1,156 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import java.util.Arrays;
+
+/**
+ * Sorts positions held in three parallel arrays into z, y, x order.
+ * 
+ * When the largest x, y and z values fit in a long together the positions are
+ * packed into longs and sorted with Arrays.sort. Otherwise the parallel
+ * arrays are sorted in place so that no second copy of the positions is
+ * needed.
+ */
+final class TripleSort {
+	private static final int INSERTION_SORT_THRESHOLD = 16;
+
+	private TripleSort() {
+	}
+
+	/**
+	 * Sort the first count positions.
+	 */
+	static void sort(long[] xs, long[] ys, long[] zs, int count) {
+		long maxX = 0;
+		long maxY = 0;
+		long maxZ = 0;
+		for (int i = 0; i < count; i++) {
+			maxX |= xs[i];
+			maxY |= ys[i];
+			maxZ |= zs[i];
+		}
+		int xBits = 64 - Long.numberOfLeadingZeros(maxX);
+		int yBits = 64 - Long.numberOfLeadingZeros(maxY);
+		int zBits = 64 - Long.numberOfLeadingZeros(maxZ);
+		if (xBits + yBits + zBits <= 63) {
+			packedSort(xs, ys, zs, count, xBits, yBits);
+		} else {
+			sort(xs, ys, zs, 0, count);
+		}
+	}
+
+	private static void packedSort(long[] xs, long[] ys, long[] zs,
+			int count, int xBits, int yBits) {
+		long[] packed = new long[count];
+		for (int i = 0; i < count; i++) {
+			packed[i] = (((zs[i] << yBits) | ys[i]) << xBits) | xs[i];
+		}
+		Arrays.sort(packed);
+		long xMask = (1L << xBits) - 1;
+		long yMask = (1L << yBits) - 1;
+		for (int i = 0; i < count; i++) {
+			long v = packed[i];
+			xs[i] = v & xMask;
+			ys[i] = (v >>> xBits) & yMask;
+			zs[i] = v >>> (xBits + yBits);
+		}
+	}
+
+	private static int compare(long[] xs, long[] ys, long[] zs, int i,
+			long x, long y, long z) {
+		if (zs[i] != z) {
+			return zs[i] < z ? -1 : 1;
+		}
+		if (ys[i] != y) {
+			return ys[i] < y ? -1 : 1;
+		}
+		if (xs[i] != x) {
+			return xs[i] < x ? -1 : 1;
+		}
+		return 0;
+	}
+
+	private static int compare(long[] xs, long[] ys, long[] zs, int i, int j) {
+		return compare(xs, ys, zs, i, xs[j], ys[j], zs[j]);
+	}
+
+	private static void swap(long[] xs, long[] ys, long[] zs, int i, int j) {
+		long t = xs[i];
+		xs[i] = xs[j];
+		xs[j] = t;
+		t = ys[i];
+		ys[i] = ys[j];
+		ys[j] = t;
+		t = zs[i];
+		zs[i] = zs[j];
+		zs[j] = t;
+	}
+
+	/**
+	 * Sort the range from (inclusive) to (exclusive). Recurses on the smaller
+	 * partition so the stack depth is O(log n).
+	 */
+	private static void sort(long[] xs, long[] ys, long[] zs, int from,
+			int to) {
+		while (to - from > INSERTION_SORT_THRESHOLD) {
+			int mid = (from + to) >>> 1;
+			int last = to - 1;
+			// median of three to mid
+			if (compare(xs, ys, zs, mid, from) < 0) {
+				swap(xs, ys, zs, mid, from);
+			}
+			if (compare(xs, ys, zs, last, mid) < 0) {
+				swap(xs, ys, zs, last, mid);
+				if (compare(xs, ys, zs, mid, from) < 0) {
+					swap(xs, ys, zs, mid, from);
+				}
+			}
+			long px = xs[mid];
+			long py = ys[mid];
+			long pz = zs[mid];
+			int i = from;
+			int j = last;
+			while (i <= j) {
+				while (compare(xs, ys, zs, i, px, py, pz) < 0) {
+					i++;
+				}
+				while (compare(xs, ys, zs, j, px, py, pz) > 0) {
+					j--;
+				}
+				if (i <= j) {
+					swap(xs, ys, zs, i, j);
+					i++;
+					j--;
+				}
+			}
+			if (j - from < to - i) {
+				sort(xs, ys, zs, from, j + 1);
+				from = i;
+			} else {
+				sort(xs, ys, zs, i, to);
+				to = j + 1;
+			}
+		}
+		for (int i = from + 1; i < to; i++) {
+			for (int j = i; j > from && compare(xs, ys, zs, j, j - 1) < 0; j--) {
+				swap(xs, ys, zs, j, j - 1);
+			}
+		}
+	}
+}
@@ -10,7 +10,6 @@ import java.util.Map.Entry;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.xenei.compressedgraph.SerializableNode;
-import org.xenei.compressedgraph.mfp.NodeMap.MapEntry;
 
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.Triple;
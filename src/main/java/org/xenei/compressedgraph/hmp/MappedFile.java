@@ -0,0 +1,165 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.hmp;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A file that is read and written through memory mapped segments. The file
+ * grows a segment at a time as it is written.
+ * 
+ * Writes must be serialized by the caller. Reads only use absolute gets on
+ * the segments, or on duplicates of them, so any number of threads may read
+ * without locking while another writes. A reader must only read bytes that
+ * were written before it learned their position.
+ */
+class MappedFile implements Closeable {
+	// 16MB segments
+	static final int DEFAULT_SEGMENT_SIZE = 1 << 24;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final int segmentSize;
+	// replaced, never changed, when a segment is added
+	private volatile ByteBuffer[] segments;
+	// the number of bytes written, written by the writer
+	private volatile long length;
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param file
+	 *            the file, its contents are discarded.
+	 * @param segmentSize
+	 *            the size of each mapped segment.
+	 */
+	MappedFile(File file, int segmentSize) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		this.file.setLength(0);
+		this.channel = this.file.getChannel();
+		this.segmentSize = segmentSize;
+		this.segments = new ByteBuffer[0];
+		this.length = 0;
+	}
+
+	/**
+	 * Get the number of bytes written.
+	 */
+	long length() {
+		return length;
+	}
+
+	// map segments until pos is in the file
+	private ByteBuffer[] ensure(long pos) throws IOException {
+		ByteBuffer[] segs = segments;
+		int needed = (int) (pos / segmentSize) + 1;
+		if (needed > segs.length) {
+			int i = segs.length;
+			segs = Arrays.copyOf(segs, needed);
+			for (; i < needed; i++) {
+				segs[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+						(long) i * segmentSize, segmentSize).order(
+						ByteOrder.BIG_ENDIAN);
+			}
+			segments = segs;
+		}
+		return segs;
+	}
+
+	/**
+	 * Write bytes at a position.
+	 */
+	void put(long pos, byte[] src) throws IOException {
+		put(pos, src, 0, src.length);
+	}
+
+	/**
+	 * Write len bytes of src, starting at off, at a position.
+	 */
+	void put(long pos, byte[] src, int off, int len) throws IOException {
+		if (len == 0) {
+			return;
+		}
+		ByteBuffer[] segs = ensure(pos + len - 1);
+		int end = off + len;
+		while (off < end) {
+			ByteBuffer seg = segs[(int) (pos / segmentSize)].duplicate();
+			seg.position((int) (pos % segmentSize));
+			int n = Math.min(end - off, seg.remaining());
+			seg.put(src, off, n);
+			off += n;
+			pos += n;
+		}
+		length = Math.max(length, pos);
+	}
+
+	void putLong(long pos, long value) throws IOException {
+		byte[] b = new byte[8];
+		ByteBuffer.wrap(b).putLong(value);
+		put(pos, b);
+	}
+
+	/**
+	 * Read bytes from a position.
+	 */
+	void get(long pos, byte[] dst) {
+		ByteBuffer[] segs = segments;
+		int off = 0;
+		while (off < dst.length) {
+			ByteBuffer seg = segs[(int) (pos / segmentSize)].duplicate();
+			seg.position((int) (pos % segmentSize));
+			int n = Math.min(dst.length - off, seg.remaining());
+			seg.get(dst, off, n);
+			off += n;
+			pos += n;
+		}
+	}
+
+	int getInt(long pos) {
+		int i = (int) (pos % segmentSize);
+		if (i + 4 <= segmentSize) {
+			return segments[(int) (pos / segmentSize)].getInt(i);
+		}
+		byte[] b = new byte[4];
+		get(pos, b);
+		return ByteBuffer.wrap(b).getInt();
+	}
+
+	long getLong(long pos) {
+		int i = (int) (pos % segmentSize);
+		if (i + 8 <= segmentSize) {
+			return segments[(int) (pos / segmentSize)].getLong(i);
+		}
+		byte[] b = new byte[8];
+		get(pos, b);
+		return ByteBuffer.wrap(b).getLong();
+	}
+
+	@Override
+	public void close() throws IOException {
+		channel.close();
+		file.close();
+	}
+}
@@ -19,144 +19,286 @@ package org.xenei.compressedgraph.hmp;
 
 import java.io.File;
 import java.io.IOException;
-import java.io.RandomAccessFile;
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedHashMap;
-import java.util.Map;
+import java.nio.ByteBuffer;
+import org.xenei.compressedgraph.HashIndex;
+import org.xenei.compressedgraph.NodeBloomFilter;
+import org.xenei.compressedgraph.NodeCache;
 import org.xenei.compressedgraph.SerializableNode;
 import org.xenei.compressedgraph.INodeMap;
+import org.xenei.compressedgraph.core.MemoryStats;
 import com.hp.hpl.jena.graph.Node;
 
 /**
  * A node map that stores data in 2 random access files.
  * 
+ * The files are memory mapped, see MappedFile. Adding and finding nodes is
+ * synchronized and uses the node cache. Getting a node by id does neither
+ * and may run in parallel.
+ * 
+ * New nodes are appended to an in memory buffer and written to the files in
+ * one bulk write per file when the buffer holds flushRecords nodes or
+ * flushBytes bytes, or when flush() is called. Buffered nodes are found and
+ * got like written ones.
  */
 public class NodeMap implements INodeMap {
+	// the default number of nodes and data bytes buffered before a flush
+	static final int DEFAULT_FLUSH_RECORDS = 4096;
+	static final int DEFAULT_FLUSH_BYTES = 1 << 20;
 
-	private RandomAccessFile data;
-	private RandomAccessFile idx;
-	private Map<Integer, ListSet<Long>> map;
-	private int size;
-	final static int MAX_ENTRIES = 100;
-	private Map<Integer, SerializableNode> cache;
+	private MappedFile data;
+	private MappedFile idx;
+	// the node hashes to the data file positions
+	private HashIndex map;
+	// written after the node is written, so a reader that sees an id can
+	// read the node
+	private volatile long size;
+	private NodeCache cache;
+	// the nodes in the map, so that most new nodes are not searched for
+	private NodeBloomFilter filter;
+	// the bytes written to the files, written while synchronized
+	private volatile long fileBytes;
+	// the buffered data records and index entries
+	private ByteBuffer records;
+	private ByteBuffer positions;
+	// the data file position of the first buffered record
+	private long recordsStart;
+	// the nodes below flushed are in the files
+	private volatile long flushed;
+	// replaced, never changed, on flush
+	private volatile Pending pending;
 
 	public NodeMap() throws IOException {
+		this(NodeCache.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cacheSize
+	 *            the number of nodes to cache, see NodeCache.
+	 */
+	public NodeMap(int cacheSize) throws IOException {
+		this(cacheSize, MappedFile.DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cacheSize
+	 *            the number of nodes to cache, see NodeCache.
+	 * @param segmentSize
+	 *            the size of the mapped segments of the files.
+	 */
+	NodeMap(int cacheSize, int segmentSize) throws IOException {
+		this(cacheSize, segmentSize, DEFAULT_FLUSH_RECORDS, DEFAULT_FLUSH_BYTES);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param cacheSize
+	 *            the number of nodes to cache, see NodeCache.
+	 * @param segmentSize
+	 *            the size of the mapped segments of the files.
+	 * @param flushRecords
+	 *            the number of new nodes to buffer before a flush.
+	 * @param flushBytes
+	 *            the number of new data bytes to buffer before a flush.
+	 */
+	NodeMap(int cacheSize, int segmentSize, int flushRecords, int flushBytes)
+			throws IOException {
 		File f = File.createTempFile("hmp", ".dat");
 
-		data = new RandomAccessFile(f, "rw");
+		data = new MappedFile(f, segmentSize);
 		String fn = f.getAbsolutePath();
 		fn = fn.substring(0, fn.lastIndexOf('.')) + ".idx";
-		idx = new RandomAccessFile(fn, "rw");
-		map = new HashMap<Integer, ListSet<Long>>();
+		idx = new MappedFile(new File(fn), segmentSize);
+		map = new HashIndex();
 		size = 0;
-		cache = new LinkedHashMap<Integer, SerializableNode>(MAX_ENTRIES + 1,
-				.75F, true) {
-			// This method is called just after a new entry has been added
-			@Override
-			public boolean removeEldestEntry(Map.Entry eldest) {
-				return size() > MAX_ENTRIES;
-			}
-		};
+		filter = new NodeBloomFilter();
+		cache = new NodeCache(cacheSize);
+		records = ByteBuffer.allocate(flushBytes);
+		positions = ByteBuffer.allocate(flushRecords * 8);
+		recordsStart = 0;
+		flushed = 0;
+		pending = new Pending(0, flushRecords);
 	}
 
-	private SerializableNode updateCache(SerializableNode cn) {
-		cache.put(cn.getIdx(), cn);
+	private SerializableNode updateCache(SerializableNode cn)
+			throws IOException {
+		cache.put(cn);
 		return cn;
 	}
 
+	/**
+	 * Get the node cache, for its hit and miss counts.
+	 */
+	public NodeCache getCache() {
+		return cache;
+	}
+
 	@Override
-	public SerializableNode get(Node n) throws IOException {
+	public synchronized SerializableNode get(Node n) throws IOException {
 		if (n == null || n == Node.ANY) {
 			return SerializableNode.ANY;
 		}
+		SerializableNode cn = filter.mightContain(n) ? find(n) : null;
+		return cn == null ? add(n) : cn;
+	}
+
+	@Override
+	public synchronized SerializableNode lookup(Node n) throws IOException {
+		if (n == null || n == Node.ANY) {
+			return SerializableNode.ANY;
+		}
+		return filter.mightContain(n) ? find(n) : null;
+	}
+
+	// find a node in the cache or the files
+	private SerializableNode find(Node n) throws IOException {
+		SerializableNode cached = cache.get(n);
+		if (cached != null) {
+			return cached;
+		}
 
-		for (SerializableNode cn : cache.values()) {
+		long h = NodeBloomFilter.hash(n);
+		for (long s = map.first(h); s != -1; s = map.next(h, s)) {
+			SerializableNode cn = readBuffered(map.value(s));
 			if (n.equals(cn.getNode())) {
 				return updateCache(cn);
 			}
 		}
+		return null;
+	}
 
-		SerializableNode cn;
-		ListSet<Long> candidates = map.get(n.hashCode());
+	private SerializableNode add(Node n) throws IOException {
+		SerializableNode cn = new SerializableNode(n);
+		cn.setIdx(size);
+		filter.add(n);
+		map.put(NodeBloomFilter.hash(n), write(cn));
+		fileBytes += 4 + cn.getBuffer().length + 8;
+		// readers that see the new size see the buffered node
+		pending.nodes[(int) (size - pending.base)] = cn;
+		size++;
+		return updateCache(cn);
+	}
 
-		if (candidates != null) {
-			for (Long i : candidates) {
-				cn = read(i);
-				if (n.equals(cn.getNode())) {
-					return updateCache(cn);
-				}
+	/**
+	 * Get a node by id. The node is read from the mapped files without
+	 * locking and without the node cache, so any number of threads may get
+	 * nodes in parallel.
+	 */
+	@Override
+	public SerializableNode get(long idx) throws IOException {
+		if (idx < 0 || idx >= size) {
+			throw new IndexOutOfBoundsException(String.format(
+					"Node %s is not in the map", idx));
+		}
+		if (idx >= flushed) {
+			// a flush after flushed was read replaces pending, and a pending
+			// that starts after idx means the node is in the files
+			Pending p = pending;
+			if (idx >= p.base) {
+				return p.nodes[(int) (idx - p.base)];
 			}
 		}
+		return read(this.idx.getLong(idx * 8));
+	}
 
-		cn = new SerializableNode(n);
-		cn.setIdx(size++);
-		if (candidates == null) {
-			candidates = new ListSet<Long>();
-			map.put(cn.hashCode(), candidates);
+	/**
+	 * Write the buffered nodes to the files.
+	 */
+	public synchronized void flush() throws IOException {
+		if (size == pending.base) {
+			return;
 		}
-
-		candidates.add(write(cn));
-		return updateCache(cn);
+		data.put(recordsStart, records.array(), 0, records.position());
+		idx.put(pending.base * 8, positions.array(), 0,
+				positions.position());
+		records.clear();
+		positions.clear();
+		recordsStart = data.length();
+		flushed = size;
+		pending = new Pending(size, pending.nodes.length);
 	}
 
 	@Override
-	public SerializableNode get(int idx) throws IOException {
-		return read(idx);
+	public synchronized void close() {
+		try {
+			flush();
+			data.close();
+			idx.close();
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
 	}
 
 	@Override
-	public void close() {
+	public long count() {
+		return size;
 	}
 
+	/**
+	 * Get the memory used by the map. The heap bytes are the node filter and
+	 * the write buffers, the node cache is not included. The off heap bytes
+	 * are the hash index and the data and index files.
+	 */
 	@Override
-	public int count() {
-		return size;
+	public synchronized MemoryStats getMemoryStats() {
+		return new MemoryStats(0, size, size, filter.sizeInBytes()
+				+ records.capacity() + positions.capacity()
+				+ MemoryStats.ARRAY_BYTES
+				+ (pending.nodes.length * MemoryStats.REFERENCE_BYTES),
+				map.sizeInBytes() + fileBytes);
 	}
 
+	// buffer the record and index entry of a node, returns its data position
 	private long write(SerializableNode cn) throws IOException {
-		long retval = data.length();
 		byte[] buffer = cn.getBuffer();
-		data.seek(retval);
-		data.writeInt(buffer.length);
-		data.write(buffer);
-		idx.seek(cn.getIdx() * 8);
-		idx.writeLong(retval);
+		if (!positions.hasRemaining()
+				|| 4 + buffer.length > records.remaining()) {
+			flush();
+		}
+		long retval = recordsStart + records.position();
+		if (4 + buffer.length > records.remaining()) {
+			// too large to buffer, written directly
+			data.put(retval, ByteBuffer.allocate(4 + buffer.length)
+					.putInt(buffer.length).put(buffer).array());
+			recordsStart = data.length();
+		} else {
+			records.putInt(buffer.length).put(buffer);
+		}
+		positions.putLong(retval);
 		return retval;
 	}
 
-	// read an index
-	private SerializableNode read(int idxNum) throws IOException {
-		SerializableNode cn = cache.get(idxNum);
-		if (cn == null) {
-			idx.seek(idxNum * 8);
-			long pos = idx.readLong();
-			cn = read(pos);
+	// read a position that may be buffered, must hold the lock
+	private SerializableNode readBuffered(long pos) {
+		if (pos >= recordsStart) {
+			int i = (int) (pos - recordsStart);
+			byte[] value = new byte[records.getInt(i)];
+			System.arraycopy(records.array(), i + 4, value, 0, value.length);
+			return new SerializableNode(value);
 		}
-		return updateCache(cn);
+		return read(pos);
 	}
 
-	// rad a position
-	private SerializableNode read(long pos) throws IOException {
-		data.seek(pos);
-		int length = data.readInt();
-		byte[] value = new byte[length];
-		data.readFully(value);
+	// read a position in the files
+	private SerializableNode read(long pos) {
+		byte[] value = new byte[data.getInt(pos)];
+		data.get(pos + 4, value);
 		return new SerializableNode(value);
 	}
 
-	public static class ListSet<T> extends ArrayList<T> {
-		public ListSet() {
-			super();
-		}
+	// the nodes added since the last flush
+	private static class Pending {
+		// the id of the first node
+		final long base;
+		final SerializableNode[] nodes;
 
-		@Override
-		public boolean add(T e) {
-			if (!this.contains(e)) {
-				return super.add(e);
-			}
-			return false;
+		Pending(long base, int capacity) {
+			this.base = base;
+			this.nodes = new SerializableNode[capacity];
 		}
 	}
-
 }
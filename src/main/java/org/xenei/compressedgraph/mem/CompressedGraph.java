@@ -17,7 +17,11 @@
  */
 package org.xenei.compressedgraph.mem;
 
+import java.io.IOException;
+import java.util.Set;
+
 import org.xenei.compressedgraph.AbstractCompressedGraph;
+import org.xenei.compressedgraph.CubeOrder;
 
 /**
  * A compressed grap that stores everything in memory
@@ -32,4 +36,25 @@ public class CompressedGraph extends AbstractCompressedGraph {
 	public CompressedGraph(int pageSize) {
 		super(pageSize, new NodeMap());
 	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the cubes.
+	 * @param orders
+	 *            the cube orders to maintain. Pass only CubeOrder.OPS to keep
+	 *            a single cube.
+	 */
+	public CompressedGraph(int pageSize, Set<CubeOrder> orders) {
+		super(pageSize, new NodeMap(), orders);
+	}
+
+	/**
+	 * Give the nodes new ids that keep the cubes dense, see
+	 * AbstractCompressedGraph.renumber(INodeMap).
+	 */
+	public void renumber() throws IOException {
+		renumber(new NodeMap());
+	}
 }
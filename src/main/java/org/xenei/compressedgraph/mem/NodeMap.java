@@ -26,6 +26,7 @@ import java.util.List;
 import java.util.Map;
 import org.xenei.compressedgraph.SerializableNode;
 import org.xenei.compressedgraph.INodeMap;
+import org.xenei.compressedgraph.core.MemoryStats;
 import com.hp.hpl.jena.graph.Node;
 
 /**
@@ -35,6 +36,8 @@ import com.hp.hpl.jena.graph.Node;
 public class NodeMap implements INodeMap, Serializable {
 	private List<SerializableNode> lst;
 	private Map<SerializableNode, SerializableNode> map;
+	// the estimated heap bytes of the nodes, written while synchronized
+	private transient volatile long bytes;
 
 	public NodeMap() {
 		lst = new ArrayList<SerializableNode>();
@@ -57,8 +60,24 @@ public class NodeMap implements INodeMap, Serializable {
 	}
 
 	@Override
-	public SerializableNode get(int idx) {
-		return lst.get(idx);
+	public synchronized SerializableNode lookup(Node n) throws IOException {
+		if (n == null || n == Node.ANY) {
+			return SerializableNode.ANY;
+		}
+		return map.get(new SerializableNode(n));
+	}
+
+	/**
+	 * Get the node with an id. The nodes are held in a list so ids are
+	 * limited to the int range.
+	 */
+	@Override
+	public SerializableNode get(long idx) {
+		if (idx > Integer.MAX_VALUE) {
+			throw new IndexOutOfBoundsException(String.format(
+					"Node %s is not in the map", idx));
+		}
+		return lst.get((int) idx);
 	}
 
 	private synchronized SerializableNode add(SerializableNode n) {
@@ -66,6 +85,7 @@ public class NodeMap implements INodeMap, Serializable {
 		n.setIdx(i);
 		lst.add(n);
 		map.put(n, n);
+		bytes += nodeBytes(n);
 		if (map.size() != lst.size()) {
 			throw new IllegalStateException("lists out of order");
 		}
@@ -84,22 +104,37 @@ public class NodeMap implements INodeMap, Serializable {
 		int count = in.readInt();
 		for (int i = 0; i < count; i++) {
 			SerializableNode cn = (SerializableNode) in.readObject();
-			if (lst.size() <= cn.getIdx()) {
-				int fill = cn.getIdx() - lst.size() + 1;
+			int idx = (int) cn.getIdx();
+			if (lst.size() <= idx) {
+				int fill = idx - lst.size() + 1;
 				lst.addAll(Arrays.asList(new SerializableNode[fill]));
 			}
-			lst.set(cn.getIdx(), cn);
+			lst.set(idx, cn);
 			map.put(cn, cn);
+			bytes += nodeBytes(cn);
 		}
 	}
 
+	// the node, its buffer, its list slot and its map entry
+	private static long nodeBytes(SerializableNode n) {
+		return MemoryStats.OBJECT_BYTES + MemoryStats.ARRAY_BYTES
+				+ n.getBuffer().length + MemoryStats.REFERENCE_BYTES
+				+ MemoryStats.HASH_ENTRY_BYTES;
+	}
+
+	@Override
+	public MemoryStats getMemoryStats() {
+		int nodes = lst.size();
+		return new MemoryStats(0, nodes, nodes, bytes, 0);
+	}
+
 	@Override
 	public void close() {
 		// do nothing
 	}
 
 	@Override
-	public int count() {
+	public long count() {
 		return lst.size();
 	}
 }
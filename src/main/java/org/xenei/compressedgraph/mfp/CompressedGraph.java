@@ -18,15 +18,74 @@
 package org.xenei.compressedgraph.mfp;
 
 import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Set;
+
 import org.xenei.compressedgraph.AbstractCompressedGraph;
+import org.xenei.compressedgraph.CubeOrder;
+import org.xenei.compressedgraph.NodeCache;
+import org.xenei.compressedgraph.core.BitConstants;
 
 public class CompressedGraph extends AbstractCompressedGraph {
+	private NodeMap nodes;
 
 	public CompressedGraph() throws IOException {
-		super(new NodeMap());
+		this(BitConstants.DEFAULT_PAGE_SIZE, EnumSet.allOf(CubeOrder.class));
 	}
 
 	public CompressedGraph(int pageSize) throws IOException {
-		super(pageSize, new NodeMap());
+		this(pageSize, EnumSet.allOf(CubeOrder.class));
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the cubes.
+	 * @param orders
+	 *            the cube orders to maintain. Pass only CubeOrder.OPS to keep
+	 *            a single cube.
+	 */
+	public CompressedGraph(int pageSize, Set<CubeOrder> orders)
+			throws IOException {
+		this(pageSize, orders, NodeCache.DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Constructor.
+	 * 
+	 * @param pageSize
+	 *            the page size for the cubes.
+	 * @param orders
+	 *            the cube orders to maintain. Pass only CubeOrder.OPS to keep
+	 *            a single cube.
+	 * @param cacheSize
+	 *            the number of nodes to cache, see NodeCache.
+	 */
+	public CompressedGraph(int pageSize, Set<CubeOrder> orders, int cacheSize)
+			throws IOException {
+		this(pageSize, orders, new NodeMap(cacheSize));
+	}
+
+	private CompressedGraph(int pageSize, Set<CubeOrder> orders, NodeMap nodes) {
+		super(pageSize, nodes, orders);
+		this.nodes = nodes;
+	}
+
+	/**
+	 * Get the node cache, for its hit and miss counts.
+	 */
+	public NodeCache getNodeCache() {
+		return nodes.getCache();
+	}
+
+	/**
+	 * Give the nodes new ids that keep the cubes dense, see
+	 * AbstractCompressedGraph.renumber(INodeMap).
+	 */
+	public void renumber() throws IOException {
+		NodeMap target = new NodeMap(nodes.getCache().getCapacity());
+		renumber(target);
+		nodes = target;
 	}
 }
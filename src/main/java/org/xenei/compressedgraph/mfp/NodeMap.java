@@ -5,13 +5,6 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Files;
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.LinkedHashMap;
-import java.util.Map;
-import java.util.Map.Entry;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
@@ -20,106 +13,105 @@ import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.io.IOUtils;
+import org.xenei.compressedgraph.HashIndex;
+import org.xenei.compressedgraph.NodeBloomFilter;
+import org.xenei.compressedgraph.NodeCache;
 import org.xenei.compressedgraph.SerializableNode;
 import org.xenei.compressedgraph.INodeMap;
+import org.xenei.compressedgraph.core.MemoryStats;
 import com.hp.hpl.jena.graph.Node;
 
 public class NodeMap implements INodeMap {
 
 	private File dataDir;
-	private Map<Integer, ListSet<Integer>> map;
-	private int size;
-	private final static int MAX_ENTRIES = 100;
-	private Map<Integer, MapEntry> cache;
+	// the node hashes to the node ids
+	private HashIndex map;
+	private long size;
+	private NodeCache cache;
+	// the nodes in the map, so that most new nodes are not searched for
+	private NodeBloomFilter filter;
 	private ExecutorService service = Executors.newSingleThreadExecutor();
+	// the bytes written to the node files
+	private volatile long fileBytes;
 
 	public NodeMap() throws IOException {
-		File f = File.createTempFile("hmp", ".dat");
+		this(NodeCache.DEFAULT_CAPACITY);
+	}
 
+	/**
+	 * Constructor.
+	 * 
+	 * @param cacheSize
+	 *            the number of nodes to cache, see NodeCache.
+	 */
+	public NodeMap(int cacheSize) throws IOException {
 		dataDir = Files.createTempDirectory("mfp").toFile();
-
-		String fn = f.getAbsolutePath();
-		fn = fn.substring(0, fn.lastIndexOf('.')) + ".idx";
-		map = new HashMap<Integer, ListSet<Integer>>();
+		map = new HashIndex();
 		size = 0;
-		cache = Collections
-				.synchronizedMap(new LinkedHashMap<Integer, MapEntry>(
-						MAX_ENTRIES + 1, .75F, true) {
-					// This method is called just after a new entry has been
-					// added
-					@Override
-					public boolean removeEldestEntry(Map.Entry eldest) {
-						if (size() > MAX_ENTRIES) {
-							Iterator<java.util.Map.Entry<Integer, MapEntry>> iter = this
-									.entrySet().iterator();
-							while (size() > MAX_ENTRIES && iter.hasNext()) {
-								Entry<Integer, MapEntry> e = iter.next();
-								if (e.getValue().done()) {
-									// System.out.println( String.format(
-									// "Removing entry: %H",
-									// e.getValue().getNode().getIdx()));
-									iter.remove();
-								} else {
-									// System.out.println( "Skipping entry");
-								}
-							}
-						} else {
-							// System.out.println("Skipping check: "+size());
-						}
-						return false;
-					}
-				});
+		filter = new NodeBloomFilter();
+		cache = new NodeCache(cacheSize);
 	}
 
-	private SerializableNode updateCache(SerializableNode cn) {
-		cache.put(cn.getIdx(), new MapEntry(cn));
+	private SerializableNode updateCache(SerializableNode cn)
+			throws IOException {
+		cache.put(cn);
 		return cn;
 	}
 
+	/**
+	 * Get the node cache, for its hit and miss counts.
+	 */
+	public NodeCache getCache() {
+		return cache;
+	}
+
 	@Override
-	public SerializableNode get(Node n) throws IOException {
+	public synchronized SerializableNode get(Node n) throws IOException {
 		if (n == null || n == Node.ANY) {
 			return SerializableNode.ANY;
 		}
+		SerializableNode cn = filter.mightContain(n) ? find(n) : null;
+		return cn == null ? add(n) : cn;
+	}
 
-		for (MapEntry e : cache.values()) {
-			if (n.equals(e.getNode().getNode())) {
-				// force cache update
-				cache.get(e.getNode().getIdx());
-				return e.getNode();
-			}
+	@Override
+	public synchronized SerializableNode lookup(Node n) throws IOException {
+		if (n == null || n == Node.ANY) {
+			return SerializableNode.ANY;
 		}
+		return filter.mightContain(n) ? find(n) : null;
+	}
 
-		SerializableNode cn;
-		ListSet<Integer> candidates = map.get(n.hashCode());
+	// find a node in the cache or the files
+	private SerializableNode find(Node n) throws IOException {
+		SerializableNode cached = cache.get(n);
+		if (cached != null) {
+			return cached;
+		}
 
-		if (candidates != null) {
-			for (Integer i : candidates) {
-				cn = read(i);
-				if (n.equals(cn.getNode())) {
-					return updateCache(cn);
-				}
+		long h = NodeBloomFilter.hash(n);
+		for (long s = map.first(h); s != -1; s = map.next(h, s)) {
+			SerializableNode cn = read((int) map.value(s));
+			if (n.equals(cn.getNode())) {
+				return updateCache(cn);
 			}
 		}
+		return null;
+	}
 
-		cn = new SerializableNode(n);
+	private SerializableNode add(Node n) throws IOException {
+		SerializableNode cn = new SerializableNode(n);
 		cn.setIdx(size++);
-		if (size % 1000 == 0) {
-			System.out.println("creating node " + size);
-		}
-
-		if (candidates == null) {
-			candidates = new ListSet<Integer>();
-			map.put(cn.hashCode(), candidates);
-		}
+		filter.add(n);
+		fileBytes += cn.getBuffer().length;
 		// write( cn );
 		service.execute(new Writer(cn));
-		candidates.add(cn.getIdx());
+		map.put(NodeBloomFilter.hash(n), cn.getIdx());
 		return updateCache(cn);
 	}
 
 	@Override
-	public SerializableNode get(int idx) throws IOException {
+	public SerializableNode get(long idx) throws IOException {
 		return read(idx);
 	}
 
@@ -143,11 +135,22 @@ public class NodeMap implements INodeMap {
 	}
 
 	@Override
-	public int count() {
+	public long count() {
 		return size;
 	}
 
-	private File getFile(final int id) {
+	/**
+	 * Get the memory used by the map. The heap bytes are the node filter, the
+	 * node cache is not included. The off heap bytes are the hash index and
+	 * the node files.
+	 */
+	@Override
+	public synchronized MemoryStats getMemoryStats() {
+		return new MemoryStats(0, size, size, filter.sizeInBytes(),
+				map.sizeInBytes() + fileBytes);
+	}
+
+	private File getFile(final long id) {
 		// System.out.println( "Reading id: "+id );
 		char[] c = String.format("%X", id).toCharArray();
 		StringBuilder sb = new StringBuilder().append(c[0]);
@@ -167,9 +170,9 @@ public class NodeMap implements INodeMap {
 	// }
 
 	// read an index
-	private SerializableNode read(final int idxNum) throws IOException {
-		MapEntry e = cache.get(idxNum);
-		if (e == null) {
+	private SerializableNode read(final long idxNum) throws IOException {
+		SerializableNode cn = cache.get(idxNum);
+		if (cn == null) {
 			Future<SerializableNode> future = service
 					.submit(new Callable<SerializableNode>() {
 						@Override
@@ -189,30 +192,14 @@ public class NodeMap implements INodeMap {
 			// is.close();
 			// SerializableNode cn = new SerializableNode(buffer);
 			try {
-				SerializableNode cn = future.get();
-				e = new MapEntry(cn);
-				cache.put(idxNum, e);
+				cn = updateCache(future.get());
 			} catch (InterruptedException e2) {
 				throw new RuntimeException(e2);
 			} catch (ExecutionException e2) {
 				throw new RuntimeException(e2);
 			}
 		}
-		return e.getNode();
-	}
-
-	public static class ListSet<T> extends ArrayList<T> {
-		public ListSet() {
-			super();
-		}
-
-		@Override
-		public boolean add(T e) {
-			if (!this.contains(e)) {
-				return super.add(e);
-			}
-			return false;
-		}
+		return cn;
 	}
 
 	public class Writer implements Runnable {
@@ -240,27 +227,4 @@ public class NodeMap implements INodeMap {
 			}
 		}
 	}
-
-	public class MapEntry {
-		SerializableNode cn;
-		Future<?> f;
-
-		MapEntry(SerializableNode cn) {
-			this.cn = cn;
-			this.f = null;
-		}
-
-		MapEntry(SerializableNode cn, Future<?> f) {
-			this.cn = cn;
-			this.f = f;
-		}
-
-		public boolean done() {
-			return f == null ? true : f.isDone();
-		}
-
-		public SerializableNode getNode() {
-			return cn;
-		}
-	}
 }
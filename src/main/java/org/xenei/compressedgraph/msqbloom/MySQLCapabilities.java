@@ -131,7 +131,7 @@ public class MySQLCapabilities implements DBCapabilities {
 			rs = ps_nodeSearch.executeQuery();
 
 			if (rs.next()) {
-				sn.setIdx(rs.getInt(1));
+				sn.setIdx(rs.getLong(1));
 				return true;
 			}
 			return false;
@@ -155,7 +155,7 @@ public class MySQLCapabilities implements DBCapabilities {
 				rs = ps_lastIdx.executeQuery();
 				
 			    if (rs.next()) {
-			        sn.setIdx(rs.getInt(1));
+			        sn.setIdx(rs.getLong(1));
 			    } else {
 			    	LOG.error("Unable to retrieve new node id "+sn);
 					throw new IOException( "Unable to retrieve new node id");
@@ -179,9 +179,9 @@ public class MySQLCapabilities implements DBCapabilities {
 	@Override
 	public void save(SerializableNode s, SerializableNode p, SerializableNode o) {
 		try {
-			ps_saveTriple.setInt(1, s.getIdx());
-			ps_saveTriple.setInt(2, p.getIdx());
-			ps_saveTriple.setInt(3, o.getIdx());
+			ps_saveTriple.setLong(1, s.getIdx());
+			ps_saveTriple.setLong(2, p.getIdx());
+			ps_saveTriple.setLong(3, o.getIdx());
 			ps_saveTriple.execute();
 		} catch (SQLException e) {
 			LOG.warn("Error saving literal triple", e);
@@ -193,9 +193,9 @@ public class MySQLCapabilities implements DBCapabilities {
 			SerializableNode o) {
 		
 		try {
-			ps_delete.setInt(1, s.getIdx());
-			ps_delete.setInt(2, p.getIdx());
-			ps_delete.setInt(3, o.getIdx());
+			ps_delete.setLong(1, s.getIdx());
+			ps_delete.setLong(2, p.getIdx());
+			ps_delete.setLong(3, o.getIdx());
 		} catch (SQLException e) {
 			LOG.warn("Error saving literal triple", e);
 		}
@@ -274,47 +274,47 @@ public class MySQLCapabilities implements DBCapabilities {
 	private PreparedStatement do_SPO(SerializableNode s, SerializableNode p,
 			SerializableNode o) throws SQLException {
 
-		ps_spo.setInt(1, s.getIdx());
-		ps_spo.setInt(2, p.getIdx());
-		ps_spo.setInt(3, o.getIdx());
+		ps_spo.setLong(1, s.getIdx());
+		ps_spo.setLong(2, p.getIdx());
+		ps_spo.setLong(3, o.getIdx());
 		return ps_spo;
 
 	}
 
 	private PreparedStatement do_SP(SerializableNode s, SerializableNode p)
 			throws SQLException {
-		ps_sp.setInt(1, s.getIdx());
-		ps_sp.setInt(2, p.getIdx());
+		ps_sp.setLong(1, s.getIdx());
+		ps_sp.setLong(2, p.getIdx());
 		return ps_sp;
 	}
 
 	private PreparedStatement do_SO(SerializableNode s, SerializableNode o)
 			throws SQLException {
-		ps_so.setInt(1, s.getIdx());
-		ps_so.setInt(2, o.getIdx());
+		ps_so.setLong(1, s.getIdx());
+		ps_so.setLong(2, o.getIdx());
 		return ps_so;
 	}
 
 	private PreparedStatement do_S(SerializableNode s) throws SQLException {
-		ps_s.setInt(1, s.getIdx());
+		ps_s.setLong(1, s.getIdx());
 		return ps_s;
 	}
 
 	private PreparedStatement do_PO(SerializableNode p, SerializableNode o)
 			throws SQLException {
-		ps_po.setInt(1, p.getIdx());
-		ps_po.setInt(2, o.getIdx());
+		ps_po.setLong(1, p.getIdx());
+		ps_po.setLong(2, o.getIdx());
 		return ps_po;
 
 	}
 
 	private PreparedStatement do_P(SerializableNode p) throws SQLException {
-		ps_p.setInt(1, p.getIdx());
+		ps_p.setLong(1, p.getIdx());
 		return ps_p;
 	}
 
 	private PreparedStatement do_O(SerializableNode o) throws SQLException {
-		ps_o.setInt(1, o.getIdx());
+		ps_o.setLong(1, o.getIdx());
 		return ps_o;
 
 	}
@@ -0,0 +1,73 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+import org.xenei.compressedgraph.core.BitCube;
+import org.xenei.compressedgraph.core.TripleCursor;
+
+public class CubeOrderTest {
+
+	@Test
+	public void testRoundTrip() {
+		for (CubeOrder order : CubeOrder.values()) {
+			BitCube cube = new BitCube();
+			cube.set(order.getX(1, 2, 3), order.getY(1, 2, 3),
+					order.getZ(1, 2, 3));
+			TripleCursor cursor = cube.cursor(-1, -1, -1);
+			assertTrue(order.name(), cursor.next());
+			assertEquals(order.name(), 1, order.getSubject(cursor));
+			assertEquals(order.name(), 2, order.getPredicate(cursor));
+			assertEquals(order.name(), 3, order.getObject(cursor));
+			assertFalse(cursor.next());
+		}
+	}
+
+	@Test
+	public void testAxes() {
+		assertEquals(1, CubeOrder.OPS.getX(1, 2, 3));
+		assertEquals(2, CubeOrder.OPS.getY(1, 2, 3));
+		assertEquals(3, CubeOrder.OPS.getZ(1, 2, 3));
+
+		assertEquals(3, CubeOrder.SPO.getX(1, 2, 3));
+		assertEquals(2, CubeOrder.SPO.getY(1, 2, 3));
+		assertEquals(1, CubeOrder.SPO.getZ(1, 2, 3));
+
+		assertEquals(1, CubeOrder.POS.getX(1, 2, 3));
+		assertEquals(3, CubeOrder.POS.getY(1, 2, 3));
+		assertEquals(2, CubeOrder.POS.getZ(1, 2, 3));
+
+		assertEquals(2, CubeOrder.OSP.getX(1, 2, 3));
+		assertEquals(1, CubeOrder.OSP.getY(1, 2, 3));
+		assertEquals(3, CubeOrder.OSP.getZ(1, 2, 3));
+	}
+
+	@Test
+	public void testPrefixLength() {
+		assertEquals(0, CubeOrder.OPS.prefixLength(1, -1, -1));
+		assertEquals(1, CubeOrder.SPO.prefixLength(1, -1, -1));
+		assertEquals(2, CubeOrder.SPO.prefixLength(1, 2, -1));
+		assertEquals(1, CubeOrder.SPO.prefixLength(1, -1, 3));
+		assertEquals(2, CubeOrder.OSP.prefixLength(1, -1, 3));
+		assertEquals(2, CubeOrder.POS.prefixLength(-1, 2, 3));
+		assertEquals(3, CubeOrder.OPS.prefixLength(1, 2, 3));
+		assertEquals(0, CubeOrder.POS.prefixLength(-1, -1, -1));
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import static org.junit.Assert.*;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+public class HashIndexTest {
+
+	private Set<Long> values(HashIndex index, long hash) {
+		Set<Long> retval = new HashSet<Long>();
+		for (long s = index.first(hash); s != -1; s = index.next(hash, s)) {
+			retval.add(index.value(s));
+		}
+		return retval;
+	}
+
+	@Test
+	public void testPutFind() {
+		HashIndex index = new HashIndex();
+		long size = index.sizeInBytes();
+		// enough values to grow the table
+		for (long i = 0; i < 10000; i++) {
+			index.put(i * 0x9E3779B97F4A7C15L, i);
+		}
+		assertEquals(10000, index.size());
+		assertTrue(index.sizeInBytes() > size);
+		for (long i = 0; i < 10000; i++) {
+			Set<Long> values = values(index, i * 0x9E3779B97F4A7C15L);
+			assertEquals(1, values.size());
+			assertTrue(values.contains(i));
+		}
+		assertEquals(-1, index.first(12345));
+	}
+
+	@Test
+	public void testCollisions() {
+		HashIndex index = new HashIndex();
+		index.put(5, 0);
+		index.put(5, 7);
+		// same start slot, different hash
+		index.put(5 + 1024, 9);
+		index.put(5, 12);
+		Set<Long> values = values(index, 5);
+		assertEquals(3, values.size());
+		assertTrue(values.contains(0L));
+		assertTrue(values.contains(7L));
+		assertTrue(values.contains(12L));
+		values = values(index, 5 + 1024);
+		assertEquals(1, values.size());
+		assertTrue(values.contains(9L));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativeValue() {
+		new HashIndex().put(1, -1);
+	}
+}
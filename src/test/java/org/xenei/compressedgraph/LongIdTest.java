@@ -0,0 +1,203 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.xenei.compressedgraph.core.MemoryStats;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+import com.hp.hpl.jena.graph.Triple;
+
+/**
+ * Graphs whose node ids do not fit in an int.
+ */
+public class LongIdTest {
+	private static final long OFFSET = 1L << 33;
+
+	private Node uri(int i) {
+		return NodeFactory.createURI("http://example.com/n" + i);
+	}
+
+	private Set<Triple> find(Set<Triple> triples, Node s, Node p, Node o) {
+		Set<Triple> retval = new HashSet<Triple>();
+		Triple pattern = new Triple(s, p, o);
+		for (Triple t : triples) {
+			if (pattern.matches(t)) {
+				retval.add(t);
+			}
+		}
+		return retval;
+	}
+
+	@Test
+	public void testGraph() throws IOException {
+		OffsetNodeMap map = new OffsetNodeMap();
+		Graph graph = new Graph(map);
+		Set<Triple> triples = new HashSet<Triple>();
+		Random r = new Random(47);
+		for (int i = 0; i < 400; i++) {
+			Triple t = new Triple(uri(r.nextInt(20)), uri(20 + r.nextInt(3)),
+					uri(r.nextInt(20)));
+			graph.add(t);
+			triples.add(t);
+		}
+		int high = 0;
+		for (int i = 0; i < 23; i++) {
+			if (map.get(uri(i)).getIdx() > Integer.MAX_VALUE) {
+				high++;
+			}
+		}
+		assertTrue(high > 0 && high < 23);
+		verify(graph, triples);
+
+		Triple t = triples.iterator().next();
+		graph.delete(t);
+		triples.remove(t);
+		verify(graph, triples);
+
+		// a knows b and b knows a
+		Node knows = uri(21);
+		Node a = NodeFactory.createVariable("a");
+		Node b = NodeFactory.createVariable("b");
+		List<Triple> patterns = new ArrayList<Triple>();
+		patterns.add(new Triple(a, knows, b));
+		patterns.add(new Triple(b, knows, a));
+		int expected = 0;
+		for (Triple u : find(triples, Node.ANY, knows, Node.ANY)) {
+			if (triples.contains(new Triple(u.getObject(), knows, u
+					.getSubject()))) {
+				expected++;
+			}
+		}
+		assertTrue(expected > 0);
+		assertEquals(expected, graph.join(patterns).toList().size());
+
+		graph.freeze();
+		verify(graph, triples);
+		assertEquals(expected, graph.join(patterns).toList().size());
+	}
+
+	private void verify(Graph graph, Set<Triple> triples) {
+		assertEquals(triples.size(), graph.size());
+		Node[] terms = { Node.ANY, uri(1), uri(2), uri(21) };
+		for (Node s : terms) {
+			for (Node p : terms) {
+				for (Node o : terms) {
+					Set<Triple> expected = find(triples, s, p, o);
+					assertEquals(expected, new HashSet<Triple>(graph.find(s,
+							p, o).toList()));
+					assertEquals(expected.size(), graph.count(s, p, o));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testVarlong() throws IOException {
+		File file = File.createTempFile("varlong", ".snapshot");
+		file.deleteOnExit();
+		long[] values = { 0, 127, 128, Integer.MAX_VALUE, OFFSET + 5,
+				Long.MAX_VALUE };
+		SnapshotOutput out = new SnapshotOutput(file.toPath());
+		for (long value : values) {
+			out.writeVarlong(value);
+		}
+		// version 1 snapshots wrote the ids as varints
+		out.writeVarint(Integer.MAX_VALUE);
+		out.close();
+		SnapshotInput in = new SnapshotInput(file.toPath());
+		for (long value : values) {
+			assertEquals(value, in.readVarlong());
+		}
+		assertEquals(Integer.MAX_VALUE, in.readVarlong());
+		in.close();
+	}
+
+	private static class Graph extends AbstractCompressedGraph {
+		Graph(INodeMap map) {
+			super(64, map);
+		}
+	}
+
+	/**
+	 * A node map that gives every other node an id above the int range.
+	 */
+	private static class OffsetNodeMap implements INodeMap {
+		private final Map<SerializableNode, SerializableNode> map = new HashMap<SerializableNode, SerializableNode>();
+		private final Map<Long, SerializableNode> ids = new HashMap<Long, SerializableNode>();
+
+		@Override
+		public synchronized SerializableNode get(Node n) throws IOException {
+			if (n == null || n == Node.ANY) {
+				return SerializableNode.ANY;
+			}
+			SerializableNode wild = new SerializableNode(n);
+			SerializableNode cn = map.get(wild);
+			if (cn == null) {
+				long i = map.size();
+				wild.setIdx(i % 2 == 0 ? i : OFFSET + i);
+				map.put(wild, wild);
+				ids.put(wild.getIdx(), wild);
+				cn = wild;
+			}
+			return cn;
+		}
+
+		@Override
+		public synchronized SerializableNode lookup(Node n)
+				throws IOException {
+			if (n == null || n == Node.ANY) {
+				return SerializableNode.ANY;
+			}
+			return map.get(new SerializableNode(n));
+		}
+
+		@Override
+		public synchronized SerializableNode get(long idx) {
+			return ids.get(idx);
+		}
+
+		@Override
+		public void close() {
+			// do nothing
+		}
+
+		@Override
+		public synchronized long count() {
+			return map.size();
+		}
+
+		@Override
+		public MemoryStats getMemoryStats() {
+			return MemoryStats.EMPTY;
+		}
+	}
+}
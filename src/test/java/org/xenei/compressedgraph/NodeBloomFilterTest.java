@@ -0,0 +1,72 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+
+public class NodeBloomFilterTest {
+
+	private Node uri(int i) {
+		return NodeFactory.createURI("http://example.com/n" + i);
+	}
+
+	@Test
+	public void testMightContain() {
+		NodeBloomFilter filter = new NodeBloomFilter();
+		long size = filter.sizeInBytes();
+		// enough nodes to add several segments
+		for (int i = 0; i < 100000; i++) {
+			filter.add(uri(i));
+		}
+		assertTrue(filter.sizeInBytes() > size);
+		for (int i = 0; i < 100000; i++) {
+			assertTrue(filter.mightContain(uri(i)));
+		}
+		int falsePositives = 0;
+		for (int i = 100000; i < 200000; i++) {
+			if (filter.mightContain(uri(i))) {
+				falsePositives++;
+			}
+		}
+		assertTrue("false positives " + falsePositives, falsePositives < 3000);
+	}
+
+	@Test
+	public void testNodeTypes() {
+		NodeBloomFilter filter = new NodeBloomFilter();
+		Node lit = NodeFactory.createLiteral("5");
+		Node typed = NodeFactory.createLiteral("5", null, XSDDatatype.XSDint);
+		Node lang = NodeFactory.createLiteral("5", "en", false);
+		Node anon = NodeFactory.createAnon();
+		filter.add(lit);
+		filter.add(anon);
+		assertTrue(filter.mightContain(NodeFactory.createLiteral("5")));
+		assertTrue(filter.mightContain(NodeFactory.createAnon(anon
+				.getBlankNodeId())));
+		assertNotEquals(NodeBloomFilter.hash(lit), NodeBloomFilter.hash(typed));
+		assertNotEquals(NodeBloomFilter.hash(lit), NodeBloomFilter.hash(lang));
+		assertNotEquals(NodeBloomFilter.hash(lit), NodeBloomFilter
+				.hash(NodeFactory.createURI("5")));
+	}
+}
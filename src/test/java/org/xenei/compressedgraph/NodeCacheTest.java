@@ -0,0 +1,96 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+
+public class NodeCacheTest {
+
+	private SerializableNode node(int i) throws Exception {
+		SerializableNode retval = new SerializableNode(uri(i));
+		retval.setIdx(i);
+		return retval;
+	}
+
+	private Node uri(int i) {
+		return NodeFactory.createURI("http://example.com/n" + i);
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		NodeCache cache = new NodeCache(8);
+		cache.put(node(1));
+		assertEquals(node(1), cache.get(1));
+		assertEquals(node(1), cache.get(uri(1)));
+		assertNull(cache.get(2));
+		assertNull(cache.get(uri(2)));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		cache.put(node(1));
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void testCapacity() throws Exception {
+		NodeCache cache = new NodeCache(8);
+		for (int i = 0; i < 100; i++) {
+			cache.put(node(i));
+			assertTrue(cache.size() <= 8);
+		}
+		assertEquals(8, cache.getCapacity());
+		assertNotNull(cache.get(99));
+		assertNull(cache.get(uri(0)));
+	}
+
+	// get a node as a node map does, putting it on a miss
+	private void access(NodeCache cache, int i) throws Exception {
+		if (cache.get(i) == null) {
+			cache.put(node(i));
+		}
+	}
+
+	@Test
+	public void testScanResistance() throws Exception {
+		NodeCache cache = new NodeCache(8);
+		// hot nodes used between other nodes
+		for (int r = 0; r < 10; r++) {
+			for (int i = 0; i < 4; i++) {
+				access(cache, i);
+			}
+			for (int i = 0; i < 4; i++) {
+				access(cache, 100 + (r * 4) + i);
+			}
+		}
+		long misses = cache.getMisses();
+		// a scan only passes through the in queue
+		for (int i = 1000; i < 2000; i++) {
+			access(cache, i);
+		}
+		assertEquals(misses + 1000, cache.getMisses());
+		for (int i = 0; i < 4; i++) {
+			assertNotNull(cache.get(uri(i)));
+		}
+		assertNotNull(cache.get(1999));
+		assertNull(cache.get(1000));
+	}
+}
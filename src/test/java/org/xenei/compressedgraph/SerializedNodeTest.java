@@ -161,4 +161,29 @@ public class SerializedNodeTest {
 		cn.setIdx(1);
 		SerializableNode cn2 = roundTrip(cn);
 	}
+
+	@Test
+	public void testLongIdx() throws Exception {
+		Node n = NodeFactory.createURI("http://example.com/test");
+		SerializableNode small = new SerializableNode(n);
+		int length = small.getBuffer().length;
+		small.setIdx(Integer.MAX_VALUE);
+		// an id in the int range does not grow the node
+		assertEquals(length, small.getBuffer().length);
+		assertEquals(Integer.MAX_VALUE, small.getIdx());
+
+		long idx = (5L << 32) + 7;
+		SerializableNode cn = new SerializableNode(n);
+		cn.setIdx(idx);
+		assertEquals(idx, cn.getIdx());
+		assertEquals(length + 4, cn.getBuffer().length);
+		assertEquals(small.getType(), cn.getType());
+		assertEquals(small.getSize(), cn.getSize());
+		assertEquals(small, cn);
+		assertEquals(n, cn.getNode());
+		assertEquals(idx, new SerializableNode(cn.getBuffer()).getIdx());
+		assertArrayEquals(SerializableNode.getRawIdx(idx),
+				SerializableNode.getRawIdx(cn.getBuffer()));
+		assertEquals(idx, roundTrip(cn).getIdx());
+	}
 }
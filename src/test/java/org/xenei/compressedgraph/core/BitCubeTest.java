@@ -19,8 +19,17 @@ package org.xenei.compressedgraph.core;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Iterator;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 import org.junit.Test;
 import org.xenei.compressedgraph.EnumeratedNode;
@@ -28,6 +37,7 @@ import org.xenei.compressedgraph.core.BitCube;
 import org.xenei.compressedgraph.core.BitCube.Idx;
 
 public class BitCubeTest {
+	private static final int DEFAULT_TEST_PAGE_SIZE = 64;
 
 	private BitCube cube;
 
@@ -336,4 +346,539 @@ public class BitCubeTest {
 		assertEquals(20, lst.size());
 
 	}
+
+	@Test
+	public void testCursor() {
+		cube = new BitCube();
+
+		cube.set(1, 1, 1);
+		cube.set(1, 1, 2);
+		cube.set(1, 2, 3);
+		cube.set(10, 10, 10);
+		cube.set(100, 50, 100);
+		cube.set(100, 100, 100);
+		cube.set(Integer.MAX_VALUE, 100, 100);
+
+		TripleCursor cursor = cube.cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, 100);
+		assertTrue(cursor.next());
+		assertEquals(100, cursor.getX());
+		assertEquals(50, cursor.getY());
+		assertEquals(100, cursor.getZ());
+		assertTrue(cursor.next());
+		assertEquals(100, cursor.getX());
+		assertEquals(100, cursor.getY());
+		assertTrue(cursor.next());
+		assertEquals(Integer.MAX_VALUE, cursor.getX());
+		assertEquals(100, cursor.getY());
+		assertFalse(cursor.next());
+		assertFalse(cursor.next());
+
+		cursor = cube.cursor(1, EnumeratedNode.WILD, EnumeratedNode.WILD);
+		int count = 0;
+		long lastZ = -1;
+		while (cursor.next()) {
+			assertEquals(1, cursor.getX());
+			assertTrue(cursor.getZ() > lastZ);
+			lastZ = cursor.getZ();
+			count++;
+		}
+		assertEquals(3, count);
+
+		cursor = cube.cursor(5, 5, 5);
+		assertFalse(cursor.next());
+
+		cursor = new BitCube().cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD);
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testConcurrentSet() throws InterruptedException {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE, 4);
+		final int threadCount = 8;
+		final int perThread = 2000;
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] threads = new Thread[threadCount * 2];
+		for (int t = 0; t < threadCount; t++) {
+			final int base = t;
+			threads[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < perThread; i++) {
+							cube.set(i, i % 7, (i * threadCount) + base);
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+			threads[threadCount + t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int i = 0; i < perThread; i++) {
+							cube.has(i, i % 7, (i * threadCount) + base);
+							TripleCursor cursor = cube.cursor(
+									EnumeratedNode.WILD, EnumeratedNode.WILD,
+									(i * threadCount) + base);
+							while (cursor.next()) {
+								assertEquals((i * threadCount) + base,
+										cursor.getZ());
+							}
+						}
+					} catch (Throwable e) {
+						error.compareAndSet(null, e);
+					}
+				}
+			};
+		}
+		for (Thread thread : threads) {
+			thread.start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		assertNull(error.get());
+		assertEquals(threadCount * perThread, cube.getSize());
+		for (int t = 0; t < threadCount; t++) {
+			for (int i = 0; i < perThread; i++) {
+				assertTrue(cube.has(i, i % 7, (i * threadCount) + t));
+			}
+		}
+	}
+
+	@Test
+	public void testConcurrencyLevel() {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE, 1);
+		cube.set(1, 2, 3);
+		assertTrue(cube.has(1, 2, 3));
+		try {
+			new BitCube(DEFAULT_TEST_PAGE_SIZE, 0);
+			fail("Should have thrown IllegalArgumentException");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLoad() {
+		Random r = new Random(8);
+		int count = 20000;
+		long[] xs = new long[count + 1];
+		long[] ys = new long[count + 1];
+		long[] zs = new long[count + 1];
+		BitCube expected = new BitCube();
+		for (int i = 0; i < count; i++) {
+			xs[i] = r.nextInt(1000);
+			ys[i] = r.nextInt(10);
+			zs[i] = r.nextInt(i < count / 2 ? 50 : 100000);
+		}
+		// a duplicate and a value that is not loaded
+		xs[count - 1] = xs[0];
+		ys[count - 1] = ys[0];
+		zs[count - 1] = zs[0];
+		xs[count] = 5;
+		ys[count] = 5;
+		zs[count] = 5;
+		for (int i = 0; i < count; i++) {
+			expected.set(xs[i], ys[i], zs[i]);
+		}
+
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		cube.load(xs, ys, zs, count);
+
+		TripleCursor c1 = expected.cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD);
+		TripleCursor c2 = cube.cursor(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD);
+		int loaded = 0;
+		while (c1.next()) {
+			assertTrue(c2.next());
+			assertEquals(c1.getZ(), c2.getZ());
+			assertEquals(c1.getY(), c2.getY());
+			assertEquals(c1.getX(), c2.getX());
+			assertTrue(cube.has(c1.getX(), c1.getY(), c1.getZ()));
+			loaded++;
+		}
+		assertFalse(c2.next());
+		assertEquals(loaded, cube.getSize());
+
+		// the loaded cube is still writable
+		cube.set(1, 2, 3);
+		assertTrue(cube.has(1, 2, 3));
+
+		try {
+			cube.load(xs, ys, zs, count);
+			fail("Should have thrown IllegalStateException");
+		} catch (IllegalStateException expectedException) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCount() {
+		int w = EnumeratedNode.WILD;
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		cube.set(1, 1, 1);
+		cube.set(1, 1, 1);
+		cube.set(2, 1, 1);
+		cube.set(1, 2, 1);
+		cube.set(1, 1, 2);
+		cube.set(3, 5, 200);
+		assertEquals(5, cube.getSize());
+		cube.clear(7, 7, 7);
+		cube.clear(9, 1, 1);
+		assertEquals(5, cube.getSize());
+
+		assertEquals(5, cube.count(w, w, w));
+		assertEquals(3, cube.count(w, w, 1));
+		assertEquals(2, cube.count(w, 1, 1));
+		assertEquals(1, cube.count(2, 1, 1));
+		assertEquals(0, cube.count(3, 1, 1));
+		assertEquals(2, cube.count(1, w, 1));
+		assertEquals(3, cube.count(w, 1, w));
+		assertEquals(3, cube.count(1, w, w));
+		assertEquals(2, cube.count(1, 1, w));
+		assertEquals(0, cube.count(w, w, 3));
+
+		cube.clear(1, 1, 1);
+		assertEquals(4, cube.getSize());
+		assertEquals(1, cube.count(w, 1, 1));
+		cube.clear(2, 1, 1);
+		cube.clear(1, 2, 1);
+		assertEquals(0, cube.count(w, w, 1));
+		assertEquals(2, cube.count(w, w, w));
+	}
+
+	@Test
+	public void testAndRows() {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		// subjects 1, 2 and 500 have (p1, o1), subjects 2, 3 and 500 have
+		// (p2, o2)
+		cube.set(1, 1, 1);
+		cube.set(2, 1, 1);
+		cube.set(500, 1, 1);
+		cube.set(2, 2, 2);
+		cube.set(3, 2, 2);
+		cube.set(500, 2, 2);
+		cube.set(1, 2, 1);
+
+		IndexCursor cursor = cube.andRows(new int[] { 1, 2 }, new int[] { 1,
+				2 });
+		assertTrue(cursor.next());
+		assertEquals(2, cursor.getIndex());
+		assertTrue(cursor.next());
+		assertEquals(500, cursor.getIndex());
+		assertFalse(cursor.next());
+
+		cursor = cube.andRows(new int[] { 1, 3 }, new int[] { 1, 2 });
+		assertFalse(cursor.next());
+		cursor = cube.andRows(new int[] { 1, 2 }, new int[] { 1, 1 });
+		assertTrue(cursor.next());
+		assertEquals(1, cursor.getIndex());
+		assertFalse(cursor.next());
+	}
+
+	/**
+	 * Split the spliterator down to its leaves and check that the leaves
+	 * return the expected positions in order and that each leaf estimate is
+	 * exact.
+	 * 
+	 * @return the number of leaves.
+	 */
+	private int assertSplits(Spliterator<BitCube.Idx> split,
+			List<BitCube.Idx> expected) {
+		assertEquals(expected.size(), split.estimateSize());
+		final List<BitCube.Idx> actual = new ArrayList<BitCube.Idx>();
+		List<Spliterator<BitCube.Idx>> leaves = new ArrayList<Spliterator<BitCube.Idx>>();
+		leaves(split, leaves);
+		for (Spliterator<BitCube.Idx> leaf : leaves) {
+			long estimate = leaf.estimateSize();
+			int before = actual.size();
+			leaf.forEachRemaining(new Consumer<BitCube.Idx>() {
+				@Override
+				public void accept(BitCube.Idx idx) {
+					actual.add(idx);
+				}
+			});
+			assertEquals(estimate, actual.size() - before);
+		}
+		assertEquals(expected, actual);
+		return leaves.size();
+	}
+
+	private void leaves(Spliterator<BitCube.Idx> split,
+			List<Spliterator<BitCube.Idx>> leaves) {
+		Spliterator<BitCube.Idx> prefix = split.trySplit();
+		if (prefix == null) {
+			leaves.add(split);
+		} else {
+			leaves(prefix, leaves);
+			leaves(split, leaves);
+		}
+	}
+
+	@Test
+	public void testSpliterator() {
+		BitCube source = new BitCube(16);
+		Random r = new Random(13);
+		for (int i = 0; i < 2000; i++) {
+			source.set(r.nextInt(200), r.nextInt(40), r.nextInt(300));
+		}
+		cube = source;
+		int W = EnumeratedNode.WILD;
+		int[][] patterns = { { W, W, W }, { 7, W, W }, { W, 3, W },
+				{ W, W, 10 }, { 7, 3, W }, { W, 3, 10 }, { 7, W, 10 },
+				{ 7, 3, 10 }, { W, W, 1000 } };
+		assertTrue(assertSplits(cube.spliterator(W, W, W), cube.find(W, W, W)
+				.toList()) > 100);
+		// a single matrix splits on its rows
+		assertTrue(assertSplits(cube.spliterator(W, W, 10),
+				cube.find(W, W, 10).toList()) > 1);
+		for (int[] pattern : patterns) {
+			List<BitCube.Idx> expected = cube.find(pattern[0], pattern[1],
+					pattern[2]).toList();
+			assertSplits(cube.spliterator(pattern[0], pattern[1], pattern[2]),
+					expected);
+			assertEquals(expected.size(), cube.stream(pattern[0],
+					pattern[1], pattern[2]).parallel().count());
+		}
+	}
+
+	private List<BitCube.Idx> positions(Cube cube) {
+		return cube.find(EnumeratedNode.WILD, EnumeratedNode.WILD,
+				EnumeratedNode.WILD).toList();
+	}
+
+	@Test
+	public void testSnapshot() {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		Random r = new Random(17);
+		for (int i = 0; i < 2000; i++) {
+			cube.set(r.nextInt(200), r.nextInt(20), r.nextInt(100));
+		}
+		List<BitCube.Idx> before = positions(cube);
+		BitCube.Snapshot first = cube.snapshot();
+		for (int i = 0; i < 1000; i++) {
+			cube.set(r.nextInt(200), r.nextInt(20), r.nextInt(100));
+			BitCube.Idx idx = before.get(r.nextInt(before.size()));
+			cube.clear(idx.getX(), idx.getY(), idx.getZ());
+		}
+		// remove a whole matrix
+		BitCube.Idx gone = before.get(0);
+		for (BitCube.Idx idx : cube.find(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, gone.getZ()).toList()) {
+			cube.clear(idx.getX(), idx.getY(), idx.getZ());
+		}
+		List<BitCube.Idx> middle = positions(cube);
+		BitCube.Snapshot second = cube.snapshot();
+		for (int i = 0; i < 1000; i++) {
+			cube.set(r.nextInt(200), r.nextInt(20), r.nextInt(100));
+			BitCube.Idx idx = middle.get(r.nextInt(middle.size()));
+			cube.clear(idx.getX(), idx.getY(), idx.getZ());
+		}
+
+		assertEquals(before, positions(first));
+		assertEquals(before.size(), first.getSize());
+		assertEquals(before.size(), first.count(EnumeratedNode.WILD,
+				EnumeratedNode.WILD, EnumeratedNode.WILD));
+		assertTrue(first.has(gone.getX(), gone.getY(), gone.getZ()));
+		assertFalse(cube.has(gone.getX(), gone.getY(), gone.getZ()));
+		assertEquals(middle, positions(second));
+		assertEquals(middle.size(), second.getSize());
+		assertEquals(cube.getSize(), positions(cube).size());
+		assertFalse(before.equals(middle));
+		assertFalse(middle.equals(positions(cube)));
+
+		// a snapshot of a snapshot is the same view
+		BitCube.Snapshot again = first.snapshot();
+		assertEquals(before, positions(again));
+		again.close();
+		first.close();
+		second.close();
+	}
+
+	@Test
+	public void testSnapshotReadOnly() {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		cube.set(1, 2, 3);
+		BitCube.Snapshot snapshot = cube.snapshot();
+		try {
+			snapshot.set(1, 1, 1);
+			fail("Should have thrown UnsupportedOperationException");
+		} catch (UnsupportedOperationException expected) {
+			// expected
+		}
+		try {
+			snapshot.clear(1, 2, 3);
+			fail("Should have thrown UnsupportedOperationException");
+		} catch (UnsupportedOperationException expected) {
+			// expected
+		}
+		assertTrue(snapshot.has(1, 2, 3));
+		snapshot.close();
+	}
+
+	@Test
+	public void testSnapshotConcurrentWrites() throws InterruptedException {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE, 4);
+		for (int i = 0; i < 5000; i++) {
+			cube.set(i % 300, i % 11, i % 50);
+		}
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread writer = new Thread() {
+			@Override
+			public void run() {
+				try {
+					Random r = new Random(5);
+					for (int i = 0; i < 20000; i++) {
+						int x = r.nextInt(300);
+						int y = r.nextInt(11);
+						int z = r.nextInt(50);
+						if (r.nextBoolean()) {
+							cube.set(x, y, z);
+						} else {
+							cube.clear(x, y, z);
+						}
+					}
+				} catch (Throwable e) {
+					error.compareAndSet(null, e);
+				}
+			}
+		};
+		writer.start();
+		while (writer.isAlive()) {
+			BitCube.Snapshot snapshot = cube.snapshot();
+			List<BitCube.Idx> first = positions(snapshot);
+			assertEquals(snapshot.getSize(), first.size());
+			assertEquals(first, positions(snapshot));
+			snapshot.close();
+		}
+		writer.join();
+		assertNull(error.get());
+		assertEquals(cube.getSize(), positions(cube).size());
+	}
+
+	@Test
+	public void testClearWildcard() {
+		int W = EnumeratedNode.WILD;
+		int[][] patterns = { { 7, W, W }, { W, 3, W }, { W, W, 10 },
+				{ 7, 3, W }, { W, 3, 10 }, { 7, W, 10 }, { 7, 3, 10 },
+				{ W, W, W } };
+		for (int[] pattern : patterns) {
+			cube = new BitCube(16);
+			Random r = new Random(23);
+			for (int i = 0; i < 3000; i++) {
+				cube.set(r.nextInt(20), r.nextInt(10), r.nextInt(30));
+			}
+			List<BitCube.Idx> expected = new ArrayList<BitCube.Idx>();
+			for (BitCube.Idx idx : positions(cube)) {
+				if ((pattern[0] >= 0 && idx.getX() != pattern[0])
+						|| (pattern[1] >= 0 && idx.getY() != pattern[1])
+						|| (pattern[2] >= 0 && idx.getZ() != pattern[2])) {
+					expected.add(idx);
+				}
+			}
+			BitCube.Snapshot snapshot = cube.snapshot();
+			long before = snapshot.getSize();
+			cube.clear(pattern[0], pattern[1], pattern[2]);
+			assertEquals(expected, positions(cube));
+			assertEquals(expected.size(), cube.getSize());
+			assertEquals(0, cube.count(pattern[0], pattern[1], pattern[2]));
+			assertEquals(before, positions(snapshot).size());
+			snapshot.close();
+		}
+		assertTrue(cube.isEmpty());
+	}
+
+	private static Object roundTrip(Object o) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(o);
+		oos.close();
+		return new ObjectInputStream(new ByteArrayInputStream(
+				baos.toByteArray())).readObject();
+	}
+
+	@Test
+	public void testSerializedWrite() throws Exception {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		cube.set(1, 2, 3);
+		BitCube copy = (BitCube) roundTrip(cube);
+		assertTrue(copy.has(1, 2, 3));
+		copy.set(4, 5, 6);
+		copy.set(1, 2, 7);
+		copy.clear(1, 2, 3);
+		assertTrue(copy.has(4, 5, 6));
+		assertTrue(copy.has(1, 2, 7));
+		assertFalse(copy.has(1, 2, 3));
+		assertEquals(2, copy.getSize());
+	}
+
+	@Test
+	public void testMemoryStats() throws Exception {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		Random r = new Random(29);
+		for (int i = 0; i < 5000; i++) {
+			cube.set(r.nextInt(500), r.nextInt(20), r.nextInt(50));
+		}
+		cube.clear(EnumeratedNode.WILD, 4, EnumeratedNode.WILD);
+		cube.clear(EnumeratedNode.WILD, EnumeratedNode.WILD, 7);
+		MemoryStats stats = cube.getMemoryStats();
+		assertEquals(cube.getSize(), stats.getUsed());
+		assertEquals(stats.getPageCount() * DEFAULT_TEST_PAGE_SIZE,
+				stats.getCapacity());
+		assertTrue(stats.getHeapBytes() > 0);
+
+		// the counters match a count of the pages of a fresh cube
+		MemoryStats counted = ((BitCube) roundTrip(cube)).getMemoryStats();
+		assertEquals(stats.getPageCount(), counted.getPageCount());
+		assertEquals(stats.getHeapBytes(), counted.getHeapBytes());
+
+		// a snapshot reports the pages it shares
+		BitCube.Snapshot snapshot = cube.snapshot();
+		assertEquals(stats.getHeapBytes(), snapshot.getMemoryStats()
+				.getHeapBytes());
+		snapshot.close();
+	}
+
+	@Test
+	public void testCompact() {
+		cube = new BitCube(1024);
+		Random r = new Random(31);
+		for (int i = 0; i < 20000; i++) {
+			cube.set(r.nextInt(1024), r.nextInt(8), r.nextInt(8));
+		}
+		for (int x = 0; x < 1024; x++) {
+			if (x % 50 != 0) {
+				cube.clear(x, EnumeratedNode.WILD, EnumeratedNode.WILD);
+			}
+		}
+		List<BitCube.Idx> expected = positions(cube);
+		BitCube.Snapshot snapshot = cube.snapshot();
+		// the matrices are shared with the snapshot
+		assertEquals(0, cube.compact());
+		assertEquals(expected, positions(snapshot));
+		snapshot.close();
+
+		long before = cube.getMemoryStats().getHeapBytes();
+		Compactor compactor = new Compactor(cube, 3);
+		for (int i = 0; i < 4; i++) {
+			compactor.run();
+		}
+		assertTrue(compactor.getReleasedBytes() > 0);
+		assertEquals(before - compactor.getReleasedBytes(), cube
+				.getMemoryStats().getHeapBytes());
+		assertEquals(expected, positions(cube));
+		assertEquals(0, cube.compact());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testSnapshotCompact() {
+		cube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+		cube.set(1, 2, 3);
+		cube.snapshot().compact();
+	}
 }
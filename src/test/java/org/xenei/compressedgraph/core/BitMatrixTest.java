@@ -19,6 +19,10 @@ package org.xenei.compressedgraph.core;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Iterator;
 import java.util.List;
 
@@ -380,4 +384,133 @@ public class BitMatrixTest {
 		assertEquals(19, lst.size());
 
 	}
+
+	@Test
+	public void testCursor() {
+		matrix = new BitMatrix();
+
+		matrix.set(1, 1);
+		matrix.set(1, 2);
+		matrix.set(10, 2);
+		matrix.set(Integer.MAX_VALUE, 2);
+		matrix.set(100, Integer.MAX_VALUE);
+
+		MatrixCursor cursor = matrix.cursor(EnumeratedNode.WILD, 2);
+		assertTrue(cursor.next());
+		assertEquals(1, cursor.getX());
+		assertEquals(2, cursor.getY());
+		assertTrue(cursor.next());
+		assertEquals(10, cursor.getX());
+		assertTrue(cursor.next());
+		assertEquals(Integer.MAX_VALUE, cursor.getX());
+		assertFalse(cursor.next());
+
+		cursor = matrix.cursor(1, EnumeratedNode.WILD);
+		assertTrue(cursor.next());
+		assertEquals(1, cursor.getY());
+		assertTrue(cursor.next());
+		assertEquals(2, cursor.getY());
+		assertFalse(cursor.next());
+
+		cursor = matrix.cursor(EnumeratedNode.WILD, EnumeratedNode.WILD);
+		int count = 0;
+		while (cursor.next()) {
+			assertTrue(matrix.has(cursor.getX(), cursor.getY()));
+			count++;
+		}
+		assertEquals(5, count);
+
+		assertFalse(matrix.cursor(5, 5).next());
+	}
+
+	@Test
+	public void testCount() {
+		int w = EnumeratedNode.WILD;
+		matrix = new BitMatrix();
+		assertTrue(matrix.set(1, 1));
+		assertFalse(matrix.set(1, 1));
+		matrix.set(2, 1);
+		matrix.set(1, 2);
+		matrix.set(5, 100000);
+		assertEquals(4, matrix.getSize());
+		assertEquals(4, matrix.count(w, w));
+		assertEquals(2, matrix.count(w, 1));
+		assertEquals(2, matrix.count(1, w));
+		assertEquals(1, matrix.count(5, 100000));
+		assertEquals(0, matrix.count(w, 3));
+
+		assertTrue(matrix.clear(1, 1));
+		assertFalse(matrix.clear(1, 1));
+		assertEquals(3, matrix.getSize());
+		assertEquals(1, matrix.count(w, 1));
+	}
+
+	@Test
+	public void testClearWildcard() {
+		matrix = new BitMatrix(16);
+		for (int x = 0; x < 40; x++) {
+			for (int y = 0; y < 40; y++) {
+				if ((x + y) % 3 == 0) {
+					matrix.set(x, y);
+				}
+			}
+		}
+		long size = matrix.getSize();
+		long row = matrix.count(EnumeratedNode.WILD, 6);
+		assertTrue(matrix.clear(EnumeratedNode.WILD, 6));
+		assertFalse(matrix.clear(EnumeratedNode.WILD, 6));
+		assertEquals(0, matrix.count(EnumeratedNode.WILD, 6));
+		assertEquals(size - row, matrix.getSize());
+
+		size = matrix.getSize();
+		long column = matrix.count(9, EnumeratedNode.WILD);
+		assertTrue(matrix.clear(9, EnumeratedNode.WILD));
+		assertFalse(matrix.clear(9, EnumeratedNode.WILD));
+		assertEquals(0, matrix.count(9, EnumeratedNode.WILD));
+		assertEquals(size - column, matrix.getSize());
+		assertTrue(matrix.has(12, 3));
+
+		assertTrue(matrix.clear(EnumeratedNode.WILD, EnumeratedNode.WILD));
+		assertTrue(matrix.isEmpty());
+		assertEquals(0, matrix.getSize());
+		assertFalse(matrix.cursor(EnumeratedNode.WILD, EnumeratedNode.WILD)
+				.next());
+	}
+
+	private static Object roundTrip(Object o) throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(o);
+		oos.close();
+		return new ObjectInputStream(new ByteArrayInputStream(
+				baos.toByteArray())).readObject();
+	}
+
+	@Test
+	public void testMemoryStats() throws Exception {
+		matrix = new BitMatrix(64);
+		MemoryStats empty = matrix.getMemoryStats();
+		for (int x = 0; x < 300; x++) {
+			for (int y = 0; y < 30; y++) {
+				if ((x * y) % 7 == 1) {
+					matrix.set(x, y);
+				}
+			}
+		}
+		matrix.clear(EnumeratedNode.WILD, 8);
+		matrix.clear(15, EnumeratedNode.WILD);
+		MemoryStats stats = matrix.getMemoryStats();
+		assertEquals(matrix.getSize(), stats.getUsed());
+		assertEquals(stats.getPageCount() * 64, stats.getCapacity());
+		assertTrue(stats.getHeapBytes() > empty.getHeapBytes());
+
+		// the counters match a count of the rows of a fresh matrix
+		MemoryStats counted = ((BitMatrix) roundTrip(matrix)).getMemoryStats();
+		assertEquals(stats.getPageCount(), counted.getPageCount());
+		assertEquals(stats.getHeapBytes(), counted.getHeapBytes());
+
+		matrix.clear(EnumeratedNode.WILD, EnumeratedNode.WILD);
+		assertEquals(0, matrix.getMemoryStats().getPageCount());
+		assertEquals(0, matrix.getMemoryStats().getUsed());
+	}
 }
@@ -0,0 +1,275 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.Test;
+
+public class ContainerTest {
+
+	private static final int PAGE_SIZE = 4096;
+
+	private void assertSame(BitSet expected, Container c) {
+		assertEquals(expected.cardinality(), c.cardinality());
+		int e = expected.nextSetBit(0);
+		int a = c.nextSetBit(0);
+		while (e >= 0) {
+			assertEquals(e, a);
+			e = expected.nextSetBit(e + 1);
+			a = c.nextSetBit(a + 1);
+		}
+		assertEquals(-1, a);
+		for (int i = 0; i < PAGE_SIZE; i++) {
+			assertEquals(expected.get(i), c.get(i));
+		}
+	}
+
+	@Test
+	public void testSparseUsesArray() {
+		Container c = Container.create(PAGE_SIZE);
+		c = c.add(5).add(4000).add(17);
+		assertTrue(c instanceof ArrayContainer);
+		assertEquals(3, c.cardinality());
+		assertTrue(c.get(17));
+		assertFalse(c.get(16));
+		assertEquals(17, c.nextSetBit(6));
+		c = c.remove(17).remove(5).remove(4000);
+		assertTrue(c.isEmpty());
+	}
+
+	@Test
+	public void testDenseUsesBitmap() {
+		Random r = new Random(1);
+		BitSet expected = new BitSet();
+		Container c = Container.create(PAGE_SIZE);
+		while (expected.cardinality() < 1000) {
+			int i = r.nextInt(PAGE_SIZE);
+			expected.set(i);
+			c = c.add(i);
+		}
+		assertTrue(c instanceof BitmapContainer);
+		assertSame(expected, c);
+
+		// clearing back below the array limit converts to an array
+		int i = expected.nextSetBit(0);
+		while (expected.cardinality() > 100) {
+			expected.clear(i);
+			c = c.remove(i);
+			i = expected.nextSetBit(i + 1);
+		}
+		assertTrue(c instanceof ArrayContainer);
+		assertSame(expected, c);
+	}
+
+	@Test
+	public void testClusteredUsesRuns() {
+		BitSet expected = new BitSet();
+		Container c = Container.create(PAGE_SIZE);
+		for (int i = 100; i < 1100; i++) {
+			expected.set(i);
+			c = c.add(i);
+		}
+		assertTrue(c instanceof RunContainer);
+		assertSame(expected, c);
+
+		// split a run
+		expected.clear(500);
+		c = c.remove(500);
+		assertTrue(c instanceof RunContainer);
+		assertSame(expected, c);
+
+		// join it again
+		expected.set(500);
+		c = c.add(500);
+		assertSame(expected, c);
+
+		// fragment the runs until a bitmap is smaller
+		for (int i = 101; i < 1100; i += 2) {
+			expected.clear(i);
+			c = c.remove(i);
+		}
+		assertTrue(c instanceof BitmapContainer);
+		assertSame(expected, c);
+	}
+
+	@Test
+	public void testFullPage() {
+		Container c = Container.create(PAGE_SIZE);
+		BitSet expected = new BitSet();
+		for (int i = PAGE_SIZE - 1; i >= 0; i -= 2) {
+			expected.set(i);
+			c = c.add(i);
+		}
+		for (int i = 0; i < PAGE_SIZE; i += 2) {
+			expected.set(i);
+			c = c.add(i);
+		}
+		assertTrue(c instanceof RunContainer);
+		assertSame(expected, c);
+	}
+
+	@Test
+	public void testRandomOperations() {
+		Random r = new Random(2);
+		BitSet expected = new BitSet();
+		Container c = Container.create(PAGE_SIZE);
+		for (int n = 0; n < 50000; n++) {
+			// bias towards runs so that all container types are visited
+			int i = (n % 3 == 0) ? r.nextInt(PAGE_SIZE) : Math.min(
+					PAGE_SIZE - 1, (n / 7) % PAGE_SIZE);
+			if (r.nextInt(5) < 3) {
+				expected.set(i);
+				c = c.add(i);
+			} else {
+				expected.clear(i);
+				c = c.remove(i);
+			}
+			assertEquals(expected.get(i), c.get(i));
+			assertEquals(expected.cardinality(), c.cardinality());
+		}
+		assertSame(expected, c);
+		assertSame(expected, c.optimize());
+	}
+
+	@Test
+	public void testPageSizeLimit() {
+		Container.checkPageSize(Container.MAX_PAGE_SIZE);
+		try {
+			new SparseBitArray(Container.MAX_PAGE_SIZE + 1);
+			fail("Should have thrown IllegalArgumentException");
+		} catch (IllegalArgumentException expected) {
+			// expected
+		}
+	}
+
+	private Container build(BitSet bits) {
+		Container c = Container.create(PAGE_SIZE);
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			c = c.add(i);
+		}
+		return c.optimize();
+	}
+
+	private BitSet[] shapes() {
+		Random r = new Random(4);
+		BitSet sparse = new BitSet();
+		BitSet dense = new BitSet();
+		BitSet runs = new BitSet();
+		for (int i = 0; i < 50; i++) {
+			sparse.set(r.nextInt(PAGE_SIZE));
+		}
+		for (int i = 0; i < 2000; i++) {
+			dense.set(r.nextInt(PAGE_SIZE));
+		}
+		runs.set(60, 700);
+		runs.set(1000, 1001);
+		runs.set(3000, PAGE_SIZE);
+		return new BitSet[] { sparse, dense, runs };
+	}
+
+	@Test
+	public void testGetWord() {
+		for (BitSet bits : shapes()) {
+			Container c = build(bits);
+			long[] words = bits.toLongArray();
+			for (int w = 0; w < PAGE_SIZE / 64; w++) {
+				assertEquals(c.getClass().getSimpleName() + " word " + w,
+						w < words.length ? words[w] : 0, c.getWord(w));
+			}
+		}
+	}
+
+	@Test
+	public void testSetOperations() {
+		BitSet[] shapes = shapes();
+		for (BitSet x : shapes) {
+			for (BitSet y : shapes) {
+				Container a = build(x);
+				Container b = build(y);
+
+				BitSet expected = (BitSet) x.clone();
+				expected.and(y);
+				Container c = Container.and(a, b);
+				if (expected.isEmpty()) {
+					assertNull(c);
+				} else {
+					assertSame(expected, c);
+				}
+				assertEquals(expected.cardinality(),
+						Container.andCardinality(a, b));
+				assertEquals(x.intersects(y), Container.intersects(a, b));
+
+				expected = (BitSet) x.clone();
+				expected.or(y);
+				assertSame(expected, Container.or(a, b));
+
+				expected = (BitSet) x.clone();
+				expected.andNot(y);
+				c = Container.andNot(a, b);
+				if (expected.isEmpty()) {
+					assertNull(c);
+				} else {
+					assertSame(expected, c);
+				}
+			}
+			assertSame(x, Container.or(build(x), null));
+			assertSame(x, Container.andNot(build(x), null));
+		}
+	}
+
+	@Test
+	public void testCompact() {
+		BitSet expected = new BitSet();
+		Container c = Container.create(PAGE_SIZE);
+		for (int i = 0; i < 200; i++) {
+			c = c.add(i * 7);
+		}
+		for (int i = 3; i < 200; i++) {
+			c = c.remove(i * 7);
+		}
+		expected.set(0);
+		expected.set(7);
+		expected.set(14);
+		assertTrue(c instanceof ArrayContainer);
+		Container compact = c.compact();
+		assertNotSame(c, compact);
+		assertTrue(compact.sizeInBytes() < c.sizeInBytes());
+		assertSame(expected, compact);
+		// the original is not changed
+		assertSame(expected, c);
+		// a compact container is returned as is
+		Container same = compact.compact();
+		assertTrue(same == compact);
+
+		// clustered bits held in an array become runs
+		c = Container.create(PAGE_SIZE);
+		expected.clear();
+		for (int i = 100; i < 200; i++) {
+			c = c.add(i);
+			expected.set(i);
+		}
+		compact = c.compact();
+		assertTrue(compact instanceof RunContainer);
+		assertSame(expected, compact);
+		assertTrue(compact.compact() == compact);
+	}
+}
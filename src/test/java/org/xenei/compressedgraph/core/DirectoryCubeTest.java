@@ -0,0 +1,331 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.xenei.compressedgraph.EnumeratedNode;
+
+public class DirectoryCubeTest {
+	private static final int DEFAULT_TEST_PAGE_SIZE = 64;
+	private static final long WILD = EnumeratedNode.WILD;
+	// high words that put positions in several cubes of the directory
+	private static final long[] BASES = { 0, 1L << 31, 3L << 31, 1L << 40 };
+
+	// z, y, x order, the order of the cursors
+	private static final Comparator<BitCube.Idx> ZYX = new Comparator<BitCube.Idx>() {
+		@Override
+		public int compare(BitCube.Idx a, BitCube.Idx b) {
+			int retval = Long.compare(a.getZ(), b.getZ());
+			if (retval == 0) {
+				retval = Long.compare(a.getY(), b.getY());
+			}
+			if (retval == 0) {
+				retval = Long.compare(a.getX(), b.getX());
+			}
+			return retval;
+		}
+	};
+
+	private DirectoryCube cube;
+	private TreeSet<BitCube.Idx> expected;
+
+	@Before
+	public void setup() {
+		cube = new DirectoryCube(DEFAULT_TEST_PAGE_SIZE);
+		expected = new TreeSet<BitCube.Idx>(ZYX);
+		Random r = new Random(37);
+		for (int i = 0; i < 500; i++) {
+			BitCube.Idx idx = new BitCube.Idx(next(r), next(r), next(r));
+			cube.set(idx.getX(), idx.getY(), idx.getZ());
+			expected.add(idx);
+		}
+	}
+
+	private long next(Random r) {
+		return BASES[r.nextInt(BASES.length)] + r.nextInt(6);
+	}
+
+	private List<BitCube.Idx> positions(Cube cube, long x, long y, long z) {
+		List<BitCube.Idx> retval = new ArrayList<BitCube.Idx>();
+		TripleCursor cursor = cube.cursor(x, y, z);
+		while (cursor.next()) {
+			retval.add(new BitCube.Idx(cursor.getX(), cursor.getY(), cursor
+					.getZ()));
+		}
+		return retval;
+	}
+
+	private List<BitCube.Idx> expected(long x, long y, long z) {
+		List<BitCube.Idx> retval = new ArrayList<BitCube.Idx>();
+		for (BitCube.Idx idx : expected) {
+			if ((x == WILD || x == idx.getX())
+					&& (y == WILD || y == idx.getY())
+					&& (z == WILD || z == idx.getZ())) {
+				retval.add(idx);
+			}
+		}
+		return retval;
+	}
+
+	@Test
+	public void testSetHas() {
+		assertEquals(expected.size(), cube.getSize());
+		for (BitCube.Idx idx : expected) {
+			assertTrue(idx.toString(),
+					cube.has(idx.getX(), idx.getY(), idx.getZ()));
+		}
+		assertFalse(cube.has(1L << 50, 0, 0));
+		assertFalse(cube.has(0, 0, Long.MAX_VALUE));
+
+		cube.set(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+		assertTrue(cube.has(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE));
+		assertEquals(1, cube.count(WILD, WILD, Long.MAX_VALUE));
+		assertEquals(expected.size() + 1, cube.getSize());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testNegativePosition() {
+		cube.set(-2, 0, 0);
+	}
+
+	@Test
+	public void testCount() {
+		long[] terms = { WILD, BASES[1] + 2, BASES[3] + 5, 4 };
+		for (long x : terms) {
+			for (long y : terms) {
+				for (long z : terms) {
+					assertEquals(String.format("(%s,%s,%s)", x, y, z),
+							expected(x, y, z).size(), cube.count(x, y, z));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testCursor() {
+		long[] terms = { WILD, BASES[1] + 2, BASES[3] + 5, 4 };
+		for (long x : terms) {
+			for (long y : terms) {
+				for (long z : terms) {
+					assertEquals(String.format("(%s,%s,%s)", x, y, z),
+							expected(x, y, z), positions(cube, x, y, z));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testClear() {
+		long y = BASES[2] + 1;
+		cube.clear(WILD, y, WILD);
+		assertEquals(0, cube.count(WILD, y, WILD));
+		for (BitCube.Idx idx : expected(WILD, y, WILD)) {
+			expected.remove(idx);
+		}
+		BitCube.Idx first = expected.first();
+		cube.clear(first.getX(), first.getY(), first.getZ());
+		expected.remove(first);
+		assertEquals(expected.size(), cube.getSize());
+		assertEquals(expected(WILD, WILD, WILD),
+				positions(cube, WILD, WILD, WILD));
+
+		cube.clear(WILD, WILD, WILD);
+		assertTrue(cube.isEmpty());
+	}
+
+	@Test
+	public void testLoad() {
+		int count = expected.size();
+		long[] xs = new long[count];
+		long[] ys = new long[count];
+		long[] zs = new long[count];
+		List<BitCube.Idx> shuffled = new ArrayList<BitCube.Idx>(expected);
+		Collections.shuffle(shuffled, new Random(41));
+		for (int i = 0; i < count; i++) {
+			BitCube.Idx idx = shuffled.get(i);
+			xs[i] = idx.getX();
+			ys[i] = idx.getY();
+			zs[i] = idx.getZ();
+		}
+		DirectoryCube loaded = new DirectoryCube(DEFAULT_TEST_PAGE_SIZE);
+		loaded.load(xs, ys, zs, count);
+		assertEquals(count, loaded.getSize());
+		assertEquals(expected(WILD, WILD, WILD),
+				positions(loaded, WILD, WILD, WILD));
+	}
+
+	@Test
+	public void testStream() {
+		List<BitCube.Idx> streamed = cube.stream(WILD, WILD, WILD).parallel()
+				.collect(Collectors.toList());
+		Collections.sort(streamed, ZYX);
+		assertEquals(expected(WILD, WILD, WILD), streamed);
+		assertEquals(expected(WILD, WILD, BASES[3]).size(),
+				cube.stream(WILD, WILD, BASES[3]).count());
+	}
+
+	private void walk(TrieIterator trie, int depth, long[] keys,
+			List<BitCube.Idx> found) {
+		trie.open();
+		while (!trie.atEnd()) {
+			keys[depth] = trie.key();
+			if (depth == 2) {
+				found.add(new BitCube.Idx(keys[2], keys[1], keys[0]));
+			} else {
+				walk(trie, depth + 1, keys, found);
+			}
+			trie.next();
+		}
+		trie.up();
+	}
+
+	@Test
+	public void testTrieIterator() {
+		List<BitCube.Idx> found = new ArrayList<BitCube.Idx>();
+		walk(cube.trieIterator(), 0, new long[3], found);
+		assertEquals(expected(WILD, WILD, WILD), found);
+
+		TrieIterator trie = cube.trieIterator();
+		trie.open();
+		trie.seek(BASES[2]);
+		assertEquals(expected.ceiling(new BitCube.Idx(0, 0, BASES[2]))
+				.getZ(), trie.key());
+		trie.seek(Long.MAX_VALUE);
+		assertTrue(trie.atEnd());
+	}
+
+	@Test
+	public void testTrieJoin() {
+		// pairs that are linked both ways by predicate y
+		long y = BASES[1] + 3;
+		long[][] pairs = { { 1, BASES[3] + 2 }, { BASES[1], BASES[2] + 4 },
+				{ BASES[3] + 5, BASES[3] + 1 } };
+		for (long[] pair : pairs) {
+			cube.set(pair[0], y, pair[1]);
+			cube.set(pair[1], y, pair[0]);
+			expected.add(new BitCube.Idx(pair[0], y, pair[1]));
+			expected.add(new BitCube.Idx(pair[1], y, pair[0]));
+		}
+		DirectoryCube transposed = new DirectoryCube(DEFAULT_TEST_PAGE_SIZE);
+		for (BitCube.Idx idx : expected) {
+			transposed.set(idx.getZ(), idx.getY(), idx.getX());
+		}
+		TrieJoin join = new TrieJoin().add(cube, TrieJoin.variable(0), y,
+				TrieJoin.variable(1)).add(transposed, TrieJoin.variable(0),
+				y, TrieJoin.variable(1));
+
+		List<String> solutions = new ArrayList<String>();
+		BindingCursor cursor = join.cursor();
+		while (cursor.next()) {
+			solutions.add(Arrays.toString(new long[] { cursor.get(0),
+					cursor.get(1) }));
+		}
+		List<String> wanted = new ArrayList<String>();
+		for (BitCube.Idx idx : expected(WILD, y, WILD)) {
+			if (cube.has(idx.getZ(), y, idx.getX())) {
+				wanted.add(Arrays.toString(new long[] { idx.getX(),
+						idx.getZ() }));
+			}
+		}
+		Collections.sort(solutions);
+		Collections.sort(wanted);
+		assertFalse(wanted.isEmpty());
+		assertEquals(wanted, solutions);
+	}
+
+	@Test
+	public void testFreeze() {
+		DirectoryCube frozen = cube.freeze();
+		assertEquals(cube.getSize(), frozen.getSize());
+		assertEquals(expected(WILD, WILD, WILD),
+				positions(frozen, WILD, WILD, WILD));
+		assertEquals(expected(WILD, BASES[3] + 1, WILD),
+				positions(frozen, WILD, BASES[3] + 1, WILD));
+		try {
+			frozen.set(1, 1, 1);
+			fail("should have thrown UnsupportedOperationException");
+		} catch (UnsupportedOperationException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(bos);
+		oos.writeObject(cube);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+				bos.toByteArray()));
+		DirectoryCube copy = (DirectoryCube) ois.readObject();
+		assertEquals(expected(WILD, WILD, WILD),
+				positions(copy, WILD, WILD, WILD));
+		copy.set(BASES[3], 0, 0);
+		assertTrue(copy.has(BASES[3], 0, 0));
+	}
+
+	/**
+	 * Positions in the int range cost the same per position as in a BitCube,
+	 * the directory adds a fixed number of bytes however many are stored.
+	 */
+	@Test
+	public void testMemoryPerTriple() {
+		long overhead = -1;
+		for (int n : new int[] { 2000, 20000 }) {
+			BitCube bitCube = new BitCube(DEFAULT_TEST_PAGE_SIZE);
+			DirectoryCube directory = new DirectoryCube(DEFAULT_TEST_PAGE_SIZE);
+			Random r = new Random(43);
+			for (int i = 0; i < n; i++) {
+				int x = r.nextInt(5000);
+				int y = r.nextInt(20);
+				int z = r.nextInt(Integer.MAX_VALUE);
+				bitCube.set(x, y, z);
+				directory.set(x, y, z);
+			}
+			MemoryStats bitStats = bitCube.getMemoryStats();
+			MemoryStats dirStats = directory.getMemoryStats();
+			assertEquals(bitStats.getPageCount(), dirStats.getPageCount());
+			assertEquals(bitStats.getUsed(), dirStats.getUsed());
+			assertEquals(bitStats.getOffHeapBytes(),
+					dirStats.getOffHeapBytes());
+			long diff = dirStats.getHeapBytes() - bitStats.getHeapBytes();
+			assertTrue(diff >= 0);
+			if (overhead == -1) {
+				overhead = diff;
+			} else {
+				assertEquals(overhead, diff);
+			}
+		}
+	}
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+import org.junit.Test;
+import org.xenei.compressedgraph.EnumeratedNode;
+
+public class FrozenBitCubeTest {
+
+	private static final int W = EnumeratedNode.WILD;
+
+	private BitCube populate() {
+		BitCube cube = new BitCube();
+		cube.set(1, 1, 1);
+		cube.set(1, 1, 2);
+		cube.set(1, 2, 3);
+		cube.set(10, 10, 10);
+		cube.set(10, 10, 20);
+		cube.set(10, 20, 30);
+		cube.set(100, 100, 100);
+		cube.set(100, 100, 200);
+		cube.set(100, 200, 300);
+		cube.set(Integer.MAX_VALUE, 1, 1);
+		cube.set(Integer.MAX_VALUE, 100, 100);
+		cube.set(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+		return cube;
+	}
+
+	private List<BitCube.Idx> toList(TripleCursor cursor) {
+		List<BitCube.Idx> lst = new ArrayList<BitCube.Idx>();
+		while (cursor.next()) {
+			lst.add(new BitCube.Idx(cursor.getX(), cursor.getY(), cursor
+					.getZ()));
+		}
+		return lst;
+	}
+
+	@Test
+	public void testHas() {
+		BitCube cube = populate();
+		FrozenBitCube frozen = new FrozenBitCube(cube);
+
+		assertEquals(12, frozen.getSize());
+		assertFalse(frozen.isEmpty());
+		assertTrue(frozen.has(1, 1, 1));
+		assertTrue(frozen.has(1, 2, 3));
+		assertTrue(frozen.has(100, 200, 300));
+		assertTrue(frozen.has(Integer.MAX_VALUE, 100, 100));
+		assertTrue(frozen.has(Integer.MAX_VALUE, Integer.MAX_VALUE,
+				Integer.MAX_VALUE));
+		assertFalse(frozen.has(1, 1, 3));
+		assertFalse(frozen.has(2, 1, 1));
+		assertFalse(frozen.has(1, 3, 1));
+		assertFalse(frozen.has(0, 0, 0));
+
+		assertTrue(new FrozenBitCube(new BitCube()).isEmpty());
+	}
+
+	@Test
+	public void testReadOnly() {
+		FrozenBitCube frozen = new FrozenBitCube(populate());
+		try {
+			frozen.set(5, 5, 5);
+			fail("Should have thrown UnsupportedOperationException");
+		} catch (UnsupportedOperationException expected) {
+			// expected
+		}
+		try {
+			frozen.clear(1, 1, 1);
+			fail("Should have thrown UnsupportedOperationException");
+		} catch (UnsupportedOperationException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCursorMatchesBitCube() {
+		BitCube cube = populate();
+		FrozenBitCube frozen = new FrozenBitCube(cube);
+		int[] xs = { W, 1, 10, 100, 5, Integer.MAX_VALUE };
+		int[] ys = { W, 1, 10, 100, 5, Integer.MAX_VALUE };
+		int[] zs = { W, 1, 20, 100, 5, Integer.MAX_VALUE };
+		for (int x : xs) {
+			for (int y : ys) {
+				for (int z : zs) {
+					assertEquals(String.format("(%s,%s,%s)", x, y, z),
+							toList(cube.cursor(x, y, z)),
+							toList(frozen.cursor(x, y, z)));
+				}
+			}
+		}
+	}
+
+	@Test
+	public void testRandom() {
+		BitCube cube = new BitCube();
+		Random r = new Random(4);
+		for (int i = 0; i < 5000; i++) {
+			cube.set(r.nextInt(200), r.nextInt(20), r.nextInt(300));
+		}
+		FrozenBitCube frozen = new FrozenBitCube(cube);
+		List<BitCube.Idx> all = toList(cube.cursor(W, W, W));
+		assertEquals(all, toList(frozen.cursor(W, W, W)));
+		assertEquals(all.size(), frozen.getSize());
+		for (int i = 0; i < 100; i++) {
+			int x = r.nextInt(200);
+			int y = r.nextInt(20);
+			int z = r.nextInt(300);
+			assertEquals(cube.has(x, y, z), frozen.has(x, y, z));
+			assertEquals(toList(cube.cursor(x, W, W)),
+					toList(frozen.cursor(x, W, W)));
+			assertEquals(toList(cube.cursor(W, y, z)),
+					toList(frozen.cursor(W, y, z)));
+		}
+		assertEquals(all, frozen.find(W, W, W).toList());
+	}
+
+	@Test
+	public void testCount() {
+		BitCube cube = new BitCube();
+		Random r = new Random(6);
+		for (int i = 0; i < 3000; i++) {
+			cube.set(r.nextInt(100), r.nextInt(10), r.nextInt(50));
+		}
+		FrozenBitCube frozen = new FrozenBitCube(cube);
+		assertEquals(cube.getSize(), frozen.count(W, W, W));
+		for (int i = 0; i < 200; i++) {
+			int x = r.nextBoolean() ? W : r.nextInt(100);
+			int y = r.nextBoolean() ? W : r.nextInt(10);
+			int z = r.nextBoolean() ? W : r.nextInt(50);
+			assertEquals(String.format("(%s,%s,%s)", x, y, z),
+					cube.count(x, y, z), frozen.count(x, y, z));
+		}
+	}
+
+	/**
+	 * Split the spliterator down to its leaves and check that the leaves
+	 * return the expected positions in order and that each leaf estimate is
+	 * exact.
+	 * 
+	 * @return the number of leaves.
+	 */
+	private int assertSplits(Spliterator<BitCube.Idx> split,
+			List<BitCube.Idx> expected) {
+		assertEquals(expected.size(), split.estimateSize());
+		final List<BitCube.Idx> actual = new ArrayList<BitCube.Idx>();
+		List<Spliterator<BitCube.Idx>> leaves = new ArrayList<Spliterator<BitCube.Idx>>();
+		leaves(split, leaves);
+		for (Spliterator<BitCube.Idx> leaf : leaves) {
+			long estimate = leaf.estimateSize();
+			int before = actual.size();
+			leaf.forEachRemaining(new Consumer<BitCube.Idx>() {
+				@Override
+				public void accept(BitCube.Idx idx) {
+					actual.add(idx);
+				}
+			});
+			assertEquals(estimate, actual.size() - before);
+		}
+		assertEquals(expected, actual);
+		return leaves.size();
+	}
+
+	private void leaves(Spliterator<BitCube.Idx> split,
+			List<Spliterator<BitCube.Idx>> leaves) {
+		Spliterator<BitCube.Idx> prefix = split.trySplit();
+		if (prefix == null) {
+			leaves.add(split);
+		} else {
+			leaves(prefix, leaves);
+			leaves(split, leaves);
+		}
+	}
+
+	@Test
+	public void testSpliterator() {
+		BitCube source = new BitCube(16);
+		Random r = new Random(13);
+		for (int i = 0; i < 2000; i++) {
+			source.set(r.nextInt(200), r.nextInt(40), r.nextInt(300));
+		}
+		FrozenBitCube cube = new FrozenBitCube(source);
+		int[][] patterns = { { W, W, W }, { 7, W, W }, { W, 3, W },
+				{ W, W, 10 }, { 7, 3, W }, { W, 3, 10 }, { 7, W, 10 },
+				{ 7, 3, 10 }, { W, W, 1000 } };
+		assertTrue(assertSplits(cube.spliterator(W, W, W), cube.find(W, W, W)
+				.toList()) > 100);
+		// a single matrix splits on its rows
+		assertTrue(assertSplits(cube.spliterator(W, W, 10),
+				cube.find(W, W, 10).toList()) > 1);
+		for (int[] pattern : patterns) {
+			List<BitCube.Idx> expected = cube.find(pattern[0], pattern[1],
+					pattern[2]).toList();
+			assertSplits(cube.spliterator(pattern[0], pattern[1], pattern[2]),
+					expected);
+			assertEquals(expected.size(), cube.stream(pattern[0],
+					pattern[1], pattern[2]).parallel().count());
+		}
+	}
+
+	@Test
+	public void testMemoryStats() {
+		BitCube source = new BitCube(16);
+		Random r = new Random(13);
+		for (int i = 0; i < 2000; i++) {
+			source.set(r.nextInt(200), r.nextInt(40), r.nextInt(300));
+		}
+		FrozenBitCube cube = new FrozenBitCube(source);
+		MemoryStats stats = cube.getMemoryStats();
+		assertEquals(0, stats.getPageCount());
+		assertEquals(cube.getSize(), stats.getUsed());
+		assertTrue(stats.getHeapBytes() >= cube.getSize() * 4);
+		assertTrue(stats.getHeapBytes() < source.getMemoryStats()
+				.getHeapBytes());
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageDirectoryTest {
+
+	private PageDirectory<String> dir;
+
+	@Before
+	public void beforePageDirectoryTest() {
+		dir = new PageDirectory<String>();
+	}
+
+	@Test
+	public void testAddGet() {
+		dir.add(10, "ten");
+		dir.add(1, "one");
+		dir.add(100, "one-hundred");
+		dir.add(5, "five");
+		dir.add(Integer.MAX_VALUE, "max");
+
+		assertEquals(5, dir.size());
+		assertEquals("one", dir.get(1));
+		assertEquals("five", dir.get(5));
+		assertEquals("ten", dir.get(10));
+		assertEquals("one-hundred", dir.get(100));
+		assertEquals("max", dir.get(Integer.MAX_VALUE));
+		assertNull(dir.get(0));
+		assertNull(dir.get(50));
+
+		int[] expected = { 1, 5, 10, 100, Integer.MAX_VALUE };
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], dir.offsetAt(i));
+		}
+	}
+
+	@Test
+	public void testAddDuplicate() {
+		dir.add(1, "one");
+		try {
+			dir.add(1, "uno");
+			fail("Should have thrown IllegalStateException");
+		} catch (IllegalStateException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testCeilingIndex() {
+		dir.add(10, "ten");
+		dir.add(20, "twenty");
+
+		assertEquals(0, dir.ceilingIndex(0));
+		assertEquals(0, dir.ceilingIndex(10));
+		assertEquals(1, dir.ceilingIndex(11));
+		assertEquals(1, dir.ceilingIndex(20));
+		assertEquals(2, dir.ceilingIndex(21));
+	}
+
+	@Test
+	public void testRemove() {
+		for (int i = 0; i < 100; i++) {
+			dir.add(i * 2, Integer.toString(i * 2));
+		}
+		assertNull(dir.remove(1));
+		assertEquals("50", dir.remove(50));
+		assertEquals("0", dir.remove(0));
+		assertEquals("198", dir.remove(198));
+		assertEquals(97, dir.size());
+		assertNull(dir.get(50));
+		assertEquals("52", dir.get(52));
+		assertEquals(2, dir.offsetAt(0));
+		assertEquals(196, dir.offsetAt(dir.size() - 1));
+
+		while (!dir.isEmpty()) {
+			dir.remove(dir.offsetAt(0));
+		}
+		assertEquals(0, dir.size());
+	}
+}
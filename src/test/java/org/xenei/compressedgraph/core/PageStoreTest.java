@@ -0,0 +1,189 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PageStoreTest {
+
+	private File file;
+	private PageStore store;
+
+	@Before
+	public void beforePageStoreTest() throws IOException {
+		file = File.createTempFile("pageStore", ".dat");
+	}
+
+	@After
+	public void afterPageStoreTest() throws IOException {
+		if (store != null) {
+			store.close();
+		}
+		file.delete();
+	}
+
+	private void verifyStore(PageStore store) {
+		SparseBitArray ba = new SparseBitArray(256, store);
+		// sparse page stays on the heap
+		ba.set(5);
+		assertEquals(0, store.getOffHeapBytes());
+
+		// dense page moves off heap
+		for (int i = 256; i < 512; i += 2) {
+			ba.set(i);
+		}
+		assertTrue(store.getOffHeapBytes() > 0);
+		assertTrue(ba.get(5));
+		assertTrue(ba.get(256));
+		assertTrue(ba.get(510));
+		assertFalse(ba.get(257));
+
+		List<Integer> expected = new ArrayList<Integer>();
+		expected.add(5);
+		for (int i = 256; i < 512; i += 2) {
+			expected.add(i);
+		}
+		assertEquals(expected, ba.iterator().toList());
+
+		// back to sparse
+		for (int i = 260; i < 512; i += 2) {
+			ba.clear(i);
+		}
+		assertTrue(ba.get(256));
+		assertTrue(ba.get(258));
+		assertFalse(ba.get(260));
+
+		// freed slot is reused and starts empty
+		long bytes = store.getOffHeapBytes();
+		SparseBitArray other = new SparseBitArray(256, store);
+		for (int i = 0; i < 256; i += 3) {
+			other.set(i);
+		}
+		assertEquals(bytes, store.getOffHeapBytes());
+		for (int i = 0; i < 256; i++) {
+			assertEquals(i % 3 == 0, other.get(i));
+		}
+	}
+
+	@Test
+	public void testHeap() {
+		SparseBitArray ba = new SparseBitArray(256, PageStore.heap());
+		for (int i = 0; i < 256; i += 2) {
+			ba.set(i);
+		}
+		assertEquals(0, PageStore.heap().getOffHeapBytes());
+		assertTrue(ba.get(254));
+	}
+
+	@Test
+	public void testDirect() {
+		store = PageStore.direct();
+		verifyStore(store);
+	}
+
+	@Test
+	public void testMapped() throws IOException {
+		store = PageStore.mapped(file);
+		verifyStore(store);
+	}
+
+	@Test
+	public void testCube() {
+		store = PageStore.direct();
+		BitCube cube = new BitCube(256, 1, store);
+		for (int x = 0; x < 256; x += 2) {
+			cube.set(x, 1, 1);
+		}
+		cube.set(3, 2, 1);
+		assertTrue(store.getOffHeapBytes() > 0);
+		assertTrue(cube.has(4, 1, 1));
+		assertFalse(cube.has(3, 1, 1));
+		assertTrue(cube.has(3, 2, 1));
+		TripleCursor cursor = cube.cursor(-1, 1, 1);
+		int count = 0;
+		while (cursor.next()) {
+			assertEquals(0, cursor.getX() % 2);
+			count++;
+		}
+		assertEquals(128, count);
+	}
+
+	@Test
+	public void testSnapshot() {
+		store = PageStore.direct();
+		BufferPageStore buffers = (BufferPageStore) store;
+		BitCube cube = new BitCube(256, 1, store);
+		for (int x = 0; x < 256; x += 2) {
+			cube.set(x, 1, 1);
+		}
+		BitCube.Snapshot snapshot = cube.snapshot();
+		for (int x = 0; x < 256; x += 2) {
+			cube.clear(x, 1, 1);
+		}
+		assertTrue(cube.isEmpty());
+		assertEquals(1, buffers.getRetiredCount());
+		assertEquals(128, snapshot.count(-1, 1, 1));
+		TripleCursor cursor = snapshot.cursor(-1, 1, 1);
+		int count = 0;
+		while (cursor.next()) {
+			assertEquals(0, cursor.getX() % 2);
+			count++;
+		}
+		assertEquals(128, count);
+		snapshot.close();
+		assertEquals(0, buffers.getRetiredCount());
+
+		// without an open snapshot replaced pages are freed at once
+		for (int x = 0; x < 256; x += 2) {
+			cube.set(x, 1, 1);
+		}
+		cube.snapshot().close();
+		cube.clear(0, 1, 1);
+		assertEquals(0, buffers.getRetiredCount());
+		assertFalse(cube.has(0, 1, 1));
+		assertTrue(cube.has(2, 1, 1));
+	}
+
+	@Test
+	public void testClearWildcard() {
+		store = PageStore.direct();
+		BitCube cube = new BitCube(256, 1, store);
+		for (int x = 0; x < 256; x += 2) {
+			cube.set(x, 1, 1);
+		}
+		long bytes = store.getOffHeapBytes();
+		cube.clear(-1, 1, -1);
+		assertTrue(cube.isEmpty());
+		// the slot of the dropped row is reused
+		for (int x = 0; x < 256; x += 2) {
+			cube.set(x, 2, 2);
+		}
+		assertEquals(bytes, store.getOffHeapBytes());
+		assertTrue(cube.has(2, 2, 2));
+		assertFalse(cube.has(2, 1, 1));
+	}
+}
@@ -19,6 +19,10 @@ package org.xenei.compressedgraph.core;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
 
@@ -180,4 +184,159 @@ public class SparseArrayTest {
 		assertTrue(ary.isEmpty());
 
 	}
+
+	@Test
+	public void testCursor() {
+		ary.put(Integer.MAX_VALUE, "Max int");
+		ary.put(1, "one");
+		ary.put(1000000, "one-million");
+
+		SparseArray<String>.Cursor cursor = ary.cursor();
+		assertTrue(cursor.next());
+		assertEquals(1, cursor.getIndex());
+		assertEquals("one", cursor.getValue());
+		assertTrue(cursor.next());
+		assertEquals(1000000, cursor.getIndex());
+		assertEquals("one-million", cursor.getValue());
+		assertTrue(cursor.next());
+		assertEquals(Integer.MAX_VALUE, cursor.getIndex());
+		assertEquals("Max int", cursor.getValue());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void testSerialization() throws Exception {
+		ary.put(1, "one");
+		ary.put(10000, "ten thousand");
+		ary.put(Integer.MAX_VALUE, "Max int");
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(ary);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+				baos.toByteArray()));
+		SparseArray<String> copy = (SparseArray<String>) ois.readObject();
+
+		assertEquals("one", copy.get(1));
+		assertEquals("ten thousand", copy.get(10000));
+		assertEquals("Max int", copy.get(Integer.MAX_VALUE));
+		assertNull(copy.get(2));
+		copy.put(2, "two");
+		assertEquals("two", copy.get(2));
+	}
+
+	@Test
+	public void testCopy() {
+		ary.put(1, "one");
+		ary.put(10000, "ten thousand");
+		SparseArray<String> copy = ary.copy(1);
+		copy.put(1, "uno");
+		copy.put(2, "two");
+		copy.remove(10000);
+		assertEquals("one", ary.get(1));
+		assertNull(ary.get(2));
+		assertEquals("ten thousand", ary.get(10000));
+		assertEquals("uno", copy.get(1));
+		assertEquals("two", copy.get(2));
+		assertNull(copy.get(10000));
+	}
+
+	@Test
+	public void testMemoryStats() {
+		ary = new SparseArray<String>(16);
+		assertEquals(0, ary.getMemoryStats().getPageCount());
+		for (int i = 0; i < 64; i += 2) {
+			ary.put(i, "v" + i);
+		}
+		ary.put(1000, "far");
+		ary.remove(0);
+		MemoryStats stats = ary.getMemoryStats();
+		assertEquals(32, ary.size());
+		assertEquals(5, stats.getPageCount());
+		assertEquals(32, stats.getUsed());
+		assertEquals(80, stats.getCapacity());
+		assertEquals(0.4, stats.getFillRatio(), 0.0001);
+		assertTrue(stats.getHeapBytes() > 5 * 16 * MemoryStats.REFERENCE_BYTES);
+		ary.remove(1000);
+		assertEquals(4, ary.getMemoryStats().getPageCount());
+	}
+
+	@Test
+	public void testPageEncoding() {
+		ary = new SparseArray<String>(64);
+		ary.put(3, "three");
+		long sparseBytes = ary.getMemoryStats().getHeapBytes();
+		// fill past a quarter of the page so it becomes dense
+		for (int i = 0; i < 64; i += 2) {
+			ary.put(i, "v" + i);
+		}
+		assertTrue(ary.getMemoryStats().getHeapBytes() > sparseBytes);
+		assertEquals(33, ary.size());
+		assertEquals("three", ary.get(3));
+		assertEquals(4, ary.nextIndex(4));
+		assertEquals(62, ary.previousIndex(63));
+		// and remove below a sixteenth so it becomes sparse again
+		for (int i = 0; i < 62; i += 2) {
+			ary.remove(i);
+		}
+		assertEquals(2, ary.size());
+		assertEquals(sparseBytes + (MemoryStats.REFERENCE_BYTES + 2), ary
+				.getMemoryStats().getHeapBytes());
+		assertEquals("three", ary.get(3));
+		assertEquals("v62", ary.get(62));
+		assertNull(ary.get(4));
+		assertEquals(3, ary.nextIndex(0));
+		assertEquals(62, ary.nextIndex(4));
+		assertEquals(-1, ary.nextIndex(63));
+		assertEquals(3, ary.previousIndex(61));
+		assertEquals(-1, ary.previousIndex(2));
+
+		SparseArray<String>.Cursor cursor = ary.cursor();
+		assertTrue(cursor.next());
+		assertEquals(3, cursor.getIndex());
+		assertTrue(cursor.next());
+		assertEquals(62, cursor.getIndex());
+		assertFalse(cursor.next());
+		cursor.seek(4);
+		assertTrue(cursor.next());
+		assertEquals("v62", cursor.getValue());
+	}
+
+	@Test
+	public void testCompact() {
+		ary = new SparseArray<String>(64);
+		// append grows the sparse entries ahead of use
+		for (int i = 0; i < 5; i++) {
+			ary.append(i * 3, "v" + i);
+		}
+		long before = ary.getMemoryStats().getHeapBytes();
+		long released = ary.compact();
+		assertTrue(released > 0);
+		assertEquals(before - released, ary.getMemoryStats().getHeapBytes());
+		for (int i = 0; i < 5; i++) {
+			assertEquals("v" + i, ary.get(i * 3));
+		}
+		assertEquals(0, ary.compact());
+	}
+
+	@Test
+	public void testCopyEncodings() {
+		ary = new SparseArray<String>(16);
+		ary.put(1, "one");
+		for (int i = 16; i < 32; i++) {
+			ary.put(i, "v" + i);
+		}
+		SparseArray<String> copy = ary.copy(1);
+		copy.put(2, "two");
+		copy.put(20, "twenty");
+		copy.remove(21);
+		assertNull(ary.get(2));
+		assertEquals("v20", ary.get(20));
+		assertEquals("v21", ary.get(21));
+		assertEquals("two", copy.get(2));
+		assertEquals("twenty", copy.get(20));
+		assertNull(copy.get(21));
+	}
 }
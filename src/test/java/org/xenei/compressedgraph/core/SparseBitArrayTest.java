@@ -19,14 +19,26 @@ package org.xenei.compressedgraph.core;
 
 import static org.junit.Assert.*;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.BitSet;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
 
 import org.junit.Before;
 import org.junit.Test;
 import org.xenei.compressedgraph.core.SparseBitArray;
 
 public class SparseBitArrayTest {
+	// the concurrency tests keep the multiples of STABLE in the lower half of
+	// SCAN_BITS set while a writer changes the other bits
+	private static final int STABLE = 3;
+	private static final int SCAN_PAGE_SIZE = 256;
+	private static final int SCAN_BITS = 64 * SCAN_PAGE_SIZE;
 
 	private SparseBitArray ary;
 
@@ -158,4 +170,448 @@ public class SparseBitArrayTest {
 		assertTrue(ary.isEmpty());
 
 	}
+
+	@Test
+	public void testCursor() {
+		ary.set(Integer.MAX_VALUE);
+		ary.set(1);
+		ary.set(10);
+		ary.set(1000);
+		ary.set(1000000);
+
+		IndexCursor cursor = ary.cursor();
+		assertTrue(cursor.next());
+		assertEquals(1, cursor.getIndex());
+		assertTrue(cursor.next());
+		assertEquals(10, cursor.getIndex());
+		assertTrue(cursor.next());
+		assertEquals(1000, cursor.getIndex());
+		assertTrue(cursor.next());
+		assertEquals(1000000, cursor.getIndex());
+		assertTrue(cursor.next());
+		assertEquals(Integer.MAX_VALUE, cursor.getIndex());
+		assertFalse(cursor.next());
+		assertFalse(cursor.next());
+	}
+
+	@Test
+	public void testSerialization() throws Exception {
+		ary.set(1);
+		ary.set(10000);
+		ary.set(Integer.MAX_VALUE);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(ary);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+				baos.toByteArray()));
+		SparseBitArray copy = (SparseBitArray) ois.readObject();
+
+		assertTrue(copy.get(1));
+		assertTrue(copy.get(10000));
+		assertTrue(copy.get(Integer.MAX_VALUE));
+		assertFalse(copy.get(2));
+		copy.set(2);
+		assertTrue(copy.get(2));
+	}
+
+	@Test
+	public void testCardinality() {
+		assertEquals(0, ary.cardinality());
+		ary.set(1);
+		ary.set(1);
+		ary.set(10000);
+		ary.set(Integer.MAX_VALUE);
+		assertEquals(3, ary.cardinality());
+		ary.clear(5);
+		ary.clear(10000);
+		assertEquals(2, ary.cardinality());
+	}
+
+	private SparseBitArray fill(BitSet bits, int pageSize) {
+		SparseBitArray retval = new SparseBitArray(pageSize);
+		for (int i = bits.nextSetBit(0); i >= 0; i = bits.nextSetBit(i + 1)) {
+			retval.set(i);
+		}
+		return retval;
+	}
+
+	private void assertBits(BitSet expected, IndexCursor cursor) {
+		for (int i = expected.nextSetBit(0); i >= 0; i = expected
+				.nextSetBit(i + 1)) {
+			assertTrue(cursor.next());
+			assertEquals(i, cursor.getIndex());
+		}
+		assertFalse(cursor.next());
+	}
+
+	private BitSet random(Random r, int pageSize) {
+		BitSet bits = new BitSet();
+		for (int page = 0; page < 20; page++) {
+			int base = page * pageSize;
+			switch (r.nextInt(4)) {
+			case 0: // empty page
+				break;
+			case 1: // sparse
+				for (int i = 0; i < 10; i++) {
+					bits.set(base + r.nextInt(pageSize));
+				}
+				break;
+			case 2: // dense
+				for (int i = 0; i < pageSize / 2; i++) {
+					bits.set(base + r.nextInt(pageSize));
+				}
+				break;
+			default: // runs
+				int start = r.nextInt(pageSize / 2);
+				bits.set(base + start, base + start + r.nextInt(pageSize / 2));
+			}
+		}
+		return bits;
+	}
+
+	@Test
+	public void testSetAlgebra() {
+		int pageSize = 1024;
+		Random r = new Random(11);
+		for (int round = 0; round < 20; round++) {
+			BitSet x = random(r, pageSize);
+			BitSet y = random(r, pageSize);
+			SparseBitArray a = fill(x, pageSize);
+			SparseBitArray b = fill(y, pageSize);
+
+			BitSet expected = (BitSet) x.clone();
+			expected.and(y);
+			SparseBitArray result = a.and(b);
+			assertEquals(expected.cardinality(), result.cardinality());
+			assertBits(expected, result.cursor());
+			assertBits(expected, a.andCursor(b));
+			assertEquals(expected.cardinality(), a.cardinalityOfAnd(b));
+			assertEquals(x.intersects(y), a.intersects(b));
+
+			expected = (BitSet) x.clone();
+			expected.or(y);
+			result = a.or(b);
+			assertEquals(expected.cardinality(), result.cardinality());
+			assertBits(expected, result.cursor());
+
+			expected = (BitSet) x.clone();
+			expected.andNot(y);
+			result = a.andNot(b);
+			assertEquals(expected.cardinality(), result.cardinality());
+			assertBits(expected, result.cursor());
+
+			// the result is independent of the operands
+			result.set(0);
+			assertEquals(x.get(0), a.get(0));
+		}
+	}
+
+	@Test
+	public void testAndCursor() {
+		int pageSize = 256;
+		Random r = new Random(12);
+		BitSet x = random(r, pageSize);
+		BitSet y = random(r, pageSize);
+		BitSet z = random(r, pageSize);
+		SparseBitArray a = fill(x, pageSize);
+		BitSet expected = (BitSet) x.clone();
+		expected.and(y);
+		expected.and(z);
+		assertBits(expected,
+				a.andCursor(fill(y, pageSize), fill(z, pageSize)));
+		assertBits(x, a.andCursor());
+		assertBits(x, a.andCursor(a));
+		assertEquals(x.cardinality(), a.cardinalityOfAnd(a));
+
+		Iterator<Integer> iter = a.andIterator(fill(y, pageSize));
+		x.and(y);
+		for (int i = x.nextSetBit(0); i >= 0; i = x.nextSetBit(i + 1)) {
+			assertEquals(Integer.valueOf(i), iter.next());
+		}
+		assertFalse(iter.hasNext());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testPageSizeMismatch() {
+		new SparseBitArray(64).and(new SparseBitArray(128));
+	}
+
+	@Test
+	public void testCopy() {
+		ary = new SparseBitArray(64);
+		for (int i = 0; i < 64; i += 2) {
+			ary.set(i);
+		}
+		ary.set(1000);
+		SparseBitArray copy = ary.copy(1);
+		assertEquals(1, copy.getVersion());
+		copy.clear(0);
+		copy.set(1);
+		copy.clear(1000);
+		copy.set(2000);
+		assertTrue(ary.get(0));
+		assertFalse(ary.get(1));
+		assertTrue(ary.get(1000));
+		assertFalse(ary.get(2000));
+		assertEquals(33, ary.cardinality());
+		assertFalse(copy.get(0));
+		assertTrue(copy.get(1));
+		assertFalse(copy.get(1000));
+		assertTrue(copy.get(2000));
+		assertEquals(33, copy.cardinality());
+	}
+
+	@Test
+	public void testClearAll() {
+		ary = new SparseBitArray(64);
+		for (int i = 0; i < 1000; i += 3) {
+			ary.set(i);
+		}
+		ary.clear();
+		assertTrue(ary.isEmpty());
+		assertEquals(0, ary.cardinality());
+		assertFalse(ary.get(3));
+		assertFalse(ary.cursor().next());
+		ary.set(3);
+		assertEquals(1, ary.cardinality());
+	}
+
+	private static SparseBitArray roundTrip(SparseBitArray ary)
+			throws Exception {
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		ObjectOutputStream oos = new ObjectOutputStream(baos);
+		oos.writeObject(ary);
+		oos.close();
+		ObjectInputStream ois = new ObjectInputStream(new ByteArrayInputStream(
+				baos.toByteArray()));
+		return (SparseBitArray) ois.readObject();
+	}
+
+	@Test
+	public void testMemoryStats() throws Exception {
+		ary = new SparseBitArray(256);
+		MemoryStats empty = ary.getMemoryStats();
+		assertEquals(0, empty.getPageCount());
+		assertEquals(0, empty.getUsed());
+
+		Random random = new Random(17);
+		for (int i = 0; i < 20000; i++) {
+			int idx = random.nextInt(5000);
+			ary.set(idx, random.nextInt(4) != 0);
+		}
+		MemoryStats stats = ary.getMemoryStats();
+		assertEquals(ary.cardinality(), stats.getUsed());
+		assertEquals(stats.getPageCount() * 256, stats.getCapacity());
+		assertTrue(stats.getFillRatio() > 0 && stats.getFillRatio() <= 1);
+		assertTrue(stats.getHeapBytes() > empty.getHeapBytes());
+		assertEquals(0, stats.getOffHeapBytes());
+
+		// the counters match a count of the pages of a fresh array
+		MemoryStats counted = roundTrip(ary).getMemoryStats();
+		assertEquals(stats.getPageCount(), counted.getPageCount());
+		assertEquals(stats.getHeapBytes(), counted.getHeapBytes());
+
+		ary.clear();
+		assertEquals(empty.getHeapBytes(), ary.getMemoryStats().getHeapBytes());
+	}
+
+	@Test
+	public void testMemoryStatsOffHeap() throws Exception {
+		PageStore store = PageStore.direct();
+		try {
+			ary = new SparseBitArray(256, store);
+			for (int i = 0; i < 1024; i += 2) {
+				ary.set(i);
+			}
+			MemoryStats stats = ary.getMemoryStats();
+			assertEquals(4, stats.getPageCount());
+			assertEquals(4 * 32, stats.getOffHeapBytes());
+			ary.clear();
+			assertEquals(0, ary.getMemoryStats().getOffHeapBytes());
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	public void testCompact() throws Exception {
+		ary = new SparseBitArray(4096);
+		BitSet expected = new BitSet();
+		for (int i = 0; i < 40000; i += 3) {
+			ary.set(i);
+		}
+		for (int i = 0; i < 40000; i += 3) {
+			if (i % 300 != 0) {
+				ary.clear(i);
+			} else {
+				expected.set(i);
+			}
+		}
+		long before = ary.getMemoryStats().getHeapBytes();
+		long released = ary.compact();
+		MemoryStats stats = ary.getMemoryStats();
+		assertTrue(released > 0);
+		assertEquals(before - released, stats.getHeapBytes());
+		assertEquals(expected.cardinality(), ary.cardinality());
+		for (int i = 0; i < 40000; i++) {
+			assertEquals(expected.get(i), ary.get(i));
+		}
+		assertEquals(stats.getHeapBytes(), roundTrip(ary).getMemoryStats()
+				.getHeapBytes());
+		// nothing left to compact
+		assertEquals(0, ary.compact());
+	}
+
+	private SparseBitArray stableArray() {
+		SparseBitArray retval = new SparseBitArray(SCAN_PAGE_SIZE);
+		for (int i = 0; i < SCAN_BITS / 2; i += STABLE) {
+			retval.set(i);
+		}
+		return retval;
+	}
+
+	private int stableCount() {
+		return (SCAN_BITS / 2 + STABLE - 1) / STABLE;
+	}
+
+	@Test
+	public void testConcurrentCursor() throws Exception {
+		SparseBitArray array = stableArray();
+		Writer writer = new Writer(array);
+		Scanner[] scanners = new Scanner[4];
+		for (int t = 0; t < scanners.length; t++) {
+			scanners[t] = new Scanner(array, stableArray(), stableCount(), 200);
+			scanners[t].start();
+		}
+		writer.start();
+		for (Scanner scanner : scanners) {
+			scanner.join();
+			assertNull(scanner.error);
+		}
+		writer.halt();
+		assertNull(writer.error);
+	}
+
+	@Test
+	public void testOptimisticReaders() throws Exception {
+		SparseBitArray array = stableArray();
+		SparseBitArray stable = stableArray();
+		for (int n = 0; n < 5; n++) {
+			// 1 to 16 readers
+			Scanner[] scanners = new Scanner[1 << n];
+			for (int t = 0; t < scanners.length; t++) {
+				scanners[t] = new Scanner(array, stable, stableCount(), 20);
+				scanners[t].start();
+			}
+			for (Scanner scanner : scanners) {
+				scanner.join();
+				assertNull(scanner.error);
+			}
+		}
+		// with no writer every read is completed optimistically
+		assertEquals(0, array.getLockedReads());
+		assertEquals(0, stable.getLockedReads());
+	}
+
+	/**
+	 * Sets and clears runs of the bits that are not multiples of STABLE until
+	 * halted, so that pages are created, removed and change container.
+	 */
+	private static class Writer extends Thread {
+		private final SparseBitArray array;
+		private volatile boolean stop;
+		volatile Throwable error;
+
+		Writer(SparseBitArray array) {
+			this.array = array;
+		}
+
+		void halt() throws InterruptedException {
+			stop = true;
+			join(TimeUnit.SECONDS.toMillis(10));
+		}
+
+		@Override
+		public void run() {
+			Random r = new Random(5);
+			try {
+				while (!stop) {
+					int start = r.nextInt(SCAN_BITS - 100);
+					int length = r.nextBoolean() ? 100 : 1;
+					boolean value = r.nextBoolean();
+					for (int i = start; i < start + length; i++) {
+						if (i % STABLE != 0) {
+							array.set(i, value);
+						}
+					}
+				}
+			} catch (Throwable e) {
+				error = e;
+			}
+		}
+	}
+
+	/**
+	 * Scans an array with a cursor and with an and cursor over the stable
+	 * bits, checking that each scan is in order and sees every stable bit.
+	 */
+	private static class Scanner extends Thread {
+		private final SparseBitArray array;
+		private final SparseBitArray stable;
+		private final int stableCount;
+		private final int scans;
+		volatile Throwable error;
+
+		/**
+		 * Constructor.
+		 * 
+		 * @param scans
+		 *            the number of scans.
+		 */
+		Scanner(SparseBitArray array, SparseBitArray stable, int stableCount,
+				int scans) {
+			this.array = array;
+			this.stable = stable;
+			this.stableCount = stableCount;
+			this.scans = scans;
+		}
+
+		@Override
+		public void run() {
+			try {
+				for (int i = 0; i < scans; i++) {
+					scan();
+				}
+			} catch (Throwable e) {
+				error = e;
+			}
+		}
+
+		private void scan() {
+			IndexCursor cursor = array.cursor();
+			int last = -1;
+			int seen = 0;
+			while (cursor.next()) {
+				assertTrue(cursor.getIndex() > last);
+				last = cursor.getIndex();
+				if (last % STABLE == 0) {
+					seen++;
+				}
+			}
+			assertEquals(stableCount, seen);
+
+			cursor = array.andCursor(stable);
+			last = -1;
+			seen = 0;
+			while (cursor.next()) {
+				assertTrue(cursor.getIndex() > last);
+				last = cursor.getIndex();
+				assertEquals(0, last % STABLE);
+				seen++;
+			}
+			assertEquals(stableCount, seen);
+		}
+	}
 }
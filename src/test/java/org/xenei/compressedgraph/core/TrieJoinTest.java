@@ -0,0 +1,216 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TrieJoinTest {
+	private static final int N = 12;
+
+	private BitCube cube;
+	// the same positions with x and z swapped
+	private BitCube transposed;
+
+	@Before
+	public void setup() {
+		cube = new BitCube(64);
+		transposed = new BitCube(64);
+		Random r = new Random(3);
+		for (int i = 0; i < 200; i++) {
+			int x = r.nextInt(N);
+			int y = r.nextInt(3);
+			int z = r.nextInt(N);
+			cube.set(x, y, z);
+			transposed.set(z, y, x);
+		}
+	}
+
+	// variables are small negative terms, so they fit the int patterns
+	private int v(int n) {
+		return (int) TrieJoin.variable(n);
+	}
+
+	private List<String> solutions(TrieJoin join) {
+		List<String> retval = new ArrayList<String>();
+		BindingCursor cursor = join.cursor();
+		long[] values = new long[join.getVariableCount()];
+		while (cursor.next()) {
+			for (int i = 0; i < values.length; i++) {
+				values[i] = cursor.get(i);
+			}
+			retval.add(Arrays.toString(values));
+		}
+		return retval;
+	}
+
+	/**
+	 * Every assignment of values below N to the variables that matches the
+	 * patterns. Each pattern is cube, x, y, z.
+	 */
+	private List<String> expected(int variableCount, Object[]... patterns) {
+		List<String> retval = new ArrayList<String>();
+		int[] values = new int[variableCount];
+		int combinations = (int) Math.pow(N, variableCount);
+		for (int c = 0; c < combinations; c++) {
+			int rest = c;
+			for (int i = variableCount - 1; i >= 0; i--) {
+				values[i] = rest % N;
+				rest /= N;
+			}
+			boolean match = true;
+			for (Object[] pattern : patterns) {
+				int[] pos = new int[3];
+				for (int i = 0; i < 3; i++) {
+					int term = (Integer) pattern[i + 1];
+					pos[i] = term < 0 ? values[-(term + 1)] : term;
+				}
+				match &= ((Cube) pattern[0]).has(pos[0], pos[1], pos[2]);
+			}
+			if (match) {
+				retval.add(Arrays.toString(values));
+			}
+		}
+		return retval;
+	}
+
+	private void assertJoin(int variableCount, Object[]... patterns) {
+		TrieJoin join = new TrieJoin();
+		for (Object[] pattern : patterns) {
+			join.add((Cube) pattern[0], (Integer) pattern[1],
+					(Integer) pattern[2], (Integer) pattern[3]);
+		}
+		List<String> expected = expected(variableCount, patterns);
+		List<String> actual = solutions(join);
+		assertEquals(expected.size(), actual.size());
+		assertTrue(actual.containsAll(expected));
+	}
+
+	@Test
+	public void testSinglePattern() {
+		assertJoin(2, new Object[] { cube, v(0), 1, v(1) });
+		assertJoin(1, new Object[] { cube, v(0), 1, 4 });
+	}
+
+	@Test
+	public void testStar() {
+		// x values with both (1, z0) and (2, z1)
+		assertJoin(3, new Object[] { cube, v(0), 1, v(1) }, new Object[] {
+				cube, v(0), 2, v(2) });
+		assertJoin(1, new Object[] { cube, v(0), 1, 3 }, new Object[] { cube,
+				v(0), 2, 5 }, new Object[] { cube, v(0), 0, 7 });
+	}
+
+	@Test
+	public void testPath() {
+		assertJoin(3, new Object[] { cube, v(0), 0, v(1) }, new Object[] {
+				cube, v(1), 1, v(2) });
+	}
+
+	@Test
+	public void testTriangle() {
+		// a -> b -> c -> a over y = 0
+		assertJoin(3, new Object[] { cube, v(0), 0, v(1) }, new Object[] {
+				cube, v(1), 0, v(2) }, new Object[] { transposed, v(0), 0,
+				v(2) });
+	}
+
+	@Test
+	public void testValueAfterVariable() {
+		// y is bound between the z and x variables
+		assertJoin(2, new Object[] { cube, v(0), 2, v(1) }, new Object[] {
+				transposed, v(0), 0, v(1) });
+	}
+
+	@Test
+	public void testRepeatedVariable() {
+		assertJoin(1, new Object[] { cube, v(0), 1, v(0) });
+	}
+
+	@Test
+	public void testNoVariables() {
+		TrieJoin join = new TrieJoin();
+		BitCube.Idx idx = cube.find(-1, -1, -1).next();
+		join.add(cube, idx.getX(), idx.getY(), idx.getZ());
+		assertEquals(1, solutions(join).size());
+
+		join = new TrieJoin();
+		join.add(cube, 100, 0, 0);
+		assertEquals(0, solutions(join).size());
+	}
+
+	@Test
+	public void testFrozen() {
+		FrozenBitCube frozen = new FrozenBitCube(cube);
+		assertJoin(3, new Object[] { frozen, v(0), 1, v(1) }, new Object[] {
+				cube, v(0), 2, v(2) });
+		assertJoin(3, new Object[] { frozen, v(0), 0, v(1) }, new Object[] {
+				frozen, v(1), 0, v(2) }, new Object[] {
+				new FrozenBitCube(transposed), v(0), 0, v(2) });
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInconsistentOrder() {
+		new TrieJoin().add(cube, v(0), 0, v(1)).add(cube, v(1), 0, v(0))
+				.getVariableOrder();
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnusedVariable() {
+		new TrieJoin().add(cube, v(0), 0, v(2)).getVariableOrder();
+	}
+
+	@Test
+	public void testTrieIterator() {
+		for (Cube c : new Cube[] { cube, new FrozenBitCube(cube) }) {
+			TrieIterator trie = c.trieIterator();
+			trie.open();
+			trie.seek(5);
+			assertFalse(trie.atEnd());
+			long z = trie.key();
+			assertTrue(z >= 5);
+			trie.open();
+			long y = trie.key();
+			trie.open();
+			List<Long> xs = new ArrayList<Long>();
+			while (!trie.atEnd()) {
+				xs.add(trie.key());
+				trie.next();
+			}
+			List<Long> expected = new ArrayList<Long>();
+			for (long x = 0; x < N; x++) {
+				if (cube.has(x, y, z)) {
+					expected.add(x);
+				}
+			}
+			assertEquals(expected, xs);
+			trie.up();
+			trie.up();
+			assertEquals(z, trie.key());
+			trie.seek(N);
+			assertTrue(trie.atEnd());
+		}
+	}
+}
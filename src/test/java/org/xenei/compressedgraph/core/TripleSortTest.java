@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.core;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+public class TripleSortTest {
+
+	private void verifySorted(long[] xs, long[] ys, long[] zs, long checksum) {
+		long sum = 0;
+		for (int i = 0; i < xs.length; i++) {
+			sum += xs[i] * 31 + ys[i] * 17 + zs[i];
+			if (i > 0) {
+				if (zs[i - 1] == zs[i]) {
+					if (ys[i - 1] == ys[i]) {
+						assertTrue("x out of order at " + i,
+								xs[i - 1] <= xs[i]);
+					} else {
+						assertTrue("y out of order at " + i,
+								ys[i - 1] < ys[i]);
+					}
+				} else {
+					assertTrue("z out of order at " + i, zs[i - 1] < zs[i]);
+				}
+			}
+		}
+		assertEquals(checksum, sum);
+	}
+
+	private static long next(Random r, long range) {
+		return (r.nextLong() >>> 1) % range;
+	}
+
+	private void verify(long xRange, long yRange, long zRange) {
+		Random r = new Random(xRange);
+		int count = 10000;
+		long[] xs = new long[count];
+		long[] ys = new long[count];
+		long[] zs = new long[count];
+		long checksum = 0;
+		for (int i = 0; i < count; i++) {
+			xs[i] = next(r, xRange);
+			ys[i] = next(r, yRange);
+			zs[i] = next(r, zRange);
+			checksum += xs[i] * 31 + ys[i] * 17 + zs[i];
+		}
+		TripleSort.sort(xs, ys, zs, count);
+		verifySorted(xs, ys, zs, checksum);
+	}
+
+	@Test
+	public void testPacked() {
+		verify(1000, 10, 100);
+	}
+
+	@Test
+	public void testUnpacked() {
+		verify(Integer.MAX_VALUE, Integer.MAX_VALUE, Integer.MAX_VALUE);
+	}
+
+	@Test
+	public void testLongPositions() {
+		// packed and unpacked
+		verify(1L << 40, 4, 1L << 15);
+		verify(Long.MAX_VALUE, Long.MAX_VALUE, Long.MAX_VALUE);
+	}
+
+	@Test
+	public void testDuplicates() {
+		verify(Integer.MAX_VALUE, 2, 3);
+		verify(3, 2, Integer.MAX_VALUE);
+	}
+}
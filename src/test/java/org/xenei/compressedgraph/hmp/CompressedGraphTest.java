@@ -128,4 +128,31 @@ public class CompressedGraphTest {
 		assertFalse(t2.contains(t.get(0)));
 
 	}
+	@Test
+	public void testFindUnknown() {
+		Node s = NodeFactory.createURI("http://example.com/s");
+		graph.add(new Triple(s, RDF.type.asNode(), s));
+		long nodes = graph.getNodeMemoryStats().getUsed();
+		Node unknown = NodeFactory.createURI("http://example.com/unknown");
+		assertFalse(graph.find(unknown, Node.ANY, Node.ANY).hasNext());
+		assertFalse(graph.find(s, unknown, Node.ANY).hasNext());
+		assertEquals(nodes, graph.getNodeMemoryStats().getUsed());
+		assertTrue(graph.find(s, Node.ANY, Node.ANY).hasNext());
+	}
+
+	@Test
+	public void testNodeCache() {
+		Node p = RDF.type.asNode();
+		for (int i = 0; i < 50; i++) {
+			graph.add(new Triple(NodeFactory.createURI("http://example.com/s"
+					+ i), p, NodeFactory.createLiteral("v" + i)));
+		}
+		long hits = graph.getNodeCache().getHits();
+		for (int i = 0; i < 10; i++) {
+			assertTrue(graph.find(Node.ANY, p, Node.ANY).hasNext());
+		}
+		assertTrue(graph.getNodeCache().getHits() > hits);
+		assertTrue(graph.getNodeCache().size() <= graph.getNodeCache()
+				.getCapacity());
+	}
 }
@@ -0,0 +1,91 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.hmp;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class MappedFileTest {
+
+	private File f;
+	private MappedFile file;
+
+	@Before
+	public void beforeMappedFileTest() throws Exception {
+		f = File.createTempFile("mapped", ".dat");
+		// small segments so that values cross segment boundaries
+		file = new MappedFile(f, 16);
+	}
+
+	@After
+	public void afterMappedFileTest() throws Exception {
+		file.close();
+		f.delete();
+	}
+
+	@Test
+	public void testPutGet() throws Exception {
+		byte[] b = new byte[40];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) i;
+		}
+		file.put(3, b);
+		assertEquals(43, file.length());
+		byte[] read = new byte[40];
+		file.get(3, read);
+		assertArrayEquals(b, read);
+		assertEquals(0x0c0d0e0f, file.getInt(15));
+		assertEquals(0x0c0d0e0f10111213L, file.getLong(15));
+	}
+
+	@Test
+	public void testPutRange() throws Exception {
+		byte[] b = new byte[40];
+		for (int i = 0; i < b.length; i++) {
+			b[i] = (byte) i;
+		}
+		file.put(10, b, 5, 30);
+		assertEquals(40, file.length());
+		byte[] read = new byte[30];
+		file.get(10, read);
+		for (int i = 0; i < read.length; i++) {
+			assertEquals(i + 5, read[i]);
+		}
+		file.put(40, b, 0, 0);
+		assertEquals(40, file.length());
+	}
+
+	@Test
+	public void testLong() throws Exception {
+		for (int i = 0; i < 20; i++) {
+			file.putLong(i * 8, i * 1000000007L);
+		}
+		assertEquals(160, file.length());
+		for (int i = 0; i < 20; i++) {
+			assertEquals(i * 1000000007L, file.getLong(i * 8));
+		}
+		file.putLong(12, -1);
+		assertEquals(-1, file.getLong(12));
+		assertEquals(-1, file.getInt(14));
+	}
+}
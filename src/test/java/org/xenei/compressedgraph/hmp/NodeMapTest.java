@@ -0,0 +1,145 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.xenei.compressedgraph.hmp;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.hp.hpl.jena.graph.Node;
+import com.hp.hpl.jena.graph.NodeFactory;
+
+public class NodeMapTest {
+
+	private NodeMap map;
+
+	@Before
+	public void beforeNodeMapTest() throws Exception {
+		// small segments so that nodes cross segment boundaries, and small
+		// buffers so that they are flushed often
+		map = new NodeMap(10, 64, 16, 256);
+	}
+
+	@After
+	public void afterNodeMapTest() {
+		map.close();
+	}
+
+	private Node uri(int i) {
+		return NodeFactory.createURI("http://example.com/n" + i);
+	}
+
+	@Test
+	public void testGet() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			assertEquals(i, map.get(uri(i)).getIdx());
+		}
+		for (int i = 0; i < 500; i++) {
+			assertEquals(uri(i), map.get(i).getNode());
+			assertEquals(i, map.get(uri(i)).getIdx());
+			assertEquals(i, map.lookup(uri(i)).getIdx());
+		}
+		assertEquals(500, map.count());
+		try {
+			map.get(500);
+			fail("Should have thrown IndexOutOfBoundsException");
+		} catch (IndexOutOfBoundsException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testFlush() throws Exception {
+		for (int i = 0; i < 10; i++) {
+			map.get(uri(i));
+		}
+		// still buffered
+		for (int i = 0; i < 10; i++) {
+			assertEquals(uri(i), map.get(i).getNode());
+			assertEquals(i, map.lookup(uri(i)).getIdx());
+		}
+		map.flush();
+		map.flush();
+		for (int i = 10; i < 20; i++) {
+			map.get(uri(i));
+		}
+		for (int i = 0; i < 20; i++) {
+			assertEquals(uri(i), map.get(i).getNode());
+			assertEquals(i, map.lookup(uri(i)).getIdx());
+		}
+		assertEquals(20, map.count());
+	}
+
+	@Test
+	public void testLargeNode() throws Exception {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 100; i++) {
+			sb.append("a long literal ");
+		}
+		Node large = NodeFactory.createLiteral(sb.toString());
+		map.get(uri(0));
+		assertEquals(1, map.get(large).getIdx());
+		map.get(uri(2));
+		assertEquals(large, map.get(1).getNode());
+		assertEquals(1, map.lookup(large).getIdx());
+		assertEquals(uri(0), map.lookup(uri(0)).getNode());
+		assertEquals(2, map.lookup(uri(2)).getIdx());
+		map.flush();
+		assertEquals(large, map.get(1).getNode());
+		assertEquals(uri(2), map.get(2).getNode());
+	}
+
+	@Test
+	public void testParallelGet() throws Exception {
+		final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+		Thread[] readers = new Thread[4];
+		for (int i = 0; i < 100; i++) {
+			map.get(uri(i));
+		}
+		for (int t = 0; t < readers.length; t++) {
+			readers[t] = new Thread() {
+				@Override
+				public void run() {
+					try {
+						for (int r = 0; r < 20; r++) {
+							long count = map.count();
+							for (int i = 0; i < count; i++) {
+								assertEquals(uri(i), map.get(i).getNode());
+							}
+						}
+					} catch (Throwable e) {
+						error.set(e);
+					}
+				}
+			};
+			readers[t].start();
+		}
+		// the files grow while they are read
+		for (int i = 100; i < 2000; i++) {
+			map.get(uri(i));
+		}
+		for (Thread reader : readers) {
+			reader.join();
+		}
+		assertNull(error.get());
+	}
+}
@@ -19,14 +19,31 @@ package org.xenei.compressedgraph.mem;
 
 import static org.junit.Assert.*;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
 
 import org.junit.Test;
+import org.xenei.compressedgraph.CubeOrder;
+import org.xenei.compressedgraph.core.BitConstants;
+import org.xenei.compressedgraph.core.MemoryStats;
 import org.xenei.compressedgraph.mem.CompressedGraph;
 
+import com.hp.hpl.jena.graph.Graph;
+import com.hp.hpl.jena.graph.GraphListener;
 import com.hp.hpl.jena.graph.Node;
 import com.hp.hpl.jena.graph.NodeFactory;
 import com.hp.hpl.jena.graph.Triple;
+import com.hp.hpl.jena.datatypes.xsd.XSDDatatype;
+import com.hp.hpl.jena.shared.AddDeniedException;
+import com.hp.hpl.jena.shared.DeleteDeniedException;
 import com.hp.hpl.jena.vocabulary.RDF;
 
 public class CompressedGraphTest {
@@ -124,4 +141,511 @@ public class CompressedGraphTest {
 		assertFalse(t2.contains(t.get(0)));
 
 	}
+
+	@Test
+	public void testFindPatterns() {
+		CompressedGraph single = new CompressedGraph(
+				BitConstants.DEFAULT_PAGE_SIZE, EnumSet.of(CubeOrder.OPS));
+		assertEquals(EnumSet.of(CubeOrder.OPS), single.getCubeOrders());
+		assertEquals(EnumSet.allOf(CubeOrder.class), graph.getCubeOrders());
+
+		Node[] s = new Node[3];
+		Node[] p = new Node[3];
+		Node[] o = new Node[3];
+		for (int i = 0; i < 3; i++) {
+			s[i] = NodeFactory.createURI("http://example.com/s" + i);
+			p[i] = NodeFactory.createURI("http://example.com/p" + i);
+			o[i] = NodeFactory.createLiteral("o" + i);
+		}
+		for (int i = 0; i < 3; i++) {
+			for (int j = 0; j < 3; j++) {
+				if (i != j) {
+					Triple t = new Triple(s[i], p[j], o[(i + j) % 3]);
+					graph.add(t);
+					single.add(t);
+				}
+			}
+		}
+
+		Node[] sPattern = { Node.ANY, s[1] };
+		Node[] pPattern = { Node.ANY, p[2] };
+		Node[] oPattern = { Node.ANY, o[0] };
+		for (Node sm : sPattern) {
+			for (Node pm : pPattern) {
+				for (Node om : oPattern) {
+					List<Triple> expected = single.find(sm, pm, om).toList();
+					List<Triple> actual = graph.find(sm, pm, om).toList();
+					String msg = String.format("(%s %s %s)", sm, pm, om);
+					assertEquals(msg, expected.size(), actual.size());
+					assertTrue(msg, actual.containsAll(expected));
+					for (Triple t : actual) {
+						assertTrue(msg, new Triple(sm, pm, om).matches(t));
+					}
+				}
+			}
+		}
+
+		graph.delete(new Triple(s[1], p[2], o[0]));
+		assertFalse(graph.find(s[1], Node.ANY, Node.ANY).toList()
+				.contains(new Triple(s[1], p[2], o[0])));
+		assertTrue(graph.find(Node.ANY, p[2], o[0]).toList().isEmpty());
+		assertTrue(graph.find(s[1], Node.ANY, o[0]).toList().isEmpty());
+	}
+
+	@Test
+	public void testFreeze() {
+		Node s = NodeFactory.createAnon();
+		Node p = RDF.type.asNode();
+		Node o = NodeFactory.createURI("http://example.com/foo");
+		Triple t = new Triple(s, p, o);
+		graph.add(t);
+		graph.add(new Triple(s, p, NodeFactory.createLiteral("5")));
+
+		assertFalse(graph.isFrozen());
+		assertTrue(graph.getCapabilities().addAllowed());
+		graph.freeze();
+		assertTrue(graph.isFrozen());
+		assertFalse(graph.getCapabilities().addAllowed());
+		assertFalse(graph.getCapabilities().deleteAllowed());
+
+		assertTrue(graph.contains(t));
+		assertEquals(2, graph.find(s, Node.ANY, Node.ANY).toList().size());
+		assertEquals(1, graph.find(Node.ANY, Node.ANY, o).toList().size());
+		assertEquals(2, graph.size());
+
+		try {
+			graph.add(new Triple(o, p, s));
+			fail("Should have thrown AddDeniedException");
+		} catch (AddDeniedException expected) {
+			// expected
+		}
+		try {
+			graph.delete(t);
+			fail("Should have thrown DeleteDeniedException");
+		} catch (DeleteDeniedException expected) {
+			// expected
+		}
+		assertTrue(graph.contains(t));
+	}
+
+	@Test
+	public void testBulkLoad() {
+		List<Triple> triples = new ArrayList<Triple>();
+		for (int i = 0; i < 50; i++) {
+			Node s = NodeFactory.createURI("http://example.com/s" + (i % 7));
+			Node p = NodeFactory.createURI("http://example.com/p" + (i % 3));
+			Node o = NodeFactory.createLiteral("o" + i);
+			triples.add(new Triple(s, p, o));
+		}
+		triples.add(triples.get(0));
+		graph.bulkLoad(triples.iterator());
+
+		assertEquals(50, graph.find(Node.ANY, Node.ANY, Node.ANY).toList()
+				.size());
+		for (Triple t : triples) {
+			assertTrue(graph.contains(t));
+		}
+		Node s3 = NodeFactory.createURI("http://example.com/s3");
+		assertEquals(7, graph.find(s3, Node.ANY, Node.ANY).toList().size());
+		Node p1 = NodeFactory.createURI("http://example.com/p1");
+		assertEquals(17, graph.find(Node.ANY, p1, Node.ANY).toList().size());
+
+		// loading into a non empty graph adds the triples
+		Triple extra = new Triple(s3, p1, NodeFactory.createLiteral("extra"));
+		List<Triple> more = new ArrayList<Triple>();
+		more.add(extra);
+		graph.bulkLoad(more.iterator());
+		assertTrue(graph.contains(extra));
+		assertEquals(51, graph.find(Node.ANY, Node.ANY, Node.ANY).toList()
+				.size());
+	}
+
+	@Test
+	public void testSaveLoad() throws IOException {
+		StringBuilder longText = new StringBuilder();
+		for (int i = 0; i < 200; i++) {
+			longText.append("a long literal ");
+		}
+		Node s = NodeFactory.createAnon();
+		Node p = RDF.type.asNode();
+		List<Triple> triples = new ArrayList<Triple>();
+		triples.add(new Triple(s, p, NodeFactory
+				.createURI("http://example.com/foo")));
+		triples.add(new Triple(s, p, NodeFactory.createLiteral("text", "en",
+				false)));
+		triples.add(new Triple(s, p, NodeFactory.createLiteral("5",
+				XSDDatatype.XSDint)));
+		triples.add(new Triple(s, p, NodeFactory.createLiteral(longText
+				.toString())));
+		for (int i = 0; i < 300; i++) {
+			triples.add(new Triple(NodeFactory
+					.createURI("http://example.com/s" + (i % 13)), NodeFactory
+					.createURI("http://example.com/p" + (i % 5)), NodeFactory
+					.createLiteral("o" + (i * 7))));
+		}
+		for (Triple t : triples) {
+			graph.add(t);
+		}
+		graph.freeze();
+
+		File file = File.createTempFile("graph", ".snapshot");
+		try {
+			graph.save(file.toPath());
+
+			CompressedGraph loaded = new CompressedGraph();
+			loaded.load(file.toPath());
+			assertTrue(loaded.isFrozen());
+			List<Triple> all = loaded.find(Node.ANY, Node.ANY, Node.ANY)
+					.toList();
+			assertEquals(triples.size(), all.size());
+			assertTrue(all.containsAll(triples));
+			assertEquals(4, loaded.find(s, Node.ANY, Node.ANY).toList()
+					.size());
+
+			try {
+				loaded.load(file.toPath());
+				fail("Should have thrown AddDeniedException");
+			} catch (AddDeniedException expected) {
+				// expected
+			}
+
+			CompressedGraph notEmpty = new CompressedGraph();
+			notEmpty.add(triples.get(0));
+			try {
+				notEmpty.load(file.toPath());
+				fail("Should have thrown IllegalStateException");
+			} catch (IllegalStateException expected) {
+				// expected
+			}
+
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			raf.setLength(raf.length() - 2);
+			raf.close();
+			try {
+				new CompressedGraph().load(file.toPath());
+				fail("Should have thrown IOException");
+			} catch (IOException expected) {
+				// expected
+			}
+		} finally {
+			file.delete();
+		}
+	}
+
+	@Test
+	public void testCount() {
+		Node s = NodeFactory.createURI("http://example.com/s");
+		Node p = RDF.type.asNode();
+		Node o = NodeFactory.createURI("http://example.com/foo");
+		graph.add(new Triple(s, p, o));
+		graph.add(new Triple(s, p, o));
+		graph.add(new Triple(s, p, NodeFactory.createLiteral("5")));
+		graph.add(new Triple(o, p, o));
+		graph.delete(new Triple(o, p, s));
+		assertEquals(3, graph.size());
+
+		assertEquals(3, graph.count(Node.ANY, Node.ANY, Node.ANY));
+		assertEquals(2, graph.count(s, Node.ANY, Node.ANY));
+		assertEquals(3, graph.count(Node.ANY, p, Node.ANY));
+		assertEquals(2, graph.count(Node.ANY, Node.ANY, o));
+		assertEquals(1, graph.count(s, Node.ANY, o));
+		assertEquals(1, graph.count(s, p, o));
+		assertEquals(0, graph.count(o, p, s));
+		assertEquals(2L,
+				graph.getStatisticsHandler().getStatistic(Node.ANY, Node.ANY, o));
+
+		CompressedGraph single = new CompressedGraph(
+				BitConstants.DEFAULT_PAGE_SIZE, EnumSet.of(CubeOrder.OPS));
+		single.add(new Triple(s, p, o));
+		single.add(new Triple(o, p, o));
+		assertEquals(1, single.count(s, Node.ANY, Node.ANY));
+		assertEquals(2, single.count(Node.ANY, p, Node.ANY));
+	}
+
+	@Test
+	public void testMemoryStats() {
+		assertEquals(0, graph.getBytesPerTriple(), 0);
+		for (int i = 0; i < 200; i++) {
+			graph.add(new Triple(uri(i), RDF.type.asNode(), uri(i % 10)));
+		}
+		MemoryStats nodes = graph.getNodeMemoryStats();
+		assertEquals(201, nodes.getUsed());
+		assertTrue(nodes.getHeapBytes() > 201 * 20);
+		MemoryStats cubes = graph.getCubeMemoryStats();
+		assertEquals(200 * graph.getCubeOrders().size(), cubes.getUsed());
+		assertEquals((double) (nodes.getBytes() + cubes.getBytes()) / 200,
+				graph.getBytesPerTriple(), 0.0001);
+	}
+
+	@Test
+	public void testCompact() {
+		Node p = RDF.type.asNode();
+		for (int i = 0; i < 2000; i++) {
+			graph.add(new Triple(uri(i), p, uri(i % 20)));
+		}
+		for (int i = 0; i < 2000; i++) {
+			if (i % 40 != 0) {
+				graph.delete(new Triple(uri(i), p, uri(i % 20)));
+			}
+		}
+		assertEquals(50, graph.size());
+		long before = graph.getCubeMemoryStats().getHeapBytes();
+		long released = graph.compact();
+		assertTrue(released > 0);
+		assertEquals(before - released, graph.getCubeMemoryStats()
+				.getHeapBytes());
+		assertEquals(50, graph.find(Node.ANY, p, Node.ANY).toList().size());
+		assertEquals(50, graph.count(Node.ANY, Node.ANY, uri(0)));
+		Runnable compactor = graph.compactor(4);
+		for (int i = 0; i < 10; i++) {
+			compactor.run();
+		}
+		assertEquals(before - released, graph.getCubeMemoryStats()
+				.getHeapBytes());
+	}
+
+	@Test
+	public void testRenumber() throws IOException {
+		Node name = NodeFactory.createURI("http://example.com/name");
+		Node knows = NodeFactory.createURI("http://example.com/knows");
+		for (int i = 0; i < 300; i++) {
+			graph.add(new Triple(uri(i), name, NodeFactory
+					.createLiteral("name " + i)));
+			graph.add(new Triple(uri(i), RDF.type.asNode(), uri(i % 3)));
+			if (i % 2 == 0) {
+				graph.add(new Triple(uri(i), knows, uri((i * 7) % 300)));
+			}
+		}
+		Triple junk = new Triple(uri(1000), knows, uri(1001));
+		graph.add(junk);
+		graph.delete(junk);
+		List<Triple> before = graph.find(Node.ANY, Node.ANY, Node.ANY)
+				.toList();
+		long nodes = graph.getNodeMemoryStats().getUsed();
+		long pages = graph.getCubeMemoryStats().getPageCount();
+
+		graph.renumber();
+
+		List<Triple> after = graph.find(Node.ANY, Node.ANY, Node.ANY)
+				.toList();
+		assertEquals(before.size(), after.size());
+		assertTrue(after.containsAll(before));
+		assertEquals(nodes - 2, graph.getNodeMemoryStats().getUsed());
+		assertTrue(graph.getCubeMemoryStats().getPageCount() <= pages);
+		assertEquals(100, graph.count(Node.ANY, RDF.type.asNode(), uri(1)));
+		assertEquals(150, graph.count(Node.ANY, knows, Node.ANY));
+		assertEquals(1, graph.find(uri(2), knows, Node.ANY).toList().size());
+		graph.add(junk);
+		assertTrue(graph.contains(junk));
+
+		graph.freeze();
+		try {
+			graph.renumber();
+			fail("Should have thrown AddDeniedException");
+		} catch (AddDeniedException expected) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testUnknownNodes() {
+		Node p = RDF.type.asNode();
+		graph.add(new Triple(uri(0), p, uri(1)));
+		long nodes = graph.getNodeMemoryStats().getUsed();
+		Node unknown = uri(99);
+		assertFalse(graph.find(unknown, Node.ANY, Node.ANY).hasNext());
+		assertFalse(graph.contains(uri(0), p, unknown));
+		assertEquals(0, graph.count(Node.ANY, unknown, Node.ANY));
+		assertEquals(0, graph.parallelFind(new Triple(unknown, p, uri(1)))
+				.count());
+		Node v = NodeFactory.createVariable("v");
+		List<Triple> patterns = new ArrayList<Triple>();
+		patterns.add(new Triple(v, p, uri(1)));
+		patterns.add(new Triple(v, p, unknown));
+		assertFalse(graph.join(patterns).hasNext());
+		graph.delete(new Triple(unknown, p, uri(1)));
+		graph.remove(unknown, Node.ANY, Node.ANY);
+		assertEquals(nodes, graph.getNodeMemoryStats().getUsed());
+		assertEquals(1, graph.size());
+	}
+
+	private Node uri(int i) {
+		return NodeFactory.createURI("http://example.com/n" + i);
+	}
+
+	@Test
+	public void testJoin() {
+		Node knows = NodeFactory.createURI("http://example.com/knows");
+		Node likes = NodeFactory.createURI("http://example.com/likes");
+		Random r = new Random(8);
+		for (int i = 0; i < 300; i++) {
+			graph.add(new Triple(uri(r.nextInt(20)), r.nextBoolean() ? knows
+					: likes, uri(r.nextInt(20))));
+		}
+		Node a = NodeFactory.createVariable("a");
+		Node b = NodeFactory.createVariable("b");
+		Node c = NodeFactory.createVariable("c");
+
+		// triangle: a knows b, b knows c, c knows a
+		List<Triple> patterns = new ArrayList<Triple>();
+		patterns.add(new Triple(a, knows, b));
+		patterns.add(new Triple(b, knows, c));
+		patterns.add(new Triple(c, knows, a));
+		int expected = 0;
+		for (int i = 0; i < 20; i++) {
+			for (int j = 0; j < 20; j++) {
+				for (int k = 0; k < 20; k++) {
+					if (graph.contains(uri(i), knows, uri(j))
+							&& graph.contains(uri(j), knows, uri(k))
+							&& graph.contains(uri(k), knows, uri(i))) {
+						expected++;
+					}
+				}
+			}
+		}
+		int count = 0;
+		Iterator<Map<Node, Node>> iter = graph
+				.join(patterns);
+		while (iter.hasNext()) {
+			Map<Node, Node> solution = iter.next();
+			assertEquals(3, solution.size());
+			assertTrue(graph.contains(solution.get(c), knows, solution.get(a)));
+			count++;
+		}
+		assertEquals(expected, count);
+
+		// star with a variable predicate: a likes b and a ?p n3
+		Node p = NodeFactory.createVariable("p");
+		patterns.clear();
+		patterns.add(new Triple(a, likes, b));
+		patterns.add(new Triple(a, p, uri(3)));
+		expected = 0;
+		for (int i = 0; i < 20; i++) {
+			int objects = graph.find(uri(i), likes, Node.ANY).toList().size();
+			int predicates = graph.find(uri(i), Node.ANY, uri(3)).toList()
+					.size();
+			expected += objects * predicates;
+		}
+		assertEquals(expected, graph.join(patterns).toList().size());
+	}
+
+	@Test
+	public void testParallelFind() {
+		Random r = new Random(9);
+		for (int i = 0; i < 500; i++) {
+			graph.add(new Triple(uri(r.nextInt(50)), uri(100 + r.nextInt(5)),
+					uri(r.nextInt(50))));
+		}
+		Triple[] matches = { Triple.ANY, new Triple(uri(3), Node.ANY, Node.ANY),
+				new Triple(Node.ANY, uri(101), Node.ANY),
+				new Triple(Node.ANY, Node.ANY, uri(7)),
+				new Triple(uri(3), uri(101), Node.ANY) };
+		for (Triple match : matches) {
+			List<Triple> expected = graph.find(match).toList();
+			List<Triple> actual = graph.parallelFind(match).collect(
+					Collectors.<Triple> toList());
+			assertEquals(expected.size(), actual.size());
+			assertTrue(actual.containsAll(expected));
+		}
+	}
+
+	@Test
+	public void testRemove() {
+		Node[] s = new Node[4];
+		Node[] p = new Node[3];
+		for (int i = 0; i < s.length; i++) {
+			s[i] = NodeFactory.createURI("http://example.com/s" + i);
+		}
+		for (int i = 0; i < p.length; i++) {
+			p[i] = NodeFactory.createURI("http://example.com/p" + i);
+		}
+		for (Node sn : s) {
+			for (Node pn : p) {
+				graph.add(new Triple(sn, pn, NodeFactory.createLiteral(sn
+						.getURI() + pn.getURI())));
+				graph.add(new Triple(sn, pn, s[0]));
+			}
+		}
+		assertEquals(24, graph.size());
+
+		graph.remove(s[1], Node.ANY, Node.ANY);
+		assertEquals(18, graph.size());
+		assertTrue(graph.find(s[1], Node.ANY, Node.ANY).toList().isEmpty());
+		assertEquals(0, graph.count(s[1], Node.ANY, Node.ANY));
+
+		graph.remove(Node.ANY, p[2], Node.ANY);
+		assertEquals(12, graph.size());
+		assertTrue(graph.find(Node.ANY, p[2], Node.ANY).toList().isEmpty());
+
+		graph.remove(Node.ANY, Node.ANY, s[0]);
+		assertEquals(6, graph.size());
+		assertTrue(graph.find(Node.ANY, Node.ANY, s[0]).toList().isEmpty());
+		for (Triple t : graph.find(Node.ANY, Node.ANY, Node.ANY).toList()) {
+			assertTrue(t.getObject().isLiteral());
+		}
+
+		// registered listeners see each delete
+		DeleteListener listener = new DeleteListener();
+		graph.getEventManager().register(listener);
+		graph.remove(s[2], Node.ANY, Node.ANY);
+		assertEquals(2, listener.deleted.size());
+		assertEquals(4, graph.size());
+
+		graph.clear();
+		assertEquals(0, graph.size());
+		assertTrue(graph.isEmpty());
+		assertTrue(graph.find(Node.ANY, Node.ANY, Node.ANY).toList().isEmpty());
+	}
+
+	/**
+	 * Records the triples deleted one at a time.
+	 */
+	private static class DeleteListener implements GraphListener {
+		private final List<Triple> deleted = new ArrayList<Triple>();
+
+		@Override
+		public void notifyDeleteTriple(Graph g, Triple t) {
+			deleted.add(t);
+		}
+
+		@Override
+		public void notifyAddTriple(Graph g, Triple t) {
+		}
+
+		@Override
+		public void notifyAddArray(Graph g, Triple[] triples) {
+		}
+
+		@Override
+		public void notifyAddList(Graph g, List<Triple> triples) {
+		}
+
+		@Override
+		public void notifyAddIterator(Graph g, Iterator<Triple> it) {
+		}
+
+		@Override
+		public void notifyAddGraph(Graph g, Graph added) {
+		}
+
+		@Override
+		public void notifyDeleteList(Graph g, List<Triple> triples) {
+		}
+
+		@Override
+		public void notifyDeleteArray(Graph g, Triple[] triples) {
+		}
+
+		@Override
+		public void notifyDeleteIterator(Graph g, Iterator<Triple> it) {
+		}
+
+		@Override
+		public void notifyDeleteGraph(Graph g, Graph removed) {
+		}
+
+		@Override
+		public void notifyEvent(Graph source, Object value) {
+		}
+	}
 }